@@ -0,0 +1,32 @@
+package com.mayfly.imfs.benchmark;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Runs the selected benchmarks once per thread count in -Dbenchmark.threads (default 1,4),
+ * so every benchmark is measured both uncontended and contended. Any other argument is
+ * passed to JMH as is; a result file gets the thread count appended to its name.
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions options = new CommandLineOptions(args);
+		for (String threads : System.getProperty("benchmark.threads", "1,4").split(",")) {
+			int count = Integer.parseInt(threads.trim());
+			ChainedOptionsBuilder builder = new OptionsBuilder().parent(options).threads(count);
+			if (options.getResult().hasValue())
+				builder.result(withThreads(options.getResult().get(), count));
+			new Runner(builder.build()).run();
+		}
+	}
+
+	private static String withThreads(String file, int threads) {
+		int dot = file.lastIndexOf('.');
+		return dot < 0 ? file + "-t" + threads : file.substring(0, dot) + "-t" + threads + file.substring(dot);
+	}
+}
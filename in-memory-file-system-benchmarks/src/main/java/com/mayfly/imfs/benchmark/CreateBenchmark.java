@@ -0,0 +1,69 @@
+package com.mayfly.imfs.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.service.FileSystemWorker;
+
+// create() into one ever wider folder, or at the bottom of a deep chain where path resolution dominates
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CreateBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Tree {
+
+		@Param({ "1", "16", "64" })
+		int depth;
+
+		FileSystemWorker worker;
+		String parent;
+		final AtomicInteger threadIds = new AtomicInteger();
+
+		// A fresh tree per iteration keeps the folder from growing across the whole run
+		@Setup(Level.Iteration)
+		public void setUp() {
+			worker = new FileSystemWorker();
+			parent = Trees.deep(worker, depth);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Names {
+
+		String prefix;
+		long next;
+
+		@Setup(Level.Iteration)
+		public void setUp(Tree tree) {
+			prefix = "t" + tree.threadIds.incrementAndGet() + "n";
+		}
+	}
+
+	@Benchmark
+	public void createFile(Tree tree, Names names) {
+		tree.worker.create(EntityType.TEXT_FILE, names.prefix + names.next++ + ".txt", tree.parent);
+	}
+
+	@Benchmark
+	public void createFolder(Tree tree, Names names) {
+		tree.worker.create(EntityType.FOLDER, names.prefix + names.next++, tree.parent);
+	}
+}
@@ -0,0 +1,51 @@
+package com.mayfly.imfs.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.service.FileSystemWorker;
+import com.mayfly.imfs.utils.FSUtils;
+
+// Path resolution at increasing depth, walking the tree and through the worker's path cache
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FindEntityBenchmark {
+
+	@Param({ "1", "4", "16", "64" })
+	int depth;
+
+	FileSystemWorker worker;
+	String path;
+
+	@Setup
+	public void setUp() {
+		worker = new FileSystemWorker();
+		path = Trees.deep(worker, depth);
+	}
+
+	@Benchmark
+	public Entity walk() {
+		return FSUtils.findEntity(path, worker.getDrives());
+	}
+
+	@Benchmark
+	public Entity cached() {
+		return FSUtils.findEntity(path, worker.getDrives(), worker.getPathCache());
+	}
+}
@@ -0,0 +1,45 @@
+package com.mayfly.imfs.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.service.FileSystemWorker;
+import com.mayfly.imfs.utils.FSUtils;
+
+// Entity.getPath rebuilds the path from the parent chain on every call
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GetPathBenchmark {
+
+	@Param({ "1", "16", "64", "256" })
+	int depth;
+
+	Entity leaf;
+
+	@Setup
+	public void setUp() {
+		FileSystemWorker worker = new FileSystemWorker();
+		leaf = FSUtils.findEntity(Trees.deep(worker, depth), worker.getDrives());
+	}
+
+	@Benchmark
+	public String getPath() {
+		return leaf.getPath();
+	}
+}
@@ -0,0 +1,76 @@
+package com.mayfly.imfs.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.service.FileSystemWorker;
+
+/*
+ * Every thread moves its own folder back and forth between two shared parents, or
+ * renames it in place, so all threads contend on the same drive and directories.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MoveRenameBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Tree {
+
+		final FileSystemWorker worker = new FileSystemWorker();
+		final AtomicInteger threadIds = new AtomicInteger();
+
+		@Setup
+		public void setUp() {
+			worker.create(EntityType.DRIVE, "C", null);
+			worker.create(EntityType.FOLDER, "x", "C");
+			worker.create(EntityType.FOLDER, "y", "C");
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Own {
+
+		String name;
+		String renamed;
+		boolean inX = true;
+		boolean original = true;
+
+		@Setup
+		public void setUp(Tree tree) {
+			int id = tree.threadIds.incrementAndGet();
+			name = "f" + id;
+			renamed = "r" + id;
+			tree.worker.create(EntityType.FOLDER, name, "C\\x");
+			tree.worker.create(EntityType.TEXT_FILE, "a.txt", "C\\x\\" + name);
+		}
+	}
+
+	@Benchmark
+	public void move(Tree tree, Own own) {
+		String current = (own.inX ? "C\\x\\" : "C\\y\\") + (own.original ? own.name : own.renamed);
+		tree.worker.move(current, own.inX ? "C\\y" : "C\\x");
+		own.inX = !own.inX;
+	}
+
+	@Benchmark
+	public void rename(Tree tree, Own own) {
+		String parent = own.inX ? "C\\x\\" : "C\\y\\";
+		tree.worker.rename(parent + (own.original ? own.name : own.renamed), own.original ? own.renamed : own.name);
+		own.original = !own.original;
+	}
+}
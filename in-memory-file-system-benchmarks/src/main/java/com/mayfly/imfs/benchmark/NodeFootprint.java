@@ -0,0 +1,58 @@
+package com.mayfly.imfs.benchmark;
+
+import org.openjdk.jol.info.ClassLayout;
+import org.openjdk.jol.info.GraphLayout;
+import org.openjdk.jol.vm.VM;
+
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.model.Drive;
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.model.FileSystemEntity;
+import com.mayfly.imfs.model.TextFile;
+import com.mayfly.imfs.service.FileSystemBatch;
+import com.mayfly.imfs.service.FileSystemWorker;
+
+/*
+ * Heap per node, measured with JOL rather than timed: the field layout of each node class,
+ * then the retained size of a drive of empty files in folders, divided by its node count,
+ * before and after every node rendered its path. Arguments: folders, files per folder.
+ */
+public class NodeFootprint {
+
+	public static void main(String[] args) {
+		int folders = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int files = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+		System.out.println(VM.current().details());
+		for (Class<?> type : new Class<?>[] { TextFile.class, FileSystemEntity.class }) {
+			System.out.println(ClassLayout.parseClass(type).toPrintable());
+		}
+
+		FileSystemWorker worker = new FileSystemWorker();
+		FileSystemBatch batch = new FileSystemBatch();
+		batch.create(EntityType.DRIVE, "C", null);
+		for (int d = 0; d < folders; d++) {
+			batch.create(EntityType.FOLDER, "d" + d, "C");
+			for (int f = 0; f < files; f++) {
+				batch.create(EntityType.TEXT_FILE, "f" + f + ".txt", "C\\d" + d);
+			}
+		}
+		worker.apply(batch);
+		Drive drive = (Drive) worker.getDrives().get("C");
+		long nodes = 1 + folders + (long) folders * files;
+
+		report("as created", drive, nodes);
+		for (Entity folder : drive.getChildren().values()) {
+			folder.getPath();
+			for (Entity file : ((FileSystemEntity) folder).getChildren().values()) {
+				file.getPath();
+			}
+		}
+		report("paths rendered", drive, nodes);
+	}
+
+	private static void report(String label, Drive drive, long nodes) {
+		long bytes = GraphLayout.parseInstance(drive).totalSize();
+		System.out.printf("%s: %d nodes, %d bytes, %.1f bytes per node%n", label, nodes, bytes, (double) bytes / nodes);
+	}
+}
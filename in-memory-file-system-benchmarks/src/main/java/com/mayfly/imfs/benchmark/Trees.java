@@ -0,0 +1,26 @@
+package com.mayfly.imfs.benchmark;
+
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.service.FileSystemBatch;
+import com.mayfly.imfs.service.FileSystemWorker;
+
+// Tree shapes shared by the benchmarks; names only use the characters the validators accept
+final class Trees {
+
+	private Trees() {
+
+	}
+
+	// Drive C with a chain of depth folders d1..dN; returns the path of the deepest folder
+	static String deep(FileSystemWorker worker, int depth) {
+		FileSystemBatch batch = new FileSystemBatch();
+		batch.create(EntityType.DRIVE, "C", null);
+		StringBuilder path = new StringBuilder("C");
+		for (int i = 1; i <= depth; i++) {
+			batch.create(EntityType.FOLDER, "d" + i, path.toString());
+			path.append("\\d").append(i);
+		}
+		worker.apply(batch);
+		return path.toString();
+	}
+}
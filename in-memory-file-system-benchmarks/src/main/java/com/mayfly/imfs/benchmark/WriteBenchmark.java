@@ -0,0 +1,73 @@
+package com.mayfly.imfs.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.service.FileSystemWorker;
+
+// writeToFile with whole-file contents from 10B to 10MB, each thread on its own file in a shared folder
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class WriteBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Tree {
+
+		@Param({ "10", "1000", "100000", "10000000" })
+		int size;
+
+		@Param({ "FOLDER", "ZIP_FILE" })
+		EntityType container;
+
+		final FileSystemWorker worker = new FileSystemWorker();
+		final AtomicInteger threadIds = new AtomicInteger();
+		String content;
+
+		@Setup
+		public void setUp() {
+			worker.create(EntityType.DRIVE, "C", null);
+			worker.create(container, "box", "C");
+			char[] text = new char[size];
+			Arrays.fill(text, 'a');
+			for (int i = 0; i < size; i += 80) {
+				text[i] = '\n';
+			}
+			content = new String(text);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Own {
+
+		String path;
+
+		@Setup
+		public void setUp(Tree tree) {
+			String name = "f" + tree.threadIds.incrementAndGet() + ".txt";
+			tree.worker.create(EntityType.TEXT_FILE, name, "C\\box");
+			path = "C\\box\\" + name;
+		}
+	}
+
+	@Benchmark
+	public void writeToFile(Tree tree, Own own) {
+		tree.worker.writeToFile(own.path, tree.content);
+	}
+}
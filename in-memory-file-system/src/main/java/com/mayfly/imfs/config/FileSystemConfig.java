@@ -0,0 +1,224 @@
+package com.mayfly.imfs.config;
+
+import java.nio.file.Path;
+
+import com.mayfly.imfs.constants.FileSystemConstants;
+import com.mayfly.imfs.content.ContentCodec;
+import com.mayfly.imfs.content.DeflateCodec;
+import com.mayfly.imfs.content.OffHeapStore;
+import com.mayfly.imfs.metrics.Instrumentation;
+
+public class FileSystemConfig {
+
+	private int pathCacheCapacity = FileSystemConstants.DEFAULT_PATH_CACHE_CAPACITY;
+	private ContentCodec zipCodec = new DeflateCodec();
+	private int zipBlockSize = FileSystemConstants.DEFAULT_ZIP_BLOCK_SIZE;
+	private int zipCachedBlocks = FileSystemConstants.DEFAULT_ZIP_CACHED_BLOCKS;
+	private boolean offHeapContent;
+	private int offHeapSlabSize = FileSystemConstants.DEFAULT_OFF_HEAP_SLAB_SIZE;
+	private Path journalDirectory;
+	private long journalFlushIntervalMillis = FileSystemConstants.DEFAULT_JOURNAL_FLUSH_INTERVAL_MILLIS;
+	private int journalMaxBatchRecords = FileSystemConstants.DEFAULT_JOURNAL_MAX_BATCH_RECORDS;
+	private Instrumentation instrumentation = Instrumentation.NONE;
+	private boolean fullTextIndex;
+	private int walkParallelism;
+	private long walkSplitThreshold = FileSystemConstants.DEFAULT_WALK_SPLIT_THRESHOLD;
+	private int watchRingCapacity = FileSystemConstants.DEFAULT_WATCH_RING_CAPACITY;
+	private int watchBatchSize = FileSystemConstants.DEFAULT_WATCH_BATCH_SIZE;
+	private long contentMemoryBudget;
+	private Path spillDirectory;
+	private boolean contentDeduplication;
+	private int replicationLogCapacity = FileSystemConstants.DEFAULT_REPLICATION_LOG_CAPACITY;
+
+	public int getPathCacheCapacity() {
+		return pathCacheCapacity;
+	}
+
+	// 0 disables the path cache
+	public void setPathCacheCapacity(int pathCacheCapacity) {
+		if (pathCacheCapacity < 0)
+			throw new IllegalArgumentException("Path cache capacity must not be negative");
+		this.pathCacheCapacity = pathCacheCapacity;
+	}
+
+	public ContentCodec getZipCodec() {
+		return zipCodec;
+	}
+
+	public void setZipCodec(ContentCodec zipCodec) {
+		this.zipCodec = zipCodec;
+	}
+
+	public int getZipBlockSize() {
+		return zipBlockSize;
+	}
+
+	public void setZipBlockSize(int zipBlockSize) {
+		if (zipBlockSize <= 0)
+			throw new IllegalArgumentException("Zip block size must be positive");
+		this.zipBlockSize = zipBlockSize;
+	}
+
+	public int getZipCachedBlocks() {
+		return zipCachedBlocks;
+	}
+
+	public void setZipCachedBlocks(int zipCachedBlocks) {
+		if (zipCachedBlocks < 0)
+			throw new IllegalArgumentException("Zip cached blocks must not be negative");
+		this.zipCachedBlocks = zipCachedBlocks;
+	}
+
+	public boolean isOffHeapContent() {
+		return offHeapContent;
+	}
+
+	// Keeps the bytes of files outside zips in direct memory slabs instead of the heap
+	public void setOffHeapContent(boolean offHeapContent) {
+		this.offHeapContent = offHeapContent;
+	}
+
+	public int getOffHeapSlabSize() {
+		return offHeapSlabSize;
+	}
+
+	public void setOffHeapSlabSize(int offHeapSlabSize) {
+		if (offHeapSlabSize < OffHeapStore.BLOCK_SIZE)
+			throw new IllegalArgumentException("Off-heap slab size must be at least " + OffHeapStore.BLOCK_SIZE);
+		this.offHeapSlabSize = offHeapSlabSize;
+	}
+
+	public Path getJournalDirectory() {
+		return journalDirectory;
+	}
+
+	// Null keeps the file system purely in memory; otherwise mutations are journaled and recovered from here
+	public void setJournalDirectory(Path journalDirectory) {
+		this.journalDirectory = journalDirectory;
+	}
+
+	public long getJournalFlushIntervalMillis() {
+		return journalFlushIntervalMillis;
+	}
+
+	// How long a group commit waits for more mutations before it syncs; 0 syncs as soon as the flusher is free
+	public void setJournalFlushIntervalMillis(long journalFlushIntervalMillis) {
+		if (journalFlushIntervalMillis < 0)
+			throw new IllegalArgumentException("Journal flush interval must not be negative");
+		this.journalFlushIntervalMillis = journalFlushIntervalMillis;
+	}
+
+	public int getJournalMaxBatchRecords() {
+		return journalMaxBatchRecords;
+	}
+
+	public void setJournalMaxBatchRecords(int journalMaxBatchRecords) {
+		if (journalMaxBatchRecords <= 0)
+			throw new IllegalArgumentException("Journal batch size must be positive");
+		this.journalMaxBatchRecords = journalMaxBatchRecords;
+	}
+
+	public Instrumentation getInstrumentation() {
+		return instrumentation;
+	}
+
+	// Instrumentation.NONE by default; use FileSystemMetrics for counters, latencies and events
+	public void setInstrumentation(Instrumentation instrumentation) {
+		if (instrumentation == null)
+			throw new IllegalArgumentException("Instrumentation must not be null, use Instrumentation.NONE");
+		this.instrumentation = instrumentation;
+	}
+
+	public boolean isFullTextIndex() {
+		return fullTextIndex;
+	}
+
+	// Enables search(); a drive is indexed on its first search and every content write keeps it current after that
+	public void setFullTextIndex(boolean fullTextIndex) {
+		this.fullTextIndex = fullTextIndex;
+	}
+
+	public int getWalkParallelism() {
+		return walkParallelism;
+	}
+
+	// Threads of the pool behind walk, copy, getTreeStats and folder deletes; 0 uses the common pool
+	public void setWalkParallelism(int walkParallelism) {
+		if (walkParallelism < 0)
+			throw new IllegalArgumentException("Walk parallelism must not be negative");
+		this.walkParallelism = walkParallelism;
+	}
+
+	public long getWalkSplitThreshold() {
+		return walkSplitThreshold;
+	}
+
+	// Subtrees of at least this many entities are walked as tasks of their own
+	public void setWalkSplitThreshold(long walkSplitThreshold) {
+		if (walkSplitThreshold <= 0)
+			throw new IllegalArgumentException("Walk split threshold must be positive");
+		this.walkSplitThreshold = walkSplitThreshold;
+	}
+
+	public int getWatchRingCapacity() {
+		return watchRingCapacity;
+	}
+
+	// Rounded up to a power of two; events published while the ring is full are dropped
+	public void setWatchRingCapacity(int watchRingCapacity) {
+		if (watchRingCapacity <= 0 || watchRingCapacity > 1 << 30)
+			throw new IllegalArgumentException("Watch ring capacity must be between 1 and 2^30");
+		this.watchRingCapacity = watchRingCapacity;
+	}
+
+	public int getWatchBatchSize() {
+		return watchBatchSize;
+	}
+
+	// Most events a listener receives per call
+	public void setWatchBatchSize(int watchBatchSize) {
+		if (watchBatchSize <= 0)
+			throw new IllegalArgumentException("Watch batch size must be positive");
+		this.watchBatchSize = watchBatchSize;
+	}
+
+	public long getContentMemoryBudget() {
+		return contentMemoryBudget;
+	}
+
+	// Bytes of text file content kept on the heap, zip contents aside; colder contents spill to disk. 0 keeps all of it
+	public void setContentMemoryBudget(long contentMemoryBudget) {
+		if (contentMemoryBudget < 0)
+			throw new IllegalArgumentException("Content memory budget must not be negative");
+		this.contentMemoryBudget = contentMemoryBudget;
+	}
+
+	public Path getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	// Where spilled contents go while a memory budget is set; null uses a new temporary directory
+	public void setSpillDirectory(Path spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	public boolean isContentDeduplication() {
+		return contentDeduplication;
+	}
+
+	// Keeps equal text file contents once, outside zips; every whole-content write is hashed to find its twin
+	public void setContentDeduplication(boolean contentDeduplication) {
+		this.contentDeduplication = contentDeduplication;
+	}
+
+	public int getReplicationLogCapacity() {
+		return replicationLogCapacity;
+	}
+
+	// Log records kept for followers; one that falls further behind starts over from a new image
+	public void setReplicationLogCapacity(int replicationLogCapacity) {
+		if (replicationLogCapacity <= 0)
+			throw new IllegalArgumentException("Replication log capacity must be positive");
+		this.replicationLogCapacity = replicationLogCapacity;
+	}
+}
@@ -12,4 +12,40 @@ public final class FileSystemConstants {
 	
 	public static final String FILE_NAME_VALIDATION_EXCP = "Invalid file name. Only alphanumeric names and a single extension are allowed (e.g., file.txt).";
 
+	public static final int DEFAULT_PATH_CACHE_CAPACITY = 4096;
+
+	public static final int DEFAULT_ZIP_BLOCK_SIZE = 64 * 1024;
+
+	public static final int DEFAULT_ZIP_CACHED_BLOCKS = 16;
+
+	public static final int DEFAULT_OFF_HEAP_SLAB_SIZE = 1024 * 1024;
+
+	public static final long DEFAULT_JOURNAL_FLUSH_INTERVAL_MILLIS = 2;
+
+	public static final int DEFAULT_JOURNAL_MAX_BATCH_RECORDS = 1024;
+
+	public static final long DEFAULT_WALK_SPLIT_THRESHOLD = 1024;
+
+	public static final int DEFAULT_WATCH_RING_CAPACITY = 8192;
+
+	public static final int DEFAULT_WATCH_BATCH_SIZE = 1024;
+
+	public static final long DRIVE_WRITER_KEEP_ALIVE_MILLIS = 60_000;
+
+	// Slots of the worker's name interner; a few thousand distinct names cover most trees
+	public static final int NAME_INTERNER_SLOTS = 16 * 1024;
+
+	public static final int DEFAULT_REPLICATION_LOG_CAPACITY = 64 * 1024;
+
+	public static final int REPLICATION_BATCH_SIZE = 1024;
+
+	public static final long REPLICATION_HEARTBEAT_MILLIS = 200;
+
+	public static final String JOURNAL_FILE = "journal.log";
+
+	public static final String CHECKPOINT_FILE = "checkpoint.img";
+
+	// Copies of loaded images kept next to the journal until a checkpoint covers their load
+	public static final String LOADED_IMAGE_PREFIX = "loaded-";
+
 }
@@ -0,0 +1,79 @@
+package com.mayfly.imfs.content;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+// One owner's reference to a content kept once in a BlobStore
+public final class BlobContent implements Content {
+
+	private static final AtomicIntegerFieldUpdater<BlobContent> RELEASED = AtomicIntegerFieldUpdater
+			.newUpdater(BlobContent.class, "released");
+
+	private final BlobStore store;
+	private final BlobStore.Blob blob;
+	private volatile int released;
+
+	BlobContent(BlobStore store, BlobStore.Blob blob) {
+		this.store = store;
+		this.blob = blob;
+	}
+
+	@Override
+	public String asString() {
+		return blob.content.asString();
+	}
+
+	@Override
+	public byte[] toBytes() {
+		return blob.content.toBytes();
+	}
+
+	@Override
+	public long size() {
+		return blob.size;
+	}
+
+	@Override
+	public byte[] read(long offset, int length) {
+		return blob.content.read(offset, length);
+	}
+
+	// Updates leave the store: the new version belongs to this file alone
+
+	@Override
+	public Content append(byte[] data) {
+		return data.length == 0 ? this : blob.content.append(data);
+	}
+
+	@Override
+	public Content write(long offset, byte[] data) {
+		ContentRanges.checkWrite(offset, blob.size);
+		return data.length == 0 ? this : blob.content.write(offset, data);
+	}
+
+	@Override
+	public Content truncate(long newSize) {
+		ContentRanges.checkTruncate(newSize, blob.size);
+		return newSize == blob.size ? this : blob.content.truncate(newSize);
+	}
+
+	// This owner's share of the stored form, so summing over files does not count a blob once per file
+	@Override
+	public long heapBytes() {
+		return 24 + blob.content.heapBytes() / Math.max(1, blob.owners);
+	}
+
+	@Override
+	public void release() {
+		if (RELEASED.compareAndSet(this, 0, 1))
+			store.release(blob);
+	}
+
+	// Another owner of the same blob, e.g. for a copied file; each owner releases its own
+	public BlobContent share() {
+		return store.share(blob);
+	}
+
+	public BlobStore getStore() {
+		return store;
+	}
+}
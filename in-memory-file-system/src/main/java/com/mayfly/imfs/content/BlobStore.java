@@ -0,0 +1,132 @@
+package com.mayfly.imfs.content;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/*
+ * Content addressed store for text file contents: equal contents written to any number of
+ * files are kept once, keyed by their SHA-256, and counted by owner. Each owner holds its
+ * own BlobContent and releases it once; the last release drops the blob and releases the
+ * stored form underneath, so whatever tier holds it (heap, off-heap, spill) reclaims it.
+ *
+ * Only whole contents are hashed. A byte level update turns the file's content into a
+ * private version outside the store, as hashing a large file on every append would cost
+ * more than sharing it saves.
+ */
+public class BlobStore {
+
+	private final Map<Key, Blob> blobs = new ConcurrentHashMap<>();
+	private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(BlobStore::newDigest);
+	private final DedupStats stats = new DedupStats();
+
+	// A new owner of the blob holding bytes; stored is only asked for the stored form when no file holds them yet
+	public BlobContent store(byte[] bytes, Supplier<Content> stored) {
+		Key key = new Key(digests.get().digest(bytes));
+		Blob blob = blobs.computeIfPresent(key, (k, existing) -> own(existing));
+		if (blob != null) {
+			stats.deduplicated(blob.size);
+			return new BlobContent(this, blob);
+		}
+		// Stores outside the map's lock; a writer that loses the race to insert the same bytes drops its copy
+		Content content = stored.get();
+		Blob created = new Blob(key, content);
+		blob = blobs.compute(key, (k, existing) -> existing == null ? own(created) : own(existing));
+		if (blob != created) {
+			content.release();
+			stats.deduplicated(blob.size);
+		} else {
+			stats.added(blob.size);
+		}
+		return new BlobContent(this, blob);
+	}
+
+	public DedupStats getStats() {
+		return stats;
+	}
+
+	public int size() {
+		return blobs.size();
+	}
+
+	BlobContent share(Blob blob) {
+		// Only a content a snapshot kept alive can have lost its blob; it is taken back as it is
+		boolean[] revived = new boolean[1];
+		Blob owned = blobs.compute(blob.key, (k, existing) -> {
+			revived[0] = existing == null;
+			return own(existing == null ? blob : existing);
+		});
+		if (revived[0])
+			stats.added(owned.size);
+		else
+			stats.deduplicated(owned.size);
+		return new BlobContent(this, owned);
+	}
+
+	// Snapshots may still read a released blob; it just no longer counts as stored
+	void release(Blob blob) {
+		boolean[] dropped = new boolean[1];
+		blobs.computeIfPresent(blob.key, (k, existing) -> {
+			if (existing != blob)
+				return existing;
+			if (--existing.owners > 0)
+				return existing;
+			dropped[0] = true;
+			return null;
+		});
+		stats.released(blob.size, dropped[0]);
+		if (dropped[0])
+			blob.content.release();
+	}
+
+	private static Blob own(Blob blob) {
+		blob.owners++;
+		return blob;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	static final class Blob {
+		final Key key;
+		final Content content;
+		final long size;
+		// Only changed inside the map's compute for the key
+		volatile int owners;
+
+		Blob(Key key, Content content) {
+			this.key = key;
+			this.content = content;
+			this.size = content.size();
+		}
+	}
+
+	static final class Key {
+		private final byte[] digest;
+		private final int hash;
+
+		Key(byte[] digest) {
+			this.digest = digest;
+			// A digest is uniformly distributed already, so any four of its bytes make a hash
+			this.hash = (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8 | (digest[3] & 0xff);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && Arrays.equals(digest, ((Key) o).digest);
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package com.mayfly.imfs.content;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * Byte rope made of fixed size chunks. Versions share a backing chunk table and
+ * each version only ever reads below its own size, so the version that owns the
+ * end of the backing can append in place (amortized O(1)); every other update
+ * copies the chunk table plus the chunks it touches. Older versions held by
+ * snapshots therefore never change underneath their readers.
+ */
+public final class ChunkedContent implements Content {
+
+	public static final int CHUNK_SIZE = 8 * 1024;
+	private static final int MIN_FIRST_CHUNK = 64;
+
+	public static final ChunkedContent EMPTY = new ChunkedContent(new Backing(new byte[0][], -1), 0);
+
+	private final Backing backing;
+	private final long size;
+
+	private ChunkedContent(Backing backing, long size) {
+		this.backing = backing;
+		this.size = size;
+	}
+
+	public static ChunkedContent of(byte[] data) {
+		return EMPTY.append(data, 0, data.length);
+	}
+
+	@Override
+	public String asString() {
+		return new String(toBytes(), StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public byte[] toBytes() {
+		return read(0, (int) size);
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public byte[] read(long offset, int length) {
+		ContentRanges.checkRead(offset, length, size);
+		byte[] out = new byte[length];
+		byte[][] chunks = backing.chunks;
+		int copied = 0;
+		while (copied < length) {
+			long pos = offset + copied;
+			int index = (int) (pos / CHUNK_SIZE);
+			int inChunk = (int) (pos % CHUNK_SIZE);
+			int n = Math.min(length - copied, CHUNK_SIZE - inChunk);
+			System.arraycopy(chunks[index], inChunk, out, copied, n);
+			copied += n;
+		}
+		return out;
+	}
+
+	@Override
+	public ChunkedContent append(byte[] data) {
+		return append(data, 0, data.length);
+	}
+
+	public ChunkedContent append(byte[] data, int offset, int length) {
+		if (length == 0)
+			return this;
+		synchronized (backing) {
+			if (backing.claimed == size) {
+				Backing target = fitsInPlace(length) ? backing : fork(size + length);
+				copyIn(target, size, data, offset, length);
+				target.claimed = size + length;
+				return new ChunkedContent(target, size + length);
+			}
+		}
+		// Another version already extended this backing; fork it
+		Backing fork = fork(size + length);
+		copyIn(fork, size, data, offset, length);
+		fork.claimed = size + length;
+		return new ChunkedContent(fork, size + length);
+	}
+
+	@Override
+	public ChunkedContent write(long offset, byte[] data) {
+		ContentRanges.checkWrite(offset, size);
+		if (data.length == 0)
+			return this;
+		long end = Math.max(size, offset + data.length);
+		Backing fork = fork(end);
+		// Chunks below the tail are shared with older versions; copy the ones being overwritten
+		int first = (int) (offset / CHUNK_SIZE);
+		int last = (int) (Math.min(size, offset + data.length) - 1) / CHUNK_SIZE;
+		int sharedChunks = sharedChunkCount();
+		for (int i = first; i <= last && i < sharedChunks; i++) {
+			fork.chunks[i] = fork.chunks[i].clone();
+		}
+		copyIn(fork, offset, data, 0, data.length);
+		fork.claimed = end;
+		return new ChunkedContent(fork, end);
+	}
+
+	@Override
+	public ChunkedContent truncate(long newSize) {
+		ContentRanges.checkTruncate(newSize, size);
+		if (newSize == size)
+			return this;
+		// Shares the backing; the next append from this version forks because it no longer owns the end
+		return new ChunkedContent(backing, newSize);
+	}
+
+	@Override
+	public long heapBytes() {
+		byte[][] chunks = backing.chunks;
+		long bytes = 8L * chunks.length;
+		for (int i = 0; i < chunkCount(size); i++) {
+			bytes += chunks[i].length;
+		}
+		return bytes;
+	}
+
+	private int chunkCount(long bytes) {
+		return (int) ((bytes + CHUNK_SIZE - 1) / CHUNK_SIZE);
+	}
+
+	// Full chunks of this version; the partial tail chunk is never shared between backings
+	private int sharedChunkCount() {
+		return (int) (size / CHUNK_SIZE);
+	}
+
+	private boolean fitsInPlace(int length) {
+		long end = size + length;
+		int needed = chunkCount(end);
+		if (needed > backing.chunks.length)
+			return false;
+		// Only the first chunk starts small; replacing it would race with readers of older versions
+		byte[] first = backing.chunks[0];
+		return first == null || first.length >= Math.min(CHUNK_SIZE, end);
+	}
+
+	private Backing fork(long end) {
+		int count = chunkCount(size);
+		byte[][] chunks = new byte[Math.max(4, Integer.highestOneBit(Math.max(1, chunkCount(end))) << 1)][];
+		System.arraycopy(backing.chunks, 0, chunks, 0, count);
+		if (size % CHUNK_SIZE != 0 || (count == 1 && chunks[0].length < CHUNK_SIZE)) {
+			int tail = count - 1;
+			int length = tail == 0 ? firstChunkCapacity(end) : CHUNK_SIZE;
+			chunks[tail] = Arrays.copyOf(chunks[tail], length);
+		}
+		return new Backing(chunks, size);
+	}
+
+	private static int firstChunkCapacity(long end) {
+		if (end >= CHUNK_SIZE)
+			return CHUNK_SIZE;
+		int capacity = Math.max(MIN_FIRST_CHUNK, Integer.highestOneBit((int) end));
+		return capacity < end ? Math.min(CHUNK_SIZE, capacity << 1) : capacity;
+	}
+
+	private static void copyIn(Backing target, long position, byte[] data, int offset, int length) {
+		int copied = 0;
+		while (copied < length) {
+			long pos = position + copied;
+			int index = (int) (pos / CHUNK_SIZE);
+			int inChunk = (int) (pos % CHUNK_SIZE);
+			if (target.chunks[index] == null)
+				target.chunks[index] = new byte[index == 0 ? firstChunkCapacity(position + length) : CHUNK_SIZE];
+			int n = Math.min(length - copied, CHUNK_SIZE - inChunk);
+			System.arraycopy(data, offset + copied, target.chunks[index], inChunk, n);
+			copied += n;
+		}
+	}
+
+	private static final class Backing {
+		private final byte[][] chunks;
+		// Largest size any version built on this backing has reached
+		private long claimed;
+
+		private Backing(byte[][] chunks, long claimed) {
+			this.chunks = chunks;
+			this.claimed = claimed;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.mayfly.imfs.content;
+
+import java.nio.charset.StandardCharsets;
+
+// Content split into fixed size blocks, each encoded on its own so reads only inflate what they touch
+public final class CompressedContent implements Content {
+
+	private final CompressionContext context;
+	private final byte[][] blocks;
+	private final int blockSize;
+	private final long size;
+	private final long encodedSize;
+
+	CompressedContent(CompressionContext context, byte[][] blocks, int blockSize, long size, long encodedSize) {
+		this.context = context;
+		this.blocks = blocks;
+		this.blockSize = blockSize;
+		this.size = size;
+		this.encodedSize = encodedSize;
+	}
+
+	@Override
+	public String asString() {
+		return new String(toBytes(), StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public byte[] toBytes() {
+		byte[] out = new byte[(int) size];
+		for (int i = 0; i < blocks.length; i++) {
+			byte[] block = context.block(this, i);
+			System.arraycopy(block, 0, out, i * blockSize, block.length);
+		}
+		return out;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public byte[] read(long offset, int length) {
+		return context.read(this, offset, length);
+	}
+
+	@Override
+	public CompressedContent append(byte[] data) {
+		return context.splice(this, size, data);
+	}
+
+	@Override
+	public CompressedContent write(long offset, byte[] data) {
+		ContentRanges.checkWrite(offset, size);
+		return context.splice(this, offset, data);
+	}
+
+	@Override
+	public CompressedContent truncate(long newSize) {
+		ContentRanges.checkTruncate(newSize, size);
+		return context.truncate(this, newSize);
+	}
+
+	@Override
+	public long heapBytes() {
+		return encodedSize + 16L * blocks.length;
+	}
+
+	@Override
+	public void release() {
+		context.release(this);
+	}
+
+	public long getEncodedSize() {
+		return encodedSize;
+	}
+
+	public CompressionContext getContext() {
+		return context;
+	}
+
+	int blockCount() {
+		return blocks.length;
+	}
+
+	int getBlockSize() {
+		return blockSize;
+	}
+
+	byte[][] encodedBlocks() {
+		return blocks;
+	}
+
+	byte[] encodedBlock(int index) {
+		return blocks[index];
+	}
+
+	int rawBlockLength(int index) {
+		return index == blocks.length - 1 ? (int) (size - (long) index * blockSize) : blockSize;
+	}
+}
@@ -0,0 +1,153 @@
+package com.mayfly.imfs.content;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Per container codec, decoded block cache and stats
+public class CompressionContext {
+
+	private final ContentCodec codec;
+	private final int blockSize;
+	private final Map<byte[], byte[]> blockCache;
+	private final CompressionStats stats = new CompressionStats();
+
+	public CompressionContext(ContentCodec codec, int blockSize, int cachedBlocks) {
+		this.codec = codec;
+		this.blockSize = blockSize;
+		// Encoded blocks are immutable and compared by identity, so entries never need invalidating
+		this.blockCache = new LinkedHashMap<byte[], byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<byte[], byte[]> eldest) {
+				return size() > cachedBlocks;
+			}
+		};
+	}
+
+	public CompressedContent compress(String value) {
+		return compress(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public CompressedContent compress(byte[] raw) {
+		long start = System.nanoTime();
+		int count = Math.max(1, (raw.length + blockSize - 1) / blockSize);
+		byte[][] blocks = new byte[count][];
+		long encodedSize = 0;
+		for (int i = 0; i < count; i++) {
+			int offset = i * blockSize;
+			blocks[i] = codec.encode(raw, offset, Math.min(blockSize, raw.length - offset));
+			encodedSize += blocks[i].length;
+		}
+		stats.compressed(count, System.nanoTime() - start);
+		stats.stored(raw.length, encodedSize);
+		return new CompressedContent(this, blocks, blockSize, raw.length, encodedSize);
+	}
+
+	byte[] read(CompressedContent content, long offset, int length) {
+		ContentRanges.checkRead(offset, length, content.size());
+		byte[] out = new byte[length];
+		int copied = 0;
+		while (copied < length) {
+			long pos = offset + copied;
+			int index = (int) (pos / blockSize);
+			int inBlock = (int) (pos % blockSize);
+			byte[] block = block(content, index);
+			int n = Math.min(length - copied, block.length - inBlock);
+			System.arraycopy(block, inBlock, out, copied, n);
+			copied += n;
+		}
+		return out;
+	}
+
+	// Re-encodes only the blocks the write touches; untouched blocks are shared with the old version
+	CompressedContent splice(CompressedContent content, long offset, byte[] data) {
+		long size = content.size();
+		long end = Math.max(size, offset + data.length);
+		int first = (int) (offset / blockSize);
+		int oldCount = content.blockCount();
+		boolean grows = offset + data.length > size;
+		int last = grows ? oldCount - 1 : (int) ((offset + data.length - 1) / blockSize);
+
+		long regionStart = (long) first * blockSize;
+		long regionEnd = grows ? end : Math.min(size, (long) (last + 1) * blockSize);
+		byte[] region = new byte[(int) (regionEnd - regionStart)];
+		for (int i = first; i <= last && i < oldCount; i++) {
+			byte[] block = block(content, i);
+			int at = (int) ((long) i * blockSize - regionStart);
+			System.arraycopy(block, 0, region, at, Math.min(block.length, region.length - at));
+		}
+		System.arraycopy(data, 0, region, (int) (offset - regionStart), data.length);
+
+		long start = System.nanoTime();
+		int encodedCount = Math.max(1, (region.length + blockSize - 1) / blockSize);
+		int newCount = grows ? first + encodedCount : oldCount;
+		byte[][] old = content.encodedBlocks();
+		byte[][] blocks = new byte[newCount][];
+		System.arraycopy(old, 0, blocks, 0, Math.min(first, oldCount));
+		if (!grows)
+			System.arraycopy(old, last + 1, blocks, last + 1, oldCount - last - 1);
+		for (int i = 0; i < encodedCount; i++) {
+			int at = i * blockSize;
+			blocks[first + i] = codec.encode(region, at, Math.min(blockSize, region.length - at));
+		}
+		stats.compressed(encodedCount, System.nanoTime() - start);
+		return stored(blocks, end);
+	}
+
+	CompressedContent truncate(CompressedContent content, long newSize) {
+		if (newSize == 0)
+			return compress(new byte[0]);
+		int full = (int) (newSize / blockSize);
+		int remainder = (int) (newSize % blockSize);
+		byte[][] blocks = new byte[remainder == 0 ? full : full + 1][];
+		System.arraycopy(content.encodedBlocks(), 0, blocks, 0, full);
+		if (remainder != 0) {
+			long start = System.nanoTime();
+			blocks[full] = codec.encode(block(content, full), 0, remainder);
+			stats.compressed(1, System.nanoTime() - start);
+		}
+		return stored(blocks, newSize);
+	}
+
+	private CompressedContent stored(byte[][] blocks, long size) {
+		long encodedSize = 0;
+		for (byte[] block : blocks) {
+			encodedSize += block.length;
+		}
+		stats.stored(size, encodedSize);
+		return new CompressedContent(this, blocks, blockSize, size, encodedSize);
+	}
+
+	public void release(CompressedContent content) {
+		stats.released(content.size(), content.getEncodedSize());
+	}
+
+	byte[] block(CompressedContent content, int index) {
+		byte[] encoded = content.encodedBlock(index);
+		synchronized (blockCache) {
+			byte[] cached = blockCache.get(encoded);
+			if (cached != null) {
+				stats.cacheHit();
+				return cached;
+			}
+		}
+		long start = System.nanoTime();
+		byte[] decoded = new byte[content.rawBlockLength(index)];
+		content.getContext().codec.decode(encoded, decoded, 0, decoded.length);
+		stats.decompressed(System.nanoTime() - start);
+		synchronized (blockCache) {
+			blockCache.put(encoded, decoded);
+		}
+		return decoded;
+	}
+
+	public ContentCodec getCodec() {
+		return codec;
+	}
+
+	public CompressionStats getStats() {
+		return stats;
+	}
+}
@@ -0,0 +1,73 @@
+package com.mayfly.imfs.content;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class CompressionStats {
+
+	private final AtomicLong rawBytes = new AtomicLong();
+	private final AtomicLong compressedBytes = new AtomicLong();
+	private final LongAdder compressNanos = new LongAdder();
+	private final LongAdder decompressNanos = new LongAdder();
+	private final LongAdder blocksCompressed = new LongAdder();
+	private final LongAdder blocksDecompressed = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+
+	void stored(long raw, long compressed) {
+		rawBytes.addAndGet(raw);
+		compressedBytes.addAndGet(compressed);
+	}
+
+	void released(long raw, long compressed) {
+		rawBytes.addAndGet(-raw);
+		compressedBytes.addAndGet(-compressed);
+	}
+
+	void compressed(int blocks, long nanos) {
+		blocksCompressed.add(blocks);
+		compressNanos.add(nanos);
+	}
+
+	void decompressed(long nanos) {
+		blocksDecompressed.increment();
+		decompressNanos.add(nanos);
+	}
+
+	void cacheHit() {
+		cacheHits.increment();
+	}
+
+	public long getRawBytes() {
+		return rawBytes.get();
+	}
+
+	public long getCompressedBytes() {
+		return compressedBytes.get();
+	}
+
+	// raw / compressed, so 4.0 means the content takes a quarter of its plain size
+	public double getCompressionRatio() {
+		long compressed = compressedBytes.get();
+		return compressed == 0 ? 1.0 : (double) rawBytes.get() / compressed;
+	}
+
+	public long getCompressNanos() {
+		return compressNanos.sum();
+	}
+
+	public long getDecompressNanos() {
+		return decompressNanos.sum();
+	}
+
+	public long getBlocksCompressed() {
+		return blocksCompressed.sum();
+	}
+
+	public long getBlocksDecompressed() {
+		return blocksDecompressed.sum();
+	}
+
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+}
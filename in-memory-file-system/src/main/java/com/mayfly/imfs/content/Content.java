@@ -0,0 +1,29 @@
+package com.mayfly.imfs.content;
+
+// Immutable stored form of a TextFile's content
+public interface Content {
+
+	String asString();
+
+	byte[] toBytes();
+
+	// Size in bytes of the uncompressed content
+	long size();
+
+	byte[] read(long offset, int length);
+
+	// Updates never modify this instance; they return the new version
+
+	Content append(byte[] data);
+
+	Content write(long offset, byte[] data);
+
+	Content truncate(long size);
+
+	// Approximate heap footprint of the stored form, for memory reporting
+	long heapBytes();
+
+	// Called once the content is no longer referenced by a live file
+	default void release() {
+	}
+}
@@ -0,0 +1,11 @@
+package com.mayfly.imfs.content;
+
+// Codecs are shared across threads and must be stateless or thread confined internally
+public interface ContentCodec {
+
+	String getName();
+
+	byte[] encode(byte[] raw, int offset, int length);
+
+	void decode(byte[] encoded, byte[] out, int offset, int length);
+}
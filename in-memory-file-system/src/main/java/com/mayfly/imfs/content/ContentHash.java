@@ -0,0 +1,84 @@
+package com.mayfly.imfs.content;
+
+/*
+ * Rolling hash of content bytes: a polynomial over the bytes modulo the Mersenne prime
+ * 2^61 - 1, so the hash of a content followed by more bytes follows from the hash so far
+ * and an append only hashes what it adds. An overwrite moves it by the changed bytes
+ * times a power of the base, and a truncate divides the cut off tail back out, so every
+ * update costs what it touches. Every byte counts one more than its value, so leading
+ * zero bytes change the hash too. Values lie in [0, 2^61 - 1); the empty content hashes
+ * to 0.
+ */
+public final class ContentHash {
+
+	public static final long MODULUS = (1L << 61) - 1;
+	private static final long BASE = 0x1d2f3a4b5c6d7e8fL % MODULUS;
+	// The modulus is prime, so BASE^(MODULUS - 2) is the inverse of BASE
+	private static final long INVERSE_BASE = power(BASE, MODULUS - 2);
+
+	private ContentHash() {
+
+	}
+
+	public static long of(byte[] bytes) {
+		return append(0, bytes);
+	}
+
+	public static long append(long hash, byte[] data) {
+		for (byte b : data) {
+			hash = reduce(multiply(hash, BASE) + (b & 0xff) + 1);
+		}
+		return hash;
+	}
+
+	/*
+	 * The hash once data overwrote the bytes at offset of a content of size bytes; old
+	 * holds the bytes it replaced, fewer than data where data runs past the end. The
+	 * content grows to cover data, as Content.write does.
+	 */
+	public static long write(long hash, long size, long offset, byte[] old, byte[] data) {
+		long end = Math.max(size, offset + data.length);
+		hash = multiply(hash, power(BASE, end - size));
+		long delta = 0;
+		for (int i = 0; i < data.length; i++) {
+			long before = i < old.length ? (old[i] & 0xff) + 1 : 0;
+			delta = reduce(multiply(delta, BASE) + (data[i] & 0xff) + 1 + MODULUS - before);
+		}
+		return reduce(hash + multiply(delta, power(BASE, end - offset - data.length)));
+	}
+
+	// The hash without the last tailLength bytes, given the hash of those bytes alone
+	public static long truncate(long hash, long tailHash, long tailLength) {
+		return multiply(reduce(hash + MODULUS - tailHash), power(INVERSE_BASE, tailLength));
+	}
+
+	private static long power(long base, long exponent) {
+		long result = 1;
+		for (; exponent > 0; exponent >>>= 1) {
+			if ((exponent & 1) != 0)
+				result = multiply(result, base);
+			base = multiply(base, base);
+		}
+		return result;
+	}
+
+	// a * b mod 2^61 - 1 for a, b below the modulus, from 32 bit halves so nothing overflows
+	static long multiply(long a, long b) {
+		long aLow = a & 0xffffffffL;
+		long aHigh = a >>> 32;
+		long bLow = b & 0xffffffffL;
+		long bHigh = b >>> 32;
+		long low = aLow * bLow;
+		long middle = aLow * bHigh + aHigh * bLow;
+		long high = aHigh * bHigh;
+		// 2^64 = 8 and 2^61 = 1 modulo 2^61 - 1
+		long sum = (low & MODULUS) + (low >>> 61) + (high << 3) + (middle >>> 29) + ((middle << 35) >>> 3);
+		return reduce(sum);
+	}
+
+	public static long reduce(long value) {
+		value = (value & MODULUS) + (value >>> 61);
+		value = (value & MODULUS) + (value >>> 61);
+		return value == MODULUS ? 0 : value;
+	}
+}
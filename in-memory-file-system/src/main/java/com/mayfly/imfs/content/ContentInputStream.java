@@ -0,0 +1,62 @@
+package com.mayfly.imfs.content;
+
+import java.io.InputStream;
+
+// Reads the content version that was current when the stream was opened
+public class ContentInputStream extends InputStream {
+
+	private final Content content;
+	private long position;
+	private long mark;
+
+	public ContentInputStream(Content content) {
+		this.content = content;
+	}
+
+	@Override
+	public int read() {
+		if (position >= content.size())
+			return -1;
+		return content.read(position++, 1)[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		long remaining = content.size() - position;
+		if (len == 0)
+			return 0;
+		if (remaining <= 0)
+			return -1;
+		int n = (int) Math.min(len, remaining);
+		System.arraycopy(content.read(position, n), 0, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) {
+		long skipped = Math.max(0, Math.min(n, content.size() - position));
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, content.size() - position);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		mark = position;
+	}
+
+	@Override
+	public synchronized void reset() {
+		position = mark;
+	}
+}
@@ -0,0 +1,40 @@
+package com.mayfly.imfs.content;
+
+// Point-in-time totals for the content of all live files
+public class ContentMemoryUsage {
+
+	private final long files;
+	private final long onHeapBytes;
+	private final long offHeapUsedBytes;
+	private final long offHeapReservedBytes;
+
+	public ContentMemoryUsage(long files, long onHeapBytes, long offHeapUsedBytes, long offHeapReservedBytes) {
+		this.files = files;
+		this.onHeapBytes = onHeapBytes;
+		this.offHeapUsedBytes = offHeapUsedBytes;
+		this.offHeapReservedBytes = offHeapReservedBytes;
+	}
+
+	public long getFiles() {
+		return files;
+	}
+
+	public long getOnHeapBytes() {
+		return onHeapBytes;
+	}
+
+	// Includes blocks still held by snapshots or not yet reclaimed after a write
+	public long getOffHeapUsedBytes() {
+		return offHeapUsedBytes;
+	}
+
+	public long getOffHeapReservedBytes() {
+		return offHeapReservedBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "files=" + files + ", onHeap=" + onHeapBytes + ", offHeapUsed=" + offHeapUsedBytes
+				+ ", offHeapReserved=" + offHeapReservedBytes;
+	}
+}
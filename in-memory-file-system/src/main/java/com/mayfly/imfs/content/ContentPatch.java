@@ -0,0 +1,69 @@
+package com.mayfly.imfs.content;
+
+// A byte level update in a form that can be journaled and applied again on replay
+public final class ContentPatch {
+
+	public enum Kind {
+		APPEND, WRITE, TRUNCATE
+	}
+
+	private final Kind kind;
+	private final long offset;
+	private final byte[] data;
+	// Lenient patches zero fill writes past the end and ignore truncates that would grow, like a channel
+	private final boolean lenient;
+
+	private ContentPatch(Kind kind, long offset, byte[] data, boolean lenient) {
+		this.kind = kind;
+		this.offset = offset;
+		this.data = data;
+		this.lenient = lenient;
+	}
+
+	public static ContentPatch append(byte[] data) {
+		return new ContentPatch(Kind.APPEND, 0, data, false);
+	}
+
+	public static ContentPatch write(long offset, byte[] data, boolean lenient) {
+		return new ContentPatch(Kind.WRITE, offset, data, lenient);
+	}
+
+	public static ContentPatch truncate(long size, boolean lenient) {
+		return new ContentPatch(Kind.TRUNCATE, size, new byte[0], lenient);
+	}
+
+	public static ContentPatch of(Kind kind, long offset, byte[] data, boolean lenient) {
+		return new ContentPatch(kind, offset, data, lenient);
+	}
+
+	public Content apply(Content content) {
+		switch (kind) {
+		case APPEND:
+			return content.append(data);
+		case WRITE:
+			if (lenient && offset > content.size())
+				content = content.append(new byte[(int) (offset - content.size())]);
+			return content.write(offset, data);
+		default:
+			if (lenient && offset >= content.size())
+				return content;
+			return content.truncate(offset);
+		}
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public boolean isLenient() {
+		return lenient;
+	}
+}
@@ -0,0 +1,25 @@
+package com.mayfly.imfs.content;
+
+import com.mayfly.imfs.exception.InvalidOperationException;
+
+final class ContentRanges {
+
+	private ContentRanges() {
+
+	}
+
+	static void checkRead(long offset, int length, long size) {
+		if (offset < 0 || length < 0 || offset + length > size)
+			throw new InvalidOperationException("Read out of range: " + offset + "+" + length + " of " + size);
+	}
+
+	static void checkWrite(long offset, long size) {
+		if (offset < 0 || offset > size)
+			throw new InvalidOperationException("Write offset out of range: " + offset + " of " + size);
+	}
+
+	static void checkTruncate(long newSize, long size) {
+		if (newSize < 0 || newSize > size)
+			throw new InvalidOperationException("Truncate size out of range: " + newSize + " of " + size);
+	}
+}
@@ -0,0 +1,78 @@
+package com.mayfly.imfs.content;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class DedupStats {
+
+	private final AtomicLong blobs = new AtomicLong();
+	private final AtomicLong references = new AtomicLong();
+	private final AtomicLong storedBytes = new AtomicLong();
+	private final AtomicLong logicalBytes = new AtomicLong();
+	private final LongAdder deduplicatedWrites = new LongAdder();
+
+	DedupStats() {
+	}
+
+	void added(long size) {
+		blobs.incrementAndGet();
+		storedBytes.addAndGet(size);
+		references.incrementAndGet();
+		logicalBytes.addAndGet(size);
+	}
+
+	void deduplicated(long size) {
+		deduplicatedWrites.increment();
+		references.incrementAndGet();
+		logicalBytes.addAndGet(size);
+	}
+
+	void released(long size, boolean dropped) {
+		references.decrementAndGet();
+		logicalBytes.addAndGet(-size);
+		if (dropped) {
+			blobs.decrementAndGet();
+			storedBytes.addAndGet(-size);
+		}
+	}
+
+	// Distinct contents held
+	public long getBlobs() {
+		return blobs.get();
+	}
+
+	// Files holding one of them
+	public long getReferences() {
+		return references.get();
+	}
+
+	public long getStoredBytes() {
+		return storedBytes.get();
+	}
+
+	// What the files would hold without deduplication
+	public long getLogicalBytes() {
+		return logicalBytes.get();
+	}
+
+	public long getSavedBytes() {
+		return logicalBytes.get() - storedBytes.get();
+	}
+
+	// Logical over stored bytes, 1.0 while nothing is shared
+	public double getDedupRatio() {
+		long stored = storedBytes.get();
+		return stored == 0 ? 1.0 : (double) logicalBytes.get() / stored;
+	}
+
+	// Writes and copies that found their content already stored
+	public long getDeduplicatedWrites() {
+		return deduplicatedWrites.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "blobs=" + getBlobs() + ", references=" + getReferences() + ", stored=" + getStoredBytes()
+				+ ", saved=" + getSavedBytes() + ", ratio=" + getDedupRatio();
+	}
+}
@@ -0,0 +1,62 @@
+package com.mayfly.imfs.content;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.mayfly.imfs.exception.FileSystemException;
+
+public class DeflateCodec implements ContentCodec {
+
+	private final ThreadLocal<Deflater> deflaters;
+	private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater());
+
+	public DeflateCodec() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public DeflateCodec(int level) {
+		this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+	}
+
+	@Override
+	public String getName() {
+		return "deflate";
+	}
+
+	@Override
+	public byte[] encode(byte[] raw, int offset, int length) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(raw, offset, length);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, length / 2));
+		byte[] buffer = new byte[Math.max(64, Math.min(length, 8192))];
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buffer);
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	@Override
+	public void decode(byte[] encoded, byte[] out, int offset, int length) {
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(encoded);
+		try {
+			int read = 0;
+			while (read < length) {
+				int n = inflater.inflate(out, offset + read, length - read);
+				if (n == 0 && (inflater.finished() || inflater.needsInput()))
+					break;
+				read += n;
+			}
+			if (read != length)
+				throw new FileSystemException("Corrupt compressed block");
+		} catch (DataFormatException e) {
+			throw new FileSystemException("Corrupt compressed block: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.mayfly.imfs.content;
+
+/*
+ * Count-min sketch of 4-bit counters, sixteen to a long, used by SpillStore to tell how
+ * often a content has been asked for, including while it was spilled. Once the number
+ * of increments reaches ten times the table width every counter is halved, so old
+ * popularity fades. Not thread safe; the store only touches it under its lock.
+ */
+final class FrequencySketch {
+
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final int MIN_TABLE = 64;
+	private static final int MAX_TABLE = 1 << 22;
+
+	private long[] table = new long[0];
+	private int sampleSize;
+	private int additions;
+
+	/*
+	 * Grows to one word of counters per expected key. A key's counters only gain a higher
+	 * bit of slot index, so tiling the old words over the new table keeps every estimate.
+	 * The tiles also copy each count into slots other keys move into, as often as the table
+	 * doubled; starting at MIN_TABLE keeps those copies as rare as collisions are anyway,
+	 * where a tiny first table left a scan's keys looking as popular as the working set.
+	 */
+	void ensureCapacity(int keys) {
+		int length = Math.min(MAX_TABLE, Integer.highestOneBit(Math.max(MIN_TABLE, keys) - 1) << 1);
+		if (table.length >= length)
+			return;
+		long[] grown = new long[length];
+		for (int i = 0; table.length > 0 && i < length; i += table.length) {
+			System.arraycopy(table, 0, grown, i, table.length);
+		}
+		table = grown;
+		sampleSize = 10 * length;
+	}
+
+	int frequency(Object key) {
+		int hash = spread(key);
+		int min = 15;
+		for (int i = 0; i < SEEDS.length; i++) {
+			int slot = slotOf(hash, i);
+			min = Math.min(min, (int) (table[slot >>> 4] >>> ((slot & 15) << 2)) & 15);
+		}
+		return min;
+	}
+
+	void increment(Object key) {
+		int hash = spread(key);
+		boolean added = false;
+		for (int i = 0; i < SEEDS.length; i++) {
+			int slot = slotOf(hash, i);
+			int shift = (slot & 15) << 2;
+			if (((table[slot >>> 4] >>> shift) & 15) < 15) {
+				table[slot >>> 4] += 1L << shift;
+				added = true;
+			}
+		}
+		if (added && ++additions == sampleSize)
+			reset();
+	}
+
+	private void reset() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions /= 2;
+	}
+
+	private int slotOf(int hash, int i) {
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return (int) h & ((table.length << 4) - 1);
+	}
+
+	private static int spread(Object key) {
+		int h = System.identityHashCode(key) * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+}
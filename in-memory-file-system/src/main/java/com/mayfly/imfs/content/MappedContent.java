@@ -0,0 +1,62 @@
+package com.mayfly.imfs.content;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Content still sitting in a memory mapped image; the first update copies it onto the heap
+public final class MappedContent implements Content {
+
+	private final ByteBuffer bytes;
+
+	// The buffer is read through duplicates only, so callers may share it
+	public MappedContent(ByteBuffer bytes) {
+		this.bytes = bytes;
+	}
+
+	@Override
+	public String asString() {
+		return new String(toBytes(), StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public byte[] toBytes() {
+		return read(0, bytes.remaining());
+	}
+
+	@Override
+	public long size() {
+		return bytes.remaining();
+	}
+
+	@Override
+	public byte[] read(long offset, int length) {
+		ContentRanges.checkRead(offset, length, size());
+		ByteBuffer source = bytes.duplicate();
+		source.position(source.position() + (int) offset);
+		byte[] out = new byte[length];
+		source.get(out);
+		return out;
+	}
+
+	@Override
+	public Content append(byte[] data) {
+		if (data.length == 0)
+			return this;
+		return ChunkedContent.of(toBytes()).append(data);
+	}
+
+	@Override
+	public Content write(long offset, byte[] data) {
+		return ChunkedContent.of(toBytes()).write(offset, data);
+	}
+
+	@Override
+	public Content truncate(long size) {
+		return ChunkedContent.of(toBytes()).truncate(size);
+	}
+
+	@Override
+	public long heapBytes() {
+		return 64;
+	}
+}
@@ -0,0 +1,68 @@
+package com.mayfly.imfs.content;
+
+import java.nio.charset.StandardCharsets;
+
+// Content whose bytes live in an OffHeapStore; the heap only holds the block ids
+public final class OffHeapContent implements Content {
+
+	private final OffHeapStore store;
+	private final int[] blocks;
+	private final long size;
+
+	OffHeapContent(OffHeapStore store, int[] blocks, long size) {
+		this.store = store;
+		this.blocks = blocks;
+		this.size = size;
+	}
+
+	@Override
+	public String asString() {
+		return new String(toBytes(), StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public byte[] toBytes() {
+		return store.read(this, 0, (int) size);
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public byte[] read(long offset, int length) {
+		ContentRanges.checkRead(offset, length, size);
+		return store.read(this, offset, length);
+	}
+
+	@Override
+	public OffHeapContent append(byte[] data) {
+		return data.length == 0 ? this : store.splice(this, size, data);
+	}
+
+	@Override
+	public OffHeapContent write(long offset, byte[] data) {
+		ContentRanges.checkWrite(offset, size);
+		return data.length == 0 ? this : store.splice(this, offset, data);
+	}
+
+	@Override
+	public OffHeapContent truncate(long newSize) {
+		ContentRanges.checkTruncate(newSize, size);
+		return newSize == size ? this : store.truncate(this, newSize);
+	}
+
+	@Override
+	public long heapBytes() {
+		return 32 + 4L * blocks.length;
+	}
+
+	public OffHeapStore getStore() {
+		return store;
+	}
+
+	int[] blocks() {
+		return blocks;
+	}
+}
@@ -0,0 +1,460 @@
+package com.mayfly.imfs.content;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/*
+ * Slab allocator for file bytes on direct ByteBuffers. Contents are cut into
+ * BLOCK_SIZE blocks and only the tail block uses a smaller power of two slot.
+ * Each slab serves one slot size and keeps its own free list; blocks are reached
+ * through an id table so compaction can move them without touching the contents
+ * that refer to them. Versions share blocks by reference count and a version
+ * drops its references once it is garbage collected, so a reader holding an old
+ * version never sees its memory reused.
+ */
+public class OffHeapStore {
+
+	public static final int BLOCK_SIZE = 8 * 1024;
+	private static final int MIN_SLOT = 64;
+	private static final int MIN_SLOT_SHIFT = Integer.numberOfTrailingZeros(MIN_SLOT);
+	private static final int CLASSES = Integer.numberOfTrailingZeros(BLOCK_SIZE) - MIN_SLOT_SHIFT + 1;
+	// Empty slabs kept around for reuse instead of being handed back to the GC
+	private static final int SPARE_SLABS = 2;
+
+	private final int slabSize;
+	private final StampedLock lock = new StampedLock();
+
+	private final List<Slab> slabs = new ArrayList<>();
+	private final IntStack freeSlabIndexes = new IntStack();
+	private final ArrayDeque<ByteBuffer> spareBuffers = new ArrayDeque<>();
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final ArrayDeque<Slab>[] partial = new ArrayDeque[CLASSES];
+	private final int[] classFree = new int[CLASSES];
+
+	private long[] addresses = new long[1024];
+	private int[] lengths = new int[1024];
+	private int[] refs = new int[1024];
+	private final IntStack freeIds = new IntStack();
+	private int nextId;
+
+	private final ReferenceQueue<OffHeapContent> collected = new ReferenceQueue<>();
+	private final Set<Releaser> releasers = ConcurrentHashMap.newKeySet();
+
+	private volatile long reservedBytes;
+	private volatile long usedBytes;
+	private volatile int slabCount;
+	private volatile long blockCount;
+	private volatile long compactions;
+	private volatile long movedBlocks;
+
+	public OffHeapStore(int slabSize) {
+		if (slabSize < BLOCK_SIZE)
+			throw new IllegalArgumentException("Slab size must be at least " + BLOCK_SIZE);
+		this.slabSize = slabSize;
+		for (int c = 0; c < CLASSES; c++) {
+			partial[c] = new ArrayDeque<>();
+		}
+	}
+
+	public OffHeapContent store(byte[] data) {
+		long stamp = lock.writeLock();
+		try {
+			reclaimCollected();
+			int[] blocks = new int[blockCount(data.length)];
+			for (int i = 0; i < blocks.length; i++) {
+				int at = i * BLOCK_SIZE;
+				blocks[i] = allocate(data, at, Math.min(BLOCK_SIZE, data.length - at));
+			}
+			return register(blocks, data.length);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	// Frees the blocks of versions the GC has found unreachable
+	public void reclaim() {
+		long stamp = lock.writeLock();
+		try {
+			reclaimCollected();
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	// Compaction also runs on its own whenever a slot size has two slabs worth of free slots
+	public void compact() {
+		long stamp = lock.writeLock();
+		try {
+			reclaimCollected();
+			for (int c = 0; c < CLASSES; c++) {
+				if (classFree[c] >= slotsPerSlab(c))
+					compact(c);
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	byte[] read(OffHeapContent content, long offset, int length) {
+		byte[] out = new byte[length];
+		long stamp = lock.readLock();
+		try {
+			int[] blocks = content.blocks();
+			int copied = 0;
+			while (copied < length) {
+				long pos = offset + copied;
+				int index = (int) (pos / BLOCK_SIZE);
+				int inBlock = (int) (pos % BLOCK_SIZE);
+				int n = Math.min(length - copied, BLOCK_SIZE - inBlock);
+				copyOut(blocks[index], inBlock, out, copied, n);
+				copied += n;
+			}
+		} finally {
+			lock.unlockRead(stamp);
+		}
+		return out;
+	}
+
+	// Writes only the blocks the update touches; untouched blocks are shared with the old version
+	OffHeapContent splice(OffHeapContent content, long offset, byte[] data) {
+		long stamp = lock.writeLock();
+		try {
+			reclaimCollected();
+			int[] old = content.blocks();
+			long size = content.size();
+			long end = Math.max(size, offset + data.length);
+			int first = (int) (offset / BLOCK_SIZE);
+			boolean grows = offset + data.length > size;
+			int last = grows ? old.length - 1 : (int) ((offset + data.length - 1) / BLOCK_SIZE);
+
+			long regionStart = (long) first * BLOCK_SIZE;
+			long regionEnd = grows ? end : Math.min(size, (long) (last + 1) * BLOCK_SIZE);
+			byte[] region = new byte[(int) (regionEnd - regionStart)];
+			for (int i = first; i <= last; i++) {
+				copyOut(old[i], 0, region, (int) ((long) i * BLOCK_SIZE - regionStart), lengths[old[i]]);
+			}
+			System.arraycopy(data, 0, region, (int) (offset - regionStart), data.length);
+
+			int written = blockCount(region.length);
+			int[] blocks = new int[grows ? first + written : old.length];
+			for (int i = 0; i < first; i++) {
+				blocks[i] = retain(old[i]);
+			}
+			for (int i = last + 1; i < old.length; i++) {
+				blocks[i] = retain(old[i]);
+			}
+			for (int i = 0; i < written; i++) {
+				int at = i * BLOCK_SIZE;
+				blocks[first + i] = allocate(region, at, Math.min(BLOCK_SIZE, region.length - at));
+			}
+			return register(blocks, end);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	OffHeapContent truncate(OffHeapContent content, long newSize) {
+		long stamp = lock.writeLock();
+		try {
+			reclaimCollected();
+			int[] old = content.blocks();
+			int full = (int) (newSize / BLOCK_SIZE);
+			int remainder = (int) (newSize % BLOCK_SIZE);
+			int[] blocks = new int[remainder == 0 ? full : full + 1];
+			for (int i = 0; i < full; i++) {
+				blocks[i] = retain(old[i]);
+			}
+			if (remainder != 0) {
+				byte[] tail = new byte[remainder];
+				copyOut(old[full], 0, tail, 0, remainder);
+				blocks[full] = allocate(tail, 0, remainder);
+			}
+			return register(blocks, newSize);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public int getSlabSize() {
+		return slabSize;
+	}
+
+	// Direct memory held by the store, including empty slabs kept for reuse
+	public long getReservedBytes() {
+		return reservedBytes;
+	}
+
+	// Bytes of live blocks
+	public long getUsedBytes() {
+		return usedBytes;
+	}
+
+	public int getSlabCount() {
+		return slabCount;
+	}
+
+	public long getBlockCount() {
+		return blockCount;
+	}
+
+	public long getCompactionCount() {
+		return compactions;
+	}
+
+	public long getMovedBlockCount() {
+		return movedBlocks;
+	}
+
+	private OffHeapContent register(int[] blocks, long size) {
+		OffHeapContent content = new OffHeapContent(this, blocks, size);
+		releasers.add(new Releaser(content, blocks, collected));
+		return content;
+	}
+
+	private void reclaimCollected() {
+		Reference<? extends OffHeapContent> ref;
+		while ((ref = collected.poll()) != null) {
+			Releaser releaser = (Releaser) ref;
+			releasers.remove(releaser);
+			for (int id : releaser.blocks) {
+				release(id);
+			}
+		}
+	}
+
+	private int allocate(byte[] data, int offset, int length) {
+		int c = classFor(length);
+		Slab slab = partial[c].peekFirst();
+		while (slab != null && slab.freeSlots.size == 0) {
+			partial[c].pollFirst();
+			slab.inPartial = false;
+			slab = partial[c].peekFirst();
+		}
+		if (slab == null)
+			slab = newSlab(c);
+		int slot = slab.take();
+		classFree[c]--;
+		ByteBuffer target = slab.buffer.duplicate();
+		target.position(slot * slab.slotSize);
+		target.put(data, offset, length);
+
+		int id = freeIds.size > 0 ? freeIds.pop() : newId();
+		addresses[id] = ((long) slab.index << 32) | slot;
+		lengths[id] = length;
+		refs[id] = 1;
+		slab.owners[slot] = id;
+		usedBytes += length;
+		blockCount++;
+		return id;
+	}
+
+	private int retain(int id) {
+		refs[id]++;
+		return id;
+	}
+
+	private void release(int id) {
+		if (--refs[id] > 0)
+			return;
+		Slab slab = slabs.get((int) (addresses[id] >>> 32));
+		int slot = (int) addresses[id];
+		slab.owners[slot] = -1;
+		slab.give(slot);
+		usedBytes -= lengths[id];
+		blockCount--;
+		freeIds.push(id);
+		int c = slab.sizeClass;
+		classFree[c]++;
+		if (slab.used == 0) {
+			retire(slab);
+		} else if (!slab.inPartial) {
+			slab.inPartial = true;
+			partial[c].addLast(slab);
+		}
+		if (classFree[c] >= 2 * slotsPerSlab(c))
+			compact(c);
+	}
+
+	// Empties the sparsest slabs of one slot size into the free slots of the denser ones
+	private void compact(int c) {
+		List<Slab> candidates = new ArrayList<>();
+		for (Slab slab : slabs) {
+			if (slab != null && slab.sizeClass == c)
+				candidates.add(slab);
+		}
+		if (candidates.size() < 2)
+			return;
+		candidates.sort((a, b) -> Integer.compare(b.used, a.used));
+		int hi = candidates.size() - 1;
+		int room = 0;
+		for (int i = 0; i < hi; i++) {
+			room += candidates.get(i).freeSlots.size;
+		}
+		int lo = 0;
+		while (lo < hi && room >= candidates.get(hi).used) {
+			Slab source = candidates.get(hi);
+			room -= source.used;
+			for (int slot = 0; slot < source.owners.length && source.used > 0; slot++) {
+				if (source.owners[slot] < 0)
+					continue;
+				while (candidates.get(lo).freeSlots.size == 0)
+					lo++;
+				move(source, slot, candidates.get(lo));
+			}
+			retire(source);
+			hi--;
+			room -= candidates.get(hi).freeSlots.size;
+		}
+		compactions++;
+	}
+
+	private void move(Slab source, int slot, Slab target) {
+		int id = source.owners[slot];
+		int targetSlot = target.take();
+		ByteBuffer from = source.buffer.duplicate();
+		from.position(slot * source.slotSize);
+		from.limit(slot * source.slotSize + lengths[id]);
+		ByteBuffer to = target.buffer.duplicate();
+		to.position(targetSlot * target.slotSize);
+		to.put(from);
+		target.owners[targetSlot] = id;
+		addresses[id] = ((long) target.index << 32) | targetSlot;
+		source.owners[slot] = -1;
+		source.give(slot);
+		movedBlocks++;
+	}
+
+	private Slab newSlab(int c) {
+		ByteBuffer buffer = spareBuffers.pollFirst();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(slabSize);
+			reservedBytes += slabSize;
+		}
+		int index;
+		if (freeSlabIndexes.size > 0) {
+			index = freeSlabIndexes.pop();
+		} else {
+			index = slabs.size();
+			slabs.add(null);
+		}
+		Slab slab = new Slab(index, c, buffer, MIN_SLOT << c, slotsPerSlab(c));
+		slabs.set(index, slab);
+		slabCount++;
+		classFree[c] += slab.owners.length;
+		slab.inPartial = true;
+		partial[c].addFirst(slab);
+		return slab;
+	}
+
+	private void retire(Slab slab) {
+		if (slab.inPartial)
+			partial[slab.sizeClass].remove(slab);
+		classFree[slab.sizeClass] -= slab.owners.length;
+		slabs.set(slab.index, null);
+		slabCount--;
+		freeSlabIndexes.push(slab.index);
+		if (spareBuffers.size() < SPARE_SLABS) {
+			spareBuffers.addLast(slab.buffer);
+		} else {
+			reservedBytes -= slabSize;
+		}
+	}
+
+	private int newId() {
+		if (nextId == addresses.length) {
+			int capacity = addresses.length * 2;
+			addresses = Arrays.copyOf(addresses, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			refs = Arrays.copyOf(refs, capacity);
+		}
+		return nextId++;
+	}
+
+	private void copyOut(int id, int offset, byte[] out, int outOffset, int length) {
+		Slab slab = slabs.get((int) (addresses[id] >>> 32));
+		ByteBuffer source = slab.buffer.duplicate();
+		source.position((int) addresses[id] * slab.slotSize + offset);
+		source.get(out, outOffset, length);
+	}
+
+	private int slotsPerSlab(int c) {
+		return slabSize / (MIN_SLOT << c);
+	}
+
+	private static int classFor(int length) {
+		if (length <= MIN_SLOT)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SLOT_SHIFT;
+	}
+
+	private static int blockCount(long bytes) {
+		return (int) ((bytes + BLOCK_SIZE - 1) / BLOCK_SIZE);
+	}
+
+	private static final class Slab {
+		private final int index;
+		private final int sizeClass;
+		private final ByteBuffer buffer;
+		private final int slotSize;
+		// Block id stored in each slot, -1 when free; lets compaction find what to move
+		private final int[] owners;
+		private final IntStack freeSlots = new IntStack();
+		private int used;
+		private boolean inPartial;
+
+		private Slab(int index, int sizeClass, ByteBuffer buffer, int slotSize, int slots) {
+			this.index = index;
+			this.sizeClass = sizeClass;
+			this.buffer = buffer;
+			this.slotSize = slotSize;
+			this.owners = new int[slots];
+			Arrays.fill(owners, -1);
+			for (int slot = slots - 1; slot >= 0; slot--) {
+				freeSlots.push(slot);
+			}
+		}
+
+		private int take() {
+			used++;
+			return freeSlots.pop();
+		}
+
+		private void give(int slot) {
+			used--;
+			freeSlots.push(slot);
+		}
+	}
+
+	private static final class Releaser extends PhantomReference<OffHeapContent> {
+		private final int[] blocks;
+
+		private Releaser(OffHeapContent content, int[] blocks, ReferenceQueue<OffHeapContent> queue) {
+			super(content, queue);
+			this.blocks = blocks;
+		}
+	}
+
+	private static final class IntStack {
+		private int[] values = new int[16];
+		private int size;
+
+		private void push(int value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+		private int pop() {
+			return values[--size];
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package com.mayfly.imfs.content;
+
+import java.nio.charset.StandardCharsets;
+
+// Whole-string content as written by writeToFile; byte level updates switch it to a ChunkedContent
+public final class PlainContent implements Content {
+
+	public static final PlainContent EMPTY = new PlainContent("");
+
+	private final String value;
+	private volatile byte[] bytes;
+
+	public PlainContent(String value) {
+		this.value = value;
+	}
+
+	@Override
+	public String asString() {
+		return value;
+	}
+
+	@Override
+	public byte[] toBytes() {
+		byte[] b = bytes;
+		if (b == null) {
+			b = value.getBytes(StandardCharsets.UTF_8);
+			bytes = b;
+		}
+		return b.clone();
+	}
+
+	@Override
+	public long size() {
+		byte[] b = bytes;
+		return b != null ? b.length : value.getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	@Override
+	public long heapBytes() {
+		byte[] b = bytes;
+		return 2L * value.length() + (b != null ? b.length : 0);
+	}
+
+	@Override
+	public byte[] read(long offset, int length) {
+		return ChunkedContent.of(toBytes()).read(offset, length);
+	}
+
+	@Override
+	public Content append(byte[] data) {
+		return ChunkedContent.of(toBytes()).append(data);
+	}
+
+	@Override
+	public Content write(long offset, byte[] data) {
+		return ChunkedContent.of(toBytes()).write(offset, data);
+	}
+
+	@Override
+	public Content truncate(long size) {
+		return ChunkedContent.of(toBytes()).truncate(size);
+	}
+}
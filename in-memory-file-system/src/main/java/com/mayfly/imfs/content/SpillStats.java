@@ -0,0 +1,106 @@
+package com.mayfly.imfs.content;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class SpillStats {
+
+	private final SpillStore store;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder reloads = new LongAdder();
+	private final LongAdder reloadedBytes = new LongAdder();
+	private final LongAdder spills = new LongAdder();
+	private final LongAdder spilledBytes = new LongAdder();
+	private final LongAdder spillFailures = new LongAdder();
+	private final LongAdder compactions = new LongAdder();
+
+	SpillStats(SpillStore store) {
+		this.store = store;
+	}
+
+	void hit() {
+		hits.increment();
+	}
+
+	void reloaded(int bytes) {
+		reloads.increment();
+		reloadedBytes.add(bytes);
+	}
+
+	void spilled(long bytes) {
+		spills.increment();
+		spilledBytes.add(bytes);
+	}
+
+	void spillFailed() {
+		spillFailures.increment();
+	}
+
+	void compacted() {
+		compactions.increment();
+	}
+
+	// Reads served from the heap
+	public long getHits() {
+		return hits.sum();
+	}
+
+	// Reads that had to go to the segment file first
+	public long getReloads() {
+		return reloads.sum();
+	}
+
+	public double getHitRate() {
+		long h = hits.sum();
+		long total = h + reloads.sum();
+		return total == 0 ? 1.0 : (double) h / total;
+	}
+
+	public long getReloadedBytes() {
+		return reloadedBytes.sum();
+	}
+
+	// Evictions from the heap; a content spilled before is not written again
+	public long getSpills() {
+		return spills.sum();
+	}
+
+	public long getSpilledBytes() {
+		return spilledBytes.sum();
+	}
+
+	// Spills the disk refused; the budget is exceeded until a later one succeeds
+	public long getSpillFailures() {
+		return spillFailures.sum();
+	}
+
+	public long getCompactions() {
+		return compactions.sum();
+	}
+
+	public long getResidentBytes() {
+		return store.getResidentBytes();
+	}
+
+	public int getResidentContents() {
+		return store.getResidentContents();
+	}
+
+	public int getSpilledContents() {
+		return store.getSpilledContents();
+	}
+
+	// Size of the current segment, garbage included
+	public long getSegmentBytes() {
+		return store.getSegmentBytes();
+	}
+
+	public long getGarbageBytes() {
+		return store.getGarbageBytes();
+	}
+
+	@Override
+	public String toString() {
+		return "hitRate=" + getHitRate() + ", reloads=" + getReloads() + ", spills=" + getSpills()
+				+ ", resident=" + getResidentBytes() + ", segment=" + getSegmentBytes();
+	}
+}
@@ -0,0 +1,457 @@
+package com.mayfly.imfs.content;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Memory budget for text file contents, evicting with W-TinyLFU: new and reloaded contents
+ * enter a small LRU window; what falls out of it joins the probation part of a segmented
+ * LRU, and a second hit there promotes it to the protected part. Over budget, the newest
+ * arrival in probation is weighed against the coldest content by a frequency sketch that
+ * remembers spilled contents too, and the less popular of the two is spilled. So a scan
+ * cannot flush the working set, while a content that keeps being reloaded wins its place
+ * back.
+ *
+ * Spilled bytes are appended to a segment file once and keep their extent for as long as
+ * the content lives, so evicting it again after a reload writes nothing. Extents of
+ * collected contents become garbage and the segment is rewritten into a new generation
+ * once garbage outweighs live bytes. Metadata and sizes never leave the heap.
+ */
+public class SpillStore implements Closeable {
+
+	private static final int UNTRACKED = -1;
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+	private static final int SPILLED = 3;
+	private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+	private final Path directory;
+	private final long budget;
+	private final long windowBudget;
+	private final long protectedBudget;
+	// Guards the queues, the sketch and segment appends; reloads only hold the file lock while reading
+	private final ReentrantLock lock = new ReentrantLock();
+	private final ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock();
+	private final Queue window = new Queue();
+	private final Queue probation = new Queue();
+	private final Queue protectedQueue = new Queue();
+	private final FrequencySketch sketch = new FrequencySketch();
+	private final Set<Extent> extents = new HashSet<>();
+	private final ReferenceQueue<Entry> collected = new ReferenceQueue<>();
+	private final SpillStats stats = new SpillStats(this);
+
+	private FileChannel channel;
+	private int generation;
+	private long segmentEnd;
+	private long liveBytes;
+	private volatile long residentBytes;
+	private volatile int residentContents;
+	private volatile int spilledContents;
+	private volatile long garbageBytes;
+
+	public SpillStore(Path directory, long budget) throws IOException {
+		if (budget <= 0)
+			throw new IllegalArgumentException("Content memory budget must be positive");
+		this.directory = directory;
+		this.budget = budget;
+		this.windowBudget = Math.max(1, budget / 100);
+		this.protectedBudget = (budget - windowBudget) * 4 / 5;
+		Files.createDirectories(directory);
+		this.channel = openSegment(0);
+	}
+
+	public SpillableContent store(Content content) {
+		Entry entry = new Entry(content, content.size());
+		lock.lock();
+		try {
+			entry.owners = 1;
+			if (entry.size > 0)
+				admit(entry);
+		} finally {
+			lock.unlock();
+		}
+		return new SpillableContent(this, entry);
+	}
+
+	public SpillStats getStats() {
+		return stats;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	// Contents that are spilled at this point cannot be read any more
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		fileLock.writeLock().lock();
+		try {
+			channel.close();
+		} finally {
+			fileLock.writeLock().unlock();
+			lock.unlock();
+		}
+	}
+
+	Content acquire(Entry entry) {
+		Content resident = entry.resident;
+		if (resident == null)
+			return reload(entry);
+		stats.hit();
+		// A busy store skips recording the hit rather than making readers queue up
+		if (entry.queue != UNTRACKED && lock.tryLock()) {
+			try {
+				onHit(entry);
+			} finally {
+				lock.unlock();
+			}
+		}
+		return resident;
+	}
+
+	SpillableContent share(Entry entry) {
+		lock.lock();
+		try {
+			if (entry.owners++ == 0 && entry.size > 0) {
+				if (entry.resident != null) {
+					admit(entry);
+				} else {
+					entry.queue = SPILLED;
+					spilledContents++;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		return new SpillableContent(this, entry);
+	}
+
+	// Snapshots may still read a released content; it just no longer counts against the budget
+	void release(Entry entry) {
+		lock.lock();
+		try {
+			if (--entry.owners > 0 || entry.queue == UNTRACKED)
+				return;
+			if (entry.queue == SPILLED) {
+				spilledContents--;
+			} else {
+				queueOf(entry).remove(entry);
+				residentBytes -= entry.size;
+				residentContents--;
+			}
+			entry.queue = UNTRACKED;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Content reload(Entry entry) {
+		byte[] bytes;
+		fileLock.readLock().lock();
+		try {
+			Extent extent = entry.extent;
+			bytes = new byte[extent.length];
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, extent.offset + buffer.position()) < 0)
+					throw new IOException("Spill segment ends inside a content");
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			fileLock.readLock().unlock();
+		}
+		Content loaded = ChunkedContent.of(bytes);
+		lock.lock();
+		try {
+			Content resident = entry.resident;
+			if (resident != null)
+				return resident;
+			stats.reloaded(bytes.length);
+			if (entry.queue == SPILLED) {
+				entry.resident = loaded;
+				spilledContents--;
+				admit(entry);
+			}
+			return loaded;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void admit(Entry entry) {
+		sketch.ensureCapacity(residentContents + spilledContents + 1);
+		sketch.increment(entry);
+		entry.queue = WINDOW;
+		window.add(entry);
+		residentBytes += entry.size;
+		residentContents++;
+		evict();
+	}
+
+	private void onHit(Entry entry) {
+		sketch.increment(entry);
+		switch (entry.queue) {
+		case WINDOW:
+			window.remove(entry);
+			window.add(entry);
+			break;
+		case PROBATION:
+			probation.remove(entry);
+			entry.queue = PROTECTED;
+			protectedQueue.add(entry);
+			while (protectedQueue.bytes > protectedBudget) {
+				Entry demoted = protectedQueue.first();
+				protectedQueue.remove(demoted);
+				demoted.queue = PROBATION;
+				probation.add(demoted);
+			}
+			break;
+		case PROTECTED:
+			protectedQueue.remove(entry);
+			protectedQueue.add(entry);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void evict() {
+		while (window.bytes > windowBudget && window.first() != window.last()) {
+			Entry candidate = window.first();
+			window.remove(candidate);
+			candidate.queue = PROBATION;
+			probation.add(candidate);
+		}
+		while (residentBytes > budget) {
+			Entry victim = probation.first() != null ? probation.first()
+					: protectedQueue.first() != null ? protectedQueue.first() : window.first();
+			Entry candidate = probation.last();
+			if (candidate != null && candidate != victim && sketch.frequency(candidate) <= sketch.frequency(victim))
+				victim = candidate;
+			try {
+				spill(victim);
+			} catch (IOException e) {
+				// A failing disk makes the budget soft instead of failing the write that went over it
+				stats.spillFailed();
+				return;
+			}
+		}
+	}
+
+	private void spill(Entry entry) throws IOException {
+		if (entry.extent == null)
+			entry.extent = append(entry.resident.toBytes(), entry);
+		queueOf(entry).remove(entry);
+		entry.queue = SPILLED;
+		entry.resident = null;
+		residentBytes -= entry.size;
+		residentContents--;
+		spilledContents++;
+		stats.spilled(entry.size);
+	}
+
+	private Extent append(byte[] bytes, Entry entry) throws IOException {
+		reclaimCollected();
+		if (garbageBytes >= MIN_COMPACTION_BYTES && garbageBytes > liveBytes)
+			compact();
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, segmentEnd + buffer.position());
+		}
+		Extent extent = new Extent(entry, collected, segmentEnd, bytes.length);
+		extents.add(extent);
+		segmentEnd += bytes.length;
+		liveBytes += bytes.length;
+		return extent;
+	}
+
+	private void reclaimCollected() {
+		Reference<? extends Entry> ref;
+		while ((ref = collected.poll()) != null) {
+			Extent extent = (Extent) ref;
+			if (extents.remove(extent)) {
+				liveBytes -= extent.length;
+				garbageBytes += extent.length;
+			}
+		}
+	}
+
+	// Copies the live extents into the next generation and only then points them at it
+	private void compact() throws IOException {
+		List<Extent> moved = new ArrayList<>();
+		FileChannel target = openSegment(generation + 1);
+		fileLock.writeLock().lock();
+		try {
+			long position = 0;
+			try {
+				for (Extent extent : extents) {
+					if (extent.get() == null)
+						continue;
+					ByteBuffer buffer = ByteBuffer.allocate(extent.length);
+					while (buffer.hasRemaining()) {
+						if (channel.read(buffer, extent.offset + buffer.position()) < 0)
+							throw new IOException("Spill segment ends inside a content");
+					}
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						target.write(buffer, position + buffer.position());
+					}
+					moved.add(extent);
+					extent.next = position;
+					position += extent.length;
+				}
+			} catch (IOException e) {
+				target.close();
+				throw e;
+			}
+			for (Extent extent : moved) {
+				extent.offset = extent.next;
+			}
+			extents.retainAll(moved);
+			channel.close();
+			channel = target;
+			generation++;
+			segmentEnd = position;
+			liveBytes = position;
+			garbageBytes = 0;
+		} finally {
+			fileLock.writeLock().unlock();
+		}
+		stats.compacted();
+	}
+
+	private FileChannel openSegment(int generation) throws IOException {
+		return FileChannel.open(directory.resolve("spill-" + generation + ".seg"), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.DELETE_ON_CLOSE);
+	}
+
+	private Queue queueOf(Entry entry) {
+		switch (entry.queue) {
+		case WINDOW:
+			return window;
+		case PROBATION:
+			return probation;
+		case PROTECTED:
+			return protectedQueue;
+		default:
+			throw new IllegalStateException("Content is not resident");
+		}
+	}
+
+	long getResidentBytes() {
+		return residentBytes;
+	}
+
+	int getResidentContents() {
+		return residentContents;
+	}
+
+	int getSpilledContents() {
+		return spilledContents;
+	}
+
+	long getSegmentBytes() {
+		lock.lock();
+		try {
+			return segmentEnd;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long getGarbageBytes() {
+		return garbageBytes;
+	}
+
+	// The bytes of one content and their place in the budget; shared by every owner of the same bytes
+	static final class Entry {
+
+		final long size;
+		volatile Content resident;
+		// Written before resident is cleared, so a reader that finds no resident content finds the extent
+		volatile Extent extent;
+		int owners;
+		int queue = UNTRACKED;
+		Entry prev;
+		Entry next;
+
+		Entry(Content resident, long size) {
+			this.resident = resident;
+			this.size = size;
+		}
+	}
+
+	// Where a spilled entry sits in the segment; queued once the entry is collected
+	static final class Extent extends WeakReference<Entry> {
+
+		final int length;
+		volatile long offset;
+		long next;
+
+		Extent(Entry entry, ReferenceQueue<Entry> queue, long offset, int length) {
+			super(entry, queue);
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	// Doubly linked LRU order, least recently used first
+	private static final class Queue {
+
+		private Entry head;
+		private Entry tail;
+		private long bytes;
+
+		void add(Entry entry) {
+			entry.prev = tail;
+			entry.next = null;
+			if (tail == null)
+				head = entry;
+			else
+				tail.next = entry;
+			tail = entry;
+			bytes += entry.size;
+		}
+
+		void remove(Entry entry) {
+			if (entry.prev == null)
+				head = entry.next;
+			else
+				entry.prev.next = entry.next;
+			if (entry.next == null)
+				tail = entry.prev;
+			else
+				entry.next.prev = entry.prev;
+			entry.prev = null;
+			entry.next = null;
+			bytes -= entry.size;
+		}
+
+		Entry first() {
+			return head;
+		}
+
+		Entry last() {
+			return tail;
+		}
+	}
+}
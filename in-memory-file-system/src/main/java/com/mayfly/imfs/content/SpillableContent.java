@@ -0,0 +1,83 @@
+package com.mayfly.imfs.content;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+// Content under the memory budget of a SpillStore; its bytes are either on the heap or in the store's segment file
+public final class SpillableContent implements Content {
+
+	private static final AtomicIntegerFieldUpdater<SpillableContent> RELEASED = AtomicIntegerFieldUpdater
+			.newUpdater(SpillableContent.class, "released");
+
+	private final SpillStore store;
+	private final SpillStore.Entry entry;
+	private volatile int released;
+
+	SpillableContent(SpillStore store, SpillStore.Entry entry) {
+		this.store = store;
+		this.entry = entry;
+	}
+
+	@Override
+	public String asString() {
+		return store.acquire(entry).asString();
+	}
+
+	@Override
+	public byte[] toBytes() {
+		return store.acquire(entry).toBytes();
+	}
+
+	@Override
+	public long size() {
+		return entry.size;
+	}
+
+	@Override
+	public byte[] read(long offset, int length) {
+		ContentRanges.checkRead(offset, length, entry.size);
+		return store.acquire(entry).read(offset, length);
+	}
+
+	@Override
+	public Content append(byte[] data) {
+		return data.length == 0 ? this : store.store(store.acquire(entry).append(data));
+	}
+
+	@Override
+	public Content write(long offset, byte[] data) {
+		ContentRanges.checkWrite(offset, entry.size);
+		return data.length == 0 ? this : store.store(store.acquire(entry).write(offset, data));
+	}
+
+	@Override
+	public Content truncate(long newSize) {
+		ContentRanges.checkTruncate(newSize, entry.size);
+		return newSize == entry.size ? this : store.store(store.acquire(entry).truncate(newSize));
+	}
+
+	@Override
+	public long heapBytes() {
+		Content resident = entry.resident;
+		return 48 + (resident == null ? 0 : resident.heapBytes());
+	}
+
+	// Stops counting against the budget once no live file holds these bytes any more
+	@Override
+	public void release() {
+		if (RELEASED.compareAndSet(this, 0, 1))
+			store.release(entry);
+	}
+
+	// Another owner of the same bytes, e.g. for a copied file; each owner releases its own
+	public SpillableContent share() {
+		return store.share(entry);
+	}
+
+	public boolean isResident() {
+		return entry.resident != null;
+	}
+
+	public SpillStore getStore() {
+		return store;
+	}
+}
@@ -0,0 +1,40 @@
+package com.mayfly.imfs.diff;
+
+import com.mayfly.imfs.constants.EntityType;
+
+// One difference between two trees; a directory only on one side is one entry, not one per node below it
+public final class DiffEntry {
+
+	public enum Kind {
+		ADDED, REMOVED, MODIFIED
+	}
+
+	private final Kind kind;
+	private final String path;
+	private final EntityType type;
+
+	public DiffEntry(Kind kind, String path, EntityType type) {
+		this.kind = kind;
+		this.path = path;
+		this.type = type;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	// Relative to the compared roots, empty for the roots themselves; whole-drive diffs start with the drive name
+	public String getPath() {
+		return path;
+	}
+
+	// The type on the side that has the entity; the new one when both do
+	public EntityType getType() {
+		return type;
+	}
+
+	@Override
+	public String toString() {
+		return kind + " " + path;
+	}
+}
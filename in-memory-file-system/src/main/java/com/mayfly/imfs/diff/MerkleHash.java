@@ -0,0 +1,68 @@
+package com.mayfly.imfs.diff;
+
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.content.ContentHash;
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.model.FileSystemEntity;
+import com.mayfly.imfs.model.TextFile;
+
+/*
+ * A directory's Merkle hash is the sum, modulo 2^61 - 1, of one term per child that mixes
+ * the child's name, type and hash (its content hash for a file). A sum does not depend on
+ * the order children are listed or changed in, so a change below a directory moves it by
+ * the difference of two terms and can be carried up the parent chain level by level.
+ * The names of the compared roots themselves are not part of their hashes.
+ */
+public final class MerkleHash {
+
+	private MerkleHash() {
+
+	}
+
+	// The child's term with its current hash
+	public static long term(Entity child) {
+		return term(child, hashOf(child));
+	}
+
+	public static long term(Entity child, long hash) {
+		return term(child.getName(), child.getType(), hash);
+	}
+
+	// For nodes that are not built yet, e.g. image records
+	public static long term(String name, EntityType type, long hash) {
+		long mixed = mix(nameHash(name) ^ type.ordinal());
+		return ContentHash.reduce(mix(mixed + hash) >>> 3);
+	}
+
+	public static long hashOf(Entity entity) {
+		return entity instanceof TextFile ? ((TextFile) entity).getContentHash()
+				: ((FileSystemEntity) entity).getMerkleHash();
+	}
+
+	public static long add(long hash, long delta) {
+		return ContentHash.reduce(hash + delta);
+	}
+
+	// What moves a sum holding oldTerm to holding newTerm instead
+	public static long delta(long oldTerm, long newTerm) {
+		return ContentHash.reduce(newTerm + ContentHash.MODULUS - oldTerm);
+	}
+
+	private static long nameHash(String name) {
+		long hash = 0;
+		for (int i = 0; i < name.length(); i++) {
+			hash = mix(hash + name.charAt(i));
+		}
+		return hash + name.length();
+	}
+
+	// The 64 bit finalizer of MurmurHash3
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
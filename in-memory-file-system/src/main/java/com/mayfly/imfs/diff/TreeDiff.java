@@ -0,0 +1,133 @@
+package com.mayfly.imfs.diff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.content.Content;
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.model.FileSystemEntity;
+import com.mayfly.imfs.model.TextFile;
+import com.mayfly.imfs.snapshot.SnapshotEntity;
+
+/*
+ * Compares two trees top down and stops wherever a subtree is known to be the same, so
+ * the work grows with the number of changes and the width of the directories they are in.
+ * Two live trees are the same where their Merkle hashes are; a snapshot is the same as the
+ * live tree wherever a node is still the one it shows and nothing below it changed since.
+ * Only reads: callers keep moves, renames and deletes off both trees, while a content
+ * write or create running alongside shows up in the result or does not.
+ */
+public final class TreeDiff {
+
+	private static final Comparator<DiffEntry> ORDER = Comparator.comparing(DiffEntry::getPath)
+			.thenComparing(DiffEntry::getKind, Comparator.reverseOrder());
+
+	private TreeDiff() {
+
+	}
+
+	public static List<DiffEntry> compare(Entity from, Entity to) {
+		List<DiffEntry> changes = new ArrayList<>();
+		compare("", from, to, changes);
+		changes.sort(ORDER);
+		return changes;
+	}
+
+	public static List<DiffEntry> compare(SnapshotEntity from, Entity to) {
+		List<DiffEntry> changes = new ArrayList<>();
+		compare("", from, to, changes);
+		changes.sort(ORDER);
+		return changes;
+	}
+
+	// Every drive of a snapshot against the live drives, with paths starting at the drive name
+	public static List<DiffEntry> compareDrives(Map<String, SnapshotEntity> from, Map<String, ? extends Entity> to) {
+		List<DiffEntry> changes = new ArrayList<>();
+		for (Map.Entry<String, SnapshotEntity> entry : from.entrySet()) {
+			Entity live = to.get(entry.getKey());
+			if (live == null)
+				changes.add(new DiffEntry(DiffEntry.Kind.REMOVED, entry.getKey(), entry.getValue().getType()));
+			else
+				compare(entry.getKey(), entry.getValue(), live, changes);
+		}
+		for (Map.Entry<String, ? extends Entity> entry : to.entrySet()) {
+			if (!from.containsKey(entry.getKey()))
+				changes.add(new DiffEntry(DiffEntry.Kind.ADDED, entry.getKey(), entry.getValue().getType()));
+		}
+		changes.sort(ORDER);
+		return changes;
+	}
+
+	private static void compare(String path, Entity from, Entity to, List<DiffEntry> changes) {
+		if (from.getType() != to.getType()) {
+			replaced(path, from.getType(), to.getType(), changes);
+			return;
+		}
+		// Equal 61 bit hashes are taken as equal trees
+		if (MerkleHash.hashOf(from) == MerkleHash.hashOf(to))
+			return;
+		if (from instanceof TextFile) {
+			changes.add(new DiffEntry(DiffEntry.Kind.MODIFIED, path, to.getType()));
+			return;
+		}
+		Map<String, Entity> toChildren = ((FileSystemEntity) to).getChildren();
+		Map<String, Entity> fromChildren = ((FileSystemEntity) from).getChildren();
+		for (Map.Entry<String, Entity> entry : fromChildren.entrySet()) {
+			Entity other = toChildren.get(entry.getKey());
+			String childPath = child(path, entry.getKey());
+			if (other == null)
+				changes.add(new DiffEntry(DiffEntry.Kind.REMOVED, childPath, entry.getValue().getType()));
+			else
+				compare(childPath, entry.getValue(), other, changes);
+		}
+		for (Map.Entry<String, Entity> entry : toChildren.entrySet()) {
+			if (!fromChildren.containsKey(entry.getKey()))
+				changes.add(new DiffEntry(DiffEntry.Kind.ADDED, child(path, entry.getKey()), entry.getValue().getType()));
+		}
+	}
+
+	private static void compare(String path, SnapshotEntity from, Entity to, List<DiffEntry> changes) {
+		if (from.getType() != to.getType()) {
+			replaced(path, from.getType(), to.getType(), changes);
+			return;
+		}
+		if (from.isUnchangedIn(to))
+			return;
+		if (to instanceof TextFile) {
+			if (!sameBytes(from.getStoredContent(), ((TextFile) to).getStoredContent()))
+				changes.add(new DiffEntry(DiffEntry.Kind.MODIFIED, path, to.getType()));
+			return;
+		}
+		Map<String, Entity> toChildren = ((FileSystemEntity) to).getChildren();
+		Map<String, SnapshotEntity> fromChildren = from.getChildren();
+		for (Map.Entry<String, SnapshotEntity> entry : fromChildren.entrySet()) {
+			Entity other = toChildren.get(entry.getKey());
+			String childPath = child(path, entry.getKey());
+			if (other == null)
+				changes.add(new DiffEntry(DiffEntry.Kind.REMOVED, childPath, entry.getValue().getType()));
+			else
+				compare(childPath, entry.getValue(), other, changes);
+		}
+		for (Map.Entry<String, Entity> entry : toChildren.entrySet()) {
+			if (!fromChildren.containsKey(entry.getKey()))
+				changes.add(new DiffEntry(DiffEntry.Kind.ADDED, child(path, entry.getKey()), entry.getValue().getType()));
+		}
+	}
+
+	private static void replaced(String path, EntityType from, EntityType to, List<DiffEntry> changes) {
+		changes.add(new DiffEntry(DiffEntry.Kind.REMOVED, path, from));
+		changes.add(new DiffEntry(DiffEntry.Kind.ADDED, path, to));
+	}
+
+	private static boolean sameBytes(Content a, Content b) {
+		return a == b || a.size() == b.size() && Arrays.equals(a.toBytes(), b.toBytes());
+	}
+
+	private static String child(String path, String name) {
+		return path.isEmpty() ? name : path + "\\" + name;
+	}
+}
@@ -0,0 +1,9 @@
+package com.mayfly.imfs.exception;
+
+public class QuotaExceededException extends FileSystemException {
+	private static final long serialVersionUID = -2318520944766283912L;
+
+	public QuotaExceededException(String message) {
+		super(message);
+	}
+}
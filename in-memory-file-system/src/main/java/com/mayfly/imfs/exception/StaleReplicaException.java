@@ -0,0 +1,10 @@
+package com.mayfly.imfs.exception;
+
+// The leader's log no longer holds what a follower needs next; the follower has to start over from a new image
+public class StaleReplicaException extends FileSystemException {
+	private static final long serialVersionUID = 5120863817036925541L;
+
+	public StaleReplicaException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,262 @@
+package com.mayfly.imfs.image;
+
+import static com.mayfly.imfs.image.ImageFormat.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.content.CompressionContext;
+import com.mayfly.imfs.content.ContentHash;
+import com.mayfly.imfs.content.MappedContent;
+import com.mayfly.imfs.diff.MerkleHash;
+import com.mayfly.imfs.exception.InvalidOperationException;
+import com.mayfly.imfs.model.Drive;
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.model.FileSystemEntity;
+import com.mayfly.imfs.model.TextFile;
+import com.mayfly.imfs.model.Timestamps;
+import com.mayfly.imfs.model.ZipFile;
+import com.mayfly.imfs.utils.NameInterner;
+
+/*
+ * A memory mapped image. Opening it only maps the file; drives come back as
+ * shells whose children are built from the node records on first access, and
+ * file contents keep pointing into the mapping until they are first updated.
+ */
+public final class FileSystemImage {
+
+	// Bytes of a version 1 file hashed at a time
+	private static final int HASH_CHUNK = 64 * 1024;
+
+	private final Path path;
+	private final ByteBuffer meta;
+	private final ByteBuffer[] windows;
+	private final int nodeCount;
+	private final int driveCount;
+	private final long namesOffset;
+	private final long nodesOffset;
+	private final int nodeSize;
+	// Subtree totals and hashes per node, filled in by getDrives
+	private long[] subtreeBytes;
+	private long[] subtreeFiles;
+	private long[] subtreeEntities;
+	private long[] newestModified;
+	private long[] hashes;
+
+	private FileSystemImage(Path path, ByteBuffer meta, ByteBuffer[] windows) {
+		this.path = path;
+		this.meta = meta;
+		this.windows = windows;
+		this.nodeSize = nodeSize(meta.getInt(H_VERSION));
+		this.nodeCount = meta.getInt(H_NODE_COUNT);
+		this.driveCount = meta.getInt(H_DRIVE_COUNT);
+		this.namesOffset = meta.getLong(H_NAMES_OFFSET);
+		this.nodesOffset = meta.getLong(H_NODES_OFFSET);
+	}
+
+	public static FileSystemImage open(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long fileSize = channel.size();
+			if (fileSize < HEADER_SIZE)
+				throw notAnImage(path);
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			int version = header.getInt(H_VERSION);
+			if (header.getInt(H_MAGIC) != MAGIC || (version != VERSION && version != VERSION_1))
+				throw notAnImage(path);
+			long contentOffset = header.getLong(H_CONTENT_OFFSET);
+			long contentLength = header.getLong(H_CONTENT_LENGTH);
+			long nodesEnd = header.getLong(H_NODES_OFFSET) + (long) header.getInt(H_NODE_COUNT) * nodeSize(version);
+			if (contentOffset < nodesEnd || contentOffset + contentLength != fileSize || contentOffset > Integer.MAX_VALUE)
+				throw notAnImage(path);
+
+			// Mapping is lazy in the OS, so this costs the same whatever the image holds
+			ByteBuffer meta = channel.map(FileChannel.MapMode.READ_ONLY, 0, contentOffset);
+			ByteBuffer[] windows = new ByteBuffer[(int) ((contentLength + CONTENT_WINDOW - 1) / CONTENT_WINDOW)];
+			for (int w = 0; w < windows.length; w++) {
+				long start = (long) w * CONTENT_WINDOW;
+				windows[w] = channel.map(FileChannel.MapMode.READ_ONLY, contentOffset + start,
+						Math.min(CONTENT_WINDOW, contentLength - start));
+			}
+			return new FileSystemImage(path, meta, windows);
+		}
+	}
+
+	// Version of the snapshot the image was written from
+	public long getSnapshotVersion() {
+		return meta.getLong(H_SNAPSHOT_VERSION);
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	// Names go through the loading worker's interner, like the names it creates itself
+	public List<Drive> getDrives(NameInterner names, Supplier<CompressionContext> zipContexts) {
+		sumSubtrees();
+		List<Drive> drives = new ArrayList<>(driveCount);
+		for (int i = 0; i < driveCount; i++) {
+			if (type(i) != EntityType.DRIVE)
+				throw corrupt();
+			Drive drive = new Drive(names.intern(name(i)));
+			drive.setLastModifiedNanos(lastModified(i));
+			setSubtree(drive, i);
+			deferChildren(drive, i, names, zipContexts);
+			drives.add(drive);
+		}
+		return drives;
+	}
+
+	// Children always come after their parent, so one backwards pass over the records sums every subtree
+	private void sumSubtrees() {
+		subtreeBytes = new long[nodeCount];
+		subtreeFiles = new long[nodeCount];
+		subtreeEntities = new long[nodeCount];
+		newestModified = new long[nodeCount];
+		hashes = new long[nodeCount];
+		Arrays.fill(newestModified, Timestamps.NONE);
+		for (int i = nodeCount - 1; i >= 0; i--) {
+			newestModified[i] = Math.max(newestModified[i], lastModified(i));
+			boolean file = type(i) == EntityType.TEXT_FILE;
+			if (nodeSize == NODE_SIZE)
+				hashes[i] = meta.getLong(record(i) + N_HASH);
+			else if (file)
+				hashes[i] = hash(content(i));
+			int parent = meta.getInt(record(i) + N_PARENT);
+			if (parent < 0)
+				continue;
+			if (parent >= i)
+				throw corrupt();
+			if (nodeSize != NODE_SIZE)
+				hashes[parent] = MerkleHash.add(hashes[parent], MerkleHash.term(name(i), type(i), hashes[i]));
+			subtreeBytes[parent] += file ? meta.getInt(record(i) + N_CONTENT_LENGTH) : subtreeBytes[i];
+			subtreeFiles[parent] += file ? 1 : subtreeFiles[i];
+			subtreeEntities[parent] += subtreeEntities[i] + 1;
+			newestModified[parent] = Math.max(newestModified[parent], newestModified[i]);
+		}
+	}
+
+	private void setSubtree(FileSystemEntity directory, int index) {
+		directory.setSubtree(subtreeBytes[index], subtreeFiles[index], subtreeEntities[index], newestModified[index]);
+		directory.setMerkleHash(hashes[index]);
+	}
+
+	private void deferChildren(FileSystemEntity directory, int index, NameInterner names,
+			Supplier<CompressionContext> zipContexts) {
+		if (childCount(index) == 0)
+			return;
+		directory.setChildLoader((dir, children) -> loadChildren(dir, index, children, names, zipContexts));
+	}
+
+	private void loadChildren(FileSystemEntity dir, int index, Map<String, Entity> children, NameInterner names,
+			Supplier<CompressionContext> zipContexts) {
+		int first = meta.getInt(record(index) + N_FIRST_CHILD);
+		int count = childCount(index);
+		if (first < driveCount || first + count > nodeCount)
+			throw corrupt();
+		for (int i = first; i < first + count; i++) {
+			Entity child = materialize(i, dir, names, zipContexts);
+			child.setLastModifiedNanos(lastModified(i));
+			children.put(child.getName(), child);
+		}
+	}
+
+	private Entity materialize(int index, FileSystemEntity parent, NameInterner names,
+			Supplier<CompressionContext> zipContexts) {
+		String name = names.intern(name(index));
+		switch (type(index)) {
+		case FOLDER: {
+			FileSystemEntity folder = new FileSystemEntity(name, parent);
+			setSubtree(folder, index);
+			deferChildren(folder, index, names, zipContexts);
+			return folder;
+		}
+		case ZIP_FILE: {
+			ZipFile zip = new ZipFile(name, parent, zipContexts.get());
+			setSubtree(zip, index);
+			deferChildren(zip, index, names, zipContexts);
+			return zip;
+		}
+		case TEXT_FILE: {
+			TextFile file = new TextFile(name, parent);
+			file.replaceStoredContent(new MappedContent(content(index)));
+			file.setContentHash(hashes[index]);
+			return file;
+		}
+		default:
+			throw corrupt();
+		}
+	}
+
+	private ByteBuffer content(int index) {
+		long offset = meta.getLong(record(index) + N_CONTENT_OFFSET);
+		int length = meta.getInt(record(index) + N_CONTENT_LENGTH);
+		if (length == 0)
+			return ByteBuffer.allocate(0);
+		int w = (int) (offset / CONTENT_WINDOW);
+		int start = (int) (offset % CONTENT_WINDOW);
+		if (w >= windows.length || start + length > windows[w].capacity())
+			throw corrupt();
+		ByteBuffer slice = windows[w].duplicate();
+		slice.position(start);
+		slice.limit(start + length);
+		return slice.slice();
+	}
+
+	private EntityType type(int index) {
+		return ImageFormat.type(meta.get(record(index) + N_TYPE));
+	}
+
+	private String name(int index) {
+		int record = record(index);
+		ByteBuffer names = meta.duplicate();
+		names.position((int) namesOffset + meta.getInt(record + N_NAME_OFFSET));
+		byte[] bytes = new byte[meta.getInt(record + N_NAME_LENGTH)];
+		names.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private int childCount(int index) {
+		return meta.getInt(record(index) + N_CHILD_COUNT);
+	}
+
+	private long lastModified(int index) {
+		return meta.getLong(record(index) + N_LAST_MODIFIED);
+	}
+
+	private int record(int index) {
+		return (int) (nodesOffset + (long) index * nodeSize);
+	}
+
+	private static int nodeSize(int version) {
+		return version == VERSION_1 ? NODE_SIZE_1 : NODE_SIZE;
+	}
+
+	private static long hash(ByteBuffer content) {
+		long hash = 0;
+		byte[] chunk = new byte[Math.min(content.remaining(), HASH_CHUNK)];
+		while (content.hasRemaining()) {
+			int n = Math.min(chunk.length, content.remaining());
+			content.get(chunk, 0, n);
+			hash = ContentHash.append(hash, n == chunk.length ? chunk : Arrays.copyOf(chunk, n));
+		}
+		return hash;
+	}
+
+	private InvalidOperationException corrupt() {
+		return new InvalidOperationException("Corrupt image: " + path);
+	}
+
+	private static InvalidOperationException notAnImage(Path path) {
+		return new InvalidOperationException("Not a file system image: " + path);
+	}
+}
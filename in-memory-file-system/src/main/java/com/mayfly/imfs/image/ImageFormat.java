@@ -0,0 +1,83 @@
+package com.mayfly.imfs.image;
+
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.exception.InvalidOperationException;
+
+/*
+ * Layout of a file system image:
+ *   header   fixed HEADER_SIZE bytes, offsets of the sections below
+ *   names    UTF-8 entity names back to back
+ *   nodes    NODE_SIZE byte records in breadth first order, drives first, so the
+ *            children of a directory are one contiguous run of records
+ *   content  file bytes; a blob never straddles a CONTENT_WINDOW boundary so each
+ *            one can be served from a single mapping
+ */
+final class ImageFormat {
+
+	private ImageFormat() {
+
+	}
+
+	static final int MAGIC = 0x494D4653;
+	static final int VERSION = 2;
+	// Version 1 records stop before N_HASH; their hashes are worked out on load
+	static final int VERSION_1 = 1;
+	static final int NODE_SIZE_1 = 48;
+
+	static final int HEADER_SIZE = 64;
+	static final int H_MAGIC = 0;
+	static final int H_VERSION = 4;
+	static final int H_NODE_COUNT = 8;
+	static final int H_DRIVE_COUNT = 12;
+	static final int H_NAMES_OFFSET = 16;
+	static final int H_NAMES_LENGTH = 24;
+	static final int H_NODES_OFFSET = 32;
+	static final int H_CONTENT_OFFSET = 40;
+	static final int H_CONTENT_LENGTH = 48;
+	static final int H_SNAPSHOT_VERSION = 56;
+
+	static final int NODE_SIZE = 56;
+	static final int N_TYPE = 0;
+	static final int N_NAME_OFFSET = 4;
+	static final int N_NAME_LENGTH = 8;
+	static final int N_PARENT = 12;
+	static final int N_FIRST_CHILD = 16;
+	static final int N_CHILD_COUNT = 20;
+	static final int N_CONTENT_OFFSET = 24;
+	static final int N_CONTENT_LENGTH = 32;
+	static final int N_LAST_MODIFIED = 40;
+	// ContentHash of a file, MerkleHash of a directory
+	static final int N_HASH = 48;
+
+	static final long CONTENT_WINDOW = 1L << 30;
+
+	static byte typeCode(EntityType type) {
+		switch (type) {
+		case DRIVE:
+			return 0;
+		case FOLDER:
+			return 1;
+		case ZIP_FILE:
+			return 2;
+		case TEXT_FILE:
+			return 3;
+		default:
+			throw new InvalidOperationException("Unknown entity type");
+		}
+	}
+
+	static EntityType type(byte code) {
+		switch (code) {
+		case 0:
+			return EntityType.DRIVE;
+		case 1:
+			return EntityType.FOLDER;
+		case 2:
+			return EntityType.ZIP_FILE;
+		case 3:
+			return EntityType.TEXT_FILE;
+		default:
+			throw new InvalidOperationException("Corrupt image: unknown entity type " + code);
+		}
+	}
+}
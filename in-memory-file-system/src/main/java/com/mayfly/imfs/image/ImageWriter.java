@@ -0,0 +1,158 @@
+package com.mayfly.imfs.image;
+
+import static com.mayfly.imfs.image.ImageFormat.*;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.mayfly.imfs.content.Content;
+import com.mayfly.imfs.diff.MerkleHash;
+import com.mayfly.imfs.exception.InvalidOperationException;
+import com.mayfly.imfs.snapshot.FileSystemSnapshot;
+import com.mayfly.imfs.snapshot.SnapshotEntity;
+
+// Writes a snapshot as an image; the file only replaces the target once it is complete
+public final class ImageWriter {
+
+	private static final int COPY_CHUNK = 64 * 1024;
+	private static final byte[] ZEROS = new byte[COPY_CHUNK];
+
+	private ImageWriter() {
+
+	}
+
+	public static void write(FileSystemSnapshot snapshot, Path path) throws IOException {
+		List<SnapshotEntity> nodes = new ArrayList<>(snapshot.getDrives().values());
+		int driveCount = nodes.size();
+		int[] parents = new int[Math.max(16, driveCount)];
+		int[] firstChild = new int[parents.length];
+		int[] childCount = new int[parents.length];
+		Arrays.fill(parents, 0, driveCount, -1);
+		for (int i = 0; i < nodes.size(); i++) {
+			SnapshotEntity node = nodes.get(i);
+			if (!node.isFileSystemEntity())
+				continue;
+			List<SnapshotEntity> children = new ArrayList<>(node.getChildren().values());
+			int needed = nodes.size() + children.size();
+			if (needed > parents.length) {
+				int capacity = Math.max(needed, parents.length * 2);
+				parents = Arrays.copyOf(parents, capacity);
+				firstChild = Arrays.copyOf(firstChild, capacity);
+				childCount = Arrays.copyOf(childCount, capacity);
+			}
+			firstChild[i] = nodes.size();
+			childCount[i] = children.size();
+			for (SnapshotEntity child : children) {
+				parents[nodes.size()] = i;
+				nodes.add(child);
+			}
+		}
+
+		int count = nodes.size();
+		ByteArrayOutputStream names = new ByteArrayOutputStream();
+		int[] nameOffsets = new int[count];
+		int[] nameLengths = new int[count];
+		Content[] contents = new Content[count];
+		long[] contentOffsets = new long[count];
+		long[] hashes = new long[count];
+		long contentLength = 0;
+		for (int i = 0; i < count; i++) {
+			byte[] name = nodes.get(i).getName().getBytes(StandardCharsets.UTF_8);
+			nameOffsets[i] = names.size();
+			nameLengths[i] = name.length;
+			names.write(name, 0, name.length);
+			if (nodes.get(i).isFileSystemEntity())
+				continue;
+			Content content = nodes.get(i).getStoredContent();
+			long size = content.size();
+			if (size > CONTENT_WINDOW)
+				throw new InvalidOperationException("File too large for an image: " + nodes.get(i).getPath());
+			// Start the blob on the next window if it would otherwise cross into it
+			if (contentLength / CONTENT_WINDOW != (contentLength + size - 1) / CONTENT_WINDOW && size > 0)
+				contentLength = (contentLength / CONTENT_WINDOW + 1) * CONTENT_WINDOW;
+			contents[i] = content;
+			contentOffsets[i] = contentLength;
+			contentLength += size;
+			hashes[i] = nodes.get(i).getContentHash();
+		}
+		// Children come after their parent, so a backwards pass has each directory's terms summed before it is reached
+		for (int i = count - 1; i >= driveCount; i--) {
+			SnapshotEntity node = nodes.get(i);
+			hashes[parents[i]] = MerkleHash.add(hashes[parents[i]], MerkleHash.term(node.getName(), node.getType(), hashes[i]));
+		}
+
+		long namesOffset = HEADER_SIZE;
+		long nodesOffset = align(namesOffset + names.size());
+		long contentOffset = align(nodesOffset + (long) count * NODE_SIZE);
+
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), COPY_CHUNK))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(count);
+			out.writeInt(driveCount);
+			out.writeLong(namesOffset);
+			out.writeLong(names.size());
+			out.writeLong(nodesOffset);
+			out.writeLong(contentOffset);
+			out.writeLong(contentLength);
+			out.writeLong(snapshot.getVersion());
+
+			names.writeTo(out);
+			pad(out, nodesOffset - namesOffset - names.size());
+
+			for (int i = 0; i < count; i++) {
+				SnapshotEntity node = nodes.get(i);
+				out.writeByte(typeCode(node.getType()));
+				pad(out, 3);
+				out.writeInt(nameOffsets[i]);
+				out.writeInt(nameLengths[i]);
+				out.writeInt(parents[i]);
+				out.writeInt(firstChild[i]);
+				out.writeInt(childCount[i]);
+				out.writeLong(contentOffsets[i]);
+				out.writeInt(contents[i] == null ? 0 : (int) contents[i].size());
+				pad(out, 4);
+				out.writeLong(node.getLastModifiedNanos());
+				out.writeLong(hashes[i]);
+			}
+			pad(out, contentOffset - nodesOffset - (long) count * NODE_SIZE);
+
+			long written = 0;
+			for (int i = 0; i < count; i++) {
+				if (contents[i] == null)
+					continue;
+				pad(out, contentOffsets[i] - written);
+				long size = contents[i].size();
+				for (long at = 0; at < size; at += COPY_CHUNK) {
+					out.write(contents[i].read(at, (int) Math.min(COPY_CHUNK, size - at)));
+				}
+				written = contentOffsets[i] + size;
+			}
+			pad(out, contentLength - written);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static long align(long offset) {
+		return (offset + 7) & ~7L;
+	}
+
+	private static void pad(DataOutputStream out, long bytes) throws IOException {
+		for (long left = bytes; left > 0; left -= COPY_CHUNK) {
+			out.write(ZEROS, 0, (int) Math.min(COPY_CHUNK, left));
+		}
+	}
+}
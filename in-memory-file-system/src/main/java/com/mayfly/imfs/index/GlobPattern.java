@@ -0,0 +1,119 @@
+package com.mayfly.imfs.index;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.mayfly.imfs.exception.InvalidOperationException;
+
+/*
+ * A glob over names, or over paths relative to a drive when it contains a separator.
+ * '*' and '?' stay within one path segment, '**' crosses segments and [abc] / [a-z]
+ * match one character of a set. The last segment is split into the parts the name
+ * index can answer directly: an exact name or a "*.ext" extension.
+ */
+public final class GlobPattern {
+
+	private final String glob;
+	private final Pattern pattern;
+	private final boolean pathPattern;
+	private final String literalName;
+	private final String extension;
+
+	private GlobPattern(String glob) {
+		this.glob = glob;
+		this.pattern = compile(glob);
+		this.pathPattern = glob.indexOf('\\') >= 0;
+		String last = glob.substring(glob.lastIndexOf('\\') + 1);
+		this.literalName = isLiteral(last) ? last : null;
+		this.extension = last.length() > 2 && last.startsWith("*.") && isLiteral(last.substring(2))
+				? last.substring(2)
+				: null;
+	}
+
+	public static GlobPattern of(String glob) {
+		if (glob == null || glob.isEmpty())
+			throw new InvalidOperationException("Glob must not be empty");
+		return new GlobPattern(glob);
+	}
+
+	public boolean matches(String nameOrRelativePath) {
+		return pattern.matcher(nameOrRelativePath).matches();
+	}
+
+	// Matched against the path below the drive rather than the name
+	public boolean isPathPattern() {
+		return pathPattern;
+	}
+
+	// The last segment when it has no wildcards, otherwise null
+	public String getLiteralName() {
+		return literalName;
+	}
+
+	// "log" for a last segment of "*.log", otherwise null
+	public String getExtension() {
+		return extension;
+	}
+
+	@Override
+	public String toString() {
+		return glob;
+	}
+
+	private static boolean isLiteral(String segment) {
+		for (int i = 0; i < segment.length(); i++) {
+			char c = segment.charAt(i);
+			if (c == '*' || c == '?' || c == '[')
+				return false;
+		}
+		return true;
+	}
+
+	private static Pattern compile(String glob) {
+		StringBuilder regex = new StringBuilder(glob.length() * 2);
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			switch (c) {
+			case '*':
+				if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+					i++;
+					// "**\" also matches no directory at all
+					if (i + 1 < glob.length() && glob.charAt(i + 1) == '\\') {
+						i++;
+						regex.append("(?:.*\\\\)?");
+					} else {
+						regex.append(".*");
+					}
+				} else {
+					regex.append("[^\\\\]*");
+				}
+				break;
+			case '?':
+				regex.append("[^\\\\]");
+				break;
+			case '[':
+				int end = glob.indexOf(']', i + 1);
+				if (end < 0)
+					throw new InvalidOperationException("Unclosed '[' in glob: " + glob);
+				String set = glob.substring(i + 1, end);
+				regex.append('[');
+				if (set.startsWith("!")) {
+					regex.append('^');
+					set = set.substring(1);
+				}
+				regex.append(set.replace("\\", "\\\\").replace("[", "\\[").replace("^", "\\^")).append(']');
+				i = end;
+				break;
+			default:
+				if ("\\.^$|+(){}".indexOf(c) >= 0)
+					regex.append('\\');
+				regex.append(c);
+			}
+		}
+		try {
+			return Pattern.compile(regex.toString());
+		} catch (PatternSyntaxException e) {
+			throw new InvalidOperationException("Invalid glob: " + glob);
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package com.mayfly.imfs.index;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.model.FileSystemEntity;
+
+/*
+ * Secondary index of one drive: name, file extension and type to the entities below
+ * the drive. The worker updates it under the same locks as the mutation it mirrors,
+ * so concurrent writers only ever touch it in disjoint directories; the posting sets
+ * are concurrent and emptied keys are dropped atomically with the last removal.
+ */
+public class NameIndex {
+
+	private final Map<String, Set<Entity>> byName = new ConcurrentHashMap<>();
+	private final Map<String, Set<Entity>> byExtension = new ConcurrentHashMap<>();
+	private final Map<EntityType, Set<Entity>> byType = new EnumMap<>(EntityType.class);
+
+	public NameIndex() {
+		for (EntityType type : EntityType.values()) {
+			byType.put(type, ConcurrentHashMap.newKeySet());
+		}
+	}
+
+	// Indexes the entity and everything below it
+	public void addSubtree(Entity entity) {
+		add(entity, entity.getName());
+		if (entity instanceof FileSystemEntity) {
+			for (Entity child : ((FileSystemEntity) entity).getChildren().values()) {
+				addSubtree(child);
+			}
+		}
+	}
+
+	public void removeSubtree(Entity entity) {
+		remove(entity, entity.getName());
+		if (entity instanceof FileSystemEntity) {
+			for (Entity child : ((FileSystemEntity) entity).getChildren().values()) {
+				removeSubtree(child);
+			}
+		}
+	}
+
+	// The entity alone, for lazy copies that index each level as it is listed
+	public void add(Entity entity) {
+		add(entity, entity.getName());
+	}
+
+	// The entity alone, for walks that already visit every node of a subtree
+	public void remove(Entity entity) {
+		remove(entity, entity.getName());
+	}
+
+	// Only the entity itself is re-keyed; the names below it do not change
+	public void rename(Entity entity, String oldName) {
+		remove(entity, oldName);
+		add(entity, entity.getName());
+	}
+
+	public Set<Entity> findByName(String name) {
+		return view(byName.get(name));
+	}
+
+	public Set<Entity> findByExtension(String extension) {
+		return view(byExtension.get(extension));
+	}
+
+	public Set<Entity> findByType(EntityType type) {
+		return Collections.unmodifiableSet(byType.get(type));
+	}
+
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(byName.keySet());
+	}
+
+	public int size() {
+		int size = 0;
+		for (Set<Entity> entities : byType.values()) {
+			size += entities.size();
+		}
+		return size;
+	}
+
+	private void add(Entity entity, String name) {
+		post(byName, name, entity);
+		String extension = extensionOf(name, entity.getType());
+		if (extension != null)
+			post(byExtension, extension, entity);
+		byType.get(entity.getType()).add(entity);
+	}
+
+	private void remove(Entity entity, String name) {
+		unpost(byName, name, entity);
+		String extension = extensionOf(name, entity.getType());
+		if (extension != null)
+			unpost(byExtension, extension, entity);
+		byType.get(entity.getType()).remove(entity);
+	}
+
+	// Text file extensions only; folder and zip names cannot contain a dot
+	private static String extensionOf(String name, EntityType type) {
+		if (type != EntityType.TEXT_FILE)
+			return null;
+		int dot = name.lastIndexOf('.');
+		return dot < 0 ? null : name.substring(dot + 1);
+	}
+
+	private static void post(Map<String, Set<Entity>> postings, String key, Entity entity) {
+		postings.compute(key, (k, entities) -> {
+			Set<Entity> set = entities == null ? ConcurrentHashMap.newKeySet() : entities;
+			set.add(entity);
+			return set;
+		});
+	}
+
+	private static void unpost(Map<String, Set<Entity>> postings, String key, Entity entity) {
+		postings.computeIfPresent(key, (k, entities) -> {
+			entities.remove(entity);
+			return entities.isEmpty() ? null : entities;
+		});
+	}
+
+	private static Set<Entity> view(Set<Entity> entities) {
+		return entities == null ? Collections.<Entity>emptySet() : Collections.unmodifiableSet(entities);
+	}
+}
@@ -0,0 +1,287 @@
+package com.mayfly.imfs.index;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.model.FileSystemEntity;
+import com.mayfly.imfs.model.TextFile;
+
+/*
+ * Inverted index over the text files of one drive: term -> files containing it, and per
+ * file the positions of each of its terms for phrase matching. A content change only
+ * touches the postings of the terms that appeared or disappeared, and an append only
+ * tokenizes what it added plus the word it may have continued. Updates of one file are
+ * serialized by the worker (under the file's monitor); queries run lock free and see
+ * position arrays that only ever grow at their end.
+ */
+public class TextIndex {
+
+	private final Map<String, Set<TextFile>> postings = new ConcurrentHashMap<>();
+	private final Map<TextFile, FileTerms> positions = new ConcurrentHashMap<>();
+
+	public void update(TextFile file, String text) {
+		FileTerms updated = text.isEmpty() ? null : FileTerms.of(text);
+		FileTerms previous = updated == null ? positions.remove(file) : positions.put(file, updated);
+		if (previous != null) {
+			for (String term : previous.terms.keySet()) {
+				if (updated == null || !updated.terms.containsKey(term))
+					unpost(term, file);
+			}
+		}
+		if (updated != null) {
+			for (String term : updated.terms.keySet()) {
+				if (previous == null || !previous.terms.containsKey(term))
+					post(term, file);
+			}
+		}
+	}
+
+	/*
+	 * Indexes data appended to the file. Tokenizing starts at the last word of the old
+	 * content, or at a character its end split, so the result is what update would give
+	 * for the whole content. False when the file has no exact tail yet; the caller then
+	 * calls update with the whole content.
+	 */
+	public boolean append(TextFile file, byte[] data) {
+		FileTerms indexed = positions.get(file);
+		if (indexed == null || indexed.tail == null)
+			return false;
+		byte[] bytes = Arrays.copyOf(indexed.tail, indexed.tail.length + data.length);
+		System.arraycopy(data, 0, bytes, indexed.tail.length, data.length);
+		int complete = completeLength(bytes);
+		String text = new String(bytes, 0, complete, StandardCharsets.UTF_8);
+		List<String> tokens = TextQuery.tokenize(text);
+
+		int next = 0;
+		int position = indexed.tokens;
+		if (indexed.tailTerm != null) {
+			// The old last word is the first token again, maybe longer now
+			if (tokens.get(0).equals(indexed.tailTerm)) {
+				next = 1;
+			} else {
+				position--;
+				removeLast(file, indexed, indexed.tailTerm);
+			}
+		}
+		for (; next < tokens.size(); next++) {
+			String term = tokens.get(next);
+			Positions at = indexed.terms.get(term);
+			if (at == null) {
+				at = new Positions();
+				indexed.terms.put(term, at);
+				post(term, file);
+			}
+			at.add(position++);
+		}
+		indexed.tokens = position;
+		indexed.setTail(text, Arrays.copyOfRange(bytes, complete, bytes.length), tokens.isEmpty() ? null : tokens.get(tokens.size() - 1));
+		return true;
+	}
+
+	public void remove(TextFile file) {
+		FileTerms previous = positions.remove(file);
+		if (previous != null) {
+			for (String term : previous.terms.keySet()) {
+				unpost(term, file);
+			}
+		}
+	}
+
+	// Reads and indexes every file below entity, e.g. when a subtree arrives from an unindexed drive
+	public void addSubtree(Entity entity) {
+		if (entity instanceof TextFile) {
+			update((TextFile) entity, ((TextFile) entity).getContent());
+		} else if (entity instanceof FileSystemEntity) {
+			for (Entity child : ((FileSystemEntity) entity).getChildren().values()) {
+				addSubtree(child);
+			}
+		}
+	}
+
+	public void removeSubtree(Entity entity) {
+		if (entity instanceof TextFile) {
+			remove((TextFile) entity);
+		} else if (entity instanceof FileSystemEntity) {
+			for (Entity child : ((FileSystemEntity) entity).getChildren().values()) {
+				removeSubtree(child);
+			}
+		}
+	}
+
+	// Hands the already tokenized files of a subtree over to the index of another drive
+	public void moveSubtree(Entity entity, TextIndex target) {
+		if (entity instanceof TextFile) {
+			FileTerms terms = positions.remove(entity);
+			if (terms == null)
+				return;
+			for (String term : terms.terms.keySet()) {
+				unpost(term, (TextFile) entity);
+				target.post(term, (TextFile) entity);
+			}
+			target.positions.put((TextFile) entity, terms);
+		} else if (entity instanceof FileSystemEntity) {
+			for (Entity child : ((FileSystemEntity) entity).getChildren().values()) {
+				moveSubtree(child, target);
+			}
+		}
+	}
+
+	// Files matching the query; the caller filters out deleted files and applies the scope
+	public Set<TextFile> search(TextQuery query) {
+		Set<TextFile> result = new HashSet<>();
+		for (List<String[]> clauses : query.getAlternatives()) {
+			result.addAll(searchAll(clauses));
+		}
+		return result;
+	}
+
+	public int getTermCount() {
+		return postings.size();
+	}
+
+	public int getFileCount() {
+		return positions.size();
+	}
+
+	private Set<TextFile> searchAll(List<String[]> clauses) {
+		// Intersect starting from the rarest term so the candidate set is as small as it gets
+		List<String> terms = new ArrayList<>();
+		for (String[] clause : clauses) {
+			terms.addAll(Arrays.asList(clause));
+		}
+		terms.sort(Comparator.comparingInt(term -> postingsOf(term).size()));
+		Set<TextFile> candidates = new HashSet<>(postingsOf(terms.get(0)));
+		for (int i = 1; i < terms.size() && !candidates.isEmpty(); i++) {
+			candidates.retainAll(postingsOf(terms.get(i)));
+		}
+		for (String[] clause : clauses) {
+			if (clause.length > 1)
+				candidates.removeIf(file -> !containsPhrase(positions.get(file), clause));
+		}
+		return candidates;
+	}
+
+	private static boolean containsPhrase(FileTerms terms, String[] phrase) {
+		if (terms == null)
+			return false;
+		int[][] at = new int[phrase.length][];
+		int[] sizes = new int[phrase.length];
+		for (int i = 0; i < phrase.length; i++) {
+			Positions positions = terms.terms.get(phrase[i]);
+			if (positions == null)
+				return false;
+			// Size first: the array it was published with holds at least that many
+			sizes[i] = positions.size;
+			at[i] = positions.at;
+		}
+		for (int k = 0; k < sizes[0]; k++) {
+			int start = at[0][k];
+			int i = 1;
+			while (i < phrase.length && Arrays.binarySearch(at[i], 0, sizes[i], start + i) >= 0)
+				i++;
+			if (i == phrase.length)
+				return true;
+		}
+		return false;
+	}
+
+	// Drops the last position of term, which an append replaced with a longer word
+	private void removeLast(TextFile file, FileTerms indexed, String term) {
+		Positions at = indexed.terms.get(term);
+		at.size--;
+		if (at.size == 0) {
+			indexed.terms.remove(term);
+			unpost(term, file);
+		}
+	}
+
+	// Length of bytes without a UTF-8 sequence cut off at the end
+	private static int completeLength(byte[] bytes) {
+		for (int i = bytes.length - 1; i >= Math.max(0, bytes.length - 4); i--) {
+			int b = bytes[i] & 0xff;
+			if (b < 0x80)
+				return bytes.length;
+			if (b >= 0xc0) {
+				int needed = b >= 0xf0 ? 4 : b >= 0xe0 ? 3 : 2;
+				return bytes.length - i < needed ? i : bytes.length;
+			}
+		}
+		return bytes.length;
+	}
+
+	private Set<TextFile> postingsOf(String term) {
+		Set<TextFile> files = postings.get(term);
+		return files == null ? Collections.<TextFile>emptySet() : files;
+	}
+
+	private void post(String term, TextFile file) {
+		postings.compute(term, (k, files) -> {
+			Set<TextFile> set = files == null ? ConcurrentHashMap.newKeySet() : files;
+			set.add(file);
+			return set;
+		});
+	}
+
+	private void unpost(String term, TextFile file) {
+		postings.computeIfPresent(term, (k, files) -> {
+			files.remove(file);
+			return files.isEmpty() ? null : files;
+		});
+	}
+
+	// The terms of one file; the fields besides terms are only used by its writer
+	private static final class FileTerms {
+		private final Map<String, Positions> terms = new ConcurrentHashMap<>();
+		private int tokens;
+		// Raw bytes an append tokenizes again: the last word and a split character; null when not known exactly
+		private byte[] tail;
+		// Term of the last word when the content ends inside it
+		private String tailTerm;
+
+		static FileTerms of(String text) {
+			List<String> tokens = TextQuery.tokenize(text);
+			FileTerms file = new FileTerms();
+			for (int i = 0; i < tokens.size(); i++) {
+				file.terms.computeIfAbsent(tokens.get(i), t -> new Positions()).add(i);
+			}
+			file.tokens = tokens.size();
+			// A decoded end holds no split character unless it ends in a replacement; then the bytes are lost
+			if (!text.endsWith("\uFFFD"))
+				file.setTail(text, new byte[0], tokens.isEmpty() ? null : tokens.get(tokens.size() - 1));
+			return file;
+		}
+
+		void setTail(String text, byte[] split, String lastTerm) {
+			int start = text.length();
+			while (start > 0 && Character.isLetterOrDigit(text.charAt(start - 1)))
+				start--;
+			tailTerm = start < text.length() ? lastTerm : null;
+			byte[] word = text.substring(start).getBytes(StandardCharsets.UTF_8);
+			tail = Arrays.copyOf(word, word.length + split.length);
+			System.arraycopy(split, 0, tail, word.length, split.length);
+		}
+	}
+
+	// Ascending positions of one term; appended in place and published by the size
+	private static final class Positions {
+		private volatile int[] at = new int[2];
+		private volatile int size;
+
+		void add(int position) {
+			int[] current = at;
+			if (size == current.length)
+				at = current = Arrays.copyOf(current, current.length * 2);
+			current[size] = position;
+			size++;
+		}
+	}
+}
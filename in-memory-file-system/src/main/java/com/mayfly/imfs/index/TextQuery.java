@@ -0,0 +1,88 @@
+package com.mayfly.imfs.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import com.mayfly.imfs.exception.InvalidOperationException;
+
+/*
+ * Parsed full-text query: words next to each other must all match, OR separates
+ * alternatives and a quoted "phrase" must match as consecutive terms. Words are
+ * tokenized the same way as contents, so "a.b" is the phrase "a b".
+ */
+public final class TextQuery {
+
+	private final List<List<String[]>> alternatives;
+
+	private TextQuery(List<List<String[]>> alternatives) {
+		this.alternatives = alternatives;
+	}
+
+	public static TextQuery parse(String query) {
+		if (query == null)
+			throw new InvalidOperationException("Query must not be empty");
+		List<List<String[]>> alternatives = new ArrayList<>();
+		List<String[]> clauses = new ArrayList<>();
+		int i = 0;
+		while (i < query.length()) {
+			char c = query.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+				continue;
+			}
+			int end;
+			String text;
+			if (c == '"') {
+				end = query.indexOf('"', i + 1);
+				if (end < 0)
+					throw new InvalidOperationException("Unclosed quote in query: " + query);
+				text = query.substring(i + 1, end);
+				end++;
+			} else {
+				end = i;
+				while (end < query.length() && !Character.isWhitespace(query.charAt(end)) && query.charAt(end) != '"')
+					end++;
+				text = query.substring(i, end);
+				if (text.equals("OR")) {
+					if (clauses.isEmpty())
+						throw new InvalidOperationException("OR needs a term on both sides: " + query);
+					alternatives.add(clauses);
+					clauses = new ArrayList<>();
+					i = end;
+					continue;
+				}
+			}
+			List<String> terms = tokenize(text);
+			if (!terms.isEmpty())
+				clauses.add(terms.toArray(new String[0]));
+			i = end;
+		}
+		if (clauses.isEmpty())
+			throw new InvalidOperationException(alternatives.isEmpty() ? "Query has no terms" : "OR needs a term on both sides: " + query);
+		alternatives.add(clauses);
+		return new TextQuery(alternatives);
+	}
+
+	// Alternatives of clauses that must all match; a clause of several terms is a phrase
+	public List<List<String[]>> getAlternatives() {
+		return Collections.unmodifiableList(alternatives);
+	}
+
+	// Lower-cased runs of letters and digits
+	public static List<String> tokenize(String text) {
+		List<String> terms = new ArrayList<>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (word && start < 0) {
+				start = i;
+			} else if (!word && start >= 0) {
+				terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+				start = -1;
+			}
+		}
+		return terms;
+	}
+}
@@ -0,0 +1,305 @@
+package com.mayfly.imfs.journal;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/*
+ * Append-only journal with group commit. Mutators append a framed record to an
+ * in-memory batch while they still hold their locks, so the journal order matches
+ * the order conflicting mutations were applied in; they then wait for the batch to
+ * be synced. One flusher thread writes each batch and fsyncs it once, after waiting
+ * up to the flush interval for more mutators to join it.
+ *
+ * Frame: int body length, int CRC32 of the body, body. A torn or corrupt frame
+ * marks the end of the journal on recovery.
+ */
+public class Journal implements Closeable {
+
+	private final Path path;
+	private final long flushIntervalNanos;
+	private final int maxBatchRecords;
+	private final JournalStats stats = new JournalStats();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition work = lock.newCondition();
+	private final Condition synced = lock.newCondition();
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private ByteArrayOutputStream spare = new ByteArrayOutputStream();
+	private int pendingRecords;
+	private long appendedLsn;
+	private long durableLsn;
+	private IOException failure;
+	private boolean closed;
+
+	// Held while the file is written or rewritten, so a checkpoint never races a group commit
+	private final ReentrantLock fileLock = new ReentrantLock();
+	private FileChannel channel;
+	private final Thread flusher;
+
+	private Journal(Path path, FileChannel channel, long flushIntervalMillis, int maxBatchRecords) {
+		this.path = path;
+		this.channel = channel;
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+		this.maxBatchRecords = maxBatchRecords;
+		this.flusher = new Thread(this::runFlusher, "imfs-journal-flusher");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	// Replays every intact record, drops a torn tail left by a crash and opens the journal for appending
+	public static Journal recover(Path path, Consumer<JournalRecord> replay, long flushIntervalMillis,
+			int maxBatchRecords) throws IOException {
+		long valid = Files.exists(path) ? readFrames(path, (record, frame) -> replay.accept(record)) : 0;
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			if (channel.size() > valid)
+				channel.truncate(valid);
+			channel.position(valid);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new Journal(path, channel, flushIntervalMillis, maxBatchRecords);
+	}
+
+	// Returns the sequence number to hand to awaitDurable
+	public long append(JournalRecord record) {
+		byte[] frame = frame(record);
+		lock.lock();
+		try {
+			if (closed)
+				throw new IllegalStateException("Journal is closed");
+			if (failure != null)
+				throw new UncheckedIOException("Journal write failed", failure);
+			pending.write(frame, 0, frame.length);
+			pendingRecords++;
+			stats.appended(frame.length);
+			if (pendingRecords == 1 || pendingRecords >= maxBatchRecords)
+				work.signal();
+			return ++appendedLsn;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void awaitDurable(long lsn) {
+		lock.lock();
+		try {
+			while (durableLsn < lsn) {
+				if (failure != null)
+					throw new UncheckedIOException("Journal write failed", failure);
+				synced.awaitUninterruptibly();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Drops every record a checkpoint taken at this snapshot version already contains
+	public void truncate(long version) throws IOException {
+		long lsn;
+		lock.lock();
+		try {
+			lsn = appendedLsn;
+		} finally {
+			lock.unlock();
+		}
+		awaitDurable(lsn);
+		fileLock.lock();
+		try {
+			Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+			try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				readFrames(path, (record, frame) -> {
+					if (record.getTag() > version)
+						writeFully(out, frame);
+				});
+				out.force(true);
+			}
+			channel.close();
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			channel = FileChannel.open(path, StandardOpenOption.WRITE);
+			channel.position(channel.size());
+			stats.checkpointed();
+		} finally {
+			fileLock.unlock();
+		}
+	}
+
+	public long size() throws IOException {
+		fileLock.lock();
+		try {
+			return channel.size();
+		} finally {
+			fileLock.unlock();
+		}
+	}
+
+	public JournalStats getStats() {
+		return stats;
+	}
+
+	// Syncs whatever is still pending before the flusher stops
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			closed = true;
+			work.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		fileLock.lock();
+		try {
+			channel.close();
+		} finally {
+			fileLock.unlock();
+		}
+	}
+
+	private void runFlusher() {
+		while (true) {
+			ByteArrayOutputStream batch;
+			long batchLsn;
+			lock.lock();
+			try {
+				while (pendingRecords == 0 && !closed)
+					work.awaitUninterruptibly();
+				if (pendingRecords == 0)
+					return;
+				// Give concurrent mutators a chance to join this group commit
+				long deadline = System.nanoTime() + flushIntervalNanos;
+				long wait;
+				while (pendingRecords < maxBatchRecords && !closed && (wait = deadline - System.nanoTime()) > 0) {
+					try {
+						work.awaitNanos(wait);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+				batch = pending;
+				pending = spare;
+				spare = null;
+				batchLsn = appendedLsn;
+				pendingRecords = 0;
+			} finally {
+				lock.unlock();
+			}
+
+			IOException error = null;
+			fileLock.lock();
+			try {
+				writeFully(channel, batch.toByteArray());
+				long start = System.nanoTime();
+				channel.force(false);
+				stats.synced(System.nanoTime() - start);
+			} catch (IOException | UncheckedIOException e) {
+				error = e instanceof IOException ? (IOException) e : ((UncheckedIOException) e).getCause();
+			} finally {
+				fileLock.unlock();
+			}
+
+			lock.lock();
+			try {
+				if (error != null)
+					failure = error;
+				else
+					durableLsn = batchLsn;
+				batch.reset();
+				spare = batch;
+				synced.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private static byte[] frame(JournalRecord record) {
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			record.writeTo(new DataOutputStream(body));
+			byte[] bytes = body.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, bytes.length);
+			ByteBuffer frame = ByteBuffer.allocate(8 + bytes.length);
+			frame.putInt(bytes.length);
+			frame.putInt((int) crc.getValue());
+			frame.put(bytes);
+			return frame.array();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private interface FrameVisitor {
+		void visit(JournalRecord record, byte[] frame);
+	}
+
+	// Returns the length of the intact prefix
+	private static long readFrames(Path path, FrameVisitor visitor) throws IOException {
+		long valid = 0;
+		long fileSize = Files.size(path);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			while (true) {
+				int length;
+				int checksum;
+				byte[] body;
+				try {
+					length = in.readInt();
+					checksum = in.readInt();
+					if (length < 0 || valid + 8 + length > fileSize)
+						return valid;
+					body = new byte[length];
+					in.readFully(body);
+				} catch (EOFException e) {
+					return valid;
+				}
+				CRC32 crc = new CRC32();
+				crc.update(body, 0, body.length);
+				if ((int) crc.getValue() != checksum)
+					return valid;
+				JournalRecord record = JournalRecord.readFrom(new DataInputStream(new ByteArrayInputStream(body)));
+				ByteBuffer frame = ByteBuffer.allocate(8 + length);
+				frame.putInt(length);
+				frame.putInt(checksum);
+				frame.put(body);
+				visitor.visit(record, frame.array());
+				valid += 8 + length;
+			}
+		}
+	}
+
+	private static void writeFully(FileChannel channel, byte[] bytes) {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
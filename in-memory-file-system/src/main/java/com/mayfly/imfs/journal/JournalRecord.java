@@ -0,0 +1,194 @@
+package com.mayfly.imfs.journal;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.content.ContentPatch;
+
+// One mutation as it is written to the journal; paths are the ones the mutation saw under its locks
+public final class JournalRecord {
+
+	public enum Op {
+		CREATE, DELETE, MOVE, RENAME, WRITE, PATCH, LOAD_IMAGE, BATCH, COPY
+	}
+
+	private final long tag;
+	private final Op op;
+	private final String path;
+	private final String target;
+	private final EntityType type;
+	private final byte[] data;
+	private final ContentPatch patch;
+	private final List<JournalRecord> records;
+
+	private JournalRecord(long tag, Op op, String path, String target, EntityType type, byte[] data, ContentPatch patch) {
+		this(tag, op, path, target, type, data, patch, Collections.<JournalRecord>emptyList());
+	}
+
+	private JournalRecord(long tag, Op op, String path, String target, EntityType type, byte[] data, ContentPatch patch,
+			List<JournalRecord> records) {
+		this.tag = tag;
+		this.op = op;
+		this.path = path;
+		this.target = target;
+		this.type = type;
+		this.data = data;
+		this.patch = patch;
+		this.records = records;
+	}
+
+	// A drive has no parent, so its parentPath is null
+	public static JournalRecord create(long tag, EntityType type, String name, String parentPath) {
+		return new JournalRecord(tag, Op.CREATE, parentPath, name, type, null, null);
+	}
+
+	public static JournalRecord delete(long tag, String path) {
+		return new JournalRecord(tag, Op.DELETE, path, null, null, null, null);
+	}
+
+	public static JournalRecord move(long tag, String srcPath, String destPath) {
+		return new JournalRecord(tag, Op.MOVE, srcPath, destPath, null, null, null);
+	}
+
+	public static JournalRecord copy(long tag, String srcPath, String destPath) {
+		return new JournalRecord(tag, Op.COPY, srcPath, destPath, null, null, null);
+	}
+
+	public static JournalRecord rename(long tag, String path, String newName) {
+		return new JournalRecord(tag, Op.RENAME, path, newName, null, null, null);
+	}
+
+	public static JournalRecord write(long tag, String path, String content) {
+		return new JournalRecord(tag, Op.WRITE, path, null, null, content.getBytes(StandardCharsets.UTF_8), null);
+	}
+
+	public static JournalRecord patch(long tag, String path, ContentPatch patch) {
+		return new JournalRecord(tag, Op.PATCH, path, null, null, null, patch);
+	}
+
+	public static JournalRecord loadImage(long tag, String imagePath) {
+		return new JournalRecord(tag, Op.LOAD_IMAGE, imagePath, null, null, null, null);
+	}
+
+	// One frame for the whole batch, so a torn tail never replays half of it
+	public static JournalRecord batch(long tag, List<JournalRecord> records) {
+		return new JournalRecord(tag, Op.BATCH, null, null, null, null, null, records);
+	}
+
+	// Snapshot epoch of the mutation; a checkpoint at version V covers every record tagged <= V
+	public long getTag() {
+		return tag;
+	}
+
+	public Op getOp() {
+		return op;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public String getTarget() {
+		return target;
+	}
+
+	public EntityType getType() {
+		return type;
+	}
+
+	public String getText() {
+		return new String(data, StandardCharsets.UTF_8);
+	}
+
+	public ContentPatch getPatch() {
+		return patch;
+	}
+
+	public List<JournalRecord> getRecords() {
+		return records;
+	}
+
+	// Also the form a record is kept in for followers
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeLong(tag);
+		out.writeByte(op.ordinal());
+		if (op == Op.BATCH) {
+			out.writeInt(records.size());
+			for (JournalRecord record : records) {
+				record.writeTo(out);
+			}
+			return;
+		}
+		writeString(out, path);
+		writeString(out, target);
+		writeString(out, type == null ? null : type.name());
+		writeBytes(out, data);
+		if (patch != null) {
+			out.writeByte(patch.getKind().ordinal());
+			out.writeLong(patch.getOffset());
+			out.writeBoolean(patch.isLenient());
+			writeBytes(out, patch.getData());
+		} else {
+			out.writeByte(-1);
+		}
+	}
+
+	public static JournalRecord readFrom(DataInput in) throws IOException {
+		long tag = in.readLong();
+		Op op = Op.values()[in.readByte()];
+		if (op == Op.BATCH) {
+			int count = in.readInt();
+			List<JournalRecord> records = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				records.add(readFrom(in));
+			}
+			return batch(tag, records);
+		}
+		String path = readString(in);
+		String target = readString(in);
+		String typeName = readString(in);
+		EntityType type = typeName == null ? null : EntityType.valueOf(typeName);
+		byte[] data = readBytes(in);
+		byte patchKind = in.readByte();
+		ContentPatch patch = null;
+		if (patchKind >= 0) {
+			long offset = in.readLong();
+			boolean lenient = in.readBoolean();
+			patch = ContentPatch.of(ContentPatch.Kind.values()[patchKind], offset, readBytes(in), lenient);
+		}
+		return new JournalRecord(tag, op, path, target, type, data, patch);
+	}
+
+	private static void writeString(DataOutput out, String value) throws IOException {
+		writeBytes(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		byte[] bytes = readBytes(in);
+		return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeBytes(DataOutput out, byte[] value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(value.length);
+		out.write(value);
+	}
+
+	private static byte[] readBytes(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,71 @@
+package com.mayfly.imfs.journal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class JournalStats {
+
+	private final long startNanos = System.nanoTime();
+	private final LongAdder records = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder syncs = new LongAdder();
+	private final LongAdder syncNanos = new LongAdder();
+	private final AtomicLong maxSyncNanos = new AtomicLong();
+	private final LongAdder checkpoints = new LongAdder();
+
+	void appended(int recordBytes) {
+		records.increment();
+		bytes.add(recordBytes);
+	}
+
+	void synced(long nanos) {
+		syncs.increment();
+		syncNanos.add(nanos);
+		maxSyncNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	void checkpointed() {
+		checkpoints.increment();
+	}
+
+	public long getRecords() {
+		return records.sum();
+	}
+
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	// One fsync per group commit, however many records it carried
+	public long getSyncs() {
+		return syncs.sum();
+	}
+
+	public double getRecordsPerSync() {
+		long s = syncs.sum();
+		return s == 0 ? 0.0 : (double) records.sum() / s;
+	}
+
+	public double getRecordsPerSecond() {
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		return seconds <= 0 ? 0.0 : records.sum() / seconds;
+	}
+
+	public double getBytesPerSecond() {
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		return seconds <= 0 ? 0.0 : bytes.sum() / seconds;
+	}
+
+	public double getAverageSyncMicros() {
+		long s = syncs.sum();
+		return s == 0 ? 0.0 : syncNanos.sum() / 1e3 / s;
+	}
+
+	public double getMaxSyncMicros() {
+		return maxSyncNanos.get() / 1e3;
+	}
+
+	public long getCheckpoints() {
+		return checkpoints.sum();
+	}
+}
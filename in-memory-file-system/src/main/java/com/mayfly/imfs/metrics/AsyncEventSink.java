@@ -0,0 +1,69 @@
+package com.mayfly.imfs.metrics;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Hands events to a consumer on a background thread; when the queue is full events are dropped, never waited for
+public class AsyncEventSink implements EventSink, Closeable {
+
+	private final BlockingQueue<FileSystemEvent> queue;
+	private final Consumer<FileSystemEvent> consumer;
+	private final LongAdder dropped = new LongAdder();
+	private final Thread dispatcher;
+	private volatile boolean closed;
+
+	public AsyncEventSink(Consumer<FileSystemEvent> consumer, int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Event queue capacity must be positive");
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.consumer = consumer;
+		this.dispatcher = new Thread(this::dispatch, "imfs-event-sink");
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+	}
+
+	@Override
+	public void accept(FileSystemEvent event) {
+		if (closed || !queue.offer(event))
+			dropped.increment();
+	}
+
+	@Override
+	public long getDroppedEvents() {
+		return dropped.sum();
+	}
+
+	// Delivers whatever is still queued before returning
+	@Override
+	public void close() {
+		closed = true;
+		dispatcher.interrupt();
+		try {
+			dispatcher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void dispatch() {
+		while (true) {
+			FileSystemEvent event;
+			try {
+				event = closed ? queue.poll() : queue.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if (event == null)
+				return;
+			try {
+				consumer.accept(event);
+			} catch (RuntimeException e) {
+				// A failing consumer loses that event but keeps the sink alive
+				dropped.increment();
+			}
+		}
+	}
+}
@@ -0,0 +1,11 @@
+package com.mayfly.imfs.metrics;
+
+// Receives one event per operation on the caller's thread; wrap slow consumers in an AsyncEventSink
+public interface EventSink {
+
+	void accept(FileSystemEvent event);
+
+	default long getDroppedEvents() {
+		return 0;
+	}
+}
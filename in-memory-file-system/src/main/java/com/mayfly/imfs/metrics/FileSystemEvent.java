@@ -0,0 +1,45 @@
+package com.mayfly.imfs.metrics;
+
+// One completed operation as handed to an EventSink
+public final class FileSystemEvent {
+
+	private final OperationType type;
+	private final String path;
+	private final long nanos;
+	private final boolean succeeded;
+	private final long timestampMillis;
+
+	public FileSystemEvent(OperationType type, String path, long nanos, boolean succeeded, long timestampMillis) {
+		this.type = type;
+		this.path = path;
+		this.nanos = nanos;
+		this.succeeded = succeeded;
+		this.timestampMillis = timestampMillis;
+	}
+
+	public OperationType getType() {
+		return type;
+	}
+
+	// Null for operations on handles and for batches
+	public String getPath() {
+		return path;
+	}
+
+	public long getNanos() {
+		return nanos;
+	}
+
+	public boolean isSucceeded() {
+		return succeeded;
+	}
+
+	public long getTimestampMillis() {
+		return timestampMillis;
+	}
+
+	@Override
+	public String toString() {
+		return type + (path == null ? "" : " " + path) + (succeeded ? "" : " failed") + " in " + nanos + "ns";
+	}
+}
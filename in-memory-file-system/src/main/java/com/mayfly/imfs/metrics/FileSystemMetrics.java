@@ -0,0 +1,54 @@
+package com.mayfly.imfs.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms per operation type, plus an optional sink that sees every operation
+public class FileSystemMetrics implements Instrumentation {
+
+	private static final OperationType[] TYPES = OperationType.values();
+
+	private final LongAdder[] failures = new LongAdder[TYPES.length];
+	private final LatencyHistogram[] latencies = new LatencyHistogram[TYPES.length];
+	private final EventSink sink;
+
+	public FileSystemMetrics() {
+		this(null);
+	}
+
+	public FileSystemMetrics(EventSink sink) {
+		this.sink = sink;
+		for (int i = 0; i < TYPES.length; i++) {
+			failures[i] = new LongAdder();
+			latencies[i] = new LatencyHistogram();
+		}
+	}
+
+	@Override
+	public long start() {
+		return System.nanoTime();
+	}
+
+	@Override
+	public void record(OperationType type, String path, long start, boolean succeeded) {
+		long nanos = System.nanoTime() - start;
+		latencies[type.ordinal()].record(nanos);
+		if (!succeeded)
+			failures[type.ordinal()].increment();
+		if (sink != null)
+			sink.accept(new FileSystemEvent(type, path, nanos, succeeded, System.currentTimeMillis()));
+	}
+
+	@Override
+	public FileSystemStats stats() {
+		Map<OperationType, OperationStats> operations = new EnumMap<>(OperationType.class);
+		for (OperationType type : TYPES) {
+			LatencyHistogram histogram = latencies[type.ordinal()];
+			operations.put(type, new OperationStats(type, histogram.getCount(), failures[type.ordinal()].sum(),
+					histogram.getMean(), histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99),
+					histogram.getValueAtPercentile(99.9), histogram.getMax()));
+		}
+		return new FileSystemStats(operations, sink == null ? 0 : sink.getDroppedEvents());
+	}
+}
@@ -0,0 +1,51 @@
+package com.mayfly.imfs.metrics;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+// Point-in-time copy of the worker's operation metrics
+public class FileSystemStats {
+
+	public static final FileSystemStats EMPTY = new FileSystemStats(new EnumMap<>(OperationType.class), 0);
+
+	private final Map<OperationType, OperationStats> operations;
+	private final long droppedEvents;
+
+	public FileSystemStats(Map<OperationType, OperationStats> operations, long droppedEvents) {
+		this.operations = Collections.unmodifiableMap(new EnumMap<>(operations));
+		this.droppedEvents = droppedEvents;
+	}
+
+	// Only operation types that were instrumented are present
+	public Map<OperationType, OperationStats> getOperations() {
+		return operations;
+	}
+
+	public OperationStats getOperation(OperationType type) {
+		OperationStats stats = operations.get(type);
+		return stats == null ? new OperationStats(type, 0, 0, 0, 0, 0, 0, 0) : stats;
+	}
+
+	public long getTotalOperations() {
+		long total = 0;
+		for (OperationStats stats : operations.values()) {
+			total += stats.getCount();
+		}
+		return total;
+	}
+
+	// Events an asynchronous sink had to drop because it could not keep up
+	public long getDroppedEvents() {
+		return droppedEvents;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		for (OperationStats stats : operations.values()) {
+			result.append(stats).append('\n');
+		}
+		return result.append("droppedEvents=").append(droppedEvents).toString();
+	}
+}
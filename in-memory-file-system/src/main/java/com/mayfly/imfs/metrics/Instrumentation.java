@@ -0,0 +1,31 @@
+package com.mayfly.imfs.metrics;
+
+/*
+ * Called around every worker operation. start() runs before the operation and its
+ * result is handed back to record() afterwards, so an implementation that keeps no
+ * timings can skip the clock entirely. Both run on the caller's thread, outside the
+ * worker's locks, and must not allocate on the hot path.
+ */
+public interface Instrumentation {
+
+	Instrumentation NONE = new Instrumentation() {
+
+		@Override
+		public long start() {
+			return 0;
+		}
+
+		@Override
+		public void record(OperationType type, String path, long start, boolean succeeded) {
+		}
+	};
+
+	long start();
+
+	// path is null for operations that are not addressed by path (handles and batches)
+	void record(OperationType type, String path, long start, boolean succeeded);
+
+	default FileSystemStats stats() {
+		return FileSystemStats.EMPTY;
+	}
+}
@@ -0,0 +1,81 @@
+package com.mayfly.imfs.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Log-linear buckets in the spirit of HdrHistogram: exact below 64ns, then 32 buckets
+ * per power of two, so any reported value is within about 3% of the recorded one.
+ * Recording is a few atomic adds into preallocated arrays and never allocates.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR = 2 * SUB_BUCKETS;
+	private static final int BUCKETS = LINEAR + (Long.SIZE - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(index(value));
+		total.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	public long getCount() {
+		return total.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long count = total.sum();
+		return count == 0 ? 0 : (double) sum.sum() / count;
+	}
+
+	// Upper bound of the bucket holding the given percentile, capped at the largest value seen
+	public long getValueAtPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("Percentile must be between 0 and 100");
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(highestValue(i), getMax());
+		}
+		return getMax();
+	}
+
+	static int index(long value) {
+		if (value < LINEAR)
+			return (int) value;
+		int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	static long highestValue(int index) {
+		if (index < LINEAR)
+			return index;
+		int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+		long mantissa = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
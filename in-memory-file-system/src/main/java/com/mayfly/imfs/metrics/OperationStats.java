@@ -0,0 +1,64 @@
+package com.mayfly.imfs.metrics;
+
+// Counts and latencies of one operation type; latencies are in nanoseconds and include failed calls
+public class OperationStats {
+
+	private final OperationType type;
+	private final long count;
+	private final long failures;
+	private final double meanNanos;
+	private final long p50Nanos;
+	private final long p99Nanos;
+	private final long p999Nanos;
+	private final long maxNanos;
+
+	public OperationStats(OperationType type, long count, long failures, double meanNanos, long p50Nanos,
+			long p99Nanos, long p999Nanos, long maxNanos) {
+		this.type = type;
+		this.count = count;
+		this.failures = failures;
+		this.meanNanos = meanNanos;
+		this.p50Nanos = p50Nanos;
+		this.p99Nanos = p99Nanos;
+		this.p999Nanos = p999Nanos;
+		this.maxNanos = maxNanos;
+	}
+
+	public OperationType getType() {
+		return type;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getFailures() {
+		return failures;
+	}
+
+	public double getMeanNanos() {
+		return meanNanos;
+	}
+
+	public long getP50Nanos() {
+		return p50Nanos;
+	}
+
+	public long getP99Nanos() {
+		return p99Nanos;
+	}
+
+	public long getP999Nanos() {
+		return p999Nanos;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	@Override
+	public String toString() {
+		return type + ": count=" + count + ", failures=" + failures + ", mean=" + (long) meanNanos + "ns, p50="
+				+ p50Nanos + "ns, p99=" + p99Nanos + "ns, p99.9=" + p999Nanos + "ns, max=" + maxNanos + "ns";
+	}
+}
@@ -0,0 +1,6 @@
+package com.mayfly.imfs.metrics;
+
+// The worker operations that are counted and timed; PATCH covers byte level append, write and truncate
+public enum OperationType {
+	CREATE, DELETE, MOVE, RENAME, WRITE, PATCH, READ, BATCH, COPY, DIFF
+}
@@ -0,0 +1,9 @@
+package com.mayfly.imfs.model;
+
+import java.util.Map;
+
+// Supplies the children of a directory that is only materialized on first access
+public interface ChildLoader {
+
+	void load(FileSystemEntity directory, Map<String, Entity> children);
+}
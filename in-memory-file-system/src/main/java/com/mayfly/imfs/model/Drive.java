@@ -0,0 +1,56 @@
+package com.mayfly.imfs.model;
+
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.index.NameIndex;
+import com.mayfly.imfs.index.TextIndex;
+
+public class Drive extends FileSystemEntity {
+
+	// Upper bound for getSubtreeBytes(); 0 means no quota
+	private volatile long quotaBytes;
+	// Built by the first find on this drive, then kept in step by every structural change
+	private volatile NameIndex nameIndex;
+	// Likewise built by the first full-text search
+	private volatile TextIndex textIndex;
+
+	public Drive(String name) {
+		super(name, null);
+	}
+
+	@Override
+	public EntityType getType() {
+		return EntityType.DRIVE;
+	}
+
+	public long getQuotaBytes() {
+		return quotaBytes;
+	}
+
+	public void setQuotaBytes(long quotaBytes) {
+		if (quotaBytes < 0)
+			throw new IllegalArgumentException("Quota must not be negative");
+		this.quotaBytes = quotaBytes;
+	}
+
+	public NameIndex getNameIndex() {
+		return nameIndex;
+	}
+
+	public void setNameIndex(NameIndex nameIndex) {
+		this.nameIndex = nameIndex;
+	}
+
+	public TextIndex getTextIndex() {
+		return textIndex;
+	}
+
+	public void setTextIndex(TextIndex textIndex) {
+		this.textIndex = textIndex;
+	}
+
+	// Charges content growth against the quota; shrinking always succeeds
+	public boolean tryChargeBytes(long bytes) {
+		long quota = quotaBytes;
+		return tryAddSubtreeBytes(bytes, quota == 0 ? Long.MAX_VALUE : quota);
+	}
+}
@@ -1,65 +1,202 @@
 package com.mayfly.imfs.model;
 
 import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import com.mayfly.imfs.constants.EntityType;
 import com.mayfly.imfs.validator.FSValidator;
 
 public abstract class Entity {
-	protected String name;
-	protected EntityType type;
-	protected Entity parent;
+	private static final AtomicLong ID_SEQUENCE = new AtomicLong();
+	// Shared by every tree, so a stamp can be compared against any cached path or lookup
+	private static final AtomicLong GENERATIONS = new AtomicLong();
+	private static final AtomicReferenceFieldUpdater<Entity, Extras> EXTRAS = AtomicReferenceFieldUpdater
+			.newUpdater(Entity.class, Extras.class, "extras");
 
-	// Additional thing added just for testing sake
-	protected LocalDateTime lastModified;
+	// Creation order, used to order lock acquisition across directories
+	protected final long id = ID_SEQUENCE.incrementAndGet();
+	// Interned by the worker, see NameInterner
+	protected volatile String name;
+	protected volatile Entity parent;
 
-	public Entity(String name, EntityType type, Entity parent) {
-		if (EntityType.TEXT_FILE.equals(type)) {
+	// Epoch nanos, see Timestamps; the type is implied by the class
+	protected volatile long lastModified;
+
+	// Stamped on move/rename/delete so cached paths through this node go stale
+	protected volatile long generation;
+
+	protected volatile boolean deleted;
+
+	// State most nodes never need; null until the first of it is set
+	private volatile Extras extras;
+
+	protected Entity(String name, Entity parent) {
+		if (this instanceof TextFile) {
 			FSValidator.validateFileName(name);
 		} else {
 			FSValidator.validateEntityName(name);
 		}
 		this.name = name;
-		this.type = type;
 		this.parent = parent;
-		this.lastModified = LocalDateTime.now();
+		this.lastModified = Timestamps.now();
+	}
+
+	public long getId() {
+		return id;
 	}
 
 	public String getName() {
 		return name;
 	}
 
-	public EntityType getType() {
-		return type;
-	}
+	public abstract EntityType getType();
 
 	public Entity getParent() {
 		return parent;
 	}
 
+	// Both stamp after the write, so a path rendered from the old value is never taken as current
 	public void setName(String name) {
 		this.name = name;
+		invalidatePaths();
 	}
 
 	public void setParent(Entity parent) {
 		this.parent = parent;
+		invalidatePaths();
 	}
 
 	public LocalDateTime getLastModified() {
+		return Timestamps.toLocalDateTime(lastModified);
+	}
+
+	public void setLastModified(LocalDateTime lastModified) {
+		this.lastModified = Timestamps.toNanos(lastModified);
+	}
+
+	public long getLastModifiedNanos() {
 		return lastModified;
 	}
 
+	public void setLastModifiedNanos(long lastModified) {
+		this.lastModified = lastModified;
+	}
+
 	public void updateLastModified() {
-		lastModified = LocalDateTime.now();
+		lastModified = Timestamps.now();
+	}
+
+	public long getGeneration() {
+		return generation;
+	}
+
+	/*
+	 * Makes every cached path through this node stale. The stamp is written before the clock
+	 * moves on to it, so whoever reads the new clock value also sees the stamp and never
+	 * refreshes a cached path past it.
+	 */
+	public void invalidatePaths() {
+		synchronized (GENERATIONS) {
+			long next = GENERATIONS.get() + 1;
+			generation = next;
+			GENERATIONS.set(next);
+		}
+	}
+
+	// Read before resolving or rendering a path that is cached afterwards
+	public static long currentGeneration() {
+		return GENERATIONS.get();
+	}
+
+	public static boolean isChainCurrent(Entity entity, long generation) {
+		for (Entity cur = entity; cur != null; cur = cur.parent) {
+			if (cur.generation > generation)
+				return false;
+		}
+		return true;
+	}
+
+	public boolean isDeleted() {
+		return deleted;
+	}
+
+	public void markDeleted() {
+		deleted = true;
+	}
+
+	public RevisionLog getRevisionLog() {
+		Extras current = extras;
+		return current == null ? null : current.revisionLog;
+	}
+
+	public RevisionLog getOrCreateRevisionLog() {
+		RevisionLog log = getRevisionLog();
+		if (log == null) {
+			Extras current = extras();
+			synchronized (this) {
+				log = current.revisionLog;
+				if (log == null) {
+					log = new RevisionLog();
+					current.revisionLog = log;
+				}
+			}
+		}
+		return log;
+	}
+
+	// Null until a first rarely used field is set, for readers that need not create it
+	Extras peekExtras() {
+		return extras;
+	}
+
+	Extras extras() {
+		Extras current = extras;
+		if (current != null)
+			return current;
+		EXTRAS.compareAndSet(this, null, new Extras());
+		return extras;
 	}
 
 	public String getPath() {
-		if (type == EntityType.DRIVE)
+		if (getType() == EntityType.DRIVE)
 			return name;
-		return parent.getPath() + "\\" + name;
+		Extras current = extras;
+		RenderedPath rendered = current == null ? null : current.renderedPath;
+		if (rendered != null && isChainCurrent(this, rendered.generation))
+			return rendered.path;
+		long generation = GENERATIONS.get();
+		String path = parent.getPath() + "\\" + name;
+		extras().renderedPath = new RenderedPath(path, generation);
+		return path;
 	}
 
 	public boolean isFileSystemEntity() {
-		return type == EntityType.DRIVE || type == EntityType.FOLDER || type == EntityType.ZIP_FILE;
+		return this instanceof FileSystemEntity;
+	}
+
+	/*
+	 * Rarely used per-node state, kept out of the node itself: the revision log of a versioned
+	 * file, the path rendered for the last getPath, and the children loader and pending
+	 * copies of a lazily loaded or copied directory.
+	 */
+	static final class Extras {
+		volatile RevisionLog revisionLog;
+		// Rendered on first use; valid while no node on the parent chain was stamped after it
+		volatile RenderedPath renderedPath;
+		volatile ChildLoader childLoader;
+		// Copies of this directory whose children have not been copied yet
+		volatile List<FileSystemEntity> lazyCopies;
+	}
+
+	private static final class RenderedPath {
+		private final String path;
+		private final long generation;
+
+		private RenderedPath(String path, long generation) {
+			this.path = path;
+			this.generation = generation;
+		}
 	}
 }
\ No newline at end of file
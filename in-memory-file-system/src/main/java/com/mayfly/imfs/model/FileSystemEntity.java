@@ -1,42 +1,580 @@
 package com.mayfly.imfs.model;
 
+import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.content.ContentHash;
 import com.mayfly.imfs.exception.EntityNotFoundException;
 import com.mayfly.imfs.exception.NameConflictException;
 
 public class FileSystemEntity extends Entity {
-	protected Map<String, Entity> children = Collections.synchronizedMap(new LinkedHashMap<>());
 
-	public FileSystemEntity(String name, EntityType type, Entity parent) {
-		super(name, type, parent);
+	// Directories up to this wide keep their children in a flat array; wider ones switch to a Wide table
+	static final int SMALL_CHILDREN = 8;
+
+	/*
+	 * Null while empty, then a copy-on-write Object[] of name, child pairs, then past
+	 * SMALL_CHILDREN a Wide table. Lookups read the field once and never lock; writers
+	 * replace or update it under the monitor. getChildren() is a view over it that lists
+	 * children in the order they were added, whichever representation holds them.
+	 */
+	private volatile Object children;
+
+	// Guards compound updates of children; lookups stay lock free. Created on first use
+	private volatile ReentrantLock lock;
+
+	private static final AtomicLongFieldUpdater<FileSystemEntity> SUBTREE_BYTES = AtomicLongFieldUpdater
+			.newUpdater(FileSystemEntity.class, "subtreeBytes");
+	private static final AtomicLongFieldUpdater<FileSystemEntity> SUBTREE_FILES = AtomicLongFieldUpdater
+			.newUpdater(FileSystemEntity.class, "subtreeFiles");
+	private static final AtomicLongFieldUpdater<FileSystemEntity> SUBTREE_ENTITIES = AtomicLongFieldUpdater
+			.newUpdater(FileSystemEntity.class, "subtreeEntities");
+	private static final AtomicLongFieldUpdater<FileSystemEntity> NEWEST_MODIFIED = AtomicLongFieldUpdater
+			.newUpdater(FileSystemEntity.class, "newestModified");
+	private static final AtomicLongFieldUpdater<FileSystemEntity> MERKLE_HASH = AtomicLongFieldUpdater
+			.newUpdater(FileSystemEntity.class, "merkleHash");
+	private static final AtomicLongFieldUpdater<FileSystemEntity> CHANGED_VERSION = AtomicLongFieldUpdater
+			.newUpdater(FileSystemEntity.class, "changedVersion");
+	// The updater can only be made for the field's erased class, so its value type stays raw
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<Extras, List> LAZY_COPIES = AtomicReferenceFieldUpdater
+			.newUpdater(Extras.class, List.class, "lazyCopies");
+	private static final AtomicReferenceFieldUpdater<FileSystemEntity, ReentrantLock> LOCK = AtomicReferenceFieldUpdater
+			.newUpdater(FileSystemEntity.class, ReentrantLock.class, "lock");
+
+	// Totals over everything below this directory, kept current by the worker as deltas travel up the parent chain
+	private volatile long subtreeBytes;
+	private volatile long subtreeFiles;
+	private volatile long subtreeEntities;
+	private volatile long newestModified = Timestamps.NONE;
+	// Sum of the MerkleHash terms of the children, carried up by every write below
+	private volatile long merkleHash;
+	// Newest snapshot epoch that changed anything below this directory
+	private volatile long changedVersion;
+
+	public FileSystemEntity(String name, Entity parent) {
+		super(name, parent);
+	}
+
+	@Override
+	public EntityType getType() {
+		return EntityType.FOLDER;
 	}
 
 	public void addChild(Entity child) {
-		if (children.containsKey(child.getName())) {
-			throw new NameConflictException(
-					"Name '" + child.getName() + "' already exists in '" + this.getPath() + "'");
-		}
-		children.put(child.getName(), child);
+		materialized();
+		if (putChild(child.getName(), child, true) != null)
+			throw nameConflict(child.getName());
 		updateLastModified();
 	}
 
+	public void checkNameAvailable(String name) {
+		materialized();
+		if (findChild(name) != null)
+			throw nameConflict(name);
+	}
+
+	private NameConflictException nameConflict(String name) {
+		return new NameConflictException("Name '" + name + "' already exists in '" + this.getPath() + "'");
+	}
+
 	public void removeChild(String name) {
-		if (!children.containsKey(name))
+		materialized();
+		if (takeChild(name) == null)
 			throw new EntityNotFoundException("No such child: " + name);
-		children.remove(name);
 		updateLastModified();
 	}
 
 	public Entity getChild(String name) {
-		Entity e = children.get(name);
+		materialized();
+		Entity e = findChild(name);
 		if (e == null)
 			throw new EntityNotFoundException("No such child: " + name);
 		return e;
 	}
 
+	// The child named path[start, end), found without cutting the name out while the directory is small
+	public Entity getChild(String path, int start, int end) {
+		materialized();
+		Entity e = findChild(path, start, end);
+		if (e == null)
+			throw new EntityNotFoundException("No such child: " + path.substring(start, end));
+		return e;
+	}
+
+	public ReentrantLock getLock() {
+		ReentrantLock current = lock;
+		if (current == null) {
+			LOCK.compareAndSet(this, null, new ReentrantLock());
+			current = lock;
+		}
+		return current;
+	}
+
+	@Override
+	public void markDeleted() {
+		List<Entity> snapshot;
+		ReentrantLock lock = getLock();
+		lock.lock();
+		try {
+			super.markDeleted();
+			// Children that were never materialized cannot be referenced by anyone yet
+			snapshot = isMaterialized() ? new ArrayList<>(new Children().values()) : Collections.<Entity>emptyList();
+		} finally {
+			lock.unlock();
+		}
+		for (Entity child : snapshot) {
+			child.markDeleted();
+		}
+	}
+
+	// Marks this directory alone; true when its children are materialized and need marking as well
+	public boolean markDeletedShallow() {
+		ReentrantLock lock = getLock();
+		lock.lock();
+		try {
+			deleted = true;
+		} finally {
+			lock.unlock();
+		}
+		// A load already under way finishes first, so whatever it listed is walked and dropped too
+		synchronized (this) {
+			return isMaterialized();
+		}
+	}
+
+	// A live view; it stays valid while the directory switches between its representations
 	public Map<String, Entity> getChildren() {
-		return children;
+		materialized();
+		return new Children();
+	}
+
+	public long getSubtreeBytes() {
+		return subtreeBytes;
+	}
+
+	public long getSubtreeFiles() {
+		return subtreeFiles;
+	}
+
+	public long getSubtreeEntities() {
+		return subtreeEntities;
+	}
+
+	// Newest lastModified of this directory and everything below it
+	public LocalDateTime getNewestModified() {
+		return Timestamps.toLocalDateTime(getNewestModifiedNanos());
+	}
+
+	public long getNewestModifiedNanos() {
+		return Math.max(newestModified, getLastModifiedNanos());
+	}
+
+	// modified is in epoch nanos, Timestamps.NONE when nothing below changed its time
+	public void addToSubtree(long bytes, long files, long entities, long modified) {
+		if (bytes != 0)
+			SUBTREE_BYTES.addAndGet(this, bytes);
+		if (files != 0)
+			SUBTREE_FILES.addAndGet(this, files);
+		if (entities != 0)
+			SUBTREE_ENTITIES.addAndGet(this, entities);
+		if (modified != Timestamps.NONE)
+			NEWEST_MODIFIED.accumulateAndGet(this, modified, Math::max);
+	}
+
+	// Adds bytes unless that would take the subtree past limit
+	public boolean tryAddSubtreeBytes(long bytes, long limit) {
+		while (true) {
+			long current = subtreeBytes;
+			if (bytes > 0 && bytes > limit - current)
+				return false;
+			if (SUBTREE_BYTES.compareAndSet(this, current, current + bytes))
+				return true;
+		}
+	}
+
+	// For trees assembled off-line, such as loaded images and staged batches
+	public void setSubtree(long bytes, long files, long entities, long newest) {
+		subtreeBytes = bytes;
+		subtreeFiles = files;
+		subtreeEntities = entities;
+		newestModified = newest;
+	}
+
+	public long getMerkleHash() {
+		return merkleHash;
+	}
+
+	public void setMerkleHash(long merkleHash) {
+		this.merkleHash = merkleHash;
+	}
+
+	// Adds delta to the hash and returns the hash it replaced
+	public long shiftMerkleHash(long delta) {
+		while (true) {
+			long current = merkleHash;
+			if (MERKLE_HASH.compareAndSet(this, current, ContentHash.reduce(current + delta)))
+				return current;
+		}
+	}
+
+	public long getChangedVersion() {
+		return changedVersion;
+	}
+
+	public void markChanged(long version) {
+		if (changedVersion < version)
+			CHANGED_VERSION.accumulateAndGet(this, version, Math::max);
+	}
+
+	public void addLazyCopy(FileSystemEntity copy) {
+		Extras extras = extras();
+		LAZY_COPIES.compareAndSet(extras, null, new CopyOnWriteArrayList<FileSystemEntity>());
+		extras.lazyCopies.add(copy);
+	}
+
+	public boolean removeLazyCopy(FileSystemEntity copy) {
+		Extras extras = peekExtras();
+		List<FileSystemEntity> copies = extras == null ? null : extras.lazyCopies;
+		return copies != null && copies.remove(copy);
+	}
+
+	public List<FileSystemEntity> getLazyCopies() {
+		Extras extras = peekExtras();
+		List<FileSystemEntity> copies = extras == null ? null : extras.lazyCopies;
+		return copies == null ? Collections.<FileSystemEntity>emptyList() : copies;
+	}
+
+	public ChildLoader getChildLoader() {
+		Extras extras = peekExtras();
+		return extras == null ? null : extras.childLoader;
+	}
+
+	public void setChildLoader(ChildLoader childLoader) {
+		if (childLoader != null || peekExtras() != null)
+			extras().childLoader = childLoader;
+	}
+
+	public boolean isMaterialized() {
+		return getChildLoader() == null;
+	}
+
+	private void materialized() {
+		if (getChildLoader() != null)
+			materialize();
+	}
+
+	private synchronized void materialize() {
+		ChildLoader loader = getChildLoader();
+		if (loader == null)
+			return;
+		loader.load(this, new Children());
+		// Published only once every child is in the map
+		setChildLoader(null);
+	}
+
+	private Entity findChild(String name) {
+		Object current = children;
+		if (current == null)
+			return null;
+		if (current instanceof Object[]) {
+			Object[] pairs = (Object[]) current;
+			for (int i = 0; i < pairs.length; i += 2) {
+				if (pairs[i] == name || pairs[i].equals(name))
+					return (Entity) pairs[i + 1];
+			}
+			return null;
+		}
+		return ((Wide) current).get(name);
+	}
+
+	private Entity findChild(String path, int start, int end) {
+		Object current = children;
+		if (current == null)
+			return null;
+		int length = end - start;
+		if (current instanceof Object[]) {
+			Object[] pairs = (Object[]) current;
+			for (int i = 0; i < pairs.length; i += 2) {
+				String name = (String) pairs[i];
+				if (name.length() == length && path.regionMatches(start, name, 0, length))
+					return (Entity) pairs[i + 1];
+			}
+			return null;
+		}
+		return ((Wide) current).get(length == path.length() ? path : path.substring(start, end));
+	}
+
+	// Returns the child already under name and leaves it in place when onlyIfAbsent
+	private synchronized Entity putChild(String name, Entity child, boolean onlyIfAbsent) {
+		Object current = children;
+		if (current == null) {
+			children = new Object[] { name, child };
+			return null;
+		}
+		if (!(current instanceof Object[]))
+			return ((Wide) current).put(name, child, onlyIfAbsent);
+		Object[] pairs = (Object[]) current;
+		for (int i = 0; i < pairs.length; i += 2) {
+			if (pairs[i].equals(name)) {
+				Entity previous = (Entity) pairs[i + 1];
+				if (!onlyIfAbsent) {
+					Object[] updated = pairs.clone();
+					updated[i + 1] = child;
+					children = updated;
+				}
+				return previous;
+			}
+		}
+		if (pairs.length / 2 < SMALL_CHILDREN) {
+			Object[] grown = Arrays.copyOf(pairs, pairs.length + 2);
+			grown[pairs.length] = name;
+			grown[pairs.length + 1] = child;
+			children = grown;
+		} else {
+			Wide wide = new Wide();
+			for (int i = 0; i < pairs.length; i += 2) {
+				wide.put((String) pairs[i], (Entity) pairs[i + 1], true);
+			}
+			wide.put(name, child, true);
+			children = wide;
+		}
+		return null;
+	}
+
+	private synchronized Entity takeChild(Object name) {
+		Object current = children;
+		if (current == null)
+			return null;
+		if (!(current instanceof Object[])) {
+			Wide wide = (Wide) current;
+			Entity removed = wide.remove(name);
+			// Shrinks back well below the switch point, so a directory hovering around it does not flip every time
+			if (removed != null && wide.size() <= SMALL_CHILDREN / 2)
+				children = wide.toPairs();
+			return removed;
+		}
+		Object[] pairs = (Object[]) current;
+		for (int i = 0; i < pairs.length; i += 2) {
+			if (pairs[i].equals(name)) {
+				if (pairs.length == 2) {
+					children = null;
+				} else {
+					Object[] shrunk = new Object[pairs.length - 2];
+					System.arraycopy(pairs, 0, shrunk, 0, i);
+					System.arraycopy(pairs, i + 2, shrunk, i, pairs.length - i - 2);
+					children = shrunk;
+				}
+				return (Entity) pairs[i + 1];
+			}
+		}
+		return null;
+	}
+
+	private int childCount() {
+		Object current = children;
+		if (current == null)
+			return 0;
+		return current instanceof Object[] ? ((Object[]) current).length / 2 : ((Wide) current).size();
+	}
+
+	// Map view over the children field; iteration is weakly consistent, like ConcurrentHashMap's
+	private final class Children extends AbstractMap<String, Entity> {
+
+		@Override
+		public Entity get(Object key) {
+			return key instanceof String ? findChild((String) key) : null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		@Override
+		public Entity put(String key, Entity value) {
+			return putChild(key, value, false);
+		}
+
+		@Override
+		public Entity putIfAbsent(String key, Entity value) {
+			return putChild(key, value, true);
+		}
+
+		@Override
+		public Entity remove(Object key) {
+			return takeChild(key);
+		}
+
+		@Override
+		public int size() {
+			return childCount();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return childCount() == 0;
+		}
+
+		@Override
+		public Set<Map.Entry<String, Entity>> entrySet() {
+			return new AbstractSet<Map.Entry<String, Entity>>() {
+
+				@Override
+				public Iterator<Map.Entry<String, Entity>> iterator() {
+					Object current = children;
+					if (current == null)
+						return Collections.emptyIterator();
+					if (!(current instanceof Object[]))
+						return new SlotIterator(((Wide) current).slots());
+					return new PairIterator((Object[]) current);
+				}
+
+				@Override
+				public int size() {
+					return childCount();
+				}
+			};
+		}
+	}
+
+	private final class PairIterator implements Iterator<Map.Entry<String, Entity>> {
+
+		private final Object[] pairs;
+		private int next;
+		private String last;
+
+		PairIterator(Object[] pairs) {
+			this.pairs = pairs;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next < pairs.length;
+		}
+
+		@Override
+		public Map.Entry<String, Entity> next() {
+			if (next >= pairs.length)
+				throw new NoSuchElementException();
+			last = (String) pairs[next];
+			Map.Entry<String, Entity> entry = new AbstractMap.SimpleImmutableEntry<>(last, (Entity) pairs[next + 1]);
+			next += 2;
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			if (last == null)
+				throw new IllegalStateException();
+			takeChild(last);
+			last = null;
+		}
+	}
+
+	private final class SlotIterator implements Iterator<Map.Entry<String, Entity>> {
+
+		private final Iterator<Slot> slots;
+		private String last;
+
+		SlotIterator(Iterator<Slot> slots) {
+			this.slots = slots;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return slots.hasNext();
+		}
+
+		@Override
+		public Map.Entry<String, Entity> next() {
+			Slot slot = slots.next();
+			last = slot.name;
+			return new AbstractMap.SimpleImmutableEntry<>(slot.name, slot.entity);
+		}
+
+		@Override
+		public void remove() {
+			if (last == null)
+				throw new IllegalStateException();
+			takeChild(last);
+			last = null;
+		}
+	}
+
+	// Hash lookup by name plus a skip list by insertion sequence, so wide directories list in the order small ones do
+	private static final class Wide {
+
+		private final Map<String, Slot> byName = new ConcurrentHashMap<>(4 * SMALL_CHILDREN);
+		private final ConcurrentSkipListMap<Long, Slot> order = new ConcurrentSkipListMap<>();
+		// Guarded by the directory's monitor, like every update
+		private long nextSequence;
+
+		Entity get(String name) {
+			Slot slot = byName.get(name);
+			return slot == null ? null : slot.entity;
+		}
+
+		// A replaced child keeps its place, as in a LinkedHashMap
+		Entity put(String name, Entity child, boolean onlyIfAbsent) {
+			Slot slot = byName.get(name);
+			if (slot != null) {
+				Entity previous = slot.entity;
+				if (!onlyIfAbsent)
+					slot.entity = child;
+				return previous;
+			}
+			slot = new Slot(nextSequence++, name, child);
+			order.put(slot.sequence, slot);
+			byName.put(name, slot);
+			return null;
+		}
+
+		Entity remove(Object name) {
+			Slot slot = byName.remove(name);
+			if (slot == null)
+				return null;
+			order.remove(slot.sequence);
+			return slot.entity;
+		}
+
+		int size() {
+			return byName.size();
+		}
+
+		Iterator<Slot> slots() {
+			return order.values().iterator();
+		}
+
+		Object toPairs() {
+			if (byName.isEmpty())
+				return null;
+			Object[] pairs = new Object[2 * byName.size()];
+			int i = 0;
+			for (Slot slot : order.values()) {
+				pairs[i++] = slot.name;
+				pairs[i++] = slot.entity;
+			}
+			return pairs;
+		}
+	}
+
+	private static final class Slot {
+		private final long sequence;
+		private final String name;
+		private volatile Entity entity;
+
+		Slot(long sequence, String name, Entity entity) {
+			this.sequence = sequence;
+			this.name = name;
+			this.entity = entity;
+		}
 	}
-}
\ No newline at end of file
+}
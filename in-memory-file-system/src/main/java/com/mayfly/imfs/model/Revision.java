@@ -0,0 +1,68 @@
+package com.mayfly.imfs.model;
+
+// Undo record: the value a field had before the write tagged with this version
+public final class Revision {
+
+	public enum Kind {
+		CHILD, NAME, CONTENT
+	}
+
+	private final long version;
+	private final Kind kind;
+	private final String key;
+	private final Object previous;
+	// ContentHash of a previous content, so snapshots can tell it without reading it
+	private final long previousHash;
+	// Epoch nanos, see Timestamps
+	private final long previousLastModified;
+	volatile Revision next;
+
+	private Revision(long version, Kind kind, String key, Object previous, long previousHash, long previousLastModified) {
+		this.version = version;
+		this.kind = kind;
+		this.key = key;
+		this.previous = previous;
+		this.previousHash = previousHash;
+		this.previousLastModified = previousLastModified;
+	}
+
+	public static Revision child(long version, String key, Entity previous, long previousLastModified) {
+		return new Revision(version, Kind.CHILD, key, previous, 0, previousLastModified);
+	}
+
+	public static Revision name(long version, String previous, long previousLastModified) {
+		return new Revision(version, Kind.NAME, null, previous, 0, previousLastModified);
+	}
+
+	public static Revision content(long version, Object previous, long previousHash, long previousLastModified) {
+		return new Revision(version, Kind.CONTENT, null, previous, previousHash, previousLastModified);
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public Object getPrevious() {
+		return previous;
+	}
+
+	public long getPreviousHash() {
+		return previousHash;
+	}
+
+	public long getPreviousLastModified() {
+		return previousLastModified;
+	}
+
+	public Revision getNext() {
+		return next;
+	}
+}
@@ -0,0 +1,56 @@
+package com.mayfly.imfs.model;
+
+// Newest-first list of undo records for one node; only populated while snapshots are open
+public final class RevisionLog {
+
+	private volatile Revision head;
+	private long prunedFloor = Long.MIN_VALUE;
+
+	public Revision head() {
+		return head;
+	}
+
+	// True if the log held nothing before, so the caller starts tracking it
+	public synchronized boolean add(Revision revision, long floor) {
+		boolean wasEmpty = head == null;
+		// Writers holding different locks may arrive slightly out of version order
+		Revision prev = null;
+		Revision cur = head;
+		while (cur != null && cur.getVersion() > revision.getVersion()) {
+			prev = cur;
+			cur = cur.next;
+		}
+		revision.next = cur;
+		if (prev == null)
+			head = revision;
+		else
+			prev.next = revision;
+
+		if (floor != prunedFloor) {
+			prune(floor);
+			prunedFloor = floor;
+		}
+		return wasEmpty;
+	}
+
+	// Prunes to a floor that moved up as snapshots closed; true if nothing is left
+	public synchronized boolean pruneTo(long floor) {
+		prune(floor);
+		prunedFloor = floor;
+		return head == null;
+	}
+
+	// Drops records no open snapshot can need: a snapshot at V only undoes versions above V
+	private void prune(long floor) {
+		Revision prev = null;
+		for (Revision cur = head; cur != null; prev = cur, cur = cur.next) {
+			if (cur.getVersion() <= floor) {
+				if (prev == null)
+					head = null;
+				else
+					prev.next = null;
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package com.mayfly.imfs.model;
+
+import java.time.LocalDateTime;
+
+// du style totals for an entity and everything below it
+public class SubtreeUsage {
+
+	private final long bytes;
+	private final long files;
+	private final long entities;
+	// Epoch nanos, see Timestamps
+	private final long newestModified;
+
+	public SubtreeUsage(long bytes, long files, long entities, long newestModified) {
+		this.bytes = bytes;
+		this.files = files;
+		this.entities = entities;
+		this.newestModified = newestModified;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getFiles() {
+		return files;
+	}
+
+	// Descendants only, the entity itself is not counted
+	public long getEntities() {
+		return entities;
+	}
+
+	public LocalDateTime getNewestModified() {
+		return Timestamps.toLocalDateTime(newestModified);
+	}
+
+	public long getNewestModifiedNanos() {
+		return newestModified;
+	}
+
+	@Override
+	public String toString() {
+		return "bytes=" + bytes + ", files=" + files + ", entities=" + entities + ", newestModified=" + getNewestModified();
+	}
+}
@@ -1,20 +1,56 @@
 package com.mayfly.imfs.model;
 
 import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.content.Content;
+import com.mayfly.imfs.content.PlainContent;
 
 public class TextFile extends Entity {
-	private String content = "";
+	private volatile Content content = PlainContent.EMPTY;
+	// ContentHash of the content; set by the worker alongside it
+	private volatile long contentHash;
 
 	public TextFile(String name, Entity parent) {
-		super(name, EntityType.TEXT_FILE, parent);
+		super(name, parent);
+	}
+
+	@Override
+	public EntityType getType() {
+		return EntityType.TEXT_FILE;
 	}
 
 	public String getContent() {
+		return content.asString();
+	}
+
+	public Content getStoredContent() {
 		return content;
 	}
 
 	public void setContent(String content) {
+		setContent(new PlainContent(content));
+	}
+
+	public void setContent(Content content) {
 		this.content = content;
 		updateLastModified();
 	}
-}
\ No newline at end of file
+
+	public long getContentHash() {
+		return contentHash;
+	}
+
+	public void setContentHash(long contentHash) {
+		this.contentHash = contentHash;
+	}
+
+	// Swaps the stored form only (e.g. when crossing a zip boundary); the text is unchanged
+	public void replaceStoredContent(Content content) {
+		this.content = content;
+	}
+
+	@Override
+	public synchronized void markDeleted() {
+		super.markDeleted();
+		content.release();
+	}
+}
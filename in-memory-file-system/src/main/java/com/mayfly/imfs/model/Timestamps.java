@@ -0,0 +1,30 @@
+package com.mayfly.imfs.model;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+// Nodes keep times as epoch nanos of the local date-time read as UTC, the encoding images already use
+public final class Timestamps {
+
+	// Marks "no time yet", e.g. the newest modification below an empty directory
+	public static final long NONE = Long.MIN_VALUE;
+
+	private Timestamps() {
+
+	}
+
+	public static long now() {
+		return toNanos(LocalDateTime.now());
+	}
+
+	public static long toNanos(LocalDateTime time) {
+		Instant instant = time.toInstant(ZoneOffset.UTC);
+		return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+	}
+
+	public static LocalDateTime toLocalDateTime(long nanos) {
+		return LocalDateTime.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L), (int) Math.floorMod(nanos, 1_000_000_000L),
+				ZoneOffset.UTC);
+	}
+}
@@ -0,0 +1,24 @@
+package com.mayfly.imfs.model;
+
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.content.CompressionContext;
+
+// Text files anywhere below a zip (up to a nested zip) are stored compressed with its context
+public class ZipFile extends FileSystemEntity {
+
+	private final CompressionContext compression;
+
+	public ZipFile(String name, Entity parent, CompressionContext compression) {
+		super(name, parent);
+		this.compression = compression;
+	}
+
+	@Override
+	public EntityType getType() {
+		return EntityType.ZIP_FILE;
+	}
+
+	public CompressionContext getCompression() {
+		return compression;
+	}
+}
@@ -0,0 +1,37 @@
+package com.mayfly.imfs.replication;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import com.mayfly.imfs.constants.FileSystemConstants;
+import com.mayfly.imfs.service.FileSystemWorker;
+
+// A leader in the same process; entries are handed over as the log keeps them, with no socket in between
+public class LocalReplicationSource implements ReplicationSource {
+
+	private final FileSystemWorker leader;
+
+	public LocalReplicationSource(FileSystemWorker leader) {
+		this.leader = leader;
+	}
+
+	@Override
+	public long bootstrap(Path image) throws IOException {
+		return leader.exportReplicaImage(image);
+	}
+
+	@Override
+	public List<ReplicationLog.Entry> poll(long from, long timeoutMillis) throws InterruptedException {
+		return leader.getReplicationLog().read(from, FileSystemConstants.REPLICATION_BATCH_SIZE, timeoutMillis);
+	}
+
+	@Override
+	public long getLeaderSeq() {
+		return leader.getReplicationLog().getLastSeq();
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,245 @@
+package com.mayfly.imfs.replication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.mayfly.imfs.config.FileSystemConfig;
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.constants.FileSystemConstants;
+import com.mayfly.imfs.diff.DiffEntry;
+import com.mayfly.imfs.image.FileSystemImage;
+import com.mayfly.imfs.journal.JournalRecord;
+import com.mayfly.imfs.model.FileSystemEntity;
+import com.mayfly.imfs.model.SubtreeUsage;
+import com.mayfly.imfs.service.FileSystemWorker;
+import com.mayfly.imfs.snapshot.FileSystemSnapshot;
+import com.mayfly.imfs.walk.EntityVisitor;
+import com.mayfly.imfs.walk.TreeStats;
+
+/*
+ * Read-only follower of a leader worker. It starts from an image of a leader snapshot and
+ * then applies the leader's log on its own thread, in log order, skipping the records the
+ * image holds already: like the journal records a checkpoint covers, they are tagged at
+ * or below its snapshot version. Reads see the tree as of the last applied record.
+ *
+ * A follower that fell out of the leader's log, or met a record its tree cannot take,
+ * loads a new image into a new tree and swaps that in whole, so reads never see a
+ * half-built one. A broken connection is retried from the last applied record.
+ */
+public class Replica implements AutoCloseable {
+
+	private static final long RETRY_MILLIS = FileSystemConstants.REPLICATION_HEARTBEAT_MILLIS;
+
+	private final ReplicationSource source;
+	private final FileSystemConfig config;
+	private final Path directory;
+	private final ReplicationStats stats = new ReplicationStats();
+	private final Object progress = new Object();
+	private final Thread applier;
+	private volatile Tree tree;
+	private volatile boolean closed;
+
+	// Loads the first image before returning, so the replica serves reads from the start
+	public Replica(ReplicationSource source, FileSystemConfig config) throws IOException {
+		if (config.getJournalDirectory() != null)
+			throw new IllegalArgumentException("A replica keeps no journal of its own");
+		this.source = source;
+		this.config = config;
+		this.directory = Files.createTempDirectory("imfs-replica");
+		this.tree = bootstrap();
+		this.applier = new Thread(this::run, "imfs-replica-applier");
+		this.applier.setDaemon(true);
+		this.applier.start();
+	}
+
+	public ReplicationStats getStats() {
+		return stats;
+	}
+
+	// Waits until the leader's record seq is applied here; false if that took longer than timeoutMillis
+	public boolean awaitApplied(long seq, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (progress) {
+			while (stats.getAppliedSeq() < seq) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0)
+					return false;
+				progress.wait(left);
+			}
+			return true;
+		}
+	}
+
+	public Map<String, FileSystemEntity> getDrives() {
+		return Collections.unmodifiableMap(tree.worker.getDrives());
+	}
+
+	public byte[] readFromFile(String path, long offset, int length) {
+		return tree.worker.readFromFile(path, offset, length);
+	}
+
+	public long getFileSize(String path) {
+		return tree.worker.getFileSize(path);
+	}
+
+	public InputStream newInputStream(String path) {
+		return tree.worker.newInputStream(path);
+	}
+
+	public List<String> find(String driveName, String glob) {
+		return tree.worker.find(driveName, glob);
+	}
+
+	public List<String> find(String driveName, String glob, EntityType type) {
+		return tree.worker.find(driveName, glob, type);
+	}
+
+	public List<String> search(String path, String query) {
+		return tree.worker.search(path, query);
+	}
+
+	public void walk(String path, EntityVisitor visitor) {
+		tree.worker.walk(path, visitor);
+	}
+
+	public TreeStats getTreeStats(String path) {
+		return tree.worker.getTreeStats(path);
+	}
+
+	public SubtreeUsage getUsage(String path) {
+		return tree.worker.getUsage(path);
+	}
+
+	// A stable view across several reads while records keep being applied
+	public FileSystemSnapshot snapshot() {
+		return tree.worker.snapshot();
+	}
+
+	public List<DiffEntry> diff(String pathA, String pathB) {
+		return tree.worker.diff(pathA, pathB);
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		source.close();
+		applier.interrupt();
+		try {
+			applier.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		tree.close();
+		Files.deleteIfExists(directory);
+	}
+
+	private void run() {
+		while (!closed) {
+			try {
+				List<ReplicationLog.Entry> entries = source.poll(stats.getAppliedSeq() + 1, RETRY_MILLIS);
+				Tree current = tree;
+				for (ReplicationLog.Entry entry : entries) {
+					stats.applying(entry);
+					JournalRecord record = entry.getRecord();
+					boolean skipped = record.getTag() <= current.version;
+					if (!skipped)
+						current.worker.replay(record);
+					stats.applied(entry.getSeq(), skipped);
+				}
+				stats.polled(source.getLeaderSeq(), System.currentTimeMillis());
+				signalProgress();
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				if (closed || !pause())
+					return;
+				stats.reconnected();
+			} catch (RuntimeException e) {
+				// Stale, or a record this tree could not take
+				if (closed || !rebootstrap())
+					return;
+			}
+		}
+	}
+
+	// False once the replica is closing
+	private boolean rebootstrap() {
+		while (!closed) {
+			try {
+				Tree fresh = bootstrap();
+				Tree old = tree;
+				tree = fresh;
+				old.close();
+				signalProgress();
+				return true;
+			} catch (IOException | RuntimeException e) {
+				if (closed || !pause())
+					return false;
+				stats.reconnected();
+			}
+		}
+		return false;
+	}
+
+	private Tree bootstrap() throws IOException {
+		Path image = Files.createTempFile(directory, "replica", ".img");
+		FileSystemWorker worker = null;
+		try {
+			long next = source.bootstrap(image);
+			long version = FileSystemImage.open(image).getSnapshotVersion();
+			worker = new FileSystemWorker(config);
+			worker.loadImage(image);
+			stats.bootstrapped(next);
+			return new Tree(worker, version, image);
+		} catch (IOException | RuntimeException e) {
+			if (worker != null)
+				worker.close();
+			Files.deleteIfExists(image);
+			throw e;
+		}
+	}
+
+	private boolean pause() {
+		try {
+			Thread.sleep(RETRY_MILLIS);
+			return true;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+	private void signalProgress() {
+		synchronized (progress) {
+			progress.notifyAll();
+		}
+	}
+
+	// One bootstrapped tree: the worker holding it and the snapshot version of the image it was loaded from
+	private static final class Tree {
+		final FileSystemWorker worker;
+		final long version;
+		final Path image;
+
+		Tree(FileSystemWorker worker, long version, Path image) {
+			this.worker = worker;
+			this.version = version;
+			this.image = image;
+		}
+
+		void close() {
+			worker.close();
+			try {
+				// Contents still mapped stay readable to whoever holds them
+				Files.deleteIfExists(image);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
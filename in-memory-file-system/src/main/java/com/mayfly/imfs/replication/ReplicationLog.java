@@ -0,0 +1,134 @@
+package com.mayfly.imfs.replication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.mayfly.imfs.exception.StaleReplicaException;
+import com.mayfly.imfs.journal.JournalRecord;
+
+/*
+ * The leader's log for followers: the same records the journal gets, appended under the
+ * locks of their mutation, so conflicting mutations are numbered in the order they were
+ * applied. Numbers start at 1. The newest capacity records are kept in a ring, encoded, so
+ * they hold no buffer a caller could still change; a follower asking for an older one is
+ * told it is stale.
+ */
+public class ReplicationLog {
+
+	private final Entry[] entries;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition appended = lock.newCondition();
+	private long lastSeq;
+
+	public ReplicationLog(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Replication log capacity must be positive");
+		this.entries = new Entry[capacity];
+	}
+
+	public long append(JournalRecord record) {
+		byte[] encoded = encode(record);
+		long now = System.currentTimeMillis();
+		lock.lock();
+		try {
+			long seq = ++lastSeq;
+			entries[(int) (seq % entries.length)] = new Entry(seq, now, encoded);
+			appended.signalAll();
+			return seq;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Up to max entries from seq from on; waits up to timeoutMillis for the first and returns none if it did not come
+	public List<Entry> read(long from, int max, long timeoutMillis) throws InterruptedException {
+		if (from <= 0)
+			throw new IllegalArgumentException("Sequence numbers start at 1");
+		long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		lock.lock();
+		try {
+			while (lastSeq < from) {
+				if (remaining <= 0)
+					return Collections.emptyList();
+				remaining = appended.awaitNanos(remaining);
+			}
+			if (from <= lastSeq - entries.length)
+				throw new StaleReplicaException("Replication log no longer holds record " + from);
+			long to = Math.min(lastSeq, from + max - 1);
+			List<Entry> result = new ArrayList<>((int) (to - from + 1));
+			for (long seq = from; seq <= to; seq++) {
+				result.add(entries[(int) (seq % entries.length)]);
+			}
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getLastSeq() {
+		lock.lock();
+		try {
+			return lastSeq;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getCapacity() {
+		return entries.length;
+	}
+
+	private static byte[] encode(JournalRecord record) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			record.writeTo(new DataOutputStream(bytes));
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public static final class Entry {
+		private final long seq;
+		private final long appendedMillis;
+		private final byte[] encoded;
+
+		Entry(long seq, long appendedMillis, byte[] encoded) {
+			this.seq = seq;
+			this.appendedMillis = appendedMillis;
+			this.encoded = encoded;
+		}
+
+		public long getSeq() {
+			return seq;
+		}
+
+		// Leader wall clock time of the append, which followers measure their lag against
+		public long getAppendedMillis() {
+			return appendedMillis;
+		}
+
+		public JournalRecord getRecord() {
+			try {
+				return JournalRecord.readFrom(new DataInputStream(new ByteArrayInputStream(encoded)));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		// The record in its wire form
+		byte[] getEncoded() {
+			return encoded;
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.mayfly.imfs.replication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mayfly.imfs.constants.FileSystemConstants;
+import com.mayfly.imfs.exception.StaleReplicaException;
+import com.mayfly.imfs.service.FileSystemWorker;
+
+/*
+ * Serves a leader's log to followers over TCP on the loopback interface, one thread per
+ * connection. A follower asks for an image on one connection and subscribes from a
+ * sequence on another; the server then pushes batches as the log grows, and an empty one
+ * every heartbeat so the follower keeps learning the leader's position.
+ *
+ * Request: byte BOOTSTRAP, or byte SUBSCRIBE and long from.
+ * Image: long next sequence, long length, the image bytes.
+ * Push: byte BATCH, long leader sequence, int count, then per entry long seq, long
+ * appended millis, int length and the encoded record; or byte STALE, after which the
+ * server hangs up.
+ */
+public class ReplicationServer implements AutoCloseable {
+
+	static final int BOOTSTRAP = 1;
+	static final int SUBSCRIBE = 2;
+	static final int BATCH = 1;
+	static final int STALE = 2;
+
+	private final FileSystemWorker leader;
+	private final ServerSocket server;
+	private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+	private final Thread acceptor;
+	private volatile boolean closed;
+
+	// Port 0 picks a free one; see getPort()
+	public ReplicationServer(FileSystemWorker leader, int port) throws IOException {
+		this.leader = leader;
+		this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		this.acceptor = new Thread(this::accept, "imfs-replication-acceptor");
+		this.acceptor.setDaemon(true);
+		this.acceptor.start();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		server.close();
+		for (Socket socket : connections) {
+			socket.close();
+		}
+		try {
+			acceptor.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void accept() {
+		while (!closed) {
+			Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				// Closing the server socket ends the wait; anything else is retried
+				continue;
+			}
+			connections.add(socket);
+			Thread connection = new Thread(() -> serve(socket), "imfs-replication-" + socket.getPort());
+			connection.setDaemon(true);
+			connection.start();
+		}
+	}
+
+	// A follower that goes away reconnects and subscribes again from where it stopped
+	private void serve(Socket socket) {
+		try (Socket s = socket;
+				DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+			s.setTcpNoDelay(true);
+			while (!closed) {
+				int request = in.read();
+				if (request < 0)
+					return;
+				if (request == BOOTSTRAP) {
+					sendImage(out);
+				} else if (request == SUBSCRIBE) {
+					push(in.readLong(), out);
+					return;
+				} else {
+					return;
+				}
+			}
+		} catch (IOException e) {
+			// Dropped with the connection
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			connections.remove(socket);
+		}
+	}
+
+	private void sendImage(DataOutputStream out) throws IOException {
+		Path image = Files.createTempFile("imfs-replica", ".img");
+		try {
+			long next = leader.exportReplicaImage(image);
+			out.writeLong(next);
+			out.writeLong(Files.size(image));
+			Files.copy(image, out);
+			out.flush();
+		} finally {
+			Files.deleteIfExists(image);
+		}
+	}
+
+	private void push(long from, DataOutputStream out) throws IOException, InterruptedException {
+		ReplicationLog log = leader.getReplicationLog();
+		while (!closed) {
+			List<ReplicationLog.Entry> entries;
+			try {
+				entries = log.read(from, FileSystemConstants.REPLICATION_BATCH_SIZE,
+						FileSystemConstants.REPLICATION_HEARTBEAT_MILLIS);
+			} catch (StaleReplicaException e) {
+				out.writeByte(STALE);
+				out.flush();
+				return;
+			}
+			out.writeByte(BATCH);
+			out.writeLong(log.getLastSeq());
+			out.writeInt(entries.size());
+			for (ReplicationLog.Entry entry : entries) {
+				out.writeLong(entry.getSeq());
+				out.writeLong(entry.getAppendedMillis());
+				out.writeInt(entry.getEncoded().length);
+				out.write(entry.getEncoded());
+			}
+			out.flush();
+			from += entries.size();
+		}
+	}
+}
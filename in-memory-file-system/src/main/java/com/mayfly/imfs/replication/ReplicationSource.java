@@ -0,0 +1,19 @@
+package com.mayfly.imfs.replication;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+// Where a follower gets its starting image and the leader's log after it
+public interface ReplicationSource extends Closeable {
+
+	// Writes an image of a fresh leader snapshot to image and returns the first log sequence the follower needs next
+	long bootstrap(Path image) throws IOException;
+
+	// The log from seq from on, waiting a while for it; throws StaleReplicaException once the leader no longer has from
+	List<ReplicationLog.Entry> poll(long from, long timeoutMillis) throws IOException, InterruptedException;
+
+	// The leader's last sequence as of the latest poll
+	long getLeaderSeq();
+}
@@ -0,0 +1,89 @@
+package com.mayfly.imfs.replication;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Progress of one follower; written by its applier thread only
+public class ReplicationStats {
+
+	private volatile long appliedSeq;
+	private volatile long leaderSeq;
+	// Leader time of the oldest record not applied yet, 0 while caught up
+	private volatile long behindSinceMillis;
+	private final LongAdder appliedRecords = new LongAdder();
+	private final LongAdder skippedRecords = new LongAdder();
+	private final LongAdder bootstraps = new LongAdder();
+	private final LongAdder reconnects = new LongAdder();
+
+	ReplicationStats() {
+	}
+
+	void bootstrapped(long nextSeq) {
+		bootstraps.increment();
+		appliedSeq = nextSeq - 1;
+		leaderSeq = Math.max(leaderSeq, appliedSeq);
+	}
+
+	void applying(ReplicationLog.Entry entry) {
+		behindSinceMillis = entry.getAppendedMillis();
+	}
+
+	void applied(long seq, boolean skipped) {
+		(skipped ? skippedRecords : appliedRecords).increment();
+		appliedSeq = seq;
+	}
+
+	void polled(long seq, long nowMillis) {
+		leaderSeq = Math.max(leaderSeq, seq);
+		if (appliedSeq >= leaderSeq)
+			behindSinceMillis = 0;
+		else if (behindSinceMillis == 0)
+			behindSinceMillis = nowMillis;
+	}
+
+	void reconnected() {
+		reconnects.increment();
+	}
+
+	// Last log sequence applied; reads see the tree as of this record
+	public long getAppliedSeq() {
+		return appliedSeq;
+	}
+
+	// Last log sequence the leader had as of the latest poll
+	public long getLeaderSeq() {
+		return leaderSeq;
+	}
+
+	public long getLagRecords() {
+		return Math.max(0, leaderSeq - appliedSeq);
+	}
+
+	// How long the oldest record the follower still has to apply has been on the leader
+	public long getLagMillis() {
+		long since = behindSinceMillis;
+		return since == 0 ? 0 : Math.max(0, System.currentTimeMillis() - since);
+	}
+
+	public long getAppliedRecords() {
+		return appliedRecords.sum();
+	}
+
+	// Records the bootstrap image already held
+	public long getSkippedRecords() {
+		return skippedRecords.sum();
+	}
+
+	public long getBootstraps() {
+		return bootstraps.sum();
+	}
+
+	public long getReconnects() {
+		return reconnects.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "applied=" + getAppliedSeq() + ", leader=" + getLeaderSeq() + ", lag=" + getLagRecords() + " records/"
+				+ getLagMillis() + "ms, bootstraps=" + getBootstraps();
+	}
+}
@@ -0,0 +1,154 @@
+package com.mayfly.imfs.replication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mayfly.imfs.constants.FileSystemConstants;
+import com.mayfly.imfs.exception.StaleReplicaException;
+
+/*
+ * A leader behind a ReplicationServer. The subscription stays open between polls and is
+ * opened again whenever a poll asks for a sequence it is not at, e.g. after a broken
+ * connection. The server pushes at least every heartbeat, so a poll waits for the next
+ * push rather than for its own timeout; a connection silent for much longer is dead.
+ */
+public class SocketReplicationSource implements ReplicationSource {
+
+	private static final int DEAD_AFTER_MILLIS = (int) (10 * FileSystemConstants.REPLICATION_HEARTBEAT_MILLIS);
+
+	private final InetSocketAddress address;
+	private volatile Socket subscription;
+	private DataInputStream in;
+	private long expected;
+	private volatile long leaderSeq;
+
+	public SocketReplicationSource(int port) {
+		this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+	}
+
+	public SocketReplicationSource(InetSocketAddress address) {
+		this.address = address;
+	}
+
+	@Override
+	public synchronized long bootstrap(Path image) throws IOException {
+		// Writing the image takes as long as the tree is large, so this connection has no read timeout
+		try (Socket socket = connect()) {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			out.writeByte(ReplicationServer.BOOTSTRAP);
+			out.flush();
+			DataInputStream reply = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			long next = reply.readLong();
+			long length = reply.readLong();
+			try (OutputStream file = Files.newOutputStream(image)) {
+				byte[] buffer = new byte[64 * 1024];
+				for (long left = length; left > 0;) {
+					int n = reply.read(buffer, 0, (int) Math.min(buffer.length, left));
+					if (n < 0)
+						throw new EOFException("Image cut short");
+					file.write(buffer, 0, n);
+					left -= n;
+				}
+			}
+			return next;
+		}
+	}
+
+	@Override
+	public synchronized List<ReplicationLog.Entry> poll(long from, long timeoutMillis) throws IOException {
+		try {
+			if (subscription == null || from != expected)
+				subscribe(from);
+			int kind = in.readByte();
+			if (kind == ReplicationServer.STALE) {
+				closeSubscription();
+				throw new StaleReplicaException("Replication log no longer holds record " + from);
+			}
+			if (kind != ReplicationServer.BATCH)
+				throw new IOException("Unexpected replication message " + kind);
+			leaderSeq = in.readLong();
+			int count = in.readInt();
+			List<ReplicationLog.Entry> entries = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				long seq = in.readLong();
+				long appendedMillis = in.readLong();
+				byte[] encoded = new byte[in.readInt()];
+				in.readFully(encoded);
+				entries.add(new ReplicationLog.Entry(seq, appendedMillis, encoded));
+			}
+			expected += count;
+			return entries;
+		} catch (IOException e) {
+			closeSubscription();
+			throw e;
+		}
+	}
+
+	@Override
+	public long getLeaderSeq() {
+		return leaderSeq;
+	}
+
+	// Not synchronized: closing the socket is what wakes a poll blocked on it
+	@Override
+	public void close() throws IOException {
+		Socket socket = subscription;
+		if (socket != null)
+			socket.close();
+	}
+
+	private void subscribe(long from) throws IOException {
+		closeSubscription();
+		Socket socket = connect();
+		try {
+			socket.setSoTimeout(DEAD_AFTER_MILLIS);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeByte(ReplicationServer.SUBSCRIBE);
+			out.writeLong(from);
+			out.flush();
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		subscription = socket;
+		expected = from;
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(address, DEAD_AFTER_MILLIS);
+			return socket;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	private void closeSubscription() {
+		Socket socket = subscription;
+		subscription = null;
+		in = null;
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Nothing left to release
+			}
+		}
+	}
+}
@@ -0,0 +1,298 @@
+package com.mayfly.imfs.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.constants.FileSystemConstants;
+import com.mayfly.imfs.exception.EntityNotFoundException;
+import com.mayfly.imfs.utils.FSUtils;
+
+/*
+ * CompletableFuture front end of a FileSystemWorker where every drive is owned by a single
+ * writer thread, actor style: the operations of one drive run one after another in the
+ * order they were submitted, so they never contend for that drive's locks, and a slow
+ * tenant only queues up work on its own drive. Callers never block; a writer thread
+ * exists only while its drive has work queued and exits after a while of idling, and
+ * its executor goes with it, as it does once its drive is deleted. Only existing drives
+ * and the drives an operation creates get a writer.
+ *
+ * An operation spanning drives (a cross-drive move or copy, a batch) is queued on every
+ * drive it touches and runs once all of their writers have reached it, so it is atomic
+ * with respect to both queues as well as to the locks the worker takes for it.
+ */
+public class AsyncFileSystemWorker implements AutoCloseable {
+
+	private final FileSystemWorker worker;
+	private final Map<String, ThreadPoolExecutor> writers = new ConcurrentHashMap<>();
+	// Multi-drive operations are queued on all their drives under this lock, so every writer sees them in the same order
+	private final Object multiDriveOrder = new Object();
+	private volatile boolean closed;
+
+	AsyncFileSystemWorker(FileSystemWorker worker) {
+		this.worker = worker;
+	}
+
+	public CompletableFuture<Void> create(EntityType type, String name, String parentPath) {
+		if (type == EntityType.DRIVE)
+			return run(Collections.singleton(name), Collections.singleton(name), () -> worker.create(type, name, parentPath));
+		return run(driveOf(parentPath), () -> worker.create(type, name, parentPath));
+	}
+
+	public CompletableFuture<Void> delete(String path) {
+		String drive = driveOf(path);
+		return run(drive, () -> {
+			worker.delete(path);
+			if (drive.equals(path))
+				retire(drive, writers.get(drive), 1);
+		});
+	}
+
+	public CompletableFuture<Void> move(String srcPath, String destPath) {
+		return run(drivesOf(srcPath, destPath), () -> worker.move(srcPath, destPath));
+	}
+
+	public CompletableFuture<Void> copy(String srcPath, String destPath) {
+		return run(drivesOf(srcPath, destPath), () -> worker.copy(srcPath, destPath));
+	}
+
+	public CompletableFuture<Void> rename(String path, String newName) {
+		return run(driveOf(path), () -> worker.rename(path, newName));
+	}
+
+	public CompletableFuture<Void> writeToFile(String path, String content) {
+		return run(driveOf(path), () -> worker.writeToFile(path, content));
+	}
+
+	public CompletableFuture<Void> appendToFile(String path, byte[] data) {
+		return run(driveOf(path), () -> worker.appendToFile(path, data));
+	}
+
+	// The batch must not change until the returned future completes
+	public CompletableFuture<Void> apply(FileSystemBatch batch) {
+		List<String> drives = new ArrayList<>();
+		Set<String> created = new HashSet<>();
+		for (FileSystemBatch.Operation operation : batch.getOperations()) {
+			drives.add(operation.getDriveName());
+			if (operation.getType() == EntityType.DRIVE)
+				created.add(operation.getName());
+		}
+		if (drives.isEmpty())
+			return CompletableFuture.completedFuture(null);
+		return run(drives, created, () -> worker.apply(batch));
+	}
+
+	// Reads queue behind the writes submitted before them, so a client reads its own writes without waiting for them
+	public CompletableFuture<String> readFile(String path) {
+		return submit(driveOf(path), () -> {
+			long handle = worker.open(path);
+			try {
+				return worker.read(handle);
+			} finally {
+				worker.close(handle);
+			}
+		});
+	}
+
+	public CompletableFuture<byte[]> readFromFile(String path, long offset, int length) {
+		return submit(driveOf(path), () -> worker.readFromFile(path, offset, length));
+	}
+
+	public CompletableFuture<Long> getFileSize(String path) {
+		return submit(driveOf(path), () -> worker.getFileSize(path));
+	}
+
+	// Drives whose writer thread is currently alive
+	public int getActiveWriters() {
+		int active = 0;
+		for (ThreadPoolExecutor writer : writers.values()) {
+			if (writer.getPoolSize() > 0)
+				active++;
+		}
+		return active;
+	}
+
+	// Drives that have a writer, idle or not
+	public int getWriterCount() {
+		return writers.size();
+	}
+
+	// Runs what is already queued, then stops the writers; later submissions fail
+	@Override
+	public void close() {
+		closed = true;
+		synchronized (multiDriveOrder) {
+			for (ThreadPoolExecutor writer : writers.values()) {
+				writer.shutdown();
+			}
+		}
+		boolean interrupted = false;
+		for (ThreadPoolExecutor writer : writers.values()) {
+			while (true) {
+				try {
+					writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private <T> CompletableFuture<T> submit(String drive, Supplier<T> task) {
+		return submit(Collections.singleton(drive), Collections.<String>emptySet(), task);
+	}
+
+	private CompletableFuture<Void> run(String drive, Runnable task) {
+		return run(Collections.singleton(drive), task);
+	}
+
+	private CompletableFuture<Void> run(Collection<String> drives, Runnable task) {
+		return run(drives, Collections.<String>emptySet(), task);
+	}
+
+	private CompletableFuture<Void> run(Collection<String> drives, Set<String> created, Runnable task) {
+		return submit(drives, created, () -> {
+			task.run();
+			return null;
+		});
+	}
+
+	// created names the drives the task itself creates, which need not exist yet
+	private <T> CompletableFuture<T> submit(Collection<String> driveNames, Set<String> created, Supplier<T> task) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		List<String> drives = new ArrayList<>(new TreeSet<>(driveNames));
+		if (drives.size() == 1) {
+			try {
+				execute(drives.get(0), created, () -> complete(result, task));
+			} catch (RejectedExecutionException | EntityNotFoundException e) {
+				result.completeExceptionally(e);
+			}
+			return result;
+		}
+		// The first drive's writer runs the task once every other writer has parked on it
+		CountDownLatch arrived = new CountDownLatch(drives.size() - 1);
+		CountDownLatch done = new CountDownLatch(1);
+		synchronized (multiDriveOrder) {
+			try {
+				for (int i = 1; i < drives.size(); i++) {
+					execute(drives.get(i), created, () -> {
+						arrived.countDown();
+						awaitUninterruptibly(done);
+					});
+				}
+				execute(drives.get(0), created, () -> {
+					awaitUninterruptibly(arrived);
+					try {
+						complete(result, task);
+					} finally {
+						done.countDown();
+					}
+				});
+			} catch (RejectedExecutionException | EntityNotFoundException e) {
+				// Releases the writers already parked for a task that will never run
+				done.countDown();
+				result.completeExceptionally(e);
+			}
+		}
+		return result;
+	}
+
+	private static <T> void complete(CompletableFuture<T> result, Supplier<T> task) {
+		try {
+			result.complete(task.get());
+		} catch (Throwable t) {
+			result.completeExceptionally(t);
+		}
+	}
+
+	// Queued under the drive's map entry, so a writer is never retired with work just handed to it
+	private void execute(String drive, Set<String> created, Runnable task) {
+		if (closed)
+			throw new RejectedExecutionException("Async worker is closed");
+		ThreadPoolExecutor writer = writers.compute(drive, (name, current) -> {
+			if (current == null) {
+				if (!created.contains(name) && !worker.getDrives().containsKey(name))
+					throw new EntityNotFoundException("Drive not found: " + name);
+				current = newWriter(name);
+			}
+			current.execute(task);
+			return current;
+		});
+		// Created while close() was already shutting the others down
+		if (closed)
+			writer.shutdown();
+	}
+
+	private ThreadPoolExecutor newWriter(String drive) {
+		AtomicReference<ThreadPoolExecutor> self = new AtomicReference<>();
+		ThreadPoolExecutor created = new ThreadPoolExecutor(1, 1, FileSystemConstants.DRIVE_WRITER_KEEP_ALIVE_MILLIS,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+					Thread thread = new Thread(() -> {
+						try {
+							runnable.run();
+						} finally {
+							// The thread timed out idle or its executor was shut down
+							retire(drive, self.get(), 0);
+						}
+					}, "imfs-drive-" + drive);
+					thread.setDaemon(true);
+					return thread;
+				});
+		created.allowCoreThreadTimeOut(true);
+		self.set(created);
+		return created;
+	}
+
+	// Drops the drive's writer unless work is queued on it or threads other than the running ones are left
+	private void retire(String drive, ThreadPoolExecutor writer, int running) {
+		writers.computeIfPresent(drive, (name, current) -> {
+			if (current != writer || !current.getQueue().isEmpty() || current.getPoolSize() > running)
+				return current;
+			current.shutdown();
+			return null;
+		});
+	}
+
+	private static void awaitUninterruptibly(CountDownLatch latch) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				latch.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private static String driveOf(String path) {
+		return FSUtils.getDriveName(path);
+	}
+
+	private static List<String> drivesOf(String srcPath, String destPath) {
+		List<String> drives = new ArrayList<>();
+		drives.add(driveOf(srcPath));
+		drives.add(driveOf(destPath));
+		return drives;
+	}
+}
@@ -0,0 +1,75 @@
+package com.mayfly.imfs.service;
+
+import static com.mayfly.imfs.utils.FSUtils.getDrive;
+
+import com.mayfly.imfs.content.ContentPatch;
+import com.mayfly.imfs.index.NameIndex;
+import com.mayfly.imfs.index.TextIndex;
+import com.mayfly.imfs.model.Drive;
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.model.FileSystemEntity;
+import com.mayfly.imfs.model.SubtreeUsage;
+import com.mayfly.imfs.model.TextFile;
+
+// Name and full-text index upkeep; a no-op for a drive until it was first searched. Deletes leave them in the worker's discard walk
+final class DriveIndexes implements MutationListener {
+
+	// A lazy copy only brings its own node; the levels below index themselves as its loader lists them
+	@Override
+	public void added(FileSystemEntity parent, Entity entity, long tag) {
+		if (parent == null)
+			return;
+		Drive drive = getDrive(parent);
+		boolean lazy = entity instanceof FileSystemEntity && !((FileSystemEntity) entity).isMaterialized();
+		NameIndex names = drive.getNameIndex();
+		if (names != null && lazy)
+			names.add(entity);
+		else if (names != null)
+			names.addSubtree(entity);
+		TextIndex text = drive.getTextIndex();
+		if (text != null && !lazy)
+			text.addSubtree(entity);
+	}
+
+	// Writers of the subtree are shut out by the move's subtree lock
+	@Override
+	public void moved(Entity entity, FileSystemEntity oldParent, SubtreeUsage usage, String oldPath, long tag) {
+		Drive srcDrive = getDrive(oldParent);
+		Drive destDrive = getDrive(entity);
+		if (srcDrive == destDrive)
+			return;
+		NameIndex fromNames = srcDrive.getNameIndex();
+		if (fromNames != null)
+			fromNames.removeSubtree(entity);
+		NameIndex toNames = destDrive.getNameIndex();
+		if (toNames != null)
+			toNames.addSubtree(entity);
+		TextIndex from = srcDrive.getTextIndex();
+		TextIndex to = destDrive.getTextIndex();
+		if (from != null && to != null)
+			from.moveSubtree(entity, to);
+		else if (from != null)
+			from.removeSubtree(entity);
+		else if (to != null)
+			to.addSubtree(entity);
+	}
+
+	// Only the entity itself is re-keyed; the names below it do not change
+	@Override
+	public void renamed(Entity entity, String oldName, long oldTerm, String oldPath, long tag) {
+		NameIndex names = getDrive(entity).getNameIndex();
+		if (names != null)
+			names.rename(entity, oldName);
+	}
+
+	// An append tokenizes only what it added; a write without its text reads the content back
+	@Override
+	public void written(TextFile file, long delta, long hash, ContentPatch patch, String text, long tag) {
+		TextIndex index = getDrive(file).getTextIndex();
+		if (index == null)
+			return;
+		if (patch != null && patch.getKind() == ContentPatch.Kind.APPEND && index.append(file, patch.getData()))
+			return;
+		index.update(file, text == null ? file.getContent() : text);
+	}
+}
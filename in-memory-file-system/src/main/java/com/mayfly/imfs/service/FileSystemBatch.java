@@ -0,0 +1,75 @@
+package com.mayfly.imfs.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.exception.InvalidOperationException;
+import com.mayfly.imfs.utils.FSUtils;
+
+// Operations applied together by FileSystemWorker.apply; later operations may use entities created earlier
+public class FileSystemBatch {
+
+	private final List<Operation> operations = new ArrayList<>();
+
+	public void create(EntityType type, String name, String parentPath) {
+		if (type == null)
+			throw new InvalidOperationException("Unknown entity type");
+		if (type != EntityType.DRIVE && parentPath == null)
+			throw new InvalidOperationException("Parent path is required for " + type);
+		operations.add(new Operation(type, name, type == EntityType.DRIVE ? name : parentPath, null));
+	}
+
+	public void writeToFile(String path, String content) {
+		operations.add(new Operation(null, null, path, content));
+	}
+
+	public int size() {
+		return operations.size();
+	}
+
+	List<Operation> getOperations() {
+		return Collections.unmodifiableList(operations);
+	}
+
+	// A create when type is set, otherwise a write; path is the parent path of a create
+	static final class Operation {
+
+		private final EntityType type;
+		private final String name;
+		private final String path;
+		private final String content;
+
+		private Operation(EntityType type, String name, String path, String content) {
+			this.type = type;
+			this.name = name;
+			this.path = path;
+			this.content = content;
+		}
+
+		boolean isCreate() {
+			return type != null;
+		}
+
+		EntityType getType() {
+			return type;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		String getPath() {
+			return path;
+		}
+
+		String getContent() {
+			return content;
+		}
+
+		String getDriveName() {
+			return FSUtils.getDriveName(path);
+		}
+	}
+}
@@ -1,119 +1,1880 @@
 package com.mayfly.imfs.service;
 
+import static com.mayfly.imfs.utils.FSUtils.findEnclosingZip;
 import static com.mayfly.imfs.utils.FSUtils.findEntity;
+import static com.mayfly.imfs.utils.FSUtils.getDrive;
+import static com.mayfly.imfs.utils.FSUtils.isSameOrAncestor;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+import com.mayfly.imfs.config.FileSystemConfig;
 import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.constants.FileSystemConstants;
+import com.mayfly.imfs.content.BlobContent;
+import com.mayfly.imfs.content.BlobStore;
+import com.mayfly.imfs.content.ChunkedContent;
+import com.mayfly.imfs.content.CompressedContent;
+import com.mayfly.imfs.content.CompressionContext;
+import com.mayfly.imfs.content.CompressionStats;
+import com.mayfly.imfs.content.Content;
+import com.mayfly.imfs.content.ContentHash;
+import com.mayfly.imfs.content.ContentInputStream;
+import com.mayfly.imfs.content.ContentMemoryUsage;
+import com.mayfly.imfs.content.ContentPatch;
+import com.mayfly.imfs.content.DedupStats;
+import com.mayfly.imfs.content.OffHeapContent;
+import com.mayfly.imfs.content.OffHeapStore;
+import com.mayfly.imfs.content.PlainContent;
+import com.mayfly.imfs.content.SpillStats;
+import com.mayfly.imfs.content.SpillStore;
+import com.mayfly.imfs.content.SpillableContent;
+import com.mayfly.imfs.diff.DiffEntry;
+import com.mayfly.imfs.diff.MerkleHash;
+import com.mayfly.imfs.diff.TreeDiff;
+import com.mayfly.imfs.exception.EntityNotFoundException;
+import com.mayfly.imfs.image.FileSystemImage;
+import com.mayfly.imfs.image.ImageWriter;
+import com.mayfly.imfs.index.GlobPattern;
+import com.mayfly.imfs.index.NameIndex;
+import com.mayfly.imfs.index.TextIndex;
+import com.mayfly.imfs.index.TextQuery;
+import com.mayfly.imfs.journal.Journal;
+import com.mayfly.imfs.journal.JournalRecord;
+import com.mayfly.imfs.journal.JournalStats;
+import com.mayfly.imfs.metrics.FileSystemStats;
+import com.mayfly.imfs.metrics.Instrumentation;
+import com.mayfly.imfs.metrics.OperationType;
+import com.mayfly.imfs.replication.ReplicationLog;
 import com.mayfly.imfs.exception.InvalidOperationException;
 import com.mayfly.imfs.exception.NameConflictException;
+import com.mayfly.imfs.exception.QuotaExceededException;
+import com.mayfly.imfs.model.ChildLoader;
+import com.mayfly.imfs.model.Drive;
 import com.mayfly.imfs.model.Entity;
 import com.mayfly.imfs.model.FileSystemEntity;
+import com.mayfly.imfs.model.SubtreeUsage;
+import com.mayfly.imfs.model.Timestamps;
 import com.mayfly.imfs.model.TextFile;
+import com.mayfly.imfs.model.ZipFile;
+import com.mayfly.imfs.snapshot.FileSystemSnapshot;
+import com.mayfly.imfs.snapshot.SnapshotEntity;
+import com.mayfly.imfs.snapshot.SnapshotManager;
+import com.mayfly.imfs.utils.FSUtils;
+import com.mayfly.imfs.utils.NameInterner;
+import com.mayfly.imfs.utils.PathCache;
 import com.mayfly.imfs.validator.FSValidator;
+import com.mayfly.imfs.walk.EntityVisitor;
+import com.mayfly.imfs.walk.TreeStats;
+import com.mayfly.imfs.walk.TreeWalker;
+import com.mayfly.imfs.watch.WatchKey;
+import com.mayfly.imfs.watch.WatchListener;
+import com.mayfly.imfs.watch.WatchStats;
 
-public class FileSystemWorker {
+public class FileSystemWorker implements AutoCloseable {
 
+	// Bytes a truncate reads at a time to hash what it cuts off
+	private static final int HASH_CHUNK = 64 * 1024;
+	private static final AtomicLong WORKER_IDS = new AtomicLong();
+
+	// Orders the subtree locks of two workers a diff holds at once
+	private final long id = WORKER_IDS.incrementAndGet();
+	private final FileSystemConfig config;
 	private final Map<String, FileSystemEntity> drives = new ConcurrentHashMap<>();
+	private final PathCache pathCache;
+	private final Map<Long, Entity> handles = new ConcurrentHashMap<>();
+	private final AtomicLong handleIds = new AtomicLong();
+	private final SnapshotManager snapshots = new SnapshotManager();
+	private final ReentrantLock drivesLock = new ReentrantLock();
+	// Taken before any other lock; see SubtreeLock
+	private final SubtreeLock subtreeLock = new SubtreeLock();
+	private final OffHeapStore offHeap;
+	private final SpillStore spillStore;
+	private final BlobStore blobStore;
+	private final Instrumentation instrumentation;
+	private final ReentrantLock checkpointLock = new ReentrantLock();
+	// Image copies in the journal directory by file name, with the tag of the load that made them
+	private final Map<String, Long> loadedImages = new ConcurrentHashMap<>();
+	private final ForkJoinPool walkPool;
+	private final NameInterner names = new NameInterner(FileSystemConstants.NAME_INTERNER_SLOTS);
+	// Lazy copies whose children are still shared with their source; freeze() has nothing to do while empty
+	private final Set<FileSystemEntity> pendingCopies = ConcurrentHashMap.newKeySet();
+	private final TreeWalker walker;
+	private final DriveIndexes indexes = new DriveIndexes();
+	private final WatchPublisher watchers;
+	// Every mutation hands its change to this one hook; see MutationListener
+	private final MutationListener mutations;
+	private volatile AsyncFileSystemWorker async;
+	// Null while recovery replays the journal, so replayed mutations are not journaled again
+	private final Journal journal;
+	// Created by the first follower; from then on every journal record is also logged for followers
+	private volatile ReplicationLog replicationLog;
+
+	public FileSystemWorker() {
+		this(new FileSystemConfig());
+	}
+
+	public FileSystemWorker(FileSystemConfig config) {
+		this.config = config;
+		this.pathCache = new PathCache(config.getPathCacheCapacity());
+		this.offHeap = config.isOffHeapContent() ? new OffHeapStore(config.getOffHeapSlabSize()) : null;
+		this.spillStore = config.getContentMemoryBudget() == 0 ? null : newSpillStore(config);
+		this.blobStore = config.isContentDeduplication() ? new BlobStore() : null;
+		this.instrumentation = config.getInstrumentation();
+		this.walkPool = config.getWalkParallelism() == 0 ? ForkJoinPool.commonPool()
+				: new ForkJoinPool(config.getWalkParallelism());
+		this.walker = new TreeWalker(walkPool, config.getWalkSplitThreshold());
+		this.watchers = new WatchPublisher(config.getWatchRingCapacity(), config.getWatchBatchSize());
+		this.mutations = new MutationPipeline(new SubtreeTotals(), new MerkleHashes(), indexes, watchers);
+		this.journal = config.getJournalDirectory() == null ? null : recover(config.getJournalDirectory());
+	}
+
+	private static SpillStore newSpillStore(FileSystemConfig config) {
+		if (config.isOffHeapContent())
+			throw new IllegalArgumentException("Off-heap content and a content memory budget cannot be combined");
+		try {
+			Path directory = config.getSpillDirectory() != null ? config.getSpillDirectory()
+					: Files.createTempDirectory("imfs-spill");
+			return new SpillStore(directory, config.getContentMemoryBudget());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Loads the last checkpoint, then replays the journal records it does not cover
+	private Journal recover(Path directory) {
+		try {
+			Files.createDirectories(directory);
+			Path checkpoint = directory.resolve(FileSystemConstants.CHECKPOINT_FILE);
+			long covered = 0;
+			if (Files.exists(checkpoint)) {
+				FileSystemImage image = FileSystemImage.open(checkpoint);
+				covered = image.getSnapshotVersion();
+				addDrives(image.getDrives(names, this::newCompressionContext), null);
+			}
+			long version = covered;
+			long[] lastTag = { covered };
+			Journal recovered = Journal.recover(directory.resolve(FileSystemConstants.JOURNAL_FILE), record -> {
+				if (record.getTag() > version) {
+					replay(record);
+					lastTag[0] = Math.max(lastTag[0], record.getTag());
+				}
+			}, config.getJournalFlushIntervalMillis(), config.getJournalMaxBatchRecords());
+			snapshots.advanceEpoch(lastTag[0]);
+			// Copies no remaining record loads: covered by the checkpoint, or never logged before a crash
+			try (DirectoryStream<Path> copies = Files.newDirectoryStream(directory, FileSystemConstants.LOADED_IMAGE_PREFIX + "*")) {
+				for (Path copy : copies) {
+					if (!loadedImages.containsKey(copy.getFileName().toString()))
+						Files.deleteIfExists(copy);
+				}
+			}
+			return recovered;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Applies a journal record, as recovery does and as a follower does with the records its leader logged
+	public void replay(JournalRecord record) {
+		switch (record.getOp()) {
+		case CREATE:
+			create(record.getType(), record.getTarget(), record.getPath());
+			break;
+		case DELETE:
+			delete(record.getPath());
+			break;
+		case MOVE:
+			move(record.getPath(), record.getTarget());
+			break;
+		case RENAME:
+			rename(record.getPath(), record.getTarget());
+			break;
+		case COPY:
+			copy(record.getPath(), record.getTarget());
+			break;
+		case WRITE:
+			writeToFile(record.getPath(), record.getText());
+			break;
+		case PATCH:
+			updateContent(findEntity(record.getPath(), drives, pathCache), record.getPatch());
+			break;
+		case LOAD_IMAGE:
+			try {
+				loadImage(loggedImage(record.getPath()), record.getPath());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			break;
+		case BATCH:
+			FileSystemBatch batch = new FileSystemBatch();
+			for (JournalRecord operation : record.getRecords()) {
+				if (operation.getOp() == JournalRecord.Op.CREATE)
+					batch.create(operation.getType(), operation.getTarget(), operation.getPath());
+				else
+					batch.writeToFile(operation.getPath(), operation.getText());
+			}
+			apply(batch);
+			break;
+		default:
+			throw new InvalidOperationException("Unknown journal record " + record.getOp());
+		}
+	}
 
 	public void create(EntityType type, String name, String parentPath) {
-		System.out.println("Creating " + type + ": " + name + " under " + parentPath);
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			createEntity(type, name, parentPath);
+			succeeded = true;
+		} finally {
+			instrumentation.record(OperationType.CREATE, type == EntityType.DRIVE ? name : parentPath, start, succeeded);
+		}
+	}
+
+	private void createEntity(EntityType type, String name, String parentPath) {
 		if (type == null) {
 			throw new InvalidOperationException("Unknown entity type");
 		}
 		if (type == EntityType.DRIVE) {
-			if (drives.containsKey(name))
-				throw new NameConflictException("Drive already exists: " + name);
-
-			drives.put(name, new FileSystemEntity(name, EntityType.DRIVE, null));
+			long lsn;
+			drivesLock.lock();
+			long tag = snapshots.beginWrite();
+			try {
+				if (drives.containsKey(name))
+					throw new NameConflictException("Drive already exists: " + name);
+				Drive drive = new Drive(names.intern(name));
+				snapshots.recordDrive(tag, name, null);
+				drives.put(name, drive);
+				mutations.added(null, drive, tag);
+				lsn = log(JournalRecord.create(tag, type, name, null));
+			} finally {
+				snapshots.endWrite(tag);
+				drivesLock.unlock();
+			}
+			awaitDurable(lsn);
 			return;
 		}
-		FileSystemEntity parent = (FileSystemEntity) findEntity(parentPath, drives);
-		if (!parent.isFileSystemEntity() || parent.getType() == EntityType.TEXT_FILE)
+		Entity parentEntity = findEntity(parentPath, drives, pathCache);
+		if (!parentEntity.isFileSystemEntity())
 			throw new InvalidOperationException("Parent must be a File System");
-		Entity entity;
+		FileSystemEntity parent = (FileSystemEntity) parentEntity;
+		Entity entity = newEntity(type, name, parent);
+		long lsn;
+		SubtreeLock.Ticket ticket = subtreeLock.share(parent);
+		try {
+			parent.getLock().lock();
+			long tag = snapshots.beginWrite();
+			try {
+				if (parent.isDeleted())
+					throw new EntityNotFoundException("No such entity: " + parentPath);
+				parent.checkNameAvailable(name);
+				freeze(parent);
+				snapshots.recordChild(tag, parent, name, null);
+				parent.addChild(entity);
+				mutations.added(parent, entity, tag);
+				lsn = log(JournalRecord.create(tag, type, name, parent.getPath()));
+			} finally {
+				snapshots.endWrite(tag);
+				parent.getLock().unlock();
+			}
+		} finally {
+			subtreeLock.unlock(ticket);
+		}
+		awaitDurable(lsn);
+	}
+
+	private Entity newEntity(EntityType type, String name, FileSystemEntity parent) {
+		name = names.intern(name);
 		switch (type) {
+		case DRIVE:
+			return new Drive(name);
 		case FOLDER:
-			entity = new FileSystemEntity(name, EntityType.FOLDER, parent);
-			break;
+			return new FileSystemEntity(name, parent);
 		case ZIP_FILE:
-			entity = new FileSystemEntity(name, EntityType.ZIP_FILE, parent);
-			break;
+			return new ZipFile(name, parent, newCompressionContext());
 		case TEXT_FILE:
-			entity = new TextFile(name, parent);
-			break;
+			return new TextFile(name, parent);
 		default:
 			throw new InvalidOperationException("Unknown entity type");
 		}
-		parent.addChild(entity);
+	}
+
+	// All or nothing: existing directories are locked once each, and entities the batch creates are linked while unreachable
+	public void apply(FileSystemBatch batch) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			applyBatch(batch.getOperations());
+			succeeded = true;
+		} finally {
+			instrumentation.record(OperationType.BATCH, null, start, succeeded);
+		}
+	}
+
+	private void applyBatch(List<FileSystemBatch.Operation> operations) {
+		if (operations.isEmpty())
+			return;
+		Map<String, Entity> created = new HashMap<>();
+		Map<String, FileSystemEntity> resolved = new HashMap<>();
+		Map<FileSystemEntity, List<Entity>> additions = new LinkedHashMap<>();
+		List<Drive> newDrives = new ArrayList<>();
+		List<TextFile> rewritten = new ArrayList<>();
+		Entity[] targets = new Entity[operations.size()];
+
+		for (int i = 0; i < operations.size(); i++) {
+			FileSystemBatch.Operation operation = operations.get(i);
+			if (operation.isCreate()) {
+				targets[i] = stageCreate(operation, created, resolved, additions, newDrives);
+			} else {
+				Entity entity = created.get(operation.getPath());
+				if (entity == null)
+					entity = findEntity(operation.getPath(), drives, pathCache);
+				TextFile file = toTextFile(entity);
+				if (!created.containsKey(operation.getPath())) {
+					additions.computeIfAbsent((FileSystemEntity) file.getParent(), dir -> new ArrayList<>());
+					rewritten.add(file);
+				}
+				targets[i] = file;
+			}
+		}
+
+		// Like a single create or write, the batch shares the existing directories it adds to and the files it rewrites
+		List<Entity> anchors = new ArrayList<Entity>(additions.keySet());
+		anchors.addAll(rewritten);
+		long lsn;
+		SubtreeLock.Ticket ticket = subtreeLock.share(anchors);
+		try {
+			// Which zip encodes a write depends on where the file sits, which only holds still from here on
+			List<Content> rewrites = new ArrayList<>();
+			List<Long> rewriteHashes = new ArrayList<>();
+			for (int i = 0; i < operations.size(); i++) {
+				FileSystemBatch.Operation operation = operations.get(i);
+				if (operation.isCreate())
+					continue;
+				TextFile file = (TextFile) targets[i];
+				Content stored = encode(findEnclosingZip(file), operation.getContent());
+				long hash = ContentHash.of(operation.getContent().getBytes(StandardCharsets.UTF_8));
+				// A later create of the same name does not make an existing target a created one
+				if (created.get(operation.getPath()) == file) {
+					Content previous = file.getStoredContent();
+					file.setContent(stored);
+					file.setContentHash(hash);
+					previous.release();
+				} else {
+					rewrites.add(stored);
+					rewriteHashes.add(hash);
+				}
+			}
+
+			// Staged subtrees are complete now, so their totals are summed once instead of per entity
+			for (Drive drive : newDrives) {
+				sumSubtree(drive);
+			}
+			for (List<Entity> children : additions.values()) {
+				for (Entity child : children) {
+					if (child instanceof FileSystemEntity)
+						sumSubtree((FileSystemEntity) child);
+				}
+			}
+
+			drivesLock.lock();
+			List<FileSystemEntity> lockedDirs = new ArrayList<>(additions.keySet());
+			lockedDirs.sort(Comparator.comparingLong(Entity::getId));
+			for (FileSystemEntity dir : lockedDirs) {
+				dir.getLock().lock();
+			}
+			try {
+				for (Drive drive : newDrives) {
+					if (drives.containsKey(drive.getName()))
+						throw new NameConflictException("Drive already exists: " + drive.getName());
+				}
+				for (Map.Entry<FileSystemEntity, List<Entity>> entry : additions.entrySet()) {
+					// Resolved before the ticket, so it may have been deleted meanwhile
+					if (entry.getKey().isDeleted())
+						throw new EntityNotFoundException("No such entity: " + entry.getKey().getName());
+					for (Entity child : entry.getValue()) {
+						entry.getKey().checkNameAvailable(child.getName());
+					}
+				}
+				for (TextFile file : rewritten) {
+					if (file.isDeleted())
+						throw new EntityNotFoundException("No such entity: " + file.getName());
+				}
+				chargeBatch(additions, rewritten, rewrites);
+				// Rewritten files have their parent among the additions, so this covers them too
+				for (FileSystemEntity dir : lockedDirs) {
+					freeze(dir);
+				}
+
+				long tag = snapshots.beginWrite();
+				try {
+					for (Drive drive : newDrives) {
+						snapshots.recordDrive(tag, drive.getName(), null);
+						drives.put(drive.getName(), drive);
+						mutations.added(null, drive, tag);
+					}
+					for (Map.Entry<FileSystemEntity, List<Entity>> entry : additions.entrySet()) {
+						for (Entity child : entry.getValue()) {
+							snapshots.recordChild(tag, entry.getKey(), child.getName(), null);
+							entry.getKey().addChild(child);
+							mutations.added(entry.getKey(), child, tag);
+						}
+					}
+					for (int i = 0; i < rewritten.size(); i++) {
+						TextFile file = rewritten.get(i);
+						synchronized (file) {
+							snapshots.recordContent(tag, file);
+							Content previous = file.getStoredContent();
+							long delta = rewrites.get(i).size() - previous.size();
+							file.setContent(rewrites.get(i));
+							previous.release();
+							mutations.written(file, delta, rewriteHashes.get(i), null, null, tag);
+						}
+					}
+					lsn = journal == null && replicationLog == null ? 0
+							: log(JournalRecord.batch(tag, batchRecords(tag, operations, targets)));
+				} finally {
+					snapshots.endWrite(tag);
+				}
+			} finally {
+				for (FileSystemEntity dir : lockedDirs) {
+					dir.getLock().unlock();
+				}
+				drivesLock.unlock();
+			}
+		} finally {
+			subtreeLock.unlock(ticket);
+		}
+		awaitDurable(lsn);
+	}
+
+	// New entities are linked to their parent right away; only children of existing directories wait for publishing
+	private Entity stageCreate(FileSystemBatch.Operation operation, Map<String, Entity> created,
+			Map<String, FileSystemEntity> resolved, Map<FileSystemEntity, List<Entity>> additions, List<Drive> newDrives) {
+		FileSystemEntity parent = null;
+		if (operation.getType() != EntityType.DRIVE) {
+			parent = resolved.get(operation.getPath());
+			if (parent == null) {
+				Entity entity = created.get(operation.getPath());
+				if (entity == null)
+					entity = findEntity(operation.getPath(), drives, pathCache);
+				if (!entity.isFileSystemEntity())
+					throw new InvalidOperationException("Parent must be a File System");
+				parent = (FileSystemEntity) entity;
+				resolved.put(operation.getPath(), parent);
+			}
+		}
+		Entity entity = newEntity(operation.getType(), operation.getName(), parent);
+		// Keyed without rendering the new entity's own path, which would give every staged file a cached one
+		String path = parent == null ? entity.getName() : parent.getPath() + "\\" + entity.getName();
+		if (created.putIfAbsent(path, entity) != null)
+			throw new NameConflictException("Name '" + entity.getName() + "' is created twice in the batch");
+		if (parent == null)
+			newDrives.add((Drive) entity);
+		else if (created.get(parent.getPath()) == parent)
+			parent.addChild(entity);
+		else
+			additions.computeIfAbsent(parent, dir -> new ArrayList<>()).add(entity);
+		return entity;
+	}
+
+	private static void sumSubtree(FileSystemEntity dir) {
+		long bytes = 0;
+		long files = 0;
+		long entities = 0;
+		long newest = Timestamps.NONE;
+		long hash = 0;
+		for (Entity child : dir.getChildren().values()) {
+			if (child instanceof FileSystemEntity)
+				sumSubtree((FileSystemEntity) child);
+			SubtreeUsage usage = FSUtils.getUsage(child);
+			bytes += usage.getBytes();
+			files += usage.getFiles();
+			entities += usage.getEntities() + 1;
+			newest = Math.max(newest, usage.getNewestModifiedNanos());
+			hash = MerkleHash.add(hash, MerkleHash.term(child));
+		}
+		dir.setSubtree(bytes, files, entities, newest);
+		dir.setMerkleHash(hash);
+	}
+
+	// Charges every drive's growth up front, undoing the earlier charges if one drive is over quota
+	private static void chargeBatch(Map<FileSystemEntity, List<Entity>> additions, List<TextFile> rewritten,
+			List<Content> rewrites) {
+		Map<Drive, Long> growth = new HashMap<>();
+		for (Map.Entry<FileSystemEntity, List<Entity>> entry : additions.entrySet()) {
+			for (Entity child : entry.getValue()) {
+				growth.merge(getDrive(entry.getKey()), FSUtils.getUsage(child).getBytes(), Long::sum);
+			}
+		}
+		for (int i = 0; i < rewritten.size(); i++) {
+			growth.merge(getDrive(rewritten.get(i)),
+					rewrites.get(i).size() - rewritten.get(i).getStoredContent().size(), Long::sum);
+		}
+		List<Map.Entry<Drive, Long>> charged = new ArrayList<>();
+		try {
+			for (Map.Entry<Drive, Long> entry : growth.entrySet()) {
+				charge(entry.getKey(), entry.getValue());
+				charged.add(entry);
+			}
+		} catch (QuotaExceededException e) {
+			for (Map.Entry<Drive, Long> entry : charged) {
+				charge(entry.getKey(), -entry.getValue());
+			}
+			throw e;
+		}
+	}
+
+	private static List<JournalRecord> batchRecords(long tag, List<FileSystemBatch.Operation> operations, Entity[] targets) {
+		List<JournalRecord> records = new ArrayList<>(operations.size());
+		for (int i = 0; i < operations.size(); i++) {
+			FileSystemBatch.Operation operation = operations.get(i);
+			Entity target = targets[i];
+			if (operation.isCreate())
+				records.add(JournalRecord.create(tag, operation.getType(), target.getName(),
+						target.getParent() == null ? null : target.getParent().getPath()));
+			else
+				records.add(JournalRecord.write(tag, target.getPath(), operation.getContent()));
+		}
+		return records;
 	}
 
 	public void delete(String path) {
-		Entity entity = findEntity(path, drives);
-		if (entity.getType() == EntityType.DRIVE) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			delete(findEntity(path, drives, pathCache));
+			succeeded = true;
+		} finally {
+			instrumentation.record(OperationType.DELETE, path, start, succeeded);
+		}
+	}
+
+	// Holding the subtree keeps a concurrent move from pulling a child out of it while it is marked deleted
+	private void delete(Entity entity) {
+		long lsn;
+		SubtreeLock.Ticket ticket = subtreeLock.restructure(entity);
+		try {
+			lsn = entity.getType() == EntityType.DRIVE ? deleteDrive((Drive) entity) : detach(entity);
+			pathCache.invalidate(entity);
+		} finally {
+			subtreeLock.unlock(ticket);
+		}
+		awaitDurable(lsn);
+	}
+
+	private long deleteDrive(Drive entity) {
+		long lsn;
+		drivesLock.lock();
+		long tag = snapshots.beginWrite();
+		try {
+			if (drives.get(entity.getName()) != entity)
+				throw new EntityNotFoundException("Drive not found: " + entity.getName());
+			snapshots.recordDrive(tag, entity.getName(), entity);
 			drives.remove(entity.getName());
-		} else {
-			FileSystemEntity parent = (FileSystemEntity) entity.getParent();
+			mutations.removed(null, entity, FSUtils.getUsage(entity), entity.getName(), tag);
+			lsn = log(JournalRecord.delete(tag, entity.getName()));
+		} finally {
+			snapshots.endWrite(tag);
+			drivesLock.unlock();
+		}
+		// The drive's indexes go away with it, so there is nothing to remove from them
+		discard(entity, null, null);
+		return lsn;
+	}
+
+	private long detach(Entity entity) {
+		long lsn;
+		FileSystemEntity parent = (FileSystemEntity) entity.getParent();
+		parent.getLock().lock();
+		long tag = snapshots.beginWrite();
+		try {
+			if (entity.isDeleted() || parent.getChildren().get(entity.getName()) != entity)
+				throw new EntityNotFoundException("No such entity: " + entity.getName());
+			String path = entity.getPath();
+			SubtreeUsage usage = FSUtils.getUsage(entity);
+			freeze(parent);
+			snapshots.recordChild(tag, parent, entity.getName(), entity);
 			parent.removeChild(entity.getName());
+			charge(parent, -usage.getBytes());
+			mutations.removed(parent, entity, usage, path, tag);
+			lsn = log(JournalRecord.delete(tag, path));
+		} finally {
+			snapshots.endWrite(tag);
+			parent.getLock().unlock();
 		}
-		System.out.println("Deleted: " + path);
+		Drive drive = getDrive(parent);
+		discard(entity, drive.getNameIndex(), drive.getTextIndex());
+		return lsn;
 	}
 
-	public void move(String srcPath, String destPath) {		
-		if(!FSValidator.isPathFileSystem(srcPath, drives))
+	// Marks a detached subtree deleted and unindexes it; a directory is marked before its children are listed
+	private void discard(Entity entity, NameIndex names, TextIndex text) {
+		walker.walk(entity, (node, depth) -> {
+			boolean descend = false;
+			if (node instanceof FileSystemEntity) {
+				FileSystemEntity dir = (FileSystemEntity) node;
+				// Copies still reading from this directory take their children before they go away
+				materializeCopies(dir);
+				descend = dir.markDeletedShallow();
+				if (!descend && dir.getChildLoader() instanceof CopyLoader)
+					((CopyLoader) dir.getChildLoader()).cancel(dir);
+			} else {
+				node.markDeleted();
+			}
+			if (names != null)
+				names.remove(node);
+			if (text != null && node instanceof TextFile)
+				text.remove((TextFile) node);
+			return descend;
+		});
+	}
+
+	public void move(String srcPath, String destPath) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			moveEntity(srcPath, destPath);
+			succeeded = true;
+		} finally {
+			instrumentation.record(OperationType.MOVE, srcPath, start, succeeded);
+		}
+	}
+
+	private void moveEntity(String srcPath, String destPath) {
+		Entity entity = findEntity(srcPath, drives, pathCache);
+		if (!entity.isFileSystemEntity())
 			throw new InvalidOperationException("Source Path is not a FileSystem");
-		
-		Entity entity = findEntity(srcPath, drives);
+
 		if (entity.getType() == EntityType.DRIVE)
 			throw new InvalidOperationException("Cannot move drive");
-		
-		FileSystemEntity dest = (FileSystemEntity) findEntity(destPath, drives);
-		if (!dest.isFileSystemEntity())
+
+		Entity destEntity = findEntity(destPath, drives, pathCache);
+		if (!destEntity.isFileSystemEntity())
+			throw new InvalidOperationException("Destination Path is not a FileSystem");
+		FileSystemEntity dest = (FileSystemEntity) destEntity;
+
+		move(entity, dest);
+	}
+
+	private void move(Entity entity, FileSystemEntity dest) {
+		long lsn;
+		SubtreeLock.Ticket ticket = subtreeLock.restructure(entity, dest);
+		try {
+			Drive srcDrive = getDrive(entity);
+			Drive destDrive = getDrive(dest);
+			if (entity.isDeleted())
+				throw new EntityNotFoundException("No such entity: " + entity.getName());
+			if (dest.isDeleted())
+				throw new EntityNotFoundException("No such entity: " + dest.getName());
+			if (isSameOrAncestor(entity, dest))
+				throw new InvalidOperationException("Cannot move entity into its own subtree");
+
+			FileSystemEntity oldParent = (FileSystemEntity) entity.getParent();
+			lockPair(oldParent, oldParent.getLock(), dest, dest.getLock());
+			long tag = snapshots.beginWrite();
+			try {
+				FSValidator.validateNameAlreadyExists(dest.getChildren(), entity);
+				SubtreeUsage usage = FSUtils.getUsage(entity);
+				freeze(oldParent);
+				freeze(dest);
+				// Within a drive the total does not change; across drives the destination quota must allow it
+				if (srcDrive != destDrive)
+					charge(dest, usage.getBytes());
+
+				String srcPath = entity.getPath();
+				snapshots.recordChild(tag, dest, entity.getName(), null);
+				snapshots.recordChild(tag, oldParent, entity.getName(), entity);
+				// Publish under the new parent first so lock free lookups never miss the entity
+				dest.addChild(entity);
+				entity.setParent(dest);
+				oldParent.removeChild(entity.getName());
+				// Stamped again once the old path stops resolving, so no lookup caches it past the move
+				pathCache.invalidate(entity);
+				if (srcDrive != destDrive)
+					charge(oldParent, -usage.getBytes());
+				mutations.moved(entity, oldParent, usage, srcPath, tag);
+				lsn = log(JournalRecord.move(tag, srcPath, dest.getPath()));
+			} finally {
+				snapshots.endWrite(tag);
+				unlockPair(oldParent.getLock(), dest.getLock());
+			}
+			// A zip owns everything under it, so a zip moving around keeps its contents as they are
+			if (!(entity instanceof ZipFile)) {
+				ZipFile oldZip = oldParent instanceof ZipFile ? (ZipFile) oldParent : findEnclosingZip(oldParent);
+				ZipFile newZip = dest instanceof ZipFile ? (ZipFile) dest : findEnclosingZip(dest);
+				if (oldZip != newZip)
+					reencode(entity, newZip);
+			}
+		} finally {
+			subtreeLock.unlock(ticket);
+		}
+		awaitDurable(lsn);
+	}
+
+	// Copies srcPath into the directory at destPath, keeping names and modification times; copy-on-write, so O(1)
+	public void copy(String srcPath, String destPath) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			copyEntity(srcPath, destPath);
+			succeeded = true;
+		} finally {
+			instrumentation.record(OperationType.COPY, srcPath, start, succeeded);
+		}
+	}
+
+	private void copyEntity(String srcPath, String destPath) {
+		Entity entity = findEntity(srcPath, drives, pathCache);
+		if (entity.getType() == EntityType.DRIVE)
+			throw new InvalidOperationException("Cannot copy drive");
+		Entity destEntity = findEntity(destPath, drives, pathCache);
+		if (!destEntity.isFileSystemEntity())
 			throw new InvalidOperationException("Destination Path is not a FileSystem");
+		copy(entity, (FileSystemEntity) destEntity);
+	}
+
+	// O(1): the copy shares the source's contents and lists its children on first touch (see CopyLoader)
+	private void copy(Entity entity, FileSystemEntity dest) {
+		long lsn;
+		SubtreeLock.Ticket ticket = subtreeLock.restructure(entity, dest);
+		try {
+			if (entity.isDeleted())
+				throw new EntityNotFoundException("No such entity: " + entity.getName());
+			if (dest.isDeleted())
+				throw new EntityNotFoundException("No such entity: " + dest.getName());
+			dest.checkNameAvailable(entity.getName());
+
+			Entity copy = lazyCopy(entity, dest);
+			SubtreeUsage usage = FSUtils.getUsage(copy);
+			dest.getLock().lock();
+			long tag = snapshots.beginWrite();
+			try {
+				try {
+					// Copying into its own subtree: the copy takes its first level before it becomes part of it
+					freeze(dest);
+					dest.checkNameAvailable(copy.getName());
+					charge(dest, usage.getBytes());
+				} catch (RuntimeException e) {
+					discard(copy, null, null);
+					throw e;
+				}
+				snapshots.recordChild(tag, dest, copy.getName(), null);
+				dest.addChild(copy);
+				mutations.added(dest, copy, tag);
+				lsn = log(JournalRecord.copy(tag, entity.getPath(), dest.getPath()));
+			} finally {
+				snapshots.endWrite(tag);
+				dest.getLock().unlock();
+			}
+		} finally {
+			subtreeLock.unlock(ticket);
+		}
+		awaitDurable(lsn);
+	}
+
+	// Copies keep the source's times and totals; a directory copy gets its children from a CopyLoader
+	private Entity lazyCopy(Entity source, FileSystemEntity parent) {
+		Entity copy = newEntity(source.getType(), source.getName(), parent);
+		if (copy instanceof TextFile) {
+			Content content = ((TextFile) source).getStoredContent();
+			((TextFile) copy).replaceStoredContent(copyContent(findEnclosingZip(copy), content));
+			((TextFile) copy).setContentHash(((TextFile) source).getContentHash());
+		} else {
+			FileSystemEntity dir = (FileSystemEntity) source;
+			FileSystemEntity lazy = (FileSystemEntity) copy;
+			lazy.setSubtree(dir.getSubtreeBytes(), dir.getSubtreeFiles(), dir.getSubtreeEntities(),
+					dir.getNewestModifiedNanos());
+			lazy.setMerkleHash(dir.getMerkleHash());
+			lazy.setChildLoader(new CopyLoader(dir));
+			// Registered before anything can see the copy, and counted before the parent level stops counting
+			pendingCopies.add(lazy);
+			dir.addLazyCopy(lazy);
+		}
+		copy.setLastModifiedNanos(source.getLastModifiedNanos());
+		return copy;
+	}
+
+	// A lazy copy's children, taken from its source on first listing; freeze() keeps the source unchanged until then
+	private final class CopyLoader implements ChildLoader {
+
+		private final FileSystemEntity source;
+
+		private CopyLoader(FileSystemEntity source) {
+			this.source = source;
+		}
 
-		FSValidator.validateNameAlreadyExists(dest.getChildren(), entity);
+		@Override
+		public void load(FileSystemEntity directory, Map<String, Entity> children) {
+			List<Entity> copies = new ArrayList<>();
+			for (Entity child : source.getChildren().values()) {
+				Entity copy = lazyCopy(child, directory);
+				children.put(copy.getName(), copy);
+				copies.add(copy);
+			}
+			cancel(directory);
+			// A copy deleted meanwhile waits for this load and then takes these out again in its discard
+			if (directory.isDeleted())
+				return;
+			for (Entity copy : copies) {
+				indexes.added(directory, copy, 0);
+			}
+		}
 
-		FileSystemEntity oldParent = (FileSystemEntity) entity.getParent();
-		oldParent.removeChild(entity.getName());
+		private void cancel(FileSystemEntity directory) {
+			if (source.removeLazyCopy(directory))
+				pendingCopies.remove(directory);
+		}
+	}
 
-		entity.setParent(dest);
-		dest.addChild(entity);
+	// Called under the locks of a mutation of dir, before it changes dir's children or a file in dir
+	private void freeze(Entity dir) {
+		if (pendingCopies.isEmpty())
+			return;
+		List<FileSystemEntity> chain = new ArrayList<>();
+		for (Entity cur = dir; cur != null; cur = cur.getParent()) {
+			chain.add((FileSystemEntity) cur);
+		}
+		for (int i = chain.size() - 1; i >= 0; i--) {
+			materializeCopies(chain.get(i));
+		}
+	}
 
-		System.out.println("Moved " + entity.getName() + " to " + dest.getPath());
+	// The indexes only hold the levels of a copy listed so far, so a search first lists the rest of those in scope
+	private void loadCopies(Entity scope) {
+		if (pendingCopies.isEmpty())
+			return;
+		for (FileSystemEntity copy : pendingCopies) {
+			if (!copy.isDeleted() && !copy.isMaterialized() && isSameOrAncestor(scope, copy))
+				walker.walk(copy, (node, depth) -> node instanceof FileSystemEntity);
+		}
+	}
+
+	private static void materializeCopies(FileSystemEntity dir) {
+		for (FileSystemEntity copy : dir.getLazyCopies()) {
+			copy.getChildren();
+		}
+	}
+
+	// Immutable contents are shared; compressed ones are re-encoded so each file releases its own
+	private Content copyContent(ZipFile zip, Content content) {
+		Content copied = conform(zip, content);
+		if (copied == content && content instanceof CompressedContent)
+			copied = ((CompressedContent) content).getContext().compress(content.toBytes());
+		else if (copied == content && content instanceof SpillableContent)
+			copied = ((SpillableContent) content).share();
+		else if (copied == content && content instanceof BlobContent)
+			copied = ((BlobContent) content).share();
+		return copied;
+	}
+
+	// Visits path and everything below it on the walk pool; see TreeWalker for what a visitor may assume
+	public void walk(String path, EntityVisitor visitor) {
+		walker.walk(findEntity(path, drives, pathCache), visitor);
+	}
+
+	public TreeStats getTreeStats(String path) {
+		LongAdder folders = new LongAdder();
+		LongAdder zipFiles = new LongAdder();
+		LongAdder textFiles = new LongAdder();
+		LongAdder bytes = new LongAdder();
+		LongAdder emptyDirectories = new LongAdder();
+		AtomicLong largest = new AtomicLong();
+		AtomicInteger maxDepth = new AtomicInteger();
+		walker.walk(findEntity(path, drives, pathCache), (entity, depth) -> {
+			maxDepth.accumulateAndGet(depth, Math::max);
+			if (entity instanceof TextFile) {
+				long size = ((TextFile) entity).getStoredContent().size();
+				textFiles.increment();
+				bytes.add(size);
+				largest.accumulateAndGet(size, Math::max);
+				return false;
+			}
+			if (entity.getType() == EntityType.FOLDER)
+				folders.increment();
+			else if (entity.getType() == EntityType.ZIP_FILE)
+				zipFiles.increment();
+			if (((FileSystemEntity) entity).getChildren().isEmpty())
+				emptyDirectories.increment();
+			return true;
+		});
+		return new TreeStats(folders.sum(), zipFiles.sum(), textFiles.sum(), bytes.sum(), emptyDirectories.sum(),
+				largest.get(), maxDepth.get());
 	}
 
 	public void writeToFile(String path, String content) {
-		Entity entity = findEntity(path, drives);
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			writeToFile(findEntity(path, drives, pathCache), content);
+			succeeded = true;
+		} finally {
+			instrumentation.record(OperationType.WRITE, path, start, succeeded);
+		}
+	}
+
+	private void writeToFile(Entity entity, String content) {
 		if (!(entity instanceof TextFile))
 			throw new InvalidOperationException("Not a text file");
 
-		((TextFile) entity).setContent(content);
-		System.out.println("Wrote to file: " + path);
+		TextFile file = (TextFile) entity;
+		long hash = ContentHash.of(content.getBytes(StandardCharsets.UTF_8));
+		while (true) {
+			// Compress outside the locks, then make sure no move changed the enclosing zip meanwhile
+			ZipFile zip = findEnclosingZip(file);
+			Content stored = encode(zip, content);
+			long lsn;
+			SubtreeLock.Ticket ticket = subtreeLock.share(file);
+			try {
+				// Serializes writers of one file so its revisions stay in version order
+				synchronized (file) {
+					if (findEnclosingZip(file) != zip) {
+						stored.release();
+						continue;
+					}
+					if (file.isDeleted()) {
+						stored.release();
+						throw new EntityNotFoundException("No such entity: " + file.getName());
+					}
+					freeze(file.getParent());
+					long delta = stored.size() - file.getStoredContent().size();
+					try {
+						charge(file, delta);
+					} catch (QuotaExceededException e) {
+						stored.release();
+						throw e;
+					}
+					long tag = snapshots.beginWrite();
+					try {
+						snapshots.recordContent(tag, file);
+						Content previous = file.getStoredContent();
+						file.setContent(stored);
+						previous.release();
+						mutations.written(file, delta, hash, null, content, tag);
+						lsn = log(JournalRecord.write(tag, file.getPath(), content));
+					} finally {
+						snapshots.endWrite(tag);
+					}
+				}
+			} finally {
+				subtreeLock.unlock(ticket);
+			}
+			awaitDurable(lsn);
+			return;
+		}
+	}
+
+	private CompressionContext newCompressionContext() {
+		return new CompressionContext(config.getZipCodec(), config.getZipBlockSize(), config.getZipCachedBlocks());
+	}
+
+	private Content encode(ZipFile zip, String content) {
+		if (zip != null)
+			return zip.getCompression().compress(content);
+		if (blobStore != null)
+			return blobStore.store(content.getBytes(StandardCharsets.UTF_8), () -> encodeUnique(content));
+		return encodeUnique(content);
+	}
+
+	// The stored form of a content outside zips, before any sharing
+	private Content encodeUnique(String content) {
+		if (spillStore != null)
+			return spillStore.store(new PlainContent(content));
+		return offHeap == null ? new PlainContent(content) : offHeap.store(content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// Keeps the stored form in line with the file's location after a byte level update
+	private Content conform(ZipFile zip, Content content) {
+		// A blob was stored in the tier of its first writer, which is this worker's
+		if (zip == null && content instanceof BlobContent && ((BlobContent) content).getStore() == blobStore)
+			return content;
+		if (zip == null && offHeap != null) {
+			if (content instanceof OffHeapContent && ((OffHeapContent) content).getStore() == offHeap)
+				return content;
+			return offHeap.store(content.toBytes());
+		}
+		if (zip == null && spillStore != null) {
+			if (content instanceof SpillableContent && ((SpillableContent) content).getStore() == spillStore)
+				return content;
+			return spillStore.store(content instanceof CompressedContent ? ChunkedContent.of(content.toBytes()) : content);
+		}
+		if (zip == null) {
+			return content instanceof CompressedContent ? ChunkedContent.of(content.toBytes()) : content;
+		}
+		if (content instanceof CompressedContent && ((CompressedContent) content).getContext() == zip.getCompression())
+			return content;
+		return zip.getCompression().compress(content.toBytes());
+	}
+
+	// Runs under the move's subtree lock after a move across a zip boundary
+	private void reencode(Entity entity, ZipFile zip) {
+		if (entity instanceof TextFile) {
+			TextFile file = (TextFile) entity;
+			synchronized (file) {
+				if (file.isDeleted())
+					return;
+				Content previous = file.getStoredContent();
+				file.replaceStoredContent(conform(zip, previous));
+				previous.release();
+			}
+		} else if (entity instanceof FileSystemEntity && !(entity instanceof ZipFile)) {
+			for (Entity child : ((FileSystemEntity) entity).getChildren().values()) {
+				reencode(child, zip);
+			}
+		}
+	}
+
+	public void appendToFile(String path, String text) {
+		appendToFile(path, text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public void appendToFile(String path, byte[] data) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			updateContent(findEntity(path, drives, pathCache), ContentPatch.append(data));
+			succeeded = true;
+		} finally {
+			instrumentation.record(OperationType.PATCH, path, start, succeeded);
+		}
+	}
+
+	public void writeToFile(String path, long offset, byte[] data) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			updateContent(findEntity(path, drives, pathCache), ContentPatch.write(offset, data, false));
+			succeeded = true;
+		} finally {
+			instrumentation.record(OperationType.PATCH, path, start, succeeded);
+		}
+	}
+
+	public byte[] readFromFile(String path, long offset, int length) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			byte[] result = toTextFile(findEntity(path, drives, pathCache)).getStoredContent().read(offset, length);
+			succeeded = true;
+			return result;
+		} finally {
+			instrumentation.record(OperationType.READ, path, start, succeeded);
+		}
+	}
+
+	public void truncateFile(String path, long size) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			updateContent(findEntity(path, drives, pathCache), ContentPatch.truncate(size, false));
+			succeeded = true;
+		} finally {
+			instrumentation.record(OperationType.PATCH, path, start, succeeded);
+		}
+	}
+
+	public long getFileSize(String path) {
+		return toTextFile(findEntity(path, drives, pathCache)).getStoredContent().size();
+	}
+
+	public InputStream newInputStream(String path) {
+		return new ContentInputStream(toTextFile(findEntity(path, drives, pathCache)).getStoredContent());
+	}
+
+	public OutputStream newOutputStream(String path, boolean append) {
+		TextFile file = toTextFile(findEntity(path, drives, pathCache));
+		if (!append)
+			updateContent(file, ContentPatch.truncate(0, false));
+		return new TextFileOutputStream(this, file);
+	}
+
+	public SeekableByteChannel newByteChannel(String path) {
+		return new TextFileChannel(this, toTextFile(findEntity(path, drives, pathCache)));
+	}
+
+	// Byte level updates run under the file lock; content versions are persistent so this is cheap
+	void updateContent(Entity entity, ContentPatch patch) {
+		TextFile file = toTextFile(entity);
+		long lsn = 0;
+		SubtreeLock.Ticket ticket = subtreeLock.share(file);
+		try {
+			synchronized (file) {
+				if (file.isDeleted())
+					throw new EntityNotFoundException("No such entity: " + file.getName());
+				long tag = snapshots.beginWrite();
+				try {
+					Content previous = file.getStoredContent();
+					Content updated = conform(findEnclosingZip(file), patch.apply(previous));
+					if (updated != previous) {
+						freeze(file.getParent());
+						long delta = updated.size() - previous.size();
+						charge(file, delta);
+						snapshots.recordContent(tag, file);
+						long hash = patchedHash(file.getContentHash(), patch, previous, updated);
+						file.setContent(updated);
+						previous.release();
+						mutations.written(file, delta, hash, patch, null, tag);
+						lsn = log(JournalRecord.patch(tag, file.getPath(), patch));
+					}
+				} finally {
+					snapshots.endWrite(tag);
+				}
+			}
+		} finally {
+			subtreeLock.unlock(ticket);
+		}
+		awaitDurable(lsn);
+	}
+
+	private static TextFile toTextFile(Entity entity) {
+		if (!(entity instanceof TextFile))
+			throw new InvalidOperationException("Not a text file");
+		return (TextFile) entity;
 	}
 
 	//Thought about this while writing tests. add on feature!!
 	public void rename(String path, String newName) {
-		Entity entity = findEntity(path, drives);
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			rename(findEntity(path, drives, pathCache), newName);
+			succeeded = true;
+		} finally {
+			instrumentation.record(OperationType.RENAME, path, start, succeeded);
+		}
+	}
+
+	private void rename(Entity entity, String newName) {
 		if (entity.getType() == EntityType.DRIVE)
 			throw new InvalidOperationException("Cannot rename drive");
 
 		FSValidator.validateEntityName(entity.getType(), newName);
 
-		FileSystemEntity parent = (FileSystemEntity) entity.getParent();
-		FSValidator.validateNameAlreadyExists(parent.getChildren(), newName);
+		long lsn;
+		// A rename changes the path of the whole subtree, so it excludes writers journaling paths below it
+		SubtreeLock.Ticket ticket = subtreeLock.restructure(entity);
+		try {
+			lsn = renameLocked(entity, newName);
+		} finally {
+			subtreeLock.unlock(ticket);
+		}
+		awaitDurable(lsn);
+	}
+
+	private long renameLocked(Entity entity, String newName) {
+		long lsn;
+		FileSystemEntity parent = lockParent(entity);
+		long tag = snapshots.beginWrite();
+		try {
+			if (entity.isDeleted())
+				throw new EntityNotFoundException("No such entity: " + entity.getName());
+			FSValidator.validateNameAlreadyExists(parent.getChildren(), newName);
+			freeze(parent);
+
+			String oldPath = entity.getPath();
+			String oldName = entity.getName();
+			snapshots.recordChild(tag, parent, newName, null);
+			snapshots.recordChild(tag, parent, oldName, entity);
+			snapshots.recordName(tag, entity);
+			long oldTerm = MerkleHash.term(entity);
+			parent.getChildren().put(newName, entity);
+			entity.setName(names.intern(newName));
+			parent.getChildren().remove(oldName);
+			pathCache.invalidate(entity);
+			entity.updateLastModified();
+			mutations.renamed(entity, oldName, oldTerm, oldPath, tag);
+			lsn = log(JournalRecord.rename(tag, oldPath, newName));
+		} finally {
+			snapshots.endWrite(tag);
+			parent.getLock().unlock();
+		}
+		return lsn;
+	}
+
+	// Handles pin the Entity itself, so they survive move/rename and skip path resolution
+	public long open(String path) {
+		Entity entity = findEntity(path, drives, pathCache);
+		long handle = handleIds.incrementAndGet();
+		handles.put(handle, entity);
+		return handle;
+	}
+
+	public void close(long handle) {
+		if (handles.remove(handle) == null)
+			throw new InvalidOperationException("Invalid handle: " + handle);
+	}
+
+	public String read(long handle) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			String result = toTextFile(resolveHandle(handle)).getContent();
+			succeeded = true;
+			return result;
+		} finally {
+			instrumentation.record(OperationType.READ, null, start, succeeded);
+		}
+	}
+
+	public void write(long handle, String content) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			writeToFile(resolveHandle(handle), content);
+			succeeded = true;
+		} finally {
+			instrumentation.record(OperationType.WRITE, null, start, succeeded);
+		}
+	}
+
+	public byte[] read(long handle, long offset, int length) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			byte[] result = toTextFile(resolveHandle(handle)).getStoredContent().read(offset, length);
+			succeeded = true;
+			return result;
+		} finally {
+			instrumentation.record(OperationType.READ, null, start, succeeded);
+		}
+	}
+
+	public void write(long handle, long offset, byte[] data) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			updateContent(resolveHandle(handle), ContentPatch.write(offset, data, false));
+			succeeded = true;
+		} finally {
+			instrumentation.record(OperationType.PATCH, null, start, succeeded);
+		}
+	}
+
+	public void append(long handle, byte[] data) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			updateContent(resolveHandle(handle), ContentPatch.append(data));
+			succeeded = true;
+		} finally {
+			instrumentation.record(OperationType.PATCH, null, start, succeeded);
+		}
+	}
+
+	public void rename(long handle, String newName) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			rename(resolveHandle(handle), newName);
+			succeeded = true;
+		} finally {
+			instrumentation.record(OperationType.RENAME, null, start, succeeded);
+		}
+	}
+
+	public void delete(long handle) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			delete(resolveHandle(handle));
+			succeeded = true;
+		} finally {
+			instrumentation.record(OperationType.DELETE, null, start, succeeded);
+		}
+	}
+
+	public String getPath(long handle) {
+		return resolveHandle(handle).getPath();
+	}
+
+	// Re-checks after locking because a concurrent move may have changed the parent
+	private static FileSystemEntity lockParent(Entity entity) {
+		while (true) {
+			FileSystemEntity parent = (FileSystemEntity) entity.getParent();
+			parent.getLock().lock();
+			if (entity.getParent() == parent)
+				return parent;
+			parent.getLock().unlock();
+		}
+	}
 
-		parent.getChildren().remove(entity.getName());
-		entity.setName(newName);
+	// Enforces the drive's quota before the mutation happens; SubtreeTotals then carries the applied delta up
+	private static void charge(Entity entity, long bytes) {
+		if (bytes == 0)
+			return;
+		Drive drive = getDrive(entity);
+		if (!drive.tryChargeBytes(bytes))
+			throw new QuotaExceededException("Quota of drive " + drive.getName() + " exceeded");
+	}
 
-		parent.getChildren().put(newName, entity);
-		entity.updateLastModified();
+	// Reads only the bytes the patch replaces or cuts off, so must run before previous is released
+	private static long patchedHash(long hash, ContentPatch patch, Content previous, Content updated) {
+		if (updated.size() == 0)
+			return 0;
+		long size = previous.size();
+		switch (patch.getKind()) {
+		case APPEND:
+			return ContentHash.append(hash, patch.getData());
+		case WRITE:
+			long offset = patch.getOffset();
+			if (offset > size) {
+				// A lenient write zero fills up to its offset first
+				hash = ContentHash.append(hash, new byte[(int) (offset - size)]);
+				size = offset;
+			}
+			int replaced = (int) Math.min(patch.getData().length, size - offset);
+			byte[] old = replaced == 0 ? new byte[0] : previous.read(offset, replaced);
+			return ContentHash.write(hash, size, offset, old, patch.getData());
+		default:
+			long tail = 0;
+			for (long at = updated.size(); at < size; at += HASH_CHUNK) {
+				tail = ContentHash.append(tail, previous.read(at, (int) Math.min(HASH_CHUNK, size - at)));
+			}
+			return ContentHash.truncate(hash, tail, size - updated.size());
+		}
+	}
 
-		System.out.println("Renamed entity to: " + newName);
+	// Appended while the mutation still holds its locks, so journal order matches apply order
+	private long log(JournalRecord record) {
+		ReplicationLog followers = replicationLog;
+		if (followers != null)
+			followers.append(record);
+		return journal == null ? 0 : journal.append(record);
+	}
+
+	// Waits for the group commit carrying the record; called once every lock is released
+	private void awaitDurable(long lsn) {
+		if (lsn != 0)
+			journal.awaitDurable(lsn);
+	}
+
+	// Directory locks go in entity id order; overall: subtree ticket, drivesLock, directory locks, file monitor
+	private static void lockPair(Entity a, Lock aLock, Entity b, Lock bLock) {
+		if (a == b) {
+			aLock.lock();
+		} else if (a.getId() < b.getId()) {
+			aLock.lock();
+			bLock.lock();
+		} else {
+			bLock.lock();
+			aLock.lock();
+		}
+	}
+
+	private static void unlockPair(Lock aLock, Lock bLock) {
+		aLock.unlock();
+		if (aLock != bLock)
+			bLock.unlock();
+	}
+
+	private Entity resolveHandle(long handle) {
+		Entity entity = handles.get(handle);
+		if (entity == null)
+			throw new InvalidOperationException("Invalid handle: " + handle);
+		if (entity.isDeleted())
+			throw new EntityNotFoundException("Entity has been deleted: " + entity.getName());
+		return entity;
 	}
 
 	public Map<String, FileSystemEntity> getDrives() {
 		return drives;
 	}
 
+	// O(1) point-in-time view; readers walk it without locks while writers carry on
+	public FileSystemSnapshot snapshot() {
+		return snapshots.open(drives);
+	}
+
+	// What differs between the trees at pathA and pathB, with paths relative to both; identical subtrees are skipped by hash
+	public List<DiffEntry> diff(String pathA, String pathB) {
+		return diff(pathA, this, pathB);
+	}
+
+	// Against a tree of another worker, e.g. to find what a sync between the two has to send
+	public List<DiffEntry> diff(String path, FileSystemWorker other, String otherPath) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			List<DiffEntry> result = diffTrees(findEntity(path, drives, pathCache), other,
+					findEntity(otherPath, other.drives, other.pathCache));
+			succeeded = true;
+			return result;
+		} finally {
+			instrumentation.record(OperationType.DIFF, path, start, succeeded);
+		}
+	}
+
+	// A diff only reads hashes, so both subtrees are shared; across workers the tickets go in worker id order
+	private List<DiffEntry> diffTrees(Entity from, FileSystemWorker other, Entity to) {
+		if (other == this) {
+			SubtreeLock.Ticket ticket = subtreeLock.shareSubtrees(from, to);
+			try {
+				return compareShared(from, to);
+			} finally {
+				subtreeLock.unlock(ticket);
+			}
+		}
+		boolean fromFirst = id < other.id;
+		SubtreeLock firstLock = fromFirst ? subtreeLock : other.subtreeLock;
+		SubtreeLock secondLock = fromFirst ? other.subtreeLock : subtreeLock;
+		SubtreeLock.Ticket first = firstLock.shareSubtrees(fromFirst ? from : to);
+		try {
+			SubtreeLock.Ticket second = secondLock.shareSubtrees(fromFirst ? to : from);
+			try {
+				return compareShared(from, to);
+			} finally {
+				secondLock.unlock(second);
+			}
+		} finally {
+			firstLock.unlock(first);
+		}
+	}
+
+	private static List<DiffEntry> compareShared(Entity from, Entity to) {
+		if (from.isDeleted())
+			throw new EntityNotFoundException("No such entity: " + from.getName());
+		if (to.isDeleted())
+			throw new EntityNotFoundException("No such entity: " + to.getName());
+		return TreeDiff.compare(from, to);
+	}
+
+	// What changed at path since the snapshot; only directories a write went through since are listed
+	public List<DiffEntry> diff(FileSystemSnapshot snapshot, String path) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			SnapshotEntity from = snapshot.getEntity(path);
+			Entity to = findEntity(path, drives, pathCache);
+			SubtreeLock.Ticket ticket = subtreeLock.shareSubtrees(to);
+			try {
+				if (to.isDeleted())
+					throw new EntityNotFoundException("No such entity: " + path);
+				List<DiffEntry> result = TreeDiff.compare(from, to);
+				succeeded = true;
+				return result;
+			} finally {
+				subtreeLock.unlock(ticket);
+			}
+		} finally {
+			instrumentation.record(OperationType.DIFF, path, start, succeeded);
+		}
+	}
+
+	// What changed on every drive since the snapshot, with paths starting at the drive name
+	public List<DiffEntry> diff(FileSystemSnapshot snapshot) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			List<DiffEntry> result = diffDrives(snapshot);
+			succeeded = true;
+			return result;
+		} finally {
+			instrumentation.record(OperationType.DIFF, null, start, succeeded);
+		}
+	}
+
+	// Shares every drive, then copies the drive map under drivesLock if it still holds just those
+	private List<DiffEntry> diffDrives(FileSystemSnapshot snapshot) {
+		while (true) {
+			List<FileSystemEntity> shared = new ArrayList<>(drives.values());
+			SubtreeLock.Ticket ticket = subtreeLock.shareSubtrees(shared.toArray(new Entity[0]));
+			try {
+				Map<String, FileSystemEntity> current;
+				drivesLock.lock();
+				try {
+					if (drives.size() != shared.size() || !drives.values().containsAll(shared))
+						continue;
+					current = new HashMap<>(drives);
+				} finally {
+					drivesLock.unlock();
+				}
+				return TreeDiff.compareDrives(snapshot.getDrives(), current);
+			} finally {
+				subtreeLock.unlock(ticket);
+			}
+		}
+	}
+
+	// Written from a snapshot, so writers carry on while the image is saved
+	public void saveImage(Path path) throws IOException {
+		try (FileSystemSnapshot snapshot = snapshot()) {
+			ImageWriter.write(snapshot, path);
+		}
+	}
+
+	// Contents are read from the mapping on first touch; with a journal, a copy of the image is what is loaded and logged
+	public void loadImage(Path path) throws IOException {
+		if (journal == null) {
+			loadImage(path, path.toAbsolutePath().toString());
+			return;
+		}
+		Path copy = Files.createTempFile(config.getJournalDirectory(), FileSystemConstants.LOADED_IMAGE_PREFIX, ".img");
+		try {
+			Files.copy(path, copy, StandardCopyOption.REPLACE_EXISTING);
+			loadImage(copy, copy.getFileName().toString());
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(copy);
+			throw e;
+		}
+	}
+
+	private void loadImage(Path path, String logged) throws IOException {
+		awaitDurable(addDrives(FileSystemImage.open(path).getDrives(names, this::newCompressionContext), logged));
+	}
+
+	// A relative name is a copy in the journal directory; a follower has none and bootstraps again instead
+	private Path loggedImage(String logged) {
+		Path path = Paths.get(logged);
+		if (path.isAbsolute())
+			return path;
+		if (config.getJournalDirectory() == null)
+			throw new InvalidOperationException("Image is only in the leader's journal directory: " + logged);
+		return config.getJournalDirectory().resolve(path);
+	}
+
+	private long addDrives(List<Drive> loaded, String logged) {
+		drivesLock.lock();
+		long tag = snapshots.beginWrite();
+		try {
+			for (Drive drive : loaded) {
+				if (drives.containsKey(drive.getName()))
+					throw new NameConflictException("Drive already exists: " + drive.getName());
+			}
+			for (Drive drive : loaded) {
+				snapshots.recordDrive(tag, drive.getName(), null);
+				drives.put(drive.getName(), drive);
+				mutations.added(null, drive, tag);
+			}
+			if (logged == null)
+				return 0;
+			if (!Paths.get(logged).isAbsolute())
+				loadedImages.put(logged, tag);
+			return log(JournalRecord.loadImage(tag, logged));
+		} finally {
+			snapshots.endWrite(tag);
+			drivesLock.unlock();
+		}
+	}
+
+	public ReplicationLog getReplicationLog() {
+		ReplicationLog log = replicationLog;
+		if (log == null) {
+			synchronized (this) {
+				log = replicationLog;
+				if (log == null) {
+					log = new ReplicationLog(config.getReplicationLogCapacity());
+					replicationLog = log;
+				}
+			}
+		}
+		return log;
+	}
+
+	// A fresh snapshot image plus the first log sequence a new follower needs after it
+	public long exportReplicaImage(Path image) throws IOException {
+		long next = getReplicationLog().getLastSeq() + 1;
+		try (FileSystemSnapshot snapshot = snapshot()) {
+			ImageWriter.write(snapshot, image);
+		}
+		return next;
+	}
+
+	// Saves the tree next to the journal and drops the journal records the image now covers
+	public void checkpoint() throws IOException {
+		if (journal == null)
+			throw new InvalidOperationException("Journal is not enabled");
+		checkpointLock.lock();
+		try (FileSystemSnapshot snapshot = snapshot()) {
+			ImageWriter.write(snapshot, config.getJournalDirectory().resolve(FileSystemConstants.CHECKPOINT_FILE));
+			journal.truncate(snapshot.getVersion());
+			// Contents still mapped from a copy stay readable once it is deleted
+			for (Map.Entry<String, Long> copy : loadedImages.entrySet()) {
+				if (copy.getValue() <= snapshot.getVersion() && loadedImages.remove(copy.getKey(), copy.getValue()))
+					Files.deleteIfExists(config.getJournalDirectory().resolve(copy.getKey()));
+			}
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+
+	// Operation counts and latencies; empty unless the config supplies an Instrumentation that keeps them
+	public FileSystemStats stats() {
+		return instrumentation.stats();
+	}
+
+	// du style totals, read from the directory itself rather than walked
+	public SubtreeUsage getUsage(String path) {
+		return FSUtils.getUsage(findEntity(path, drives, pathCache));
+	}
+
+	public List<String> find(String driveName, String glob) {
+		return find(driveName, glob, null);
+	}
+
+	// Matches names, or with a separator paths below the drive; answered from the name index where it can, lock free
+	public List<String> find(String driveName, String glob, EntityType type) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			List<String> result = findPaths(driveName, GlobPattern.of(glob), type);
+			succeeded = true;
+			return result;
+		} finally {
+			instrumentation.record(OperationType.READ, driveName, start, succeeded);
+		}
+	}
+
+	private List<String> findPaths(String driveName, GlobPattern pattern, EntityType type) {
+		FileSystemEntity driveEntity = drives.get(driveName);
+		if (driveEntity == null)
+			throw new EntityNotFoundException("Drive not found: " + driveName);
+		Drive drive = (Drive) driveEntity;
+		NameIndex index = nameIndex(drive);
+		loadCopies(drive);
+		int prefix = driveName.length() + 1;
+
+		Collection<Entity> candidates;
+		if (pattern.getLiteralName() != null) {
+			candidates = index.findByName(pattern.getLiteralName());
+		} else if (pattern.getExtension() != null) {
+			candidates = index.findByExtension(pattern.getExtension());
+		} else if (!pattern.isPathPattern()) {
+			candidates = new ArrayList<>();
+			for (String name : index.getNames()) {
+				if (pattern.matches(name))
+					candidates.addAll(index.findByName(name));
+			}
+		} else if (type != null) {
+			candidates = index.findByType(type);
+		} else {
+			Collection<String> found = new ConcurrentLinkedQueue<>();
+			drive.getChildren().values().parallelStream()
+					.forEach(child -> collect(child, child.getName(), pattern, found));
+			List<String> paths = new ArrayList<>(found.size());
+			for (String relativePath : found) {
+				paths.add(driveName + "\\" + relativePath);
+			}
+			paths.sort(null);
+			return paths;
+		}
+
+		List<String> paths = new ArrayList<>();
+		for (Entity entity : candidates) {
+			if (entity.isDeleted() || (type != null && entity.getType() != type) || getDrive(entity) != drive)
+				continue;
+			String path = entity.getPath();
+			if (pattern.matches(pattern.isPathPattern() ? path.substring(prefix) : entity.getName()))
+				paths.add(path);
+		}
+		paths.sort(null);
+		return paths;
+	}
+
+	private static void collect(Entity entity, String relativePath, GlobPattern pattern, Collection<String> found) {
+		if (pattern.matches(relativePath))
+			found.add(relativePath);
+		if (entity instanceof FileSystemEntity) {
+			for (Entity child : ((FileSystemEntity) entity).getChildren().values()) {
+				collect(child, relativePath + "\\" + child.getName(), pattern, found);
+			}
+		}
+	}
+
+	// Built holding the whole drive, so no create, move, rename or delete slips past the initial walk
+	private NameIndex nameIndex(Drive drive) {
+		NameIndex index = drive.getNameIndex();
+		if (index != null)
+			return index;
+		SubtreeLock.Ticket ticket = subtreeLock.restructureSubtrees(drive);
+		try {
+			index = drive.getNameIndex();
+			if (index == null) {
+				index = new NameIndex();
+				for (Entity child : drive.getChildren().values()) {
+					index.addSubtree(child);
+				}
+				drive.setNameIndex(index);
+			}
+			return index;
+		} finally {
+			subtreeLock.unlock(ticket);
+		}
+	}
+
+	// Text files at or below path matching words, OR alternatives and "quoted phrases"; needs the full-text index
+	public List<String> search(String path, String query) {
+		long start = instrumentation.start();
+		boolean succeeded = false;
+		try {
+			List<String> result = searchText(path, TextQuery.parse(query));
+			succeeded = true;
+			return result;
+		} finally {
+			instrumentation.record(OperationType.READ, path, start, succeeded);
+		}
+	}
+
+	private List<String> searchText(String path, TextQuery query) {
+		if (!config.isFullTextIndex())
+			throw new InvalidOperationException("Full-text index is not enabled");
+		Entity scope = findEntity(path, drives, pathCache);
+		Drive drive = getDrive(scope);
+		TextIndex index = textIndex(drive);
+		loadCopies(scope);
+		List<String> paths = new ArrayList<>();
+		for (TextFile file : index.search(query)) {
+			if (!file.isDeleted() && isSameOrAncestor(scope, file) && getDrive(file) == drive)
+				paths.add(file.getPath());
+		}
+		paths.sort(null);
+		return paths;
+	}
+
+	// Content writers share the files they write, so holding the whole drive lets the initial pass read a stable tree
+	private TextIndex textIndex(Drive drive) {
+		TextIndex index = drive.getTextIndex();
+		if (index != null)
+			return index;
+		SubtreeLock.Ticket ticket = subtreeLock.restructureSubtrees(drive);
+		try {
+			index = drive.getTextIndex();
+			if (index == null) {
+				index = new TextIndex();
+				index.addSubtree(drive);
+				drive.setTextIndex(index);
+			}
+			return index;
+		} finally {
+			subtreeLock.unlock(ticket);
+		}
+	}
+
+	// Caps the content bytes a drive may hold; 0 removes the cap. Quotas are not journaled or saved in images
+	public void setQuota(String driveName, long bytes) {
+		FileSystemEntity drive = drives.get(driveName);
+		if (drive == null)
+			throw new EntityNotFoundException("Drive not found: " + driveName);
+		((Drive) drive).setQuotaBytes(bytes);
+	}
+
+	// Null unless a content memory budget is configured
+	public SpillStats getSpillStats() {
+		return spillStore == null ? null : spillStore.getStats();
+	}
+
+	// Null unless content deduplication is configured
+	public DedupStats getDedupStats() {
+		return blobStore == null ? null : blobStore.getStats();
+	}
+
+	// Null unless a journal directory is configured
+	public JournalStats getJournalStats() {
+		return journal == null ? null : journal.getStats();
+	}
+
+	// The key follows the path, not the entity; delivery is asynchronous and batched
+	public WatchKey watch(String path, boolean recursive, WatchListener listener) {
+		return watchers.register(findEntity(path, drives, pathCache).getPath(), recursive, listener);
+	}
+
+	// Per-drive single-writer execution with futures; created on first use and stopped by close()
+	public AsyncFileSystemWorker async() {
+		AsyncFileSystemWorker current = async;
+		if (current == null) {
+			synchronized (this) {
+				current = async;
+				if (current == null) {
+					current = new AsyncFileSystemWorker(this);
+					async = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	// Null until the first watch is registered
+	public WatchStats getWatchStats() {
+		return watchers.getStats();
+	}
+
+	// Syncs the journal and stops its flusher, the drive writers and the watch dispatcher; the in-memory tree stays usable for reads
+	@Override
+	public void close() {
+		AsyncFileSystemWorker current = async;
+		if (current != null)
+			current.close();
+		watchers.close();
+		if (walkPool != ForkJoinPool.commonPool())
+			walkPool.shutdown();
+		if (journal == null)
+			return;
+		try {
+			journal.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public CompressionStats getCompressionStats(String zipPath) {
+		Entity entity = findEntity(zipPath, drives, pathCache);
+		if (!(entity instanceof ZipFile))
+			throw new InvalidOperationException("Not a zip file");
+		return ((ZipFile) entity).getCompression().getStats();
+	}
+
+	public PathCache getPathCache() {
+		return pathCache;
+	}
+
+	// Null unless off-heap content is enabled in the config
+	public OffHeapStore getOffHeapStore() {
+		return offHeap;
+	}
+
+	// Walks every drive, so meant for monitoring rather than hot paths
+	public ContentMemoryUsage getContentMemoryUsage() {
+		long[] totals = new long[2];
+		for (FileSystemEntity drive : drives.values()) {
+			addContentUsage(drive, totals);
+		}
+		return new ContentMemoryUsage(totals[0], totals[1], offHeap == null ? 0 : offHeap.getUsedBytes(),
+				offHeap == null ? 0 : offHeap.getReservedBytes());
+	}
+
+	private static void addContentUsage(Entity entity, long[] totals) {
+		if (entity instanceof TextFile) {
+			totals[0]++;
+			totals[1] += ((TextFile) entity).getStoredContent().heapBytes();
+		} else if (entity instanceof FileSystemEntity) {
+			for (Entity child : ((FileSystemEntity) entity).getChildren().values()) {
+				addContentUsage(child, totals);
+			}
+		}
+	}
+
 }
@@ -0,0 +1,56 @@
+package com.mayfly.imfs.service;
+
+import com.mayfly.imfs.content.ContentPatch;
+import com.mayfly.imfs.diff.MerkleHash;
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.model.FileSystemEntity;
+import com.mayfly.imfs.model.SubtreeUsage;
+import com.mayfly.imfs.model.TextFile;
+
+// Shifts each directory's hash by its child's term delta, up the chain, stamping every level with the write's epoch
+final class MerkleHashes implements MutationListener {
+
+	@Override
+	public void added(FileSystemEntity parent, Entity entity, long tag) {
+		if (parent != null)
+			rehash(parent, 0, MerkleHash.term(entity), tag);
+	}
+
+	@Override
+	public void removed(FileSystemEntity parent, Entity entity, SubtreeUsage usage, String path, long tag) {
+		if (parent != null)
+			rehash(parent, MerkleHash.term(entity), 0, tag);
+	}
+
+	@Override
+	public void moved(Entity entity, FileSystemEntity oldParent, SubtreeUsage usage, String oldPath, long tag) {
+		long term = MerkleHash.term(entity);
+		rehash((FileSystemEntity) entity.getParent(), 0, term, tag);
+		rehash(oldParent, term, 0, tag);
+	}
+
+	@Override
+	public void renamed(Entity entity, String oldName, long oldTerm, String oldPath, long tag) {
+		rehash((FileSystemEntity) entity.getParent(), oldTerm, MerkleHash.term(entity), tag);
+	}
+
+	// Runs under the file's monitor, so writers of one file hand the hash on in order
+	@Override
+	public void written(TextFile file, long delta, long hash, ContentPatch patch, String text, long tag) {
+		long oldTerm = MerkleHash.term(file);
+		file.setContentHash(hash);
+		rehash((FileSystemEntity) file.getParent(), oldTerm, MerkleHash.term(file), tag);
+	}
+
+	private static void rehash(FileSystemEntity dir, long oldTerm, long newTerm, long tag) {
+		for (FileSystemEntity cur = dir; cur != null; cur = (FileSystemEntity) cur.getParent()) {
+			cur.markChanged(tag);
+			if (oldTerm != newTerm) {
+				long delta = MerkleHash.delta(oldTerm, newTerm);
+				long before = cur.shiftMerkleHash(delta);
+				oldTerm = MerkleHash.term(cur, before);
+				newTerm = MerkleHash.term(cur, MerkleHash.add(before, delta));
+			}
+		}
+	}
+}
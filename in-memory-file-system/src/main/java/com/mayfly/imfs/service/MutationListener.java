@@ -0,0 +1,31 @@
+package com.mayfly.imfs.service;
+
+import com.mayfly.imfs.content.ContentPatch;
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.model.FileSystemEntity;
+import com.mayfly.imfs.model.SubtreeUsage;
+import com.mayfly.imfs.model.TextFile;
+
+// A subsystem kept in step with the tree; called after each change, under its locks and tag, before it is journaled
+interface MutationListener {
+
+	// entity was linked below parent; parent is null for a drive
+	default void added(FileSystemEntity parent, Entity entity, long tag) {
+	}
+
+	// entity was unlinked from parent and is about to be discarded; parent is null for a drive
+	default void removed(FileSystemEntity parent, Entity entity, SubtreeUsage usage, String path, long tag) {
+	}
+
+	// entity now sits below its new parent
+	default void moved(Entity entity, FileSystemEntity oldParent, SubtreeUsage usage, String oldPath, long tag) {
+	}
+
+	// oldTerm is the entity's MerkleHash term under its old name
+	default void renamed(Entity entity, String oldName, long oldTerm, String oldPath, long tag) {
+	}
+
+	// Under the file's monitor; hash is the new content hash, text the new content or patch the change when the caller has them
+	default void written(TextFile file, long delta, long hash, ContentPatch patch, String text, long tag) {
+	}
+}
@@ -0,0 +1,55 @@
+package com.mayfly.imfs.service;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.mayfly.imfs.content.ContentPatch;
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.model.FileSystemEntity;
+import com.mayfly.imfs.model.SubtreeUsage;
+import com.mayfly.imfs.model.TextFile;
+
+// The one hook a mutation calls; hands it on to every registered listener in order
+final class MutationPipeline implements MutationListener {
+
+	private final List<MutationListener> listeners;
+
+	MutationPipeline(MutationListener... listeners) {
+		this.listeners = Arrays.asList(listeners);
+	}
+
+	@Override
+	public void added(FileSystemEntity parent, Entity entity, long tag) {
+		for (MutationListener listener : listeners) {
+			listener.added(parent, entity, tag);
+		}
+	}
+
+	@Override
+	public void removed(FileSystemEntity parent, Entity entity, SubtreeUsage usage, String path, long tag) {
+		for (MutationListener listener : listeners) {
+			listener.removed(parent, entity, usage, path, tag);
+		}
+	}
+
+	@Override
+	public void moved(Entity entity, FileSystemEntity oldParent, SubtreeUsage usage, String oldPath, long tag) {
+		for (MutationListener listener : listeners) {
+			listener.moved(entity, oldParent, usage, oldPath, tag);
+		}
+	}
+
+	@Override
+	public void renamed(Entity entity, String oldName, long oldTerm, String oldPath, long tag) {
+		for (MutationListener listener : listeners) {
+			listener.renamed(entity, oldName, oldTerm, oldPath, tag);
+		}
+	}
+
+	@Override
+	public void written(TextFile file, long delta, long hash, ContentPatch patch, String text, long tag) {
+		for (MutationListener listener : listeners) {
+			listener.written(file, delta, hash, patch, text, tag);
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package com.mayfly.imfs.service;
+
+import static com.mayfly.imfs.utils.FSUtils.isSameOrAncestor;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mayfly.imfs.model.Entity;
+
+/*
+ * Keeps a restructuring of one subtree apart from the mutations inside it, like a VFS
+ * rename lock scoped to the subtree. A mutation shares the nodes it works on: a writer its
+ * file, a create its parent. Renames, moves, deletes and copies hold the subtree they
+ * change the shape or the paths of, plus any directory they add to; they wait for the
+ * holders working at or below that subtree, and holders arriving meanwhile step back until
+ * they are done. So the chain above a held node keeps its names and parents, which is what
+ * journaled paths and the totals and hashes carried up the chain rely on.
+ *
+ * Tickets only wait for tickets whose nodes overlap that way: a rename waits for nothing
+ * outside its subtree, and while nothing is being restructured sharing is one insert into
+ * a concurrent set, with no counter all writers have in common.
+ */
+final class SubtreeLock {
+
+	private static final Entity[] NONE = new Entity[0];
+
+	// Shared tickets; each registers before it looks for an exclusive one in its way
+	private final Set<Ticket> shared = ConcurrentHashMap.newKeySet();
+	// Admitted exclusive tickets, replaced whole under the monitor and read without it
+	private volatile Ticket[] exclusive = new Ticket[0];
+
+	Ticket share(Entity... anchors) {
+		return lockShared(new Ticket(false, NONE, anchors));
+	}
+
+	Ticket share(Collection<? extends Entity> anchors) {
+		return share(anchors.toArray(NONE));
+	}
+
+	// Keeps restructurings out of every subtree in roots while writes inside carry on, e.g. for a diff
+	Ticket shareSubtrees(Entity... roots) {
+		return lockShared(new Ticket(false, roots, NONE));
+	}
+
+	// Holds root's subtree and, unchanged, the directories in anchors
+	Ticket restructure(Entity root, Entity... anchors) {
+		return lockExclusive(new Ticket(true, new Entity[] { root }, anchors));
+	}
+
+	// Holds every subtree in roots, e.g. to build an index over a stable tree
+	Ticket restructureSubtrees(Entity... roots) {
+		return lockExclusive(new Ticket(true, roots, NONE));
+	}
+
+	void unlock(Ticket ticket) {
+		if (!ticket.exclusive) {
+			shared.remove(ticket);
+			if (exclusive.length != 0) {
+				synchronized (this) {
+					notifyAll();
+				}
+			}
+			return;
+		}
+		synchronized (this) {
+			Ticket[] held = exclusive;
+			Ticket[] rest = new Ticket[held.length - 1];
+			for (int i = 0, j = 0; i < held.length; i++) {
+				if (held[i] != ticket)
+					rest[j++] = held[i];
+			}
+			exclusive = rest;
+			notifyAll();
+		}
+	}
+
+	private Ticket lockShared(Ticket ticket) {
+		boolean interrupted = false;
+		while (true) {
+			shared.add(ticket);
+			Ticket blocker = conflict(ticket, exclusive);
+			if (blocker == null)
+				break;
+			shared.remove(ticket);
+			synchronized (this) {
+				// The blocker may be draining and waiting for this very ticket
+				notifyAll();
+				while (contains(exclusive, blocker))
+					interrupted |= await();
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		return ticket;
+	}
+
+	// Admitted one at a time, so admitted tickets never overlap; draining the shared ones runs unlocked
+	private Ticket lockExclusive(Ticket ticket) {
+		boolean interrupted = false;
+		synchronized (this) {
+			while (conflict(ticket.anchorParents(), exclusive) != null)
+				interrupted |= await();
+			Ticket[] held = exclusive;
+			Ticket[] more = Arrays.copyOf(held, held.length + 1);
+			more[held.length] = ticket;
+			exclusive = more;
+			while (conflict(ticket, shared) != null)
+				interrupted |= await();
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		return ticket;
+	}
+
+	// Waits like Lock.lock() does, without giving up on an interrupt
+	private boolean await() {
+		try {
+			wait();
+			return false;
+		} catch (InterruptedException e) {
+			return true;
+		}
+	}
+
+	private static Ticket conflict(Ticket ticket, Ticket[] others) {
+		for (Ticket other : others) {
+			if (other != ticket && ticket.overlaps(other))
+				return other;
+		}
+		return null;
+	}
+
+	private static Ticket conflict(Ticket ticket, Set<Ticket> others) {
+		for (Ticket other : others) {
+			if (ticket.overlaps(other))
+				return other;
+		}
+		return null;
+	}
+
+	private static boolean contains(Ticket[] tickets, Ticket ticket) {
+		for (Ticket held : tickets) {
+			if (held == ticket)
+				return true;
+		}
+		return false;
+	}
+
+	static final class Ticket {
+		private final boolean exclusive;
+		// Subtrees held as a whole
+		private final Entity[] roots;
+		// Single nodes held unchanged
+		private final Entity[] requested;
+		// The requested ones plus, for an exclusive ticket, the parents of its roots; guarded by the lock's monitor
+		private Entity[] anchors;
+
+		private Ticket(boolean exclusive, Entity[] roots, Entity[] anchors) {
+			this.exclusive = exclusive;
+			this.roots = roots;
+			this.requested = anchors;
+			this.anchors = anchors;
+		}
+
+		/*
+		 * A move takes its root away from the old parent, after which the old parent is no
+		 * longer below the root yet still being updated; anchoring it keeps a restructuring
+		 * above it waiting. Read again before each try, as a parent only holds still once no
+		 * admitted ticket reaches the root.
+		 */
+		private Ticket anchorParents() {
+			Entity[] more = Arrays.copyOf(requested, requested.length + roots.length);
+			int n = requested.length;
+			for (Entity root : roots) {
+				if (root.getParent() != null)
+					more[n++] = root.getParent();
+			}
+			anchors = Arrays.copyOf(more, n);
+			return this;
+		}
+
+		// Two tickets overlap when one holds a subtree the other has a node in, unless both only share
+		private boolean overlaps(Ticket other) {
+			if (!exclusive && !other.exclusive)
+				return false;
+			return reaches(other) || other.reaches(this);
+		}
+
+		private boolean reaches(Ticket other) {
+			for (Entity root : roots) {
+				for (Entity node : other.roots) {
+					if (isSameOrAncestor(root, node))
+						return true;
+				}
+				for (Entity node : other.anchors) {
+					if (isSameOrAncestor(root, node))
+						return true;
+				}
+			}
+			return false;
+		}
+	}
+}
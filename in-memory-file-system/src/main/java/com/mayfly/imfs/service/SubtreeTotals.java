@@ -0,0 +1,54 @@
+package com.mayfly.imfs.service;
+
+import com.mayfly.imfs.content.ContentPatch;
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.model.FileSystemEntity;
+import com.mayfly.imfs.model.SubtreeUsage;
+import com.mayfly.imfs.model.TextFile;
+import com.mayfly.imfs.utils.FSUtils;
+
+// Carries each change's delta up the parent chain; quotas are charged by the worker before the change
+final class SubtreeTotals implements MutationListener {
+
+	@Override
+	public void added(FileSystemEntity parent, Entity entity, long tag) {
+		if (parent != null)
+			propagate(parent, FSUtils.getUsage(entity), 1);
+	}
+
+	@Override
+	public void removed(FileSystemEntity parent, Entity entity, SubtreeUsage usage, String path, long tag) {
+		if (parent != null)
+			propagate(parent, usage, -1);
+	}
+
+	@Override
+	public void moved(Entity entity, FileSystemEntity oldParent, SubtreeUsage usage, String oldPath, long tag) {
+		propagate((FileSystemEntity) entity.getParent(), usage, 1);
+		propagate(oldParent, usage, -1);
+	}
+
+	@Override
+	public void renamed(Entity entity, String oldName, long oldTerm, String oldPath, long tag) {
+		propagate((FileSystemEntity) entity.getParent(), 0, 0, 0, entity.getLastModifiedNanos());
+	}
+
+	@Override
+	public void written(TextFile file, long delta, long hash, ContentPatch patch, String text, long tag) {
+		propagate((FileSystemEntity) file.getParent(), delta, 0, 0, file.getLastModifiedNanos());
+	}
+
+	private static void propagate(FileSystemEntity dir, long bytes, long files, long entities, long modified) {
+		for (FileSystemEntity cur = dir; cur != null; cur = (FileSystemEntity) cur.getParent()) {
+			cur.addToSubtree(cur.getParent() == null ? 0 : bytes, files, entities, modified);
+		}
+	}
+
+	// Adds (sign 1) or removes (sign -1) a whole subtree below dir
+	private static void propagate(FileSystemEntity dir, SubtreeUsage usage, int sign) {
+		long modified = dir.getLastModifiedNanos();
+		if (sign > 0)
+			modified = Math.max(modified, usage.getNewestModifiedNanos());
+		propagate(dir, sign * usage.getBytes(), sign * usage.getFiles(), sign * (usage.getEntities() + 1), modified);
+	}
+}
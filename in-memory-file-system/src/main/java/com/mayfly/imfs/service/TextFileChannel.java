@@ -0,0 +1,95 @@
+package com.mayfly.imfs.service;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+import com.mayfly.imfs.content.Content;
+import com.mayfly.imfs.content.ContentPatch;
+import com.mayfly.imfs.exception.EntityNotFoundException;
+import com.mayfly.imfs.model.TextFile;
+
+class TextFileChannel implements SeekableByteChannel {
+
+	private final FileSystemWorker worker;
+	private final TextFile file;
+	private long position;
+	private volatile boolean open = true;
+
+	TextFileChannel(FileSystemWorker worker, TextFile file) {
+		this.worker = worker;
+		this.file = file;
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws ClosedChannelException {
+		ensureOpen();
+		if (file.isDeleted())
+			throw new EntityNotFoundException("No such entity: " + file.getName());
+		Content content = file.getStoredContent();
+		long remaining = content.size() - position;
+		if (remaining <= 0)
+			return dst.hasRemaining() ? -1 : 0;
+		int n = (int) Math.min(dst.remaining(), remaining);
+		dst.put(content.read(position, n));
+		position += n;
+		return n;
+	}
+
+	@Override
+	public synchronized int write(ByteBuffer src) throws ClosedChannelException {
+		ensureOpen();
+		byte[] data = new byte[src.remaining()];
+		src.get(data);
+		// Writing past the end fills the gap with zeros
+		worker.updateContent(file, ContentPatch.write(position, data, true));
+		position += data.length;
+		return data.length;
+	}
+
+	@Override
+	public synchronized long position() throws ClosedChannelException {
+		ensureOpen();
+		return position;
+	}
+
+	@Override
+	public synchronized SeekableByteChannel position(long newPosition) throws ClosedChannelException {
+		ensureOpen();
+		if (newPosition < 0)
+			throw new IllegalArgumentException("Negative position");
+		position = newPosition;
+		return this;
+	}
+
+	@Override
+	public long size() throws ClosedChannelException {
+		ensureOpen();
+		return file.getStoredContent().size();
+	}
+
+	@Override
+	public synchronized SeekableByteChannel truncate(long size) throws ClosedChannelException {
+		ensureOpen();
+		if (size < 0)
+			throw new IllegalArgumentException("Negative size");
+		worker.updateContent(file, ContentPatch.truncate(size, true));
+		position = Math.min(position, size);
+		return this;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+	}
+
+	private void ensureOpen() throws ClosedChannelException {
+		if (!open)
+			throw new ClosedChannelException();
+	}
+}
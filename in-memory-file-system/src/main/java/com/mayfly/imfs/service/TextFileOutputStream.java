@@ -0,0 +1,71 @@
+package com.mayfly.imfs.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.mayfly.imfs.content.ContentPatch;
+import com.mayfly.imfs.model.TextFile;
+
+// Buffers small writes and appends them to the file on flush
+class TextFileOutputStream extends OutputStream {
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final FileSystemWorker worker;
+	private final TextFile file;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int count;
+	private boolean closed;
+
+	TextFileOutputStream(FileSystemWorker worker, TextFile file) {
+		this.worker = worker;
+		this.file = file;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		if (count == buffer.length)
+			flush();
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if (len >= buffer.length) {
+			flush();
+			byte[] data = Arrays.copyOfRange(b, off, off + len);
+			worker.updateContent(file, ContentPatch.append(data));
+			return;
+		}
+		if (count + len > buffer.length)
+			flush();
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		if (count > 0) {
+			byte[] data = Arrays.copyOf(buffer, count);
+			count = 0;
+			worker.updateContent(file, ContentPatch.append(data));
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			flush();
+			closed = true;
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+	}
+}
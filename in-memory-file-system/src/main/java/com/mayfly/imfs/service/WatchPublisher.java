@@ -0,0 +1,86 @@
+package com.mayfly.imfs.service;
+
+import com.mayfly.imfs.content.ContentPatch;
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.model.FileSystemEntity;
+import com.mayfly.imfs.model.SubtreeUsage;
+import com.mayfly.imfs.model.TextFile;
+import com.mayfly.imfs.watch.WatchEvent;
+import com.mayfly.imfs.watch.WatchKey;
+import com.mayfly.imfs.watch.WatchListener;
+import com.mayfly.imfs.watch.WatchService;
+import com.mayfly.imfs.watch.WatchStats;
+
+// Runs right before the journal append, under the same locks, so watchers see a path's changes in the order they were applied
+final class WatchPublisher implements MutationListener {
+
+	private final int ringCapacity;
+	private final int batchSize;
+	// Started by the first watch, so workers nobody watches run no dispatcher thread
+	private volatile WatchService service;
+
+	WatchPublisher(int ringCapacity, int batchSize) {
+		this.ringCapacity = ringCapacity;
+		this.batchSize = batchSize;
+	}
+
+	WatchKey register(String path, boolean recursive, WatchListener listener) {
+		WatchService current = service;
+		if (current == null) {
+			synchronized (this) {
+				current = service;
+				if (current == null) {
+					current = new WatchService(ringCapacity, batchSize);
+					service = current;
+				}
+			}
+		}
+		return current.register(path, recursive, listener);
+	}
+
+	// Null until the first watch is registered
+	WatchStats getStats() {
+		WatchService current = service;
+		return current == null ? null : current.getStats();
+	}
+
+	void close() {
+		WatchService current = service;
+		if (current != null)
+			current.close();
+	}
+
+	@Override
+	public void added(FileSystemEntity parent, Entity entity, long tag) {
+		publish(WatchEvent.Kind.CREATE, entity, null);
+	}
+
+	@Override
+	public void removed(FileSystemEntity parent, Entity entity, SubtreeUsage usage, String path, long tag) {
+		WatchService current = service;
+		if (current != null && current.isActive())
+			current.publish(WatchEvent.Kind.DELETE, path, null);
+	}
+
+	@Override
+	public void moved(Entity entity, FileSystemEntity oldParent, SubtreeUsage usage, String oldPath, long tag) {
+		publish(WatchEvent.Kind.MOVE, entity, oldPath);
+	}
+
+	@Override
+	public void renamed(Entity entity, String oldName, long oldTerm, String oldPath, long tag) {
+		publish(WatchEvent.Kind.RENAME, entity, oldPath);
+	}
+
+	@Override
+	public void written(TextFile file, long delta, long hash, ContentPatch patch, String text, long tag) {
+		publish(WatchEvent.Kind.MODIFY, file, null);
+	}
+
+	// oldPath is rendered for the journal anyway; the entity's path only when someone is watching
+	private void publish(WatchEvent.Kind kind, Entity entity, String oldPath) {
+		WatchService current = service;
+		if (current != null && current.isActive())
+			current.publish(kind, entity.getPath(), oldPath);
+	}
+}
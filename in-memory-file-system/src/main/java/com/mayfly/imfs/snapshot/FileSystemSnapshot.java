@@ -0,0 +1,100 @@
+package com.mayfly.imfs.snapshot;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.mayfly.imfs.exception.EntityNotFoundException;
+import com.mayfly.imfs.exception.InvalidOperationException;
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.model.FileSystemEntity;
+import com.mayfly.imfs.model.Revision;
+import com.mayfly.imfs.utils.FSUtils;
+
+// Immutable point-in-time view of the tree; must be closed so writers can stop recording
+public class FileSystemSnapshot implements AutoCloseable {
+
+	private final SnapshotManager manager;
+	private final Map<String, FileSystemEntity> liveDrives;
+	private volatile long version;
+	private volatile boolean closed;
+	private volatile Map<String, SnapshotEntity> drives;
+
+	FileSystemSnapshot(SnapshotManager manager, Map<String, FileSystemEntity> liveDrives) {
+		this.manager = manager;
+		this.liveDrives = liveDrives;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	void setVersion(long version) {
+		this.version = version;
+	}
+
+	public Map<String, SnapshotEntity> getDrives() {
+		checkOpen();
+		Map<String, SnapshotEntity> result = drives;
+		if (result == null) {
+			Map<String, Entity> current = new HashMap<>(liveDrives);
+			undoChildren(current, manager.getDriveLog().head(), version);
+			Map<String, SnapshotEntity> views = new LinkedHashMap<>();
+			for (Map.Entry<String, Entity> entry : current.entrySet()) {
+				views.put(entry.getKey(), new SnapshotEntity(this, entry.getValue(), entry.getKey(), null));
+			}
+			result = Collections.unmodifiableMap(views);
+			drives = result;
+		}
+		return result;
+	}
+
+	public SnapshotEntity getEntity(String path) {
+		String driveName = FSUtils.getDriveName(path);
+		SnapshotEntity cur = getDrives().get(driveName);
+		if (cur == null)
+			throw new EntityNotFoundException("Drive not found: " + driveName);
+		int end = path.length();
+		while (end > driveName.length() && path.charAt(end - 1) == FSUtils.SEPARATOR)
+			end--;
+		for (int start = driveName.length() + 1, cut; start <= end; start = cut + 1) {
+			cut = path.indexOf(FSUtils.SEPARATOR, start);
+			if (cut < 0 || cut > end)
+				cut = end;
+			if (!cur.isFileSystemEntity())
+				throw new EntityNotFoundException("Not a file system: " + cur.getPath());
+			cur = cur.getChild(path.substring(start, cut));
+		}
+		return cur;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			manager.close(this);
+		}
+	}
+
+	void checkOpen() {
+		if (closed)
+			throw new InvalidOperationException("Snapshot is closed");
+	}
+
+	// Revisions are newest first, so the last one applied per key is the value at the snapshot version
+	static void undoChildren(Map<String, Entity> children, Revision head, long version) {
+		for (Revision r = head; r != null && r.getVersion() > version; r = r.getNext()) {
+			if (r.getKind() != Revision.Kind.CHILD)
+				continue;
+			if (r.getPrevious() == null)
+				children.remove(r.getKey());
+			else
+				children.put(r.getKey(), (Entity) r.getPrevious());
+		}
+	}
+}
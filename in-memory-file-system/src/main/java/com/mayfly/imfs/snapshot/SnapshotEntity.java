@@ -0,0 +1,143 @@
+package com.mayfly.imfs.snapshot;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.content.Content;
+import com.mayfly.imfs.exception.EntityNotFoundException;
+import com.mayfly.imfs.exception.InvalidOperationException;
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.model.FileSystemEntity;
+import com.mayfly.imfs.model.Revision;
+import com.mayfly.imfs.model.RevisionLog;
+import com.mayfly.imfs.model.Timestamps;
+import com.mayfly.imfs.model.TextFile;
+
+/*
+ * Read-only view of one live node as of the snapshot version. Every getter reads
+ * the live field first and then undoes the revisions newer than the snapshot;
+ * writers log a revision before they mutate, so the pair is always consistent.
+ */
+public class SnapshotEntity {
+
+	private final FileSystemSnapshot snapshot;
+	private final Entity entity;
+	private final String name;
+	private final SnapshotEntity parent;
+	private volatile Map<String, SnapshotEntity> children;
+
+	SnapshotEntity(FileSystemSnapshot snapshot, Entity entity, String name, SnapshotEntity parent) {
+		this.snapshot = snapshot;
+		this.entity = entity;
+		this.name = name;
+		this.parent = parent;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public EntityType getType() {
+		return entity.getType();
+	}
+
+	public SnapshotEntity getParent() {
+		return parent;
+	}
+
+	public String getPath() {
+		if (parent == null)
+			return name;
+		return parent.getPath() + "\\" + name;
+	}
+
+	public boolean isFileSystemEntity() {
+		return entity.isFileSystemEntity();
+	}
+
+	public LocalDateTime getLastModified() {
+		return Timestamps.toLocalDateTime(getLastModifiedNanos());
+	}
+
+	public long getLastModifiedNanos() {
+		snapshot.checkOpen();
+		long lastModified = entity.getLastModifiedNanos();
+		for (Revision r = head(); r != null && r.getVersion() > snapshot.getVersion(); r = r.getNext()) {
+			lastModified = r.getPreviousLastModified();
+		}
+		return lastModified;
+	}
+
+	public String getContent() {
+		return getStoredContent().asString();
+	}
+
+	public Content getStoredContent() {
+		snapshot.checkOpen();
+		if (!(entity instanceof TextFile))
+			throw new InvalidOperationException("Not a text file");
+		Object content = ((TextFile) entity).getStoredContent();
+		for (Revision r = head(); r != null && r.getVersion() > snapshot.getVersion(); r = r.getNext()) {
+			if (r.getKind() == Revision.Kind.CONTENT)
+				content = r.getPrevious();
+		}
+		return (Content) content;
+	}
+
+	// ContentHash of getStoredContent()
+	public long getContentHash() {
+		snapshot.checkOpen();
+		if (!(entity instanceof TextFile))
+			throw new InvalidOperationException("Not a text file");
+		long hash = ((TextFile) entity).getContentHash();
+		for (Revision r = head(); r != null && r.getVersion() > snapshot.getVersion(); r = r.getNext()) {
+			if (r.getKind() == Revision.Kind.CONTENT)
+				hash = r.getPreviousHash();
+		}
+		return hash;
+	}
+
+	public Map<String, SnapshotEntity> getChildren() {
+		snapshot.checkOpen();
+		if (!(entity instanceof FileSystemEntity))
+			throw new InvalidOperationException("Not a file system");
+		Map<String, SnapshotEntity> result = children;
+		if (result == null) {
+			Map<String, Entity> current = new HashMap<>(((FileSystemEntity) entity).getChildren());
+			FileSystemSnapshot.undoChildren(current, head(), snapshot.getVersion());
+			Map<String, SnapshotEntity> views = new LinkedHashMap<>();
+			for (Map.Entry<String, Entity> entry : current.entrySet()) {
+				views.put(entry.getKey(), new SnapshotEntity(snapshot, entry.getValue(), entry.getKey(), this));
+			}
+			result = Collections.unmodifiableMap(views);
+			children = result;
+		}
+		return result;
+	}
+
+	// True when live is still the node this view shows and nothing in it or below it changed since the snapshot
+	public boolean isUnchangedIn(Entity live) {
+		snapshot.checkOpen();
+		if (entity != live)
+			return false;
+		if (live instanceof TextFile)
+			return getStoredContent() == ((TextFile) live).getStoredContent();
+		return ((FileSystemEntity) live).getChangedVersion() <= snapshot.getVersion();
+	}
+
+	public SnapshotEntity getChild(String name) {
+		SnapshotEntity child = getChildren().get(name);
+		if (child == null)
+			throw new EntityNotFoundException("No such child: " + name);
+		return child;
+	}
+
+	private Revision head() {
+		RevisionLog log = entity.getRevisionLog();
+		return log == null ? null : log.head();
+	}
+}
@@ -0,0 +1,173 @@
+package com.mayfly.imfs.snapshot;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.model.FileSystemEntity;
+import com.mayfly.imfs.model.Revision;
+import com.mayfly.imfs.model.RevisionLog;
+import com.mayfly.imfs.model.TextFile;
+import com.mayfly.imfs.model.Timestamps;
+
+/*
+ * Writers tag their changes with the current epoch and record undo revisions
+ * while a snapshot is open. Taking a snapshot at epoch V advances the epoch and
+ * waits for writers still tagged V to finish; the snapshot then sees every
+ * write tagged <= V and undoes anything newer, so writers never wait on readers.
+ */
+public class SnapshotManager {
+
+	private static final int STRIPES = 16;
+	// Spreads the in-flight counters over separate cache lines
+	private static final int PADDING = 8;
+
+	private volatile long epoch = 1;
+	private final AtomicLongArray inFlight = new AtomicLongArray(2 * STRIPES * PADDING);
+
+	private final Set<FileSystemSnapshot> open = ConcurrentHashMap.newKeySet();
+	private final ReentrantLock openLock = new ReentrantLock();
+	private volatile long floor = Long.MAX_VALUE;
+
+	// Drive create/delete is recorded here since the drives map has no owning entity
+	private final RevisionLog driveLog = new RevisionLog();
+	// Logs holding records, pruned when a close moves the floor; a log only prunes itself on its next write
+	private final Set<RevisionLog> retained = ConcurrentHashMap.newKeySet();
+
+	public long beginWrite() {
+		int stripe = stripe();
+		while (true) {
+			long tag = epoch;
+			int slot = slot(tag, stripe);
+			inFlight.incrementAndGet(slot);
+			if (epoch == tag)
+				return tag;
+			inFlight.decrementAndGet(slot);
+		}
+	}
+
+	public void endWrite(long tag) {
+		inFlight.decrementAndGet(slot(tag, stripe()));
+	}
+
+	// Called on recovery so new writes are tagged after every journaled one
+	public void advanceEpoch(long tag) {
+		openLock.lock();
+		try {
+			epoch = Math.max(epoch, tag + 1);
+		} finally {
+			openLock.unlock();
+		}
+	}
+
+	public boolean isRecording() {
+		return !open.isEmpty();
+	}
+
+	public void recordChild(long tag, FileSystemEntity dir, String key, Entity previous) {
+		if (isRecording())
+			record(dir.getOrCreateRevisionLog(), Revision.child(tag, key, previous, dir.getLastModifiedNanos()));
+	}
+
+	public void recordName(long tag, Entity entity) {
+		if (isRecording())
+			record(entity.getOrCreateRevisionLog(), Revision.name(tag, entity.getName(), entity.getLastModifiedNanos()));
+	}
+
+	public void recordContent(long tag, TextFile file) {
+		if (isRecording())
+			record(file.getOrCreateRevisionLog(), Revision.content(tag, file.getStoredContent(), file.getContentHash(),
+					file.getLastModifiedNanos()));
+	}
+
+	public void recordDrive(long tag, String name, FileSystemEntity previous) {
+		if (isRecording())
+			record(driveLog, Revision.child(tag, name, previous, Timestamps.NONE));
+	}
+
+	// Under the log's monitor so a concurrent prune cannot untrack a log that just got a record
+	private void record(RevisionLog log, Revision revision) {
+		synchronized (log) {
+			if (log.add(revision, floor))
+				retained.add(log);
+		}
+	}
+
+	public FileSystemSnapshot open(Map<String, FileSystemEntity> drives) {
+		openLock.lock();
+		try {
+			FileSystemSnapshot snapshot = new FileSystemSnapshot(this, drives);
+			// Nothing may be pruned until the new snapshot knows its version
+			floor = Long.MIN_VALUE;
+			open.add(snapshot);
+			long version = epoch;
+			epoch = version + 1;
+			awaitDrained(version);
+			snapshot.setVersion(version);
+			updateFloor();
+			return snapshot;
+		} finally {
+			openLock.unlock();
+		}
+	}
+
+	void close(FileSystemSnapshot snapshot) {
+		openLock.lock();
+		try {
+			if (open.remove(snapshot)) {
+				updateFloor();
+				pruneRetained();
+			}
+		} finally {
+			openLock.unlock();
+		}
+	}
+
+	public int getOpenSnapshotCount() {
+		return open.size();
+	}
+
+	RevisionLog getDriveLog() {
+		return driveLog;
+	}
+
+	private void updateFloor() {
+		long min = Long.MAX_VALUE;
+		for (FileSystemSnapshot snapshot : open) {
+			min = Math.min(min, snapshot.getVersion());
+		}
+		floor = min;
+	}
+
+	// With no snapshot left the floor is Long.MAX_VALUE and every record goes
+	private void pruneRetained() {
+		long to = floor;
+		for (RevisionLog log : retained) {
+			synchronized (log) {
+				if (log.pruneTo(to))
+					retained.remove(log);
+			}
+		}
+	}
+
+	private void awaitDrained(long tag) {
+		int base = (int) (tag & 1) * STRIPES;
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			int slot = (base + stripe) * PADDING;
+			while (inFlight.get(slot) != 0)
+				Thread.yield();
+		}
+	}
+
+	private static int slot(long tag, int stripe) {
+		return ((int) (tag & 1) * STRIPES + stripe) * PADDING;
+	}
+
+	// The same thread always maps to the same stripe, so a slot never goes negative
+	private static int stripe() {
+		return (int) (Thread.currentThread().getId() & (STRIPES - 1));
+	}
+}
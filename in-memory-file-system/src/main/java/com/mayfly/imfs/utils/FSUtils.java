@@ -3,32 +3,96 @@ package com.mayfly.imfs.utils;
 import java.util.Map;
 
 import com.mayfly.imfs.exception.EntityNotFoundException;
+import com.mayfly.imfs.model.Drive;
 import com.mayfly.imfs.model.Entity;
 import com.mayfly.imfs.model.FileSystemEntity;
+import com.mayfly.imfs.model.SubtreeUsage;
+import com.mayfly.imfs.model.TextFile;
+import com.mayfly.imfs.model.ZipFile;
 
 public class FSUtils {
 
+	public static final char SEPARATOR = '\\';
 	
 	private FSUtils() {
 		
 	}
 	
 	
-	public static Entity findEntity(String path,  Map<String, FileSystemEntity> drives) {
-		String[] parts = path.split("\\\\");
-		if (parts.length == 0)
+	/*
+	 * Scans the path in place: each name is looked up as a region of the path, so a lookup
+	 * allocates nothing beyond the drive name and the names in directories wide enough to be
+	 * hashed. Trailing separators are ignored and empty names never match, as with split.
+	 */
+	public static Entity findEntity(String path, Map<String, FileSystemEntity> drives) {
+		int end = path.length();
+		while (end > 0 && path.charAt(end - 1) == SEPARATOR)
+			end--;
+		if (end == 0 && !path.isEmpty())
 			throw new IllegalArgumentException("Invalid path");
-		FileSystemEntity current = drives.get(parts[0]);
+		int cut = path.indexOf(SEPARATOR);
+		if (cut < 0 || cut > end)
+			cut = end;
+		String driveName = cut == path.length() ? path : path.substring(0, cut);
+		FileSystemEntity current = drives.get(driveName);
 		if (current == null)
-			throw new EntityNotFoundException("Drive not found: " + parts[0]);
+			throw new EntityNotFoundException("Drive not found: " + driveName);
 		Entity cur = current;
-		for (int i = 1; i < parts.length; i++) {
+		for (int start = cut + 1; start <= end; start = cut + 1) {
+			cut = path.indexOf(SEPARATOR, start);
+			if (cut < 0 || cut > end)
+				cut = end;
 			if (!(cur instanceof FileSystemEntity))
 				throw new EntityNotFoundException("Not a file system: " + cur.getPath());
-			cur = ((FileSystemEntity) cur).getChild(parts[i]);
+			cur = ((FileSystemEntity) cur).getChild(path, start, cut);
 		}
 		return cur;
 	}
-	
-	
+
+	public static String getDriveName(String path) {
+		int cut = path.indexOf(SEPARATOR);
+		return cut < 0 ? path : path.substring(0, cut);
+	}
+
+	public static Entity findEntity(String path, Map<String, FileSystemEntity> drives, PathCache cache) {
+		Entity cached = cache.get(path);
+		if (cached != null)
+			return cached;
+		long generation = cache.currentGeneration();
+		Entity entity = findEntity(path, drives);
+		cache.put(path, entity, generation);
+		return entity;
+	}
+
+	public static Drive getDrive(Entity entity) {
+		Entity cur = entity;
+		while (cur.getParent() != null)
+			cur = cur.getParent();
+		return (Drive) cur;
+	}
+
+	public static ZipFile findEnclosingZip(Entity entity) {
+		for (Entity cur = entity.getParent(); cur != null; cur = cur.getParent()) {
+			if (cur instanceof ZipFile)
+				return (ZipFile) cur;
+		}
+		return null;
+	}
+
+	// O(1): directories carry their totals, a file is its own subtree
+	public static SubtreeUsage getUsage(Entity entity) {
+		if (entity instanceof TextFile)
+			return new SubtreeUsage(((TextFile) entity).getStoredContent().size(), 1, 0, entity.getLastModifiedNanos());
+		FileSystemEntity dir = (FileSystemEntity) entity;
+		return new SubtreeUsage(dir.getSubtreeBytes(), dir.getSubtreeFiles(), dir.getSubtreeEntities(),
+				dir.getNewestModifiedNanos());
+	}
+
+	public static boolean isSameOrAncestor(Entity candidate, Entity entity) {
+		for (Entity cur = entity; cur != null; cur = cur.getParent()) {
+			if (cur == candidate)
+				return true;
+		}
+		return false;
+	}
 }
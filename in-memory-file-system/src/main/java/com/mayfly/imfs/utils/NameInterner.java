@@ -0,0 +1,30 @@
+package com.mayfly.imfs.utils;
+
+/*
+ * Bounded name interner owned by a worker: millions of nodes share a few thousand names
+ * like index.html. Direct mapped, so a name only evicts the one that hashed to its slot
+ * before, and unlike String.intern() the table never outgrows its slots. Races only cost
+ * a duplicate string; a String is safe to publish through the plain array.
+ */
+public class NameInterner {
+
+	private final String[] slots;
+
+	public NameInterner(int slots) {
+		int size = 1;
+		while (size < slots) {
+			size <<= 1;
+		}
+		this.slots = new String[size];
+	}
+
+	public String intern(String name) {
+		int hash = name.hashCode();
+		int slot = (hash ^ (hash >>> 16)) & (slots.length - 1);
+		String cached = slots[slot];
+		if (cached != null && cached.equals(name))
+			return cached;
+		slots[slot] = name;
+		return name;
+	}
+}
@@ -0,0 +1,135 @@
+package com.mayfly.imfs.utils;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mayfly.imfs.model.Entity;
+
+/*
+ * Bounded path -> Entity cache in front of FSUtils.findEntity. move/rename/delete
+ * stamp the touched entity with a new generation; an entry cached at generation G
+ * is stale once any node on its parent chain carries a newer stamp. The stamps come
+ * from the clock in Entity that also guards the paths the nodes render themselves.
+ */
+public class PathCache {
+
+	private final int capacity;
+	private final Map<String, CachedEntity> entries;
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public PathCache(int capacity) {
+		this.capacity = capacity;
+		this.entries = new ConcurrentHashMap<>(Math.max(16, capacity));
+	}
+
+	public Entity get(String path) {
+		if (capacity == 0) {
+			misses.increment();
+			return null;
+		}
+		CachedEntity cached = entries.get(path);
+		if (cached == null) {
+			misses.increment();
+			return null;
+		}
+		long now = Entity.currentGeneration();
+		if (cached.generation != now) {
+			if (!Entity.isChainCurrent(cached.entity, cached.generation)) {
+				entries.remove(path, cached);
+				misses.increment();
+				return null;
+			}
+			cached.generation = now;
+		}
+		cached.referenced = true;
+		hits.increment();
+		return cached.entity;
+	}
+
+	// Must be read before resolving the path that is later handed to put
+	public long currentGeneration() {
+		return Entity.currentGeneration();
+	}
+
+	public void put(String path, Entity entity, long generation) {
+		if (capacity == 0)
+			return;
+		entries.put(path, new CachedEntity(entity, generation));
+		if (entries.size() > capacity)
+			evict();
+	}
+
+	public void invalidate(Entity entity) {
+		entity.invalidatePaths();
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	public double getHitRate() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0.0 : (double) h / total;
+	}
+
+	private void evict() {
+		if (!evicting.compareAndSet(false, true))
+			return;
+		try {
+			// Two passes at most: the first one clears reference bits it could not evict
+			for (int pass = 0; pass < 2 && entries.size() > capacity; pass++) {
+				Iterator<CachedEntity> it = entries.values().iterator();
+				while (it.hasNext() && entries.size() > capacity) {
+					CachedEntity cached = it.next();
+					if (cached.referenced) {
+						cached.referenced = false;
+					} else {
+						it.remove();
+						evictions.increment();
+					}
+				}
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+
+	private static final class CachedEntity {
+		private final Entity entity;
+		private volatile long generation;
+		private volatile boolean referenced;
+
+		private CachedEntity(Entity entity, long generation) {
+			this.entity = entity;
+			this.generation = generation;
+		}
+	}
+}
@@ -15,9 +15,7 @@ public class FSValidator {
 		
 	}
 	
-	private static final String FS_NAME_REGEX = "[a-zA-Z0-9]+";
-	private static final String FS_FILE_NAME_REGEX = "[a-zA-Z0-9]+(\\.[a-zA-Z0-9]+)?";
-	
+
 	public static void validateNameAlreadyExists(Map<String, Entity> children, Entity entity) {
 		if (children.containsKey(entity.getName())) {
             throw new NameConflictException(FileSystemConstants.NAME_CONFLICT_EXCP);
@@ -39,16 +37,31 @@ public class FSValidator {
 	}
 	
 	public static void validateEntityName(String entityName) {
-		if (!entityName.matches(FS_NAME_REGEX)) {
+		if (!isName(entityName, 0, entityName.length())) {
             throw new NameConflictException(FileSystemConstants.ENTITY_NAME_VALIDATION_EXCP);
         }
 	}
 	
 	public static void validateFileName(String fileName) {
-		if (!fileName.matches(FS_FILE_NAME_REGEX)) {
+		int dot = fileName.indexOf('.');
+		boolean valid = dot < 0 ? isName(fileName, 0, fileName.length())
+				: isName(fileName, 0, dot) && isName(fileName, dot + 1, fileName.length());
+		if (!valid) {
 			throw new NameConflictException(FileSystemConstants.FILE_NAME_VALIDATION_EXCP);
 		}
 	}
+
+	// Hand-rolled [a-zA-Z0-9]+ over name[start, end): names are checked on every create and rename
+	private static boolean isName(String name, int start, int end) {
+		if (start >= end)
+			return false;
+		for (int i = start; i < end; i++) {
+			char c = name.charAt(i);
+			if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')))
+				return false;
+		}
+		return true;
+	}
 	
 	
 	public static boolean isPathFileSystem(String fullPath, Map<String, FileSystemEntity> drive) {
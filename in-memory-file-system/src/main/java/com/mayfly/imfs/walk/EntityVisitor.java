@@ -0,0 +1,11 @@
+package com.mayfly.imfs.walk;
+
+import com.mayfly.imfs.model.Entity;
+
+// Called from several pool threads at once; depth is 0 for the entity the walk starts at
+@FunctionalInterface
+public interface EntityVisitor {
+
+	// Returns false to skip everything below the entity
+	boolean visit(Entity entity, int depth);
+}
@@ -0,0 +1,61 @@
+package com.mayfly.imfs.walk;
+
+// Counts over an entity and everything below it, gathered by one parallel walk
+public class TreeStats {
+
+	private final long folders;
+	private final long zipFiles;
+	private final long textFiles;
+	private final long bytes;
+	private final long emptyDirectories;
+	private final long largestFileBytes;
+	private final int maxDepth;
+
+	public TreeStats(long folders, long zipFiles, long textFiles, long bytes, long emptyDirectories,
+			long largestFileBytes, int maxDepth) {
+		this.folders = folders;
+		this.zipFiles = zipFiles;
+		this.textFiles = textFiles;
+		this.bytes = bytes;
+		this.emptyDirectories = emptyDirectories;
+		this.largestFileBytes = largestFileBytes;
+		this.maxDepth = maxDepth;
+	}
+
+	public long getFolders() {
+		return folders;
+	}
+
+	public long getZipFiles() {
+		return zipFiles;
+	}
+
+	public long getTextFiles() {
+		return textFiles;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	// Drives, folders and zips without children
+	public long getEmptyDirectories() {
+		return emptyDirectories;
+	}
+
+	public long getLargestFileBytes() {
+		return largestFileBytes;
+	}
+
+	// Levels below the entity the walk started at
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	@Override
+	public String toString() {
+		return "folders=" + folders + ", zipFiles=" + zipFiles + ", textFiles=" + textFiles + ", bytes=" + bytes
+				+ ", emptyDirectories=" + emptyDirectories + ", largestFileBytes=" + largestFileBytes + ", maxDepth="
+				+ maxDepth;
+	}
+}
@@ -0,0 +1,116 @@
+package com.mayfly.imfs.walk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.model.FileSystemEntity;
+
+/*
+ * Pre-order parallel traversal on a ForkJoinPool. Work is split by subtree size, which
+ * directories keep up to date anyway: a child subtree of at least splitThreshold entities
+ * becomes a task of its own, smaller siblings are grouped into tasks of about that size
+ * and the last group is walked by the task that found it. A directory is always visited
+ * before its children are listed, so a visitor can rely on the parent being done.
+ *
+ * Children are read through the concurrent child maps, so a walk running next to
+ * mutations visits every entity at most once but may miss entities moved meanwhile.
+ */
+public class TreeWalker {
+
+	private final ForkJoinPool pool;
+	private final long splitThreshold;
+
+	public TreeWalker(ForkJoinPool pool, long splitThreshold) {
+		if (splitThreshold <= 0)
+			throw new IllegalArgumentException("Split threshold must be positive");
+		this.pool = pool;
+		this.splitThreshold = splitThreshold;
+	}
+
+	public void walk(Entity root, EntityVisitor visitor) {
+		WalkTask task = new WalkTask(Collections.singletonList(root), 0, visitor);
+		// Small trees never split, so the caller walks them; a walk started by a pool thread stays in its pool
+		if (sizeOf(root) < splitThreshold || ForkJoinTask.inForkJoinPool())
+			task.invoke();
+		else
+			pool.invoke(task);
+	}
+
+	private static long sizeOf(Entity entity) {
+		return entity instanceof FileSystemEntity ? ((FileSystemEntity) entity).getSubtreeEntities() + 1 : 1;
+	}
+
+	private final class WalkTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<Entity> roots;
+		private final int depth;
+		private final EntityVisitor visitor;
+
+		private WalkTask(List<Entity> roots, int depth, EntityVisitor visitor) {
+			this.roots = roots;
+			this.depth = depth;
+			this.visitor = visitor;
+		}
+
+		// Joins every forked task even after a failure, so no task outlives the locks of the caller
+		@Override
+		protected void compute() {
+			List<WalkTask> forked = new ArrayList<>();
+			RuntimeException failure = null;
+			try {
+				for (Entity root : roots) {
+					walk(root, depth, forked);
+				}
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+			for (int i = forked.size() - 1; i >= 0; i--) {
+				try {
+					forked.get(i).join();
+				} catch (RuntimeException e) {
+					if (failure == null)
+						failure = e;
+				}
+			}
+			if (failure != null)
+				throw failure;
+		}
+
+		private void walk(Entity entity, int level, List<WalkTask> forked) {
+			if (!visitor.visit(entity, level) || !(entity instanceof FileSystemEntity))
+				return;
+			List<Entity> group = new ArrayList<>();
+			long groupSize = 0;
+			for (Entity child : ((FileSystemEntity) entity).getChildren().values()) {
+				long size = sizeOf(child);
+				if (size >= splitThreshold) {
+					fork(Collections.singletonList(child), level + 1, forked);
+				} else {
+					group.add(child);
+					groupSize += size;
+					if (groupSize >= splitThreshold) {
+						fork(group, level + 1, forked);
+						group = new ArrayList<>();
+						groupSize = 0;
+					}
+				}
+			}
+			for (Entity child : group) {
+				walk(child, level + 1, forked);
+			}
+		}
+
+		private void fork(List<Entity> children, int level, List<WalkTask> forked) {
+			WalkTask task = new WalkTask(children, level, visitor);
+			task.fork();
+			forked.add(task);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package com.mayfly.imfs.watch;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Bounded ring of many producers and the one dispatcher thread. Each slot carries a
+ * sequence: a producer claims position p by CAS on the tail when the slot reads p, and
+ * publishes it by setting p + 1; the consumer takes it at p + 1 and frees it for the
+ * next lap with p + capacity. A full ring fails the offer instead of waiting.
+ */
+final class EventRing {
+
+	private final WatchEvent[] slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	// Only read and written by the consumer
+	private long head;
+
+	EventRing(int capacity) {
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		this.slots = new WatchEvent[size];
+		this.sequences = new AtomicLongArray(size);
+		this.mask = size - 1;
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	boolean offer(WatchEvent event) {
+		long position = tail.get();
+		while (true) {
+			int index = (int) position & mask;
+			long difference = sequences.get(index) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slots[index] = event;
+					sequences.set(index, position + 1);
+					return true;
+				}
+				position = tail.get();
+			} else if (difference < 0) {
+				return false;
+			} else {
+				position = tail.get();
+			}
+		}
+	}
+
+	WatchEvent poll() {
+		int index = (int) head & mask;
+		if (sequences.get(index) != head + 1)
+			return null;
+		WatchEvent event = slots[index];
+		slots[index] = null;
+		sequences.set(index, head + slots.length);
+		head++;
+		return event;
+	}
+
+	// Consumer side only; a slot claimed but not yet published still reads as empty
+	boolean isEmpty() {
+		return sequences.get((int) head & mask) != head + 1;
+	}
+
+	int capacity() {
+		return slots.length;
+	}
+}
@@ -0,0 +1,47 @@
+package com.mayfly.imfs.watch;
+
+// A change below a watched path; MODIFY events of one path dispatched together are folded into one with a count
+public final class WatchEvent {
+
+	public enum Kind {
+		CREATE, DELETE, MODIFY, MOVE, RENAME,
+		// Events were dropped because the ring was full; the watcher should re-read what it caches
+		OVERFLOW
+	}
+
+	private final Kind kind;
+	private final String path;
+	private final String oldPath;
+	private final int count;
+
+	public WatchEvent(Kind kind, String path, String oldPath, int count) {
+		this.kind = kind;
+		this.path = path;
+		this.oldPath = oldPath;
+		this.count = count;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	// The path after the change; null for OVERFLOW
+	public String getPath() {
+		return path;
+	}
+
+	// The path before a MOVE or RENAME, otherwise null
+	public String getOldPath() {
+		return oldPath;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return kind + (oldPath == null ? "" : " " + oldPath + " ->") + (path == null ? "" : " " + path)
+				+ (count > 1 ? " x" + count : "");
+	}
+}
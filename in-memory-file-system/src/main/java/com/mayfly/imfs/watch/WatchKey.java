@@ -0,0 +1,56 @@
+package com.mayfly.imfs.watch;
+
+// A registration made by FileSystemWorker.watch; the path is watched, not the entity, so a renamed directory drops out
+public final class WatchKey {
+
+	private final WatchService service;
+	private final String path;
+	private final boolean recursive;
+	private final WatchListener listener;
+	private volatile boolean valid = true;
+
+	WatchKey(WatchService service, String path, boolean recursive, WatchListener listener) {
+		this.service = service;
+		this.path = path;
+		this.recursive = recursive;
+		this.listener = listener;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public boolean isRecursive() {
+		return recursive;
+	}
+
+	public boolean isValid() {
+		return valid;
+	}
+
+	public void cancel() {
+		valid = false;
+		service.unregister(this);
+	}
+
+	WatchListener getListener() {
+		return listener;
+	}
+
+	/*
+	 * The watched path itself, its children, with recursive every descendant, and any
+	 * ancestor that is deleted, moved or renamed, since that takes the watched path along.
+	 */
+	boolean matches(WatchEvent event) {
+		return matches(event.getPath(), event.getKind()) || (event.getOldPath() != null && matches(event.getOldPath(), event.getKind()));
+	}
+
+	private boolean matches(String eventPath, WatchEvent.Kind kind) {
+		if (eventPath.equals(path))
+			return true;
+		if (eventPath.length() > path.length() && eventPath.startsWith(path) && eventPath.charAt(path.length()) == '\\')
+			return recursive || eventPath.indexOf('\\', path.length() + 1) < 0;
+		return kind != WatchEvent.Kind.CREATE && kind != WatchEvent.Kind.MODIFY && path.length() > eventPath.length()
+				&& path.startsWith(eventPath) && path.charAt(eventPath.length()) == '\\';
+	}
+}
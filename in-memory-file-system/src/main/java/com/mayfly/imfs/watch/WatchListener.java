@@ -0,0 +1,10 @@
+package com.mayfly.imfs.watch;
+
+import java.util.List;
+
+// Called on the watch dispatcher thread, never by a mutator; a slow listener only delays other listeners
+@FunctionalInterface
+public interface WatchListener {
+
+	void onEvents(List<WatchEvent> events);
+}
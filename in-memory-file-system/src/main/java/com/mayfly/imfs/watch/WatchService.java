@@ -0,0 +1,164 @@
+package com.mayfly.imfs.watch;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Mutators publish into a lock free ring and return; one daemon thread drains it in
+ * batches, folds repeated MODIFY events of a path and hands every key the events that
+ * match it. A full ring drops the event and the next batch starts with OVERFLOW, so
+ * listeners know to resynchronize instead of silently missing changes.
+ */
+public class WatchService implements Closeable {
+
+	private final EventRing ring;
+	private final int batchSize;
+	private final List<WatchKey> keys = new CopyOnWriteArrayList<>();
+	private final WatchStats stats = new WatchStats();
+	private final AtomicBoolean overflowed = new AtomicBoolean();
+	private final AtomicBoolean parked = new AtomicBoolean();
+	private final Thread dispatcher;
+	private volatile boolean closed;
+
+	public WatchService(int ringCapacity, int batchSize) {
+		if (ringCapacity <= 0)
+			throw new IllegalArgumentException("Watch ring capacity must be positive");
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("Watch batch size must be positive");
+		this.ring = new EventRing(ringCapacity);
+		this.batchSize = batchSize;
+		this.dispatcher = new Thread(this::dispatch, "imfs-watch");
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+	}
+
+	public WatchKey register(String path, boolean recursive, WatchListener listener) {
+		if (listener == null)
+			throw new IllegalArgumentException("Watch listener must not be null");
+		if (closed)
+			throw new IllegalStateException("Watch service is closed");
+		WatchKey key = new WatchKey(this, path, recursive, listener);
+		keys.add(key);
+		return key;
+	}
+
+	void unregister(WatchKey key) {
+		keys.remove(key);
+	}
+
+	// Lets mutators skip building paths while nobody watches
+	public boolean isActive() {
+		return !keys.isEmpty();
+	}
+
+	public void publish(WatchEvent.Kind kind, String path, String oldPath) {
+		if (closed || keys.isEmpty())
+			return;
+		if (ring.offer(new WatchEvent(kind, path, oldPath, 1))) {
+			stats.published();
+		} else {
+			stats.dropped();
+			overflowed.set(true);
+		}
+		if (parked.get() && parked.compareAndSet(true, false))
+			LockSupport.unpark(dispatcher);
+	}
+
+	public WatchStats getStats() {
+		return stats;
+	}
+
+	public int getRingCapacity() {
+		return ring.capacity();
+	}
+
+	// Delivers whatever is still in the ring before returning
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(dispatcher);
+		try {
+			dispatcher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (WatchKey key : keys) {
+			key.cancel();
+		}
+	}
+
+	private void dispatch() {
+		List<WatchEvent> batch = new ArrayList<>();
+		while (true) {
+			boolean overflow = overflowed.getAndSet(false);
+			drain(batch);
+			if (batch.isEmpty() && !overflow) {
+				if (closed)
+					return;
+				// Re-checked after announcing the park so a concurrent publish cannot be missed
+				parked.set(true);
+				if (!closed && ring.isEmpty() && !overflowed.get())
+					LockSupport.park(this);
+				parked.set(false);
+				continue;
+			}
+			if (overflow) {
+				batch.add(0, new WatchEvent(WatchEvent.Kind.OVERFLOW, null, null, 1));
+				stats.overflowed();
+			}
+			deliver(batch);
+			batch.clear();
+		}
+	}
+
+	// Pulls up to one batch, folding a MODIFY into the previous MODIFY of its path unless something else happened to the path in between
+	private void drain(List<WatchEvent> batch) {
+		Map<String, Integer> modified = new HashMap<>();
+		while (batch.size() < batchSize) {
+			WatchEvent event = ring.poll();
+			if (event == null)
+				break;
+			if (event.getKind() == WatchEvent.Kind.MODIFY) {
+				Integer at = modified.get(event.getPath());
+				if (at != null) {
+					WatchEvent previous = batch.get(at);
+					batch.set(at, new WatchEvent(WatchEvent.Kind.MODIFY, previous.getPath(), null, previous.getCount() + 1));
+					stats.coalesced();
+					continue;
+				}
+				modified.put(event.getPath(), batch.size());
+			} else {
+				modified.remove(event.getPath());
+				if (event.getOldPath() != null)
+					modified.remove(event.getOldPath());
+			}
+			batch.add(event);
+		}
+	}
+
+	private void deliver(List<WatchEvent> batch) {
+		stats.dispatched();
+		for (WatchKey key : keys) {
+			List<WatchEvent> matching = new ArrayList<>();
+			for (WatchEvent event : batch) {
+				if (event.getKind() == WatchEvent.Kind.OVERFLOW || key.matches(event))
+					matching.add(event);
+			}
+			if (matching.isEmpty() || !key.isValid())
+				continue;
+			try {
+				key.getListener().onEvents(matching);
+				stats.delivered(matching.size());
+			} catch (RuntimeException e) {
+				// A failing listener loses that batch but keeps the dispatcher alive
+				stats.listenerFailed();
+			}
+		}
+	}
+}
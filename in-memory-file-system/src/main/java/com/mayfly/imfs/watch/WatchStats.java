@@ -0,0 +1,75 @@
+package com.mayfly.imfs.watch;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class WatchStats {
+
+	private final LongAdder published = new LongAdder();
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder overflows = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder listenerFailures = new LongAdder();
+
+	void published() {
+		published.increment();
+	}
+
+	void delivered(int events) {
+		delivered.add(events);
+	}
+
+	void coalesced() {
+		coalesced.increment();
+	}
+
+	void dropped() {
+		dropped.increment();
+	}
+
+	void overflowed() {
+		overflows.increment();
+	}
+
+	void dispatched() {
+		batches.increment();
+	}
+
+	void listenerFailed() {
+		listenerFailures.increment();
+	}
+
+	// Events accepted into the ring; nothing is published while no key is registered
+	public long getPublished() {
+		return published.sum();
+	}
+
+	// Events handed to listeners, counted once per listener
+	public long getDelivered() {
+		return delivered.sum();
+	}
+
+	// MODIFY events folded into an earlier one of the same batch
+	public long getCoalesced() {
+		return coalesced.sum();
+	}
+
+	// Events lost because the ring was full
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	// OVERFLOW events dispatched; each stands for one or more dropped events
+	public long getOverflows() {
+		return overflows.sum();
+	}
+
+	public long getBatches() {
+		return batches.sum();
+	}
+
+	public long getListenerFailures() {
+		return listenerFailures.sum();
+	}
+}
@@ -0,0 +1,228 @@
+package com.mayfly.imfs.content;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import com.mayfly.imfs.exception.InvalidOperationException;
+
+class ContentTest {
+
+    static Stream<Content> emptyContents() {
+        return Stream.of(ChunkedContent.EMPTY, PlainContent.EMPTY,
+                new CompressionContext(new DeflateCodec(), 1000, 4).compress(new byte[0]),
+                new OffHeapStore(64 * 1024).store(new byte[0]),
+                newSpillStore(16 * 1024).store(ChunkedContent.EMPTY),
+                new BlobStore().store(new byte[0], () -> PlainContent.EMPTY));
+    }
+
+    private static SpillStore newSpillStore(long budget) {
+        try {
+            return new SpillStore(Files.createTempDirectory("spill-test"), budget);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("emptyContents")
+    void randomUpdates_matchReferenceAndKeepOldVersionsIntact(Content start) {
+        Random random = new Random(42);
+        List<Content> versions = new ArrayList<>();
+        List<byte[]> expected = new ArrayList<>();
+        Content content = start;
+        ByteArrayOutputStream reference = new ByteArrayOutputStream();
+        for (int op = 0; op < 400; op++) {
+            byte[] current = reference.toByteArray();
+            // Branch from an older version now and then to exercise copy-on-write
+            if (op % 37 == 0 && !versions.isEmpty()) {
+                int pick = random.nextInt(versions.size());
+                content = versions.get(pick);
+                current = expected.get(pick);
+            }
+            byte[] data = new byte[random.nextInt(3000)];
+            random.nextBytes(data);
+            int kind = random.nextInt(10);
+            if (kind < 6) {
+                content = content.append(data);
+                current = concat(current, data);
+            } else if (kind < 9) {
+                long offset = current.length == 0 ? 0 : random.nextInt(current.length);
+                content = content.write(offset, data);
+                byte[] next = Arrays.copyOf(current, (int) Math.max(current.length, offset + data.length));
+                System.arraycopy(data, 0, next, (int) offset, data.length);
+                current = next;
+            } else {
+                int size = current.length == 0 ? 0 : random.nextInt(current.length);
+                content = content.truncate(size);
+                current = Arrays.copyOf(current, size);
+            }
+            reference.reset();
+            reference.write(current, 0, current.length);
+            versions.add(content);
+            expected.add(current);
+        }
+        for (int i = 0; i < versions.size(); i++) {
+            assertArrayEquals(expected.get(i), versions.get(i).toBytes(), "version " + i);
+        }
+        byte[] last = expected.get(expected.size() - 1);
+        if (last.length > 10) {
+            assertArrayEquals(Arrays.copyOfRange(last, 3, 10), content.read(3, 7));
+        }
+    }
+
+    @Test
+    void appendsShareTheBacking() {
+        ChunkedContent content = ChunkedContent.EMPTY;
+        byte[] line = "log line\n".getBytes();
+        for (int i = 0; i < 100_000; i++) {
+            content = content.append(line);
+        }
+        assertEquals(900_000, content.size());
+        assertEquals("log line\n", new String(content.read(899_991, 9)));
+    }
+
+    @Test
+    void offHeapStore_reclaimsCollectedVersionsAndCompacts() throws InterruptedException {
+        OffHeapStore store = new OffHeapStore(64 * 1024);
+        List<Content> kept = new ArrayList<>();
+        for (int i = 0; i < 4000; i++) {
+            Content content = store.store(("file number " + i).getBytes());
+            if (i % 50 == 0)
+                kept.add(content);
+        }
+        assertEquals(4, store.getSlabCount());
+        for (int attempt = 0; attempt < 50 && store.getBlockCount() > kept.size(); attempt++) {
+            System.gc();
+            Thread.sleep(10);
+            store.reclaim();
+        }
+        assertEquals(kept.size(), store.getBlockCount());
+        store.compact();
+        assertTrue(store.getCompactionCount() > 0);
+        assertEquals(1, store.getSlabCount());
+        for (int i = 0; i < kept.size(); i++) {
+            assertEquals("file number " + (i * 50), kept.get(i).asString());
+        }
+    }
+
+    @Test
+    void spillStore_keepsFrequentlyReadContentsThroughAScan() throws IOException {
+        SpillStore store = newSpillStore(100 * 1024);
+        List<Content> hot = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            hot.add(store.store(ChunkedContent.of(filled(5 * 1024, i))));
+        }
+        for (int round = 0; round < 5; round++) {
+            for (Content content : hot) {
+                content.toBytes();
+            }
+        }
+        // Reading every cold content once must not push the hot ones out
+        List<Content> cold = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Content content = store.store(ChunkedContent.of(filled(5 * 1024, 100 + i)));
+            content.toBytes();
+            cold.add(content);
+        }
+        for (int i = 0; i < hot.size(); i++) {
+            assertTrue(((SpillableContent) hot.get(i)).isResident(), "hot content " + i);
+            assertArrayEquals(filled(5 * 1024, i), hot.get(i).toBytes());
+        }
+        SpillStats stats = store.getStats();
+        assertTrue(stats.getResidentBytes() <= 100 * 1024);
+        assertTrue(stats.getSpills() >= 180);
+        assertTrue(stats.getSpilledContents() >= 180);
+
+        // Cold contents come back from the segment file; a content spilled twice is written once
+        for (int i = 0; i < cold.size(); i++) {
+            assertArrayEquals(filled(5 * 1024, 100 + i), cold.get(i).toBytes());
+        }
+        assertTrue(stats.getReloads() >= 180);
+        assertTrue(stats.getSpills() > 200);
+        assertTrue(stats.getSegmentBytes() <= 210 * 5 * 1024);
+        assertTrue(stats.getHitRate() > 0 && stats.getHitRate() < 1);
+
+        // Released contents stop counting and their extents become garbage once collected
+        for (Content content : cold) {
+            content.release();
+        }
+        assertEquals(10, stats.getResidentContents() + stats.getSpilledContents());
+        store.close();
+    }
+
+    @Test
+    void outOfRange_throws() {
+        Content content = ChunkedContent.of("abc".getBytes());
+        assertThrows(InvalidOperationException.class, () -> content.read(2, 2));
+        assertThrows(InvalidOperationException.class, () -> content.write(4, new byte[1]));
+        assertThrows(InvalidOperationException.class, () -> content.truncate(5));
+    }
+
+    @Test
+    void contentHash_extendsOverAppendsAndStaysBelowTheModulus() {
+        BigInteger modulus = BigInteger.valueOf(ContentHash.MODULUS);
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            long a = (random.nextLong() >>> 3) % ContentHash.MODULUS;
+            long b = (random.nextLong() >>> 3) % ContentHash.MODULUS;
+            long expected = BigInteger.valueOf(a).multiply(BigInteger.valueOf(b)).mod(modulus).longValue();
+            assertEquals(expected, ContentHash.multiply(a, b));
+        }
+        assertEquals(0, ContentHash.multiply(ContentHash.MODULUS - 1, 0));
+        assertEquals(1, ContentHash.multiply(ContentHash.MODULUS - 1, ContentHash.MODULUS - 1));
+
+        byte[] head = filled(5000, 1);
+        byte[] tail = filled(300, 2);
+        assertEquals(ContentHash.of(concat(head, tail)), ContentHash.append(ContentHash.of(head), tail));
+        assertEquals(0, ContentHash.of(new byte[0]));
+        assertNotEquals(ContentHash.of(new byte[1]), ContentHash.of(new byte[2]));
+        assertNotEquals(ContentHash.of(head), ContentHash.of(concat(head, new byte[1])));
+    }
+
+    @Test
+    void contentHash_followsOverwritesAndTruncatesFromWhatTheyTouch() {
+        byte[] content = filled(5000, 3);
+        long hash = ContentHash.of(content);
+        byte[] data = filled(700, 4);
+
+        // Inside, overlapping the end and starting right at the end
+        for (int offset : new int[] { 0, 1234, 4800, 5000 }) {
+            byte[] old = Arrays.copyOfRange(content, offset, Math.min(content.length, offset + data.length));
+            byte[] expected = Arrays.copyOf(content, Math.max(content.length, offset + data.length));
+            System.arraycopy(data, 0, expected, offset, data.length);
+            assertEquals(ContentHash.of(expected), ContentHash.write(hash, content.length, offset, old, data));
+        }
+
+        for (int size : new int[] { 0, 1, 2500, 4999 }) {
+            byte[] tail = Arrays.copyOfRange(content, size, content.length);
+            assertEquals(ContentHash.of(Arrays.copyOf(content, size)),
+                    ContentHash.truncate(hash, ContentHash.of(tail), tail.length));
+        }
+    }
+
+    private static byte[] filled(int length, int seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+}
@@ -0,0 +1,102 @@
+package com.mayfly.imfs.metrics;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+
+import com.mayfly.imfs.config.FileSystemConfig;
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.exception.EntityNotFoundException;
+import com.mayfly.imfs.service.FileSystemWorker;
+
+class FileSystemMetricsTest {
+
+    @Test
+    void histogram_reportsPercentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10_000; i++) {
+            histogram.record(i * 1_000);
+        }
+        assertEquals(10_000, histogram.getCount());
+        assertEquals(10_000_000, histogram.getMax());
+        assertEquals(5_000_500, histogram.getMean(), 1);
+        assertEquals(5_000_000, histogram.getValueAtPercentile(50), 5_000_000 * 0.04);
+        assertEquals(9_900_000, histogram.getValueAtPercentile(99), 9_900_000 * 0.04);
+        assertEquals(10_000_000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    void histogram_bucketsCoverEveryValue() {
+        for (int shift = 0; shift < 63; shift++) {
+            for (long value : new long[] { 1L << shift, (1L << shift) + 1, (1L << (shift + 1)) - 1 }) {
+                long highest = LatencyHistogram.highestValue(LatencyHistogram.index(value));
+                assertTrue(highest >= value);
+                assertTrue(highest - value <= value / 32);
+            }
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValue(LatencyHistogram.index(Long.MAX_VALUE)));
+    }
+
+    @Test
+    void worker_countsOperationsAndFailures() {
+        FileSystemMetrics metrics = new FileSystemMetrics();
+        FileSystemConfig config = new FileSystemConfig();
+        config.setInstrumentation(metrics);
+        FileSystemWorker worker = new FileSystemWorker(config);
+
+        worker.create(EntityType.DRIVE, "C", null);
+        worker.create(EntityType.TEXT_FILE, "a.txt", "C");
+        worker.writeToFile("C\\a.txt", "hello");
+        worker.appendToFile("C\\a.txt", "!");
+        worker.readFromFile("C\\a.txt", 0, 6);
+        worker.diff("C", "C");
+        assertThrows(EntityNotFoundException.class, () -> worker.delete("C\\missing.txt"));
+        worker.delete("C\\a.txt");
+
+        FileSystemStats stats = worker.stats();
+        assertEquals(2, stats.getOperation(OperationType.CREATE).getCount());
+        assertEquals(1, stats.getOperation(OperationType.WRITE).getCount());
+        assertEquals(1, stats.getOperation(OperationType.PATCH).getCount());
+        assertEquals(1, stats.getOperation(OperationType.READ).getCount());
+        assertEquals(1, stats.getOperation(OperationType.DIFF).getCount());
+        assertEquals(2, stats.getOperation(OperationType.DELETE).getCount());
+        assertEquals(1, stats.getOperation(OperationType.DELETE).getFailures());
+        assertEquals(8, stats.getTotalOperations());
+        assertTrue(stats.getOperation(OperationType.CREATE).getMaxNanos() > 0);
+    }
+
+    @Test
+    void disabledInstrumentation_keepsNoStats() {
+        FileSystemWorker worker = new FileSystemWorker();
+        worker.create(EntityType.DRIVE, "C", null);
+        assertEquals(0, worker.stats().getTotalOperations());
+    }
+
+    @Test
+    void asyncSink_deliversEveryEventOffTheCallingThread() {
+        List<FileSystemEvent> events = new CopyOnWriteArrayList<>();
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+        AsyncEventSink sink = new AsyncEventSink(event -> {
+            threads.add(Thread.currentThread());
+            events.add(event);
+        }, 1024);
+        FileSystemConfig config = new FileSystemConfig();
+        config.setInstrumentation(new FileSystemMetrics(sink));
+        FileSystemWorker worker = new FileSystemWorker(config);
+
+        worker.create(EntityType.DRIVE, "C", null);
+        worker.create(EntityType.FOLDER, "docs", "C");
+        assertThrows(EntityNotFoundException.class, () -> worker.rename("C\\nothing", "x"));
+        sink.close();
+
+        assertEquals(3, events.size());
+        assertEquals(OperationType.CREATE, events.get(0).getType());
+        assertEquals("C", events.get(1).getPath());
+        assertFalse(events.get(2).isSucceeded());
+        assertFalse(threads.contains(Thread.currentThread()));
+        assertEquals(0, worker.stats().getDroppedEvents());
+    }
+}
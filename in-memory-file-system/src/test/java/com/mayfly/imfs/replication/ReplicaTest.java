@@ -0,0 +1,126 @@
+package com.mayfly.imfs.replication;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mayfly.imfs.config.FileSystemConfig;
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.exception.EntityNotFoundException;
+import com.mayfly.imfs.service.FileSystemWorker;
+
+class ReplicaTest {
+
+    private FileSystemWorker leader;
+
+    @BeforeEach
+    void setUp() {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setReplicationLogCapacity(16);
+        leader = new FileSystemWorker(config);
+        leader.create(EntityType.DRIVE, "C", null);
+        leader.create(EntityType.FOLDER, "docs", "C");
+        leader.create(EntityType.TEXT_FILE, "a.txt", "C\\docs");
+        leader.writeToFile("C\\docs\\a.txt", "before the image");
+    }
+
+    @AfterEach
+    void tearDown() {
+        leader.close();
+    }
+
+    @Test
+    void replica_followsTheLeaderOverLoopback() throws Exception {
+        try (ReplicationServer server = new ReplicationServer(leader, 0);
+                Replica replica = new Replica(new SocketReplicationSource(server.getPort()), new FileSystemConfig())) {
+            assertEquals("before the image", read(replica, "C\\docs\\a.txt"));
+
+            byte[] buffer = "appended".getBytes(StandardCharsets.UTF_8);
+            leader.appendToFile("C\\docs\\a.txt", buffer);
+            // The log keeps its own copy, so reusing the buffer changes nothing shipped
+            buffer[0] = 'X';
+            leader.create(EntityType.FOLDER, "archive", "C");
+            leader.move("C\\docs", "C\\archive");
+            leader.rename("C\\archive\\docs\\a.txt", "b.txt");
+            leader.create(EntityType.TEXT_FILE, "gone.txt", "C");
+            leader.delete("C\\gone.txt");
+
+            assertTrue(replica.awaitApplied(leader.getReplicationLog().getLastSeq(), 5000));
+            assertEquals("before the imageappended", read(replica, "C\\archive\\docs\\b.txt"));
+            assertThrows(EntityNotFoundException.class, () -> replica.getFileSize("C\\gone.txt"));
+            assertEquals(0, replica.getStats().getLagRecords());
+            assertEquals(1, replica.getStats().getBootstraps());
+        }
+    }
+
+    @Test
+    void replica_inProcessSkipsWhatItsImageHolds() throws Exception {
+        try (Replica replica = new Replica(new LocalReplicationSource(leader), new FileSystemConfig())) {
+            leader.writeToFile("C\\docs\\a.txt", "after the image");
+
+            assertTrue(replica.awaitApplied(leader.getReplicationLog().getLastSeq(), 5000));
+            assertEquals("after the image", read(replica, "C\\docs\\a.txt"));
+            assertEquals(1, replica.getStats().getAppliedRecords());
+            assertTrue(replica.find("C", "*.txt").contains("C\\docs\\a.txt"));
+        }
+    }
+
+    @Test
+    void staleReplica_startsOverFromANewImage() throws Exception {
+        GatedSource source = new GatedSource(new LocalReplicationSource(leader));
+        try (Replica replica = new Replica(source, new FileSystemConfig())) {
+            // More records than the log keeps while the follower is held back
+            for (int i = 0; i < 40; i++) {
+                leader.create(EntityType.TEXT_FILE, "f" + i + ".txt", "C");
+            }
+            source.open.countDown();
+
+            assertTrue(replica.awaitApplied(leader.getReplicationLog().getLastSeq(), 5000));
+            assertEquals(2, replica.getStats().getBootstraps());
+            assertEquals(0, replica.getFileSize("C\\f39.txt"));
+        }
+    }
+
+    private static String read(Replica replica, String path) {
+        return new String(replica.readFromFile(path, 0, (int) replica.getFileSize(path)), StandardCharsets.UTF_8);
+    }
+
+    // Holds polls back until opened
+    private static final class GatedSource implements ReplicationSource {
+        final CountDownLatch open = new CountDownLatch(1);
+        final ReplicationSource source;
+
+        GatedSource(ReplicationSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public long bootstrap(Path image) throws IOException {
+            return source.bootstrap(image);
+        }
+
+        @Override
+        public List<ReplicationLog.Entry> poll(long from, long timeoutMillis) throws IOException, InterruptedException {
+            open.await();
+            return source.poll(from, timeoutMillis);
+        }
+
+        @Override
+        public long getLeaderSeq() {
+            return source.getLeaderSeq();
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.mayfly.imfs.snapshot;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.exception.EntityNotFoundException;
+import com.mayfly.imfs.exception.FileSystemException;
+import com.mayfly.imfs.exception.InvalidOperationException;
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.model.Revision;
+import com.mayfly.imfs.service.FileSystemWorker;
+import com.mayfly.imfs.utils.FSUtils;
+
+class FileSystemSnapshotTest {
+
+    private FileSystemWorker worker;
+
+    @BeforeEach
+    void setUp() {
+        worker = new FileSystemWorker();
+        worker.create(EntityType.DRIVE, "C", null);
+        worker.create(EntityType.FOLDER, "docs", "C");
+        worker.create(EntityType.FOLDER, "archive", "C");
+        worker.create(EntityType.TEXT_FILE, "a.txt", "C\\docs");
+        worker.writeToFile("C\\docs\\a.txt", "v1");
+    }
+
+    @Test
+    void snapshot_isUnaffectedByLaterWrites() {
+        try (FileSystemSnapshot snapshot = worker.snapshot()) {
+            worker.writeToFile("C\\docs\\a.txt", "v2");
+            worker.rename("C\\docs\\a.txt", "b.txt");
+            worker.create(EntityType.TEXT_FILE, "new.txt", "C\\docs");
+            worker.move("C\\docs", "C\\archive");
+            worker.create(EntityType.DRIVE, "D", null);
+            worker.delete("C\\archive\\docs\\new.txt");
+
+            SnapshotEntity file = snapshot.getEntity("C\\docs\\a.txt");
+            assertEquals("v1", file.getContent());
+            assertEquals("C\\docs\\a.txt", file.getPath());
+            assertEquals(1, snapshot.getEntity("C\\docs").getChildren().size());
+            assertTrue(snapshot.getEntity("C\\archive").getChildren().isEmpty());
+            assertFalse(snapshot.getDrives().containsKey("D"));
+
+            try (FileSystemSnapshot later = worker.snapshot()) {
+                assertEquals("v2", later.getEntity("C\\archive\\docs\\b.txt").getContent());
+                assertThrows(EntityNotFoundException.class, () -> later.getEntity("C\\docs"));
+            }
+        }
+    }
+
+    @Test
+    void snapshot_keepsDeletedDrive() {
+        try (FileSystemSnapshot snapshot = worker.snapshot()) {
+            worker.delete("C");
+            assertEquals("v1", snapshot.getEntity("C\\docs\\a.txt").getContent());
+            assertTrue(worker.getDrives().isEmpty());
+        }
+    }
+
+    @Test
+    void closedSnapshot_throws() {
+        FileSystemSnapshot snapshot = worker.snapshot();
+        SnapshotEntity docs = snapshot.getEntity("C\\docs");
+        snapshot.close();
+        InvalidOperationException ex = assertThrows(InvalidOperationException.class, docs::getChildren);
+        assertEquals("Snapshot is closed", ex.getMessage());
+    }
+
+    @Test
+    void snapshot_neverSeesTornMoves() throws Exception {
+        int folders = 10;
+        worker.create(EntityType.FOLDER, "left", "C");
+        worker.create(EntityType.FOLDER, "right", "C");
+        for (int i = 0; i < folders; i++) {
+            worker.create(EntityType.FOLDER, "f" + i, "C\\left");
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            Random random = new Random(7);
+            while (running.get()) {
+                String name = "f" + random.nextInt(folders);
+                try {
+                    if (random.nextBoolean())
+                        worker.move("C\\left\\" + name, "C\\right");
+                    else
+                        worker.move("C\\right\\" + name, "C\\left");
+                } catch (FileSystemException expected) {
+                    // folder was on the other side
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        writer.start();
+        try {
+            for (int i = 0; i < 500; i++) {
+                try (FileSystemSnapshot snapshot = worker.snapshot()) {
+                    int seen = snapshot.getEntity("C\\left").getChildren().size()
+                            + snapshot.getEntity("C\\right").getChildren().size();
+                    assertEquals(folders, seen);
+                }
+            }
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+        assertNull(failure.get());
+    }
+
+    @Test
+    void close_dropsRevisionsNoOpenSnapshotNeeds() {
+        Entity drive = FSUtils.findEntity("C", worker.getDrives());
+        Entity file = FSUtils.findEntity("C\\docs\\a.txt", worker.getDrives());
+        FileSystemSnapshot older = worker.snapshot();
+        worker.writeToFile("C\\docs\\a.txt", "v2");
+        FileSystemSnapshot newer = worker.snapshot();
+        worker.writeToFile("C\\docs\\a.txt", "v3");
+        worker.delete("C\\docs");
+        assertEquals(2, revisions(file));
+
+        older.close();
+        assertEquals(1, revisions(file));
+        assertEquals("v2", newer.getEntity("C\\docs\\a.txt").getContent());
+
+        // Nothing is written after the last close, yet the deleted subtree is let go
+        newer.close();
+        assertEquals(0, revisions(file));
+        assertEquals(0, revisions(drive));
+    }
+
+    private static int revisions(Entity entity) {
+        int count = 0;
+        for (Revision r = entity.getRevisionLog().head(); r != null; r = r.getNext()) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    void diff_listsOnlyWhatChangedSinceTheSnapshot() {
+        try (FileSystemSnapshot snapshot = worker.snapshot()) {
+            assertTrue(worker.diff(snapshot).isEmpty());
+            worker.writeToFile("C\\docs\\a.txt", "v2");
+            worker.create(EntityType.TEXT_FILE, "n.txt", "C\\archive");
+            worker.create(EntityType.DRIVE, "D", null);
+            assertEquals("[ADDED C\\archive\\n.txt, MODIFIED C\\docs\\a.txt, ADDED D]", worker.diff(snapshot).toString());
+            assertEquals("[MODIFIED a.txt]", worker.diff(snapshot, "C\\docs").toString());
+
+            // Written back, the file holds new content objects but the same bytes
+            worker.writeToFile("C\\docs\\a.txt", "v1");
+            worker.rename("C\\archive", "old");
+            assertEquals("[REMOVED C\\archive, ADDED C\\old, ADDED D]", worker.diff(snapshot).toString());
+        }
+    }
+}
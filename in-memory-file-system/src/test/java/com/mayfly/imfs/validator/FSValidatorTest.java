@@ -45,7 +45,7 @@ class FSValidatorTest {
     }
 
     static Stream<String> invalidFileNames() {
-        return Stream.of("abc..txt", "a b.txt", "abc.txt.exe");
+        return Stream.of("abc..txt", "a b.txt", "abc.txt.exe", "", ".txt", "abc.", "na\u00efve.txt");
     }
 
     @ParameterizedTest
@@ -61,7 +61,7 @@ class FSValidatorTest {
     }
 
     @ParameterizedTest
-    @ValueSource(strings = {"abc-123", "abc 123"})
+    @ValueSource(strings = {"abc-123", "abc 123", "", "abc.txt", "\u0661\u0662"})
     void validateEntityName_regex_invalid(String entityName) {
         assertThrows(NameConflictException.class, () -> FSValidator.validateEntityName(entityName));
     }
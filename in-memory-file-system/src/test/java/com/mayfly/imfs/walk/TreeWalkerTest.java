@@ -0,0 +1,85 @@
+package com.mayfly.imfs.walk;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+import com.mayfly.imfs.config.FileSystemConfig;
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.exception.InvalidOperationException;
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.service.FileSystemWorker;
+
+class TreeWalkerTest {
+
+    private static FileSystemWorker buildTree(FileSystemConfig config) {
+        FileSystemWorker worker = new FileSystemWorker(config);
+        worker.create(EntityType.DRIVE, "C", null);
+        for (int i = 0; i < 20; i++) {
+            worker.create(EntityType.FOLDER, "f" + i, "C");
+            for (int j = 0; j < 10; j++) {
+                worker.create(EntityType.FOLDER, "g" + j, "C\\f" + i);
+                worker.create(EntityType.TEXT_FILE, "a.txt", "C\\f" + i + "\\g" + j);
+                worker.writeToFile("C\\f" + i + "\\g" + j + "\\a.txt", "abc");
+            }
+        }
+        return worker;
+    }
+
+    @Test
+    void walk_visitsEveryEntityOnceAcrossThreads() {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setWalkParallelism(4);
+        config.setWalkSplitThreshold(8);
+        FileSystemWorker worker = buildTree(config);
+
+        Set<Entity> visited = ConcurrentHashMap.newKeySet();
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        worker.walk("C", (entity, depth) -> {
+            assertTrue(entity.getParent() == null || visited.contains(entity.getParent()));
+            assertTrue(visited.add(entity));
+            threads.add(Thread.currentThread());
+            return true;
+        });
+        assertEquals(1 + 20 + 200 + 200, visited.size());
+        assertFalse(threads.contains(Thread.currentThread()));
+
+        // Pruned subtrees are not listed at all
+        Set<Entity> pruned = ConcurrentHashMap.newKeySet();
+        worker.walk("C", (entity, depth) -> pruned.add(entity) && depth < 1);
+        assertEquals(21, pruned.size());
+
+        assertThrows(IllegalStateException.class, () -> worker.walk("C", (entity, depth) -> {
+            if (entity.getName().equals("g7"))
+                throw new IllegalStateException("stop");
+            return true;
+        }));
+        worker.close();
+    }
+
+    @Test
+    void treeStats_matchTreeAndSmallTreesStayOnCaller() {
+        FileSystemWorker worker = buildTree(new FileSystemConfig());
+        worker.create(EntityType.ZIP_FILE, "z", "C\\f0");
+        TreeStats stats = worker.getTreeStats("C");
+        assertEquals(220, stats.getFolders());
+        assertEquals(1, stats.getZipFiles());
+        assertEquals(200, stats.getTextFiles());
+        assertEquals(600, stats.getBytes());
+        assertEquals(1, stats.getEmptyDirectories());
+        assertEquals(3, stats.getLargestFileBytes());
+        assertEquals(3, stats.getMaxDepth());
+
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        new TreeWalker(ForkJoinPool.commonPool(), 1_000).walk(worker.getDrives().get("C").getChild("f1"),
+                (entity, depth) -> threads.add(Thread.currentThread()));
+        assertEquals(1, threads.size());
+        assertTrue(threads.contains(Thread.currentThread()));
+        assertThrows(IllegalArgumentException.class, () -> new TreeWalker(ForkJoinPool.commonPool(), 0));
+        assertThrows(InvalidOperationException.class, () -> worker.copy("C", "C\\f0"));
+    }
+}
@@ -0,0 +1,110 @@
+package com.mayfly.imfs.watch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.exception.EntityNotFoundException;
+import com.mayfly.imfs.service.FileSystemWorker;
+
+class WatchServiceTest {
+
+    @Test
+    void watch_deliversChangesBelowTheWatchedPath() {
+        FileSystemWorker worker = new FileSystemWorker();
+        worker.create(EntityType.DRIVE, "C", null);
+        worker.create(EntityType.FOLDER, "a", "C");
+        worker.create(EntityType.FOLDER, "b", "C\\a");
+        worker.create(EntityType.FOLDER, "z", "C");
+        worker.create(EntityType.TEXT_FILE, "x.txt", "C\\a\\b");
+        worker.create(EntityType.FOLDER, "d", "C\\a\\b");
+        assertNull(worker.getWatchStats());
+        assertThrows(EntityNotFoundException.class, () -> worker.watch("C\\missing", true, events -> { }));
+
+        List<String> recursive = Collections.synchronizedList(new ArrayList<>());
+        List<String> direct = Collections.synchronizedList(new ArrayList<>());
+        List<String> unrelated = Collections.synchronizedList(new ArrayList<>());
+        worker.watch("C\\a", true, events -> events.forEach(event -> recursive.add(describe(event))));
+        worker.watch("C\\a", false, events -> events.forEach(event -> direct.add(describe(event))));
+        worker.watch("C\\z", true, events -> events.forEach(event -> unrelated.add(describe(event))));
+        WatchKey cancelled = worker.watch("C", true, events -> fail("cancelled key got " + events));
+        cancelled.cancel();
+        assertFalse(cancelled.isValid());
+        worker.watch("C", true, events -> {
+            throw new IllegalStateException("listener failure");
+        });
+
+        worker.create(EntityType.TEXT_FILE, "y.txt", "C\\a");
+        worker.writeToFile("C\\a\\b\\x.txt", "hello");
+        worker.rename("C\\a\\b", "c");
+        worker.move("C\\a\\c\\d", "C");
+        worker.copy("C\\d", "C\\z");
+        worker.delete("C\\a");
+        // Delivers what is still in the ring before returning
+        worker.close();
+
+        assertEquals(Arrays.asList("CREATE C\\a\\y.txt", "MODIFY C\\a\\b\\x.txt", "RENAME C\\a\\b -> C\\a\\c",
+                "MOVE C\\a\\c\\d -> C\\d", "DELETE C\\a"), recursive);
+        assertEquals(Arrays.asList("CREATE C\\a\\y.txt", "RENAME C\\a\\b -> C\\a\\c", "DELETE C\\a"), direct);
+        assertEquals(Arrays.asList("CREATE C\\z\\d"), unrelated);
+
+        WatchStats stats = worker.getWatchStats();
+        assertEquals(6, stats.getPublished());
+        assertEquals(5 + 3 + 1, stats.getDelivered());
+        assertTrue(stats.getListenerFailures() >= 1);
+        assertEquals(0, stats.getDropped());
+    }
+
+    @Test
+    void slowListener_coalescesModificationsAndReportsOverflow() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<List<WatchEvent>> batches = Collections.synchronizedList(new ArrayList<>());
+        WatchService service = new WatchService(4, 1024);
+        service.register("C", true, events -> {
+            batches.add(new ArrayList<>(events));
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        service.publish(WatchEvent.Kind.CREATE, "C\\f.txt", null);
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        // The dispatcher is stuck in the listener: four events fit the ring, the other six are dropped
+        for (int i = 0; i < 10; i++) {
+            service.publish(WatchEvent.Kind.MODIFY, "C\\f.txt", null);
+        }
+        release.countDown();
+        service.close();
+
+        assertEquals(2, batches.size());
+        List<WatchEvent> second = batches.get(1);
+        assertEquals(2, second.size());
+        assertEquals(WatchEvent.Kind.OVERFLOW, second.get(0).getKind());
+        assertEquals(WatchEvent.Kind.MODIFY, second.get(1).getKind());
+        assertEquals(4, second.get(1).getCount());
+
+        WatchStats stats = service.getStats();
+        assertEquals(5, stats.getPublished());
+        assertEquals(6, stats.getDropped());
+        assertEquals(3, stats.getCoalesced());
+        assertEquals(1, stats.getOverflows());
+        assertEquals(3, stats.getDelivered());
+        assertEquals(2, stats.getBatches());
+    }
+
+    private static String describe(WatchEvent event) {
+        return event.getKind() + (event.getOldPath() == null ? "" : " " + event.getOldPath() + " ->") + " " + event.getPath();
+    }
+}
@@ -0,0 +1,528 @@
+package com.mayfly.imfs.worker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.mayfly.imfs.config.FileSystemConfig;
+import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.content.ContentCodec;
+import com.mayfly.imfs.content.ContentHash;
+import com.mayfly.imfs.content.DeflateCodec;
+import com.mayfly.imfs.diff.MerkleHash;
+import com.mayfly.imfs.exception.EntityNotFoundException;
+import com.mayfly.imfs.exception.FileSystemException;
+import com.mayfly.imfs.model.Entity;
+import com.mayfly.imfs.model.FileSystemEntity;
+import com.mayfly.imfs.model.TextFile;
+import com.mayfly.imfs.service.AsyncFileSystemWorker;
+import com.mayfly.imfs.service.FileSystemBatch;
+import com.mayfly.imfs.service.FileSystemWorker;
+import com.mayfly.imfs.utils.FSUtils;
+
+class FileSystemWorkerConcurrencyTest {
+
+    private static final int THREADS = 8;
+    private static final int FOLDERS = 40;
+    private static final int OPERATIONS = 3000;
+
+    @Test
+    void concurrentMoveRenameCreate_noLostOrDuplicatedEntities() throws Exception {
+        FileSystemWorker worker = new FileSystemWorker();
+        worker.create(EntityType.DRIVE, "X", null);
+        worker.create(EntityType.DRIVE, "Y", null);
+        for (int i = 0; i < FOLDERS; i++) {
+            worker.create(EntityType.FOLDER, "f" + i, i % 2 == 0 ? "X" : "Y");
+        }
+        List<FileSystemEntity> folders = new ArrayList<>();
+        collectFolders(worker.getDrives().get("X"), folders);
+        collectFolders(worker.getDrives().get("Y"), folders);
+        assertEquals(FOLDERS, folders.size());
+        // Builds both name indexes up front so every operation below has to keep them current
+        assertEquals(FOLDERS / 2, worker.find("X", "*").size());
+        assertEquals(FOLDERS / 2, worker.find("Y", "*").size());
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            results.add(pool.submit(() -> {
+                Random random = new Random(thread);
+                int created = 0;
+                start.await();
+                for (int op = 0; op < OPERATIONS; op++) {
+                    FileSystemEntity a = folders.get(random.nextInt(folders.size()));
+                    FileSystemEntity b = folders.get(random.nextInt(folders.size()));
+                    try {
+                        switch (random.nextInt(4)) {
+                        case 0:
+                            worker.move(a.getPath(), b.getPath());
+                            break;
+                        case 1:
+                            worker.move(a.getPath(), random.nextBoolean() ? "X" : "Y");
+                            break;
+                        case 2:
+                            worker.rename(a.getPath(), "r" + thread + "n" + op);
+                            break;
+                        default:
+                            String path = a.getPath();
+                            worker.create(EntityType.TEXT_FILE, "t" + thread + "n" + op + ".txt", path);
+                            created++;
+                            worker.appendToFile(path + "\\t" + thread + "n" + op + ".txt", "abc");
+                            break;
+                        }
+                    } catch (FileSystemException expected) {
+                        // paths go stale under concurrent moves; only the final tree matters
+                    }
+                }
+                return created;
+            }));
+        }
+        start.countDown();
+        int created = 0;
+        for (Future<Integer> result : results) {
+            created += result.get();
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+
+        Set<Entity> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        int[] files = new int[1];
+        for (FileSystemEntity drive : worker.getDrives().values()) {
+            verify(drive, seen, files);
+        }
+        assertEquals(created, files[0]);
+        for (FileSystemEntity drive : worker.getDrives().values()) {
+            long[] totals = assertTotals(drive);
+            assertEquals(totals[2], worker.find(drive.getName(), "*").size());
+            assertEquals(totals[1], worker.find(drive.getName(), "*.txt").size());
+        }
+        for (FileSystemEntity folder : folders) {
+            assertTrue(seen.contains(folder), "lost folder " + folder.getName());
+            assertFalse(folder.isDeleted());
+        }
+    }
+
+    @Test
+    void concurrentCrossMoves_neverCreateCycles() throws Exception {
+        FileSystemWorker worker = new FileSystemWorker();
+        worker.create(EntityType.DRIVE, "Z", null);
+        worker.create(EntityType.FOLDER, "a", "Z");
+        worker.create(EntityType.FOLDER, "b", "Z");
+        FileSystemEntity a = (FileSystemEntity) worker.getDrives().get("Z").getChild("a");
+        FileSystemEntity b = (FileSystemEntity) worker.getDrives().get("Z").getChild("b");
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        for (FileSystemEntity[] pair : new FileSystemEntity[][] { { a, b }, { b, a } }) {
+            results.add(pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < OPERATIONS; i++) {
+                    try {
+                        worker.move(pair[0].getPath(), pair[1].getPath());
+                        worker.move(pair[0].getPath(), "Z");
+                    } catch (FileSystemException expected) {
+                        // the other thread won the race
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get();
+        }
+        pool.shutdown();
+
+        Set<Entity> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        verify(worker.getDrives().get("Z"), seen, new int[1]);
+        assertTrue(seen.contains(a));
+        assertTrue(seen.contains(b));
+    }
+
+    @Test
+    void concurrentSourceWrites_neverLeakIntoLazyCopy() throws Exception {
+        FileSystemWorker worker = new FileSystemWorker();
+        worker.create(EntityType.DRIVE, "S", null);
+        worker.create(EntityType.DRIVE, "T", null);
+        worker.create(EntityType.FOLDER, "tpl", "S");
+        for (int i = 0; i < 10; i++) {
+            worker.create(EntityType.FOLDER, "d" + i, "S\\tpl");
+            for (int j = 0; j < 10; j++) {
+                worker.create(EntityType.TEXT_FILE, "f" + j + ".txt", "S\\tpl\\d" + i);
+                worker.writeToFile("S\\tpl\\d" + i + "\\f" + j + ".txt", "v0");
+            }
+        }
+        worker.copy("S\\tpl", "T");
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            results.add(pool.submit(() -> {
+                Random random = new Random(thread);
+                start.await();
+                for (int op = 0; op < OPERATIONS / 10; op++) {
+                    String file = "\\tpl\\d" + random.nextInt(10) + "\\f" + random.nextInt(10) + ".txt";
+                    if (thread % 2 == 0)
+                        worker.writeToFile("S" + file, "v" + (op + 1));
+                    else
+                        assertEquals("v0", ((TextFile) FSUtils.findEntity("T" + file, worker.getDrives())).getContent());
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get();
+        }
+        pool.shutdown();
+        assertEquals(200, worker.getUsage("T\\tpl").getBytes());
+        assertEquals(100, worker.getTreeStats("T\\tpl").getTextFiles());
+        worker.walk("T\\tpl", (entity, depth) -> {
+            if (entity instanceof TextFile)
+                assertEquals("v0", ((TextFile) entity).getContent());
+            return true;
+        });
+    }
+
+    @Test
+    void concurrentLookups_neverKeepAPathARenameRetired() throws Exception {
+        FileSystemWorker worker = new FileSystemWorker();
+        worker.create(EntityType.DRIVE, "C", null);
+        worker.create(EntityType.FOLDER, "a", "C");
+        worker.create(EntityType.TEXT_FILE, "f.txt", "C\\a");
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        AtomicBoolean done = new AtomicBoolean();
+        List<Future<?>> readers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            readers.add(pool.submit(() -> {
+                while (!done.get()) {
+                    for (String folder : new String[] { "a", "b" }) {
+                        try {
+                            worker.getFileSize("C\\" + folder + "\\f.txt");
+                        } catch (EntityNotFoundException e) {
+                            // Renamed away meanwhile
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+        try {
+            // Lookups refreshing the cache while the rename is stamped must not carry the old path past it
+            for (int op = 0; op < OPERATIONS * 3; op++) {
+                String from = op % 2 == 0 ? "a" : "b";
+                worker.rename("C\\" + from, op % 2 == 0 ? "b" : "a");
+                assertThrows(EntityNotFoundException.class, () -> worker.getFileSize("C\\" + from + "\\f.txt"));
+            }
+        } finally {
+            done.set(true);
+            for (Future<?> reader : readers) {
+                reader.get();
+            }
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void asyncApi_keepsPerDriveOrderAndCrossDriveMovesAtomic() throws Exception {
+        FileSystemWorker worker = new FileSystemWorker();
+        AsyncFileSystemWorker async = worker.async();
+        async.create(EntityType.DRIVE, "P", null);
+        async.create(EntityType.DRIVE, "Q", null);
+        async.create(EntityType.TEXT_FILE, "log.txt", "P");
+        List<CompletableFuture<Void>> appends = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            appends.add(async.appendToFile("P\\log.txt", (i + ",").getBytes(StandardCharsets.UTF_8)));
+        }
+        // Queued behind the appends on the same writer, so no waiting is needed to read them
+        String log = async.readFile("P\\log.txt").get(30, TimeUnit.SECONDS);
+        assertTrue(appends.stream().allMatch(CompletableFuture::isDone));
+        String[] entries = log.split(",");
+        assertEquals(1000, entries.length);
+        for (int i = 0; i < entries.length; i++) {
+            assertEquals(String.valueOf(i), entries[i]);
+        }
+
+        // Folders bounce between the drives while both drives take writes; none is lost or doubled
+        for (int i = 0; i < FOLDERS; i++) {
+            async.create(EntityType.FOLDER, "m" + i, "P");
+        }
+        List<CompletableFuture<Void>> all = new ArrayList<>();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < FOLDERS; i++) {
+                all.add(async.move((round % 2 == 0 ? "P\\m" : "Q\\m") + i, round % 2 == 0 ? "Q" : "P"));
+            }
+            all.add(async.create(EntityType.TEXT_FILE, "p" + round + ".txt", "P"));
+            all.add(async.create(EntityType.TEXT_FILE, "q" + round + ".txt", "Q"));
+        }
+        CompletableFuture.allOf(all.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        assertEquals(FOLDERS + 20 + 1, worker.getDrives().get("P").getChildren().size());
+        assertEquals(20, worker.getDrives().get("Q").getChildren().size());
+
+        CompletableFuture<Void> missing = async.delete("Q\\nothing");
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> missing.get(30, TimeUnit.SECONDS));
+        assertTrue(failure.getCause() instanceof EntityNotFoundException);
+
+        worker.close();
+        assertEquals(0, async.getActiveWriters());
+        assertTrue(async.create(EntityType.DRIVE, "R", null).isCompletedExceptionally());
+    }
+
+    @Test
+    void asyncApi_keepsWritersOnlyForExistingDrives() throws Exception {
+        FileSystemWorker worker = new FileSystemWorker();
+        AsyncFileSystemWorker async = worker.async();
+        async.create(EntityType.DRIVE, "P", null).get(30, TimeUnit.SECONDS);
+        assertEquals(1, async.getWriterCount());
+
+        // Paths on drives that do not exist fail without leaving a writer behind
+        for (int i = 0; i < 100; i++) {
+            CompletableFuture<Void> missing = async.writeToFile("X" + i + "\\a.txt", "lost");
+            ExecutionException failure = assertThrows(ExecutionException.class, () -> missing.get(30, TimeUnit.SECONDS));
+            assertTrue(failure.getCause() instanceof EntityNotFoundException);
+        }
+        CompletableFuture<Void> move = async.move("P", "Y");
+        assertThrows(ExecutionException.class, () -> move.get(30, TimeUnit.SECONDS));
+        assertEquals(1, async.getWriterCount());
+
+        // A batch may create the drives it writes to
+        FileSystemBatch batch = new FileSystemBatch();
+        batch.create(EntityType.DRIVE, "Q", null);
+        batch.create(EntityType.TEXT_FILE, "a.txt", "Q");
+        async.apply(batch).get(30, TimeUnit.SECONDS);
+        assertEquals(2, async.getWriterCount());
+
+        // Deleting a drive drops its writer; the name gets a fresh one when the drive comes back
+        async.delete("Q").get(30, TimeUnit.SECONDS);
+        assertEquals(1, async.getWriterCount());
+        async.create(EntityType.DRIVE, "Q", null);
+        assertEquals("", async.create(EntityType.TEXT_FILE, "b.txt", "Q")
+                .thenCompose(ignored -> async.readFile("Q\\b.txt")).get(30, TimeUnit.SECONDS));
+        assertEquals(2, async.getWriterCount());
+        worker.close();
+    }
+
+    @Test
+    void writerHoldingItsFile_doesNotStopRenamesAndWritesElsewhere() throws Exception {
+        BlockingCodec codec = new BlockingCodec();
+        FileSystemConfig config = new FileSystemConfig();
+        config.setZipCodec(codec);
+        FileSystemWorker worker = new FileSystemWorker(config);
+        worker.create(EntityType.DRIVE, "C", null);
+        worker.create(EntityType.FOLDER, "a", "C");
+        worker.create(EntityType.ZIP_FILE, "z", "C\\a");
+        worker.create(EntityType.TEXT_FILE, "slow.txt", "C\\a\\z");
+        worker.create(EntityType.FOLDER, "b", "C");
+        worker.create(EntityType.TEXT_FILE, "f.txt", "C\\b");
+
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        codec.armed = true;
+        // Compresses under its ticket, so the writer sits inside C\a until the codec lets go
+        Future<?> slow = pool.submit(() -> {
+            worker.appendToFile("C\\a\\z\\slow.txt", "held");
+            return null;
+        });
+        assertTrue(codec.entered.await(30, TimeUnit.SECONDS));
+        codec.armed = false;
+        pool.submit(() -> {
+            worker.rename("C\\b\\f.txt", "g.txt");
+            worker.writeToFile("C\\b\\g.txt", "free");
+            worker.rename("C\\b", "c");
+            worker.create(EntityType.TEXT_FILE, "h.txt", "C\\c");
+            worker.appendToFile("C\\c\\h.txt", "too");
+            return null;
+        }).get(30, TimeUnit.SECONDS);
+        // A diff only shares the subtrees it reads, so it does not wait for the writer either
+        assertEquals("[ADDED g.txt, ADDED h.txt, REMOVED z]",
+                pool.submit(() -> worker.diff("C\\a", "C\\c").toString()).get(30, TimeUnit.SECONDS));
+        // A rename above the writer is the one thing that has to wait for it
+        Future<?> above = pool.submit(() -> {
+            worker.rename("C\\a", "a2");
+            return null;
+        });
+        assertThrows(TimeoutException.class, () -> above.get(200, TimeUnit.MILLISECONDS));
+        assertFalse(slow.isDone());
+
+        codec.release.countDown();
+        slow.get(30, TimeUnit.SECONDS);
+        above.get(30, TimeUnit.SECONDS);
+        pool.shutdown();
+        assertEquals("held", contentOf(worker, "C\\a2\\z\\slow.txt"));
+        assertEquals("free", contentOf(worker, "C\\c\\g.txt"));
+        assertEquals("too", contentOf(worker, "C\\c\\h.txt"));
+    }
+
+    @Test
+    void concurrentRenamesAndWritesInSeparateSubtrees_journalTheirPaths(@TempDir Path dir) throws Exception {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setJournalDirectory(dir);
+        List<String> paths = new ArrayList<>();
+        StringBuilder expected = new StringBuilder();
+        try (FileSystemWorker worker = new FileSystemWorker(config)) {
+            worker.create(EntityType.DRIVE, "C", null);
+            for (int t = 0; t < THREADS; t++) {
+                worker.create(EntityType.FOLDER, "s" + t, "C");
+                worker.create(EntityType.FOLDER, "in", "C\\s" + t);
+                worker.create(EntityType.TEXT_FILE, "f.txt", "C\\s" + t + "\\in");
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<String>> results = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                results.add(pool.submit(() -> {
+                    String name = "s" + thread;
+                    String file = "f.txt";
+                    start.await();
+                    for (int op = 0; op < OPERATIONS / 10; op++) {
+                        // Even threads rename the top of their subtree, odd ones what lies under it
+                        if (thread % 2 == 0) {
+                            String renamed = "s" + thread + "n" + op;
+                            worker.rename("C\\" + name, renamed);
+                            name = renamed;
+                        } else {
+                            String renamed = "f" + op + ".txt";
+                            worker.rename("C\\" + name + "\\in\\" + file, renamed);
+                            file = renamed;
+                        }
+                        worker.appendToFile("C\\" + name + "\\in\\" + file, op + ",");
+                    }
+                    return "C\\" + name + "\\in\\" + file;
+                }));
+            }
+            for (int op = 0; op < OPERATIONS / 10; op++) {
+                expected.append(op).append(',');
+            }
+            start.countDown();
+            for (Future<String> result : results) {
+                paths.add(result.get());
+            }
+            pool.shutdown();
+            for (String path : paths) {
+                assertEquals(expected.toString(), contentOf(worker, path));
+            }
+            assertTotals(worker.getDrives().get("C"));
+        }
+
+        // Each record names the paths as they were when it was applied, so replay ends in the same tree
+        try (FileSystemWorker recovered = new FileSystemWorker(config)) {
+            for (String path : paths) {
+                assertEquals(expected.toString(), contentOf(recovered, path));
+            }
+            assertEquals(THREADS, recovered.getDrives().get("C").getChildren().size());
+        }
+    }
+
+    private static void collectFolders(FileSystemEntity dir, List<FileSystemEntity> out) {
+        for (Entity child : dir.getChildren().values()) {
+            if (child.getType() == EntityType.FOLDER) {
+                out.add((FileSystemEntity) child);
+                collectFolders((FileSystemEntity) child, out);
+            }
+        }
+    }
+
+    // Walks the tree and checks the incrementally kept totals and hashes; returns bytes, files and entities
+    private static long[] assertTotals(FileSystemEntity dir) {
+        long[] totals = new long[3];
+        long hash = 0;
+        for (Entity child : dir.getChildren().values()) {
+            hash = MerkleHash.add(hash, MerkleHash.term(child));
+            if (child instanceof FileSystemEntity) {
+                long[] sub = assertTotals((FileSystemEntity) child);
+                totals[0] += sub[0];
+                totals[1] += sub[1];
+                totals[2] += sub[2] + 1;
+            } else {
+                TextFile file = (TextFile) child;
+                long size = file.getStoredContent().size();
+                assertEquals(ContentHash.of(file.getStoredContent().read(0, (int) size)), file.getContentHash(), file.getPath());
+                totals[0] += size;
+                totals[1]++;
+                totals[2]++;
+            }
+        }
+        assertEquals(totals[0], dir.getSubtreeBytes(), dir.getPath());
+        assertEquals(totals[1], dir.getSubtreeFiles(), dir.getPath());
+        assertEquals(totals[2], dir.getSubtreeEntities(), dir.getPath());
+        assertEquals(hash, dir.getMerkleHash(), dir.getPath());
+        return totals;
+    }
+
+    private static void verify(FileSystemEntity dir, Set<Entity> seen, int[] files) {
+        assertTrue(seen.add(dir), "entity reachable twice: " + dir.getName());
+        for (Map.Entry<String, Entity> entry : dir.getChildren().entrySet()) {
+            Entity child = entry.getValue();
+            assertEquals(entry.getKey(), child.getName());
+            assertSame(dir, child.getParent());
+            if (child instanceof FileSystemEntity) {
+                verify((FileSystemEntity) child, seen, files);
+            } else {
+                assertTrue(seen.add(child));
+                files[0]++;
+            }
+        }
+    }
+
+    private static String contentOf(FileSystemWorker worker, String path) {
+        return ((TextFile) FSUtils.findEntity(path, worker.getDrives())).getContent();
+    }
+
+    // Deflates like the default codec, but once armed the first encode waits until released
+    private static final class BlockingCodec implements ContentCodec {
+        private final ContentCodec delegate = new DeflateCodec();
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile boolean armed;
+
+        @Override
+        public String getName() {
+            return delegate.getName();
+        }
+
+        @Override
+        public byte[] encode(byte[] raw, int offset, int length) {
+            if (armed && entered.getCount() != 0) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return delegate.encode(raw, offset, length);
+        }
+
+        @Override
+        public void decode(byte[] encoded, byte[] out, int offset, int length) {
+            delegate.decode(encoded, out, offset, length);
+        }
+    }
+}
@@ -2,23 +2,47 @@ package com.mayfly.imfs.worker;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.stream.Stream;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 
+import com.mayfly.imfs.config.FileSystemConfig;
 import com.mayfly.imfs.constants.EntityType;
+import com.mayfly.imfs.content.CompressedContent;
+import com.mayfly.imfs.content.CompressionStats;
+import com.mayfly.imfs.content.ContentMemoryUsage;
+import com.mayfly.imfs.content.DedupStats;
+import com.mayfly.imfs.content.MappedContent;
+import com.mayfly.imfs.content.OffHeapContent;
+import com.mayfly.imfs.content.SpillStats;
 import com.mayfly.imfs.exception.EntityNotFoundException;
 import com.mayfly.imfs.exception.InvalidOperationException;
 import com.mayfly.imfs.exception.NameConflictException;
+import com.mayfly.imfs.exception.QuotaExceededException;
 import com.mayfly.imfs.model.Entity;
 import com.mayfly.imfs.model.FileSystemEntity;
+import com.mayfly.imfs.model.SubtreeUsage;
 import com.mayfly.imfs.model.TextFile;
+import com.mayfly.imfs.service.FileSystemBatch;
 import com.mayfly.imfs.service.FileSystemWorker;
+import com.mayfly.imfs.snapshot.FileSystemSnapshot;
 import com.mayfly.imfs.utils.FSUtils;
+import com.mayfly.imfs.utils.PathCache;
 
 class FileSystemWorkerTest {
 
@@ -272,4 +296,1082 @@ class FileSystemWorkerTest {
         assertThrows(EntityNotFoundException.class, () -> worker.delete(path));
     }
 
+    @Test
+    void pathCache_countsHitsAndMisses() {
+        worker.create(EntityType.DRIVE, "R", null);
+        worker.create(EntityType.TEXT_FILE, "hot.txt", "R");
+        PathCache cache = worker.getPathCache();
+        long misses = cache.getMissCount();
+
+        worker.writeToFile("R\\hot.txt", "one");
+        worker.writeToFile("R\\hot.txt", "two");
+        worker.writeToFile("R\\hot.txt", "three");
+
+        assertEquals(misses + 1, cache.getMissCount());
+        assertTrue(cache.getHitCount() >= 2);
+    }
+
+    @Test
+    void renderedPaths_followAncestorRenameAndMove() {
+        worker.create(EntityType.DRIVE, "P", null);
+        worker.create(EntityType.FOLDER, "a", "P");
+        worker.create(EntityType.FOLDER, "b", "P");
+        worker.create(EntityType.FOLDER, "deep", "P\\a");
+        worker.create(EntityType.TEXT_FILE, "f.txt", "P\\a\\deep");
+        Entity file = FSUtils.findEntity("P\\a\\deep\\f.txt\\\\", worker.getDrives());
+        assertSame(file.getPath(), file.getPath());
+
+        worker.rename("P\\a", "c");
+        assertEquals("P\\c\\deep\\f.txt", file.getPath());
+        worker.move("P\\c", "P\\b");
+        assertEquals("P\\b\\c\\deep\\f.txt", file.getPath());
+        assertSame(file, FSUtils.findEntity(file.getPath(), worker.getDrives()));
+
+        assertThrows(EntityNotFoundException.class, () -> FSUtils.findEntity("P\\\\b", worker.getDrives()));
+        assertThrows(EntityNotFoundException.class, () -> FSUtils.findEntity("P\\b\\c\\deep\\f.txt\\x", worker.getDrives()));
+        assertThrows(IllegalArgumentException.class, () -> FSUtils.findEntity("\\\\", worker.getDrives()));
+    }
+
+    @Test
+    void pathCache_staleAfterAncestorRenameMoveAndDelete() {
+        worker.create(EntityType.DRIVE, "S", null);
+        worker.create(EntityType.FOLDER, "a", "S");
+        worker.create(EntityType.FOLDER, "b", "S");
+        worker.create(EntityType.FOLDER, "deep", "S\\a");
+        worker.create(EntityType.TEXT_FILE, "f.txt", "S\\a\\deep");
+        worker.writeToFile("S\\a\\deep\\f.txt", "cached");
+
+        worker.rename("S\\a", "c");
+        assertThrows(EntityNotFoundException.class, () -> worker.writeToFile("S\\a\\deep\\f.txt", "stale"));
+        worker.writeToFile("S\\c\\deep\\f.txt", "renamed");
+
+        worker.move("S\\c", "S\\b");
+        assertThrows(EntityNotFoundException.class, () -> worker.writeToFile("S\\c\\deep\\f.txt", "stale"));
+        worker.writeToFile("S\\b\\c\\deep\\f.txt", "moved");
+
+        worker.delete("S\\b");
+        assertThrows(EntityNotFoundException.class, () -> worker.writeToFile("S\\b\\c\\deep\\f.txt", "stale"));
+
+        worker.delete("S");
+        worker.create(EntityType.DRIVE, "S", null);
+        assertThrows(EntityNotFoundException.class, () -> worker.delete("S\\a"));
+    }
+
+    @Test
+    void pathCache_isBounded() {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setPathCacheCapacity(4);
+        FileSystemWorker small = new FileSystemWorker(config);
+        small.create(EntityType.DRIVE, "T", null);
+        for (int i = 0; i < 20; i++) {
+            small.create(EntityType.TEXT_FILE, "f" + i + ".txt", "T");
+            small.writeToFile("T\\f" + i + ".txt", "x");
+        }
+        assertTrue(small.getPathCache().size() <= 4);
+        assertTrue(small.getPathCache().getEvictionCount() > 0);
+    }
+
+    @Test
+    void handle_survivesMoveAndRename() {
+        worker.create(EntityType.DRIVE, "U", null);
+        worker.create(EntityType.FOLDER, "logs", "U");
+        worker.create(EntityType.FOLDER, "archive", "U");
+        worker.create(EntityType.TEXT_FILE, "app.log", "U\\logs");
+
+        long handle = worker.open("U\\logs\\app.log");
+        worker.write(handle, "first");
+        assertEquals("first", worker.read(handle));
+
+        worker.move("U\\logs", "U\\archive");
+        worker.rename(handle, "old.log");
+        worker.write(handle, "second");
+
+        assertEquals("U\\archive\\logs\\old.log", worker.getPath(handle));
+        TextFile file = (TextFile) FSUtils.findEntity("U\\archive\\logs\\old.log", worker.getDrives());
+        assertEquals("second", file.getContent());
+    }
+
+    @Test
+    void handle_failsAfterDeleteAndClose() {
+        worker.create(EntityType.DRIVE, "V", null);
+        worker.create(EntityType.FOLDER, "tmp", "V");
+        worker.create(EntityType.TEXT_FILE, "a.txt", "V\\tmp");
+        long fileHandle = worker.open("V\\tmp\\a.txt");
+        long folderHandle = worker.open("V\\tmp");
+
+        worker.delete(folderHandle);
+
+        assertThrows(EntityNotFoundException.class, () -> worker.write(fileHandle, "gone"));
+        assertThrows(EntityNotFoundException.class, () -> worker.read(fileHandle));
+        assertThrows(EntityNotFoundException.class, () -> worker.delete(folderHandle));
+
+        worker.close(fileHandle);
+        InvalidOperationException ex = assertThrows(InvalidOperationException.class, () -> worker.read(fileHandle));
+        assertEquals("Invalid handle: " + fileHandle, ex.getMessage());
+    }
+
+    @Test
+    void moveIntoOwnSubtree_throws() {
+        worker.create(EntityType.DRIVE, "W", null);
+        worker.create(EntityType.FOLDER, "outer", "W");
+        worker.create(EntityType.FOLDER, "inner", "W\\outer");
+        InvalidOperationException ex = assertThrows(InvalidOperationException.class, () ->
+                worker.move("W\\outer", "W\\outer\\inner"));
+        assertEquals("Cannot move entity into its own subtree", ex.getMessage());
+    }
+
+    private static String repeated(String line, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(line).append(i % 10).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    void zipFile_storesTextCompressed() {
+        worker.create(EntityType.DRIVE, "Z", null);
+        worker.create(EntityType.ZIP_FILE, "backup", "Z");
+        worker.create(EntityType.FOLDER, "logs", "Z\\backup");
+        worker.create(EntityType.TEXT_FILE, "app.log", "Z\\backup\\logs");
+        String text = repeated("INFO request served in 3ms by worker-", 5000);
+
+        worker.writeToFile("Z\\backup\\logs\\app.log", text);
+
+        TextFile file = (TextFile) FSUtils.findEntity("Z\\backup\\logs\\app.log", worker.getDrives());
+        assertTrue(file.getStoredContent() instanceof CompressedContent);
+        assertEquals(text, file.getContent());
+        assertEquals(text, file.getContent());
+
+        CompressionStats stats = worker.getCompressionStats("Z\\backup");
+        assertEquals(text.length(), stats.getRawBytes());
+        assertTrue(stats.getCompressionRatio() > 10);
+        assertTrue(stats.getCompressNanos() > 0);
+        assertTrue(stats.getCacheHits() > 0);
+    }
+
+    @Test
+    void zipFile_contentIsReencodedWhenMovedAcrossZipBoundary() {
+        worker.create(EntityType.DRIVE, "Y", null);
+        worker.create(EntityType.ZIP_FILE, "archive", "Y");
+        worker.create(EntityType.FOLDER, "docs", "Y\\archive");
+        worker.create(EntityType.TEXT_FILE, "a.txt", "Y\\archive\\docs");
+        worker.writeToFile("Y\\archive\\docs\\a.txt", "hello hello hello");
+        CompressionStats stats = worker.getCompressionStats("Y\\archive");
+        assertTrue(stats.getRawBytes() > 0);
+
+        worker.move("Y\\archive\\docs", "Y");
+
+        TextFile file = (TextFile) FSUtils.findEntity("Y\\docs\\a.txt", worker.getDrives());
+        assertFalse(file.getStoredContent() instanceof CompressedContent);
+        assertEquals("hello hello hello", file.getContent());
+        assertEquals(0, stats.getRawBytes());
+        assertEquals(0, stats.getCompressedBytes());
+
+        worker.move("Y\\docs", "Y\\archive");
+        assertTrue(file.getStoredContent() instanceof CompressedContent);
+        worker.delete("Y\\archive\\docs");
+        assertEquals(0, stats.getRawBytes());
+    }
+
+    @Test
+    void getCompressionStats_onFolder_throws() {
+        worker.create(EntityType.DRIVE, "X", null);
+        InvalidOperationException ex = assertThrows(InvalidOperationException.class, () ->
+                worker.getCompressionStats("X"));
+        assertEquals("Not a zip file", ex.getMessage());
+    }
+
+    @Test
+    void appendToFile_buildsContentInOrder() {
+        worker.create(EntityType.DRIVE, "L", null);
+        worker.create(EntityType.TEXT_FILE, "app.log", "L");
+        for (int i = 0; i < 5000; i++) {
+            worker.appendToFile("L\\app.log", "line " + i + "\n");
+        }
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            expected.append("line ").append(i).append('\n');
+        }
+        assertEquals(expected.length(), worker.getFileSize("L\\app.log"));
+        assertEquals(expected.toString(), ((TextFile) FSUtils.findEntity("L\\app.log", worker.getDrives())).getContent());
+        assertEquals("line 4999\n", new String(worker.readFromFile("L\\app.log", expected.length() - 10, 10)));
+    }
+
+    @Test
+    void rangedWriteAndTruncate() {
+        worker.create(EntityType.DRIVE, "L", null);
+        worker.create(EntityType.TEXT_FILE, "a.txt", "L");
+        worker.writeToFile("L\\a.txt", "hello world");
+        worker.writeToFile("L\\a.txt", 6, "there!".getBytes());
+        assertEquals("hello there!", new String(worker.readFromFile("L\\a.txt", 0, 12)));
+        worker.truncateFile("L\\a.txt", 5);
+        assertEquals(5, worker.getFileSize("L\\a.txt"));
+        assertThrows(InvalidOperationException.class, () -> worker.readFromFile("L\\a.txt", 3, 5));
+        assertThrows(InvalidOperationException.class, () -> worker.writeToFile("L\\a.txt", 6, new byte[1]));
+    }
+
+    @Test
+    void streams_roundTrip() throws Exception {
+        worker.create(EntityType.DRIVE, "L", null);
+        worker.create(EntityType.TEXT_FILE, "data.bin", "L");
+        byte[] data = repeated("0123456789abcdef", 4000).getBytes(StandardCharsets.UTF_8);
+        try (OutputStream out = worker.newOutputStream("L\\data.bin", false)) {
+            for (int i = 0; i < data.length; i += 1000) {
+                out.write(data, i, Math.min(1000, data.length - i));
+            }
+        }
+        try (OutputStream out = worker.newOutputStream("L\\data.bin", true)) {
+            out.write('!');
+        }
+        byte[] read = new byte[data.length + 1];
+        try (InputStream in = worker.newInputStream("L\\data.bin")) {
+            int n = 0;
+            int r;
+            while ((r = in.read(read, n, read.length - n)) > 0) {
+                n += r;
+            }
+            assertEquals(read.length, n);
+            assertEquals(-1, in.read());
+        }
+        assertEquals('!', read[data.length]);
+        assertEquals(new String(data, StandardCharsets.UTF_8), new String(read, 0, data.length, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void byteChannel_writePastEndZeroFills() throws Exception {
+        worker.create(EntityType.DRIVE, "L", null);
+        worker.create(EntityType.TEXT_FILE, "a.txt", "L");
+        worker.writeToFile("L\\a.txt", "abc");
+        try (SeekableByteChannel channel = worker.newByteChannel("L\\a.txt")) {
+            channel.position(5);
+            channel.write(ByteBuffer.wrap("xy".getBytes()));
+            assertEquals(7, channel.size());
+            channel.position(1);
+            ByteBuffer buffer = ByteBuffer.allocate(3);
+            assertEquals(3, channel.read(buffer));
+            assertArrayEquals(new byte[] { 'b', 'c', 0 }, buffer.array());
+            channel.truncate(4);
+            assertEquals(4, channel.size());
+        }
+        assertArrayEquals(new byte[] { 'a', 'b', 'c', 0 }, worker.readFromFile("L\\a.txt", 0, 4));
+    }
+
+    @Test
+    void append_isInvisibleToOpenSnapshot() {
+        worker.create(EntityType.DRIVE, "L", null);
+        worker.create(EntityType.TEXT_FILE, "app.log", "L");
+        worker.appendToFile("L\\app.log", "first\n");
+        try (FileSystemSnapshot snapshot = worker.snapshot()) {
+            worker.appendToFile("L\\app.log", "second\n");
+            worker.writeToFile("L\\app.log", 0, "FIRST".getBytes());
+            assertEquals("first\n", snapshot.getEntity("L\\app.log").getContent());
+        }
+        assertEquals("FIRST\nsecond\n", ((TextFile) FSUtils.findEntity("L\\app.log", worker.getDrives())).getContent());
+    }
+
+    @Test
+    void appendToZippedFile_staysCompressed() {
+        worker.create(EntityType.DRIVE, "Z", null);
+        worker.create(EntityType.ZIP_FILE, "logs", "Z");
+        worker.create(EntityType.TEXT_FILE, "app.log", "Z\\logs");
+        String line = "INFO request served in 3ms by worker-7\n";
+        for (int i = 0; i < 3000; i++) {
+            worker.appendToFile("Z\\logs\\app.log", line);
+        }
+        TextFile file = (TextFile) FSUtils.findEntity("Z\\logs\\app.log", worker.getDrives());
+        assertTrue(file.getStoredContent() instanceof CompressedContent);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            expected.append(line);
+        }
+        assertEquals(expected.toString(), file.getContent());
+        CompressionStats stats = worker.getCompressionStats("Z\\logs");
+        assertTrue(stats.getCompressedBytes() < stats.getRawBytes());
+    }
+
+    @Test
+    void offHeapContent_keepsFileBytesOffHeap() {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setOffHeapContent(true);
+        FileSystemWorker offHeapWorker = new FileSystemWorker(config);
+        offHeapWorker.create(EntityType.DRIVE, "O", null);
+        offHeapWorker.create(EntityType.TEXT_FILE, "a.txt", "O");
+        offHeapWorker.create(EntityType.TEXT_FILE, "b.log", "O");
+        String text = repeated("some file content ", 2000);
+        offHeapWorker.writeToFile("O\\a.txt", text);
+        offHeapWorker.appendToFile("O\\b.log", "first\n");
+        offHeapWorker.appendToFile("O\\b.log", "second\n");
+
+        TextFile a = (TextFile) FSUtils.findEntity("O\\a.txt", offHeapWorker.getDrives());
+        TextFile b = (TextFile) FSUtils.findEntity("O\\b.log", offHeapWorker.getDrives());
+        assertTrue(a.getStoredContent() instanceof OffHeapContent);
+        assertTrue(b.getStoredContent() instanceof OffHeapContent);
+        assertEquals(text, a.getContent());
+        assertEquals("first\nsecond\n", b.getContent());
+
+        ContentMemoryUsage usage = offHeapWorker.getContentMemoryUsage();
+        assertEquals(2, usage.getFiles());
+        assertTrue(usage.getOffHeapUsedBytes() >= text.length());
+        assertTrue(usage.getOnHeapBytes() < 1024);
+        assertTrue(usage.getOffHeapReservedBytes() >= usage.getOffHeapUsedBytes());
+    }
+
+    @Test
+    void contentMemoryBudget_spillsColdFilesAndReloadsThem(@TempDir Path dir) {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setContentMemoryBudget(32 * 1024);
+        config.setSpillDirectory(dir);
+        FileSystemWorker spilling = new FileSystemWorker(config);
+        spilling.create(EntityType.DRIVE, "S", null);
+        spilling.create(EntityType.FOLDER, "logs", "S");
+        for (int i = 0; i < 50; i++) {
+            spilling.create(EntityType.TEXT_FILE, "f" + i + ".txt", "S\\logs");
+            spilling.writeToFile("S\\logs\\f" + i + ".txt", repeated("line " + i + "\n", 500));
+        }
+        spilling.appendToFile("S\\logs\\f0.txt", "tail");
+        spilling.create(EntityType.FOLDER, "archive", "S");
+        spilling.copy("S\\logs", "S\\archive");
+        spilling.delete("S\\logs");
+
+        SpillStats stats = spilling.getSpillStats();
+        assertTrue(stats.getResidentBytes() <= 32 * 1024);
+        assertTrue(stats.getSpills() > 0);
+        for (int i = 0; i < 50; i++) {
+            assertEquals(repeated("line " + i + "\n", 500) + (i == 0 ? "tail" : ""),
+                    contentOf(spilling, "S\\archive\\logs\\f" + i + ".txt"));
+        }
+        assertTrue(stats.getReloads() > 0);
+        assertEquals(50, stats.getResidentContents() + stats.getSpilledContents());
+        assertNull(worker.getSpillStats());
+
+        config.setOffHeapContent(true);
+        assertThrows(IllegalArgumentException.class, () -> new FileSystemWorker(config));
+    }
+
+    @Test
+    void contentDeduplication_storesEqualContentsOnceUntilReleased() {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setContentDeduplication(true);
+        FileSystemWorker deduplicating = new FileSystemWorker(config);
+        deduplicating.create(EntityType.DRIVE, "T", null);
+        deduplicating.create(EntityType.ZIP_FILE, "zip", "T");
+        String template = repeated("key=value\n", 100);
+        for (int i = 0; i < 10; i++) {
+            deduplicating.create(EntityType.FOLDER, "app" + i, "T");
+            deduplicating.create(EntityType.TEXT_FILE, "app.conf", "T\\app" + i);
+            deduplicating.writeToFile("T\\app" + i + "\\app.conf", template);
+        }
+        deduplicating.create(EntityType.TEXT_FILE, "app.conf", "T\\zip");
+        deduplicating.writeToFile("T\\zip\\app.conf", template);
+
+        DedupStats stats = deduplicating.getDedupStats();
+        assertEquals(1, stats.getBlobs());
+        assertEquals(10, stats.getReferences());
+        assertEquals(9 * template.length(), stats.getSavedBytes());
+        assertEquals(10.0, stats.getDedupRatio(), 1e-9);
+
+        // Copies share the blob; overwrites, appends and deletes each give up their reference
+        deduplicating.copy("T\\app0", "T\\zip");
+        deduplicating.copy("T\\app1", "T\\app2");
+        // Lazy copies take their reference once materialized; the zip keeps its own compressed form
+        assertEquals(template, contentOf(deduplicating, "T\\zip\\app0\\app.conf"));
+        assertEquals(template, contentOf(deduplicating, "T\\app2\\app1\\app.conf"));
+        assertEquals(11, stats.getReferences());
+        deduplicating.writeToFile("T\\app3\\app.conf", "local");
+        deduplicating.appendToFile("T\\app4\\app.conf", "extra=1");
+        deduplicating.delete("T\\app5");
+        assertEquals(9, stats.getReferences());
+        assertEquals(2, stats.getBlobs());
+        assertEquals(template + "extra=1", contentOf(deduplicating, "T\\app4\\app.conf"));
+
+        for (String path : new String[] { "T\\app0", "T\\app1", "T\\app2", "T\\app6", "T\\app7", "T\\app8" })
+            deduplicating.delete(path);
+        deduplicating.writeToFile("T\\app9\\app.conf", "local");
+        assertEquals(1, stats.getBlobs());
+        assertEquals(2, stats.getReferences());
+        assertEquals("local".length(), stats.getSavedBytes());
+        assertNull(worker.getDedupStats());
+    }
+
+    @Test
+    void saveAndLoadImage_restoresTreeLazily(@TempDir Path dir) throws Exception {
+        worker.create(EntityType.DRIVE, "C", null);
+        worker.create(EntityType.DRIVE, "D", null);
+        worker.create(EntityType.FOLDER, "docs", "C");
+        worker.create(EntityType.ZIP_FILE, "archive", "C\\docs");
+        worker.create(EntityType.TEXT_FILE, "a.txt", "C\\docs");
+        worker.create(EntityType.TEXT_FILE, "b.bin", "C\\docs\\archive");
+        worker.create(EntityType.TEXT_FILE, "empty.txt", "D");
+        worker.writeToFile("C\\docs\\a.txt", "hello image");
+        byte[] binary = new byte[20_000];
+        for (int i = 0; i < binary.length; i++) {
+            binary[i] = (byte) i;
+        }
+        worker.appendToFile("C\\docs\\archive\\b.bin", binary);
+        Entity docs = FSUtils.findEntity("C\\docs", worker.getDrives());
+
+        Path image = dir.resolve("fs.img");
+        worker.saveImage(image);
+        FileSystemWorker loaded = new FileSystemWorker();
+        loaded.loadImage(image);
+
+        FileSystemEntity drive = (FileSystemEntity) loaded.getDrives().get("C");
+        assertEquals(binary.length + 11, drive.getSubtreeBytes());
+        assertEquals(2, drive.getSubtreeFiles());
+        assertEquals(4, drive.getSubtreeEntities());
+        assertFalse(drive.isMaterialized());
+        FileSystemEntity loadedDocs = (FileSystemEntity) drive.getChild("docs");
+        assertTrue(drive.isMaterialized());
+        assertFalse(loadedDocs.isMaterialized());
+        assertEquals(docs.getLastModified(), loadedDocs.getLastModified());
+
+        TextFile a = (TextFile) FSUtils.findEntity("C\\docs\\a.txt", loaded.getDrives());
+        assertTrue(a.getStoredContent() instanceof MappedContent);
+        assertEquals("hello image", a.getContent());
+        assertArrayEquals(binary, loaded.readFromFile("C\\docs\\archive\\b.bin", 0, binary.length));
+        assertEquals(0, loaded.getFileSize("D\\empty.txt"));
+
+        loaded.appendToFile("C\\docs\\archive\\b.bin", new byte[] { 1 });
+        TextFile b = (TextFile) FSUtils.findEntity("C\\docs\\archive\\b.bin", loaded.getDrives());
+        assertTrue(b.getStoredContent() instanceof CompressedContent);
+        assertEquals(binary.length + 1, loaded.getFileSize("C\\docs\\archive\\b.bin"));
+
+        assertThrows(NameConflictException.class, () -> loaded.loadImage(image));
+    }
+
+    @Test
+    void loadImage_rejectsOtherFiles(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("not-an-image");
+        Files.write(file, repeated("garbage", 20).getBytes());
+        assertThrows(InvalidOperationException.class, () -> worker.loadImage(file));
+    }
+
+    private static String contentOf(FileSystemWorker worker, String path) {
+        return ((TextFile) FSUtils.findEntity(path, worker.getDrives())).getContent();
+    }
+
+    private static FileSystemWorker journaled(Path dir) {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setJournalDirectory(dir);
+        return new FileSystemWorker(config);
+    }
+
+    @Test
+    void journal_replaysMutationsAfterRestart(@TempDir Path dir) throws Exception {
+        try (FileSystemWorker journaled = journaled(dir)) {
+            journaled.create(EntityType.DRIVE, "C", null);
+            journaled.create(EntityType.FOLDER, "docs", "C");
+            journaled.create(EntityType.ZIP_FILE, "archive", "C");
+            journaled.create(EntityType.TEXT_FILE, "a.txt", "C\\docs");
+            journaled.create(EntityType.TEXT_FILE, "gone.txt", "C");
+            journaled.writeToFile("C\\docs\\a.txt", "hello");
+            journaled.appendToFile("C\\docs\\a.txt", " journal");
+            journaled.writeToFile("C\\docs\\a.txt", 0, "J".getBytes(StandardCharsets.UTF_8));
+            journaled.move("C\\docs", "C\\archive");
+            journaled.rename("C\\archive", "packed");
+            journaled.delete("C\\gone.txt");
+        }
+
+        try (FileSystemWorker recovered = journaled(dir)) {
+            assertEquals("Jello journal", contentOf(recovered, "C\\packed\\docs\\a.txt"));
+            assertThrows(EntityNotFoundException.class, () -> FSUtils.findEntity("C\\gone.txt", recovered.getDrives()));
+            assertThrows(EntityNotFoundException.class, () -> FSUtils.findEntity("C\\docs", recovered.getDrives()));
+
+            recovered.appendToFile("C\\packed\\docs\\a.txt", "!");
+        }
+        try (FileSystemWorker recovered = journaled(dir)) {
+            assertEquals("Jello journal!", contentOf(recovered, "C\\packed\\docs\\a.txt"));
+        }
+    }
+
+    @Test
+    void checkpoint_truncatesJournal(@TempDir Path dir) throws Exception {
+        Path log = dir.resolve("journal.log");
+        try (FileSystemWorker journaled = journaled(dir)) {
+            journaled.create(EntityType.DRIVE, "C", null);
+            journaled.create(EntityType.TEXT_FILE, "a.txt", "C");
+            for (int i = 0; i < 50; i++) {
+                journaled.appendToFile("C\\a.txt", "line" + i + "\n");
+            }
+            long before = Files.size(log);
+            journaled.checkpoint();
+            assertTrue(Files.size(log) < before);
+            assertEquals(1, journaled.getJournalStats().getCheckpoints());
+            journaled.appendToFile("C\\a.txt", "after");
+        }
+
+        try (FileSystemWorker recovered = journaled(dir)) {
+            String content = contentOf(recovered, "C\\a.txt");
+            assertTrue(content.startsWith("line0\n"));
+            assertTrue(content.endsWith("line49\nafter"));
+            recovered.checkpoint();
+            assertEquals(0, Files.size(log));
+        }
+        try (FileSystemWorker recovered = journaled(dir)) {
+            assertTrue(contentOf(recovered, "C\\a.txt").endsWith("after"));
+        }
+    }
+
+    @Test
+    void journal_recoversALoadedImageAfterItsSourceIsGone(@TempDir Path dir) throws Exception {
+        Path journalDir = dir.resolve("journal");
+        Path image = dir.resolve("source.img");
+        worker.create(EntityType.DRIVE, "I", null);
+        worker.create(EntityType.TEXT_FILE, "a.txt", "I");
+        worker.writeToFile("I\\a.txt", "from the image");
+        worker.saveImage(image);
+
+        try (FileSystemWorker journaled = journaled(journalDir)) {
+            journaled.loadImage(image);
+            journaled.appendToFile("I\\a.txt", "!");
+        }
+        // Neither a deleted nor a rewritten source changes what recovery rebuilds
+        worker.writeToFile("I\\a.txt", "rewritten");
+        worker.saveImage(image);
+        Files.delete(image);
+
+        try (FileSystemWorker recovered = journaled(journalDir)) {
+            assertEquals("from the image!", contentOf(recovered, "I\\a.txt"));
+            recovered.checkpoint();
+        }
+        // Once a checkpoint covers the load, the copy goes
+        try (Stream<Path> files = Files.list(journalDir)) {
+            assertEquals(0, files.filter(f -> f.getFileName().toString().startsWith("loaded-")).count());
+        }
+        try (FileSystemWorker recovered = journaled(journalDir)) {
+            assertEquals("from the image!", contentOf(recovered, "I\\a.txt"));
+        }
+    }
+
+    @Test
+    void journal_ignoresTornTail(@TempDir Path dir) throws Exception {
+        Path log = dir.resolve("journal.log");
+        try (FileSystemWorker journaled = journaled(dir)) {
+            journaled.create(EntityType.DRIVE, "C", null);
+            journaled.create(EntityType.TEXT_FILE, "a.txt", "C");
+            journaled.writeToFile("C\\a.txt", "kept");
+        }
+        long intact = Files.size(log);
+        Files.write(log, new byte[] { 0, 0, 0, 40, 1, 2, 3 }, java.nio.file.StandardOpenOption.APPEND);
+
+        try (FileSystemWorker recovered = journaled(dir)) {
+            assertEquals("kept", contentOf(recovered, "C\\a.txt"));
+            assertEquals(intact, Files.size(log));
+        }
+    }
+
+    @Test
+    void journal_groupsConcurrentCommits(@TempDir Path dir) throws Exception {
+        try (FileSystemWorker journaled = journaled(dir)) {
+            journaled.create(EntityType.DRIVE, "C", null);
+            Thread[] writers = new Thread[8];
+            for (int t = 0; t < writers.length; t++) {
+                String name = "f" + t + ".txt";
+                journaled.create(EntityType.TEXT_FILE, name, "C");
+                writers[t] = new Thread(() -> {
+                    for (int i = 0; i < 50; i++) {
+                        journaled.appendToFile("C\\" + name, "x");
+                    }
+                });
+            }
+            for (Thread writer : writers) {
+                writer.start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            assertEquals(409, journaled.getJournalStats().getRecords());
+            assertTrue(journaled.getJournalStats().getSyncs() < 409);
+        }
+    }
+
+    @Test
+    void applyBatch_buildsTreeInOneStep() {
+        worker.create(EntityType.DRIVE, "C", null);
+        worker.create(EntityType.TEXT_FILE, "old.txt", "C");
+        FileSystemBatch batch = new FileSystemBatch();
+        batch.create(EntityType.DRIVE, "D", null);
+        batch.create(EntityType.FOLDER, "docs", "C");
+        batch.create(EntityType.ZIP_FILE, "archive", "C\\docs");
+        for (int i = 0; i < 100; i++) {
+            batch.create(EntityType.TEXT_FILE, "f" + i + ".txt", "C\\docs\\archive");
+        }
+        batch.create(EntityType.TEXT_FILE, "e.txt", "D");
+        batch.writeToFile("C\\docs\\archive\\f7.txt", "seven");
+        batch.writeToFile("C\\old.txt", "rewritten");
+
+        try (FileSystemSnapshot before = worker.snapshot()) {
+            worker.apply(batch);
+            assertFalse(before.getDrives().containsKey("D"));
+            assertEquals(1, before.getDrives().get("C").getChildren().size());
+        }
+
+        FileSystemEntity archive = (FileSystemEntity) FSUtils.findEntity("C\\docs\\archive", worker.getDrives());
+        assertEquals(100, archive.getChildren().size());
+        assertEquals("seven", contentOf(worker, "C\\docs\\archive\\f7.txt"));
+        assertTrue(((TextFile) archive.getChild("f7.txt")).getStoredContent() instanceof CompressedContent);
+        assertEquals("rewritten", contentOf(worker, "C\\old.txt"));
+        assertEquals("", contentOf(worker, "D\\e.txt"));
+    }
+
+    @Test
+    void applyBatch_appliesNothingWhenAnOperationFails() {
+        worker.create(EntityType.DRIVE, "C", null);
+        worker.create(EntityType.FOLDER, "docs", "C");
+        worker.create(EntityType.TEXT_FILE, "a.txt", "C\\docs");
+
+        FileSystemBatch conflict = new FileSystemBatch();
+        conflict.create(EntityType.FOLDER, "new", "C");
+        conflict.create(EntityType.TEXT_FILE, "b.txt", "C\\docs");
+        conflict.writeToFile("C\\docs\\a.txt", "lost");
+        conflict.create(EntityType.TEXT_FILE, "a.txt", "C\\docs");
+        assertThrows(NameConflictException.class, () -> worker.apply(conflict));
+
+        FileSystemBatch duplicate = new FileSystemBatch();
+        duplicate.create(EntityType.FOLDER, "new", "C");
+        duplicate.create(EntityType.FOLDER, "new", "C");
+        assertThrows(NameConflictException.class, () -> worker.apply(duplicate));
+
+        FileSystemBatch missing = new FileSystemBatch();
+        missing.create(EntityType.FOLDER, "new", "C");
+        missing.create(EntityType.TEXT_FILE, "x.txt", "C\\nowhere");
+        assertThrows(EntityNotFoundException.class, () -> worker.apply(missing));
+
+        assertThrows(InvalidOperationException.class, () -> new FileSystemBatch().create(EntityType.FOLDER, "x", null));
+        assertEquals(1, worker.getDrives().get("C").getChildren().size());
+        assertEquals(1, ((FileSystemEntity) FSUtils.findEntity("C\\docs", worker.getDrives())).getChildren().size());
+        assertEquals("", contentOf(worker, "C\\docs\\a.txt"));
+    }
+
+    @Test
+    void applyBatch_isReplayedFromJournal(@TempDir Path dir) throws Exception {
+        try (FileSystemWorker journaled = journaled(dir)) {
+            FileSystemBatch batch = new FileSystemBatch();
+            batch.create(EntityType.DRIVE, "C", null);
+            batch.create(EntityType.FOLDER, "docs", "C");
+            batch.create(EntityType.TEXT_FILE, "a.txt", "C\\docs");
+            batch.writeToFile("C\\docs\\a.txt", "batched");
+            journaled.apply(batch);
+            assertEquals(1, journaled.getJournalStats().getRecords());
+        }
+        try (FileSystemWorker recovered = journaled(dir)) {
+            assertEquals("batched", contentOf(recovered, "C\\docs\\a.txt"));
+        }
+    }
+
+    @Test
+    void getUsage_followsEveryMutation() {
+        worker.create(EntityType.DRIVE, "C", null);
+        worker.create(EntityType.FOLDER, "a", "C");
+        worker.create(EntityType.FOLDER, "b", "C\\a");
+        worker.create(EntityType.ZIP_FILE, "z", "C");
+        worker.create(EntityType.TEXT_FILE, "x.txt", "C\\a\\b");
+        worker.writeToFile("C\\a\\b\\x.txt", "hello");
+        worker.appendToFile("C\\a\\b\\x.txt", "!!");
+
+        SubtreeUsage usage = worker.getUsage("C");
+        assertEquals(7, usage.getBytes());
+        assertEquals(1, usage.getFiles());
+        assertEquals(4, usage.getEntities());
+        assertEquals(7, worker.getUsage("C\\a").getBytes());
+        assertEquals(7, worker.getUsage("C\\a\\b\\x.txt").getBytes());
+        TextFile x = (TextFile) FSUtils.findEntity("C\\a\\b\\x.txt", worker.getDrives());
+        assertFalse(usage.getNewestModified().isBefore(x.getLastModified()));
+
+        worker.move("C\\a\\b", "C\\z");
+        assertEquals(0, worker.getUsage("C\\a").getBytes());
+        assertEquals(0, worker.getUsage("C\\a").getEntities());
+        assertEquals(7, worker.getUsage("C\\z").getBytes());
+        assertEquals(2, worker.getUsage("C\\z").getEntities());
+        assertEquals(7, worker.getUsage("C").getBytes());
+
+        worker.truncateFile("C\\z\\b\\x.txt", 2);
+        assertEquals(2, worker.getUsage("C").getBytes());
+
+        FileSystemBatch batch = new FileSystemBatch();
+        batch.create(EntityType.FOLDER, "n", "C\\a");
+        batch.create(EntityType.TEXT_FILE, "y.txt", "C\\a\\n");
+        batch.writeToFile("C\\a\\n\\y.txt", "1234");
+        batch.writeToFile("C\\z\\b\\x.txt", "abc");
+        worker.apply(batch);
+        assertEquals(4, worker.getUsage("C\\a\\n").getBytes());
+        assertEquals(2, worker.getUsage("C\\a").getEntities());
+        assertEquals(7, worker.getUsage("C").getBytes());
+        assertEquals(2, worker.getUsage("C").getFiles());
+
+        worker.delete("C\\z");
+        assertEquals(4, worker.getUsage("C").getBytes());
+        assertEquals(1, worker.getUsage("C").getFiles());
+        assertEquals(3, worker.getUsage("C").getEntities());
+    }
+
+    @Test
+    void driveQuota_refusesGrowthBeforeAnythingChanges() {
+        worker.create(EntityType.DRIVE, "C", null);
+        worker.create(EntityType.DRIVE, "D", null);
+        worker.create(EntityType.TEXT_FILE, "a.txt", "C");
+        worker.create(EntityType.FOLDER, "big", "D");
+        worker.create(EntityType.TEXT_FILE, "b.txt", "D\\big");
+        worker.writeToFile("D\\big\\b.txt", "0123456789");
+        worker.setQuota("C", 8);
+
+        worker.writeToFile("C\\a.txt", "12345678");
+        assertThrows(QuotaExceededException.class, () -> worker.appendToFile("C\\a.txt", "9"));
+        assertThrows(QuotaExceededException.class, () -> worker.move("D\\big", "C"));
+        FileSystemBatch batch = new FileSystemBatch();
+        batch.create(EntityType.TEXT_FILE, "c.txt", "C");
+        batch.writeToFile("C\\c.txt", "x");
+        assertThrows(QuotaExceededException.class, () -> worker.apply(batch));
+        assertEquals("12345678", contentOf(worker, "C\\a.txt"));
+        assertEquals(8, worker.getUsage("C").getBytes());
+        assertEquals(10, worker.getUsage("D").getBytes());
+        assertEquals(1, worker.getUsage("C").getEntities());
+
+        worker.truncateFile("C\\a.txt", 2);
+        worker.setQuota("C", 0);
+        worker.move("D\\big", "C");
+        assertEquals(12, worker.getUsage("C").getBytes());
+        assertEquals(0, worker.getUsage("D").getBytes());
+    }
+
+    @Test
+    void find_usesIndexKeptInStepWithMutations() {
+        worker.create(EntityType.DRIVE, "C", null);
+        worker.create(EntityType.DRIVE, "D", null);
+        worker.create(EntityType.FOLDER, "logs", "C");
+        worker.create(EntityType.FOLDER, "config", "C");
+        worker.create(EntityType.TEXT_FILE, "app.log", "C\\logs");
+        worker.create(EntityType.TEXT_FILE, "config.txt", "C\\config");
+        worker.create(EntityType.TEXT_FILE, "db.log", "C\\config");
+
+        assertEquals(Arrays.asList("C\\config\\db.log", "C\\logs\\app.log"), worker.find("C", "*.log"));
+        assertEquals(Arrays.asList("C\\config"), worker.find("C", "config"));
+        assertEquals(Arrays.asList("C\\config", "C\\config\\config.txt"), worker.find("C", "conf*"));
+        assertEquals(Arrays.asList("C\\logs\\app.log"), worker.find("C", "logs\\*.log"));
+        assertEquals(Arrays.asList("C\\config\\db.log", "C\\logs\\app.log"), worker.find("C", "**\\?*.log"));
+        assertEquals(Arrays.asList("C\\config", "C\\logs"), worker.find("C", "**", EntityType.FOLDER));
+
+        worker.create(EntityType.TEXT_FILE, "web.log", "C\\logs");
+        worker.rename("C\\config\\db.log", "db.txt");
+        worker.move("C\\logs", "D");
+        FileSystemBatch batch = new FileSystemBatch();
+        batch.create(EntityType.FOLDER, "old", "C\\config");
+        batch.create(EntityType.TEXT_FILE, "x.log", "C\\config\\old");
+        worker.apply(batch);
+        assertEquals(Arrays.asList("C\\config\\old\\x.log"), worker.find("C", "*.log"));
+        assertEquals(Arrays.asList("D\\logs\\app.log", "D\\logs\\web.log"), worker.find("D", "*.log"));
+        assertEquals(Arrays.asList("C\\config\\db.txt"), worker.find("C", "db.[st]xt"));
+
+        worker.delete("C\\config\\old");
+        assertTrue(worker.find("C", "*.log").isEmpty());
+        assertTrue(worker.find("C", "x.log").isEmpty());
+        assertEquals(3, worker.find("C", "**").size());
+        assertThrows(EntityNotFoundException.class, () -> worker.find("E", "*"));
+        assertThrows(InvalidOperationException.class, () -> worker.find("C", "[a"));
+    }
+
+    @Test
+    void search_followsContentChanges() {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setFullTextIndex(true);
+        FileSystemWorker indexed = new FileSystemWorker(config);
+        indexed.create(EntityType.DRIVE, "C", null);
+        indexed.create(EntityType.DRIVE, "D", null);
+        indexed.create(EntityType.FOLDER, "logs", "C");
+        indexed.create(EntityType.TEXT_FILE, "a.log", "C\\logs");
+        indexed.create(EntityType.TEXT_FILE, "b.log", "C\\logs");
+        indexed.create(EntityType.TEXT_FILE, "notes.txt", "C");
+        indexed.writeToFile("C\\logs\\a.log", "Connection reset by peer, retrying");
+        indexed.writeToFile("C\\logs\\b.log", "peer reset the connection");
+        indexed.writeToFile("C\\notes.txt", "timeout while connecting");
+
+        assertEquals(Arrays.asList("C\\logs\\a.log", "C\\logs\\b.log"), indexed.search("C", "reset PEER"));
+        assertEquals(Arrays.asList("C\\logs\\a.log"), indexed.search("C", "\"connection reset\""));
+        assertEquals(Arrays.asList("C\\logs\\b.log", "C\\notes.txt"), indexed.search("C", "\"the connection\" OR timeout"));
+        assertEquals(Arrays.asList("C\\logs\\b.log"), indexed.search("C\\logs", "connection missing OR the"));
+
+        // Indexed from here on, so later writes only change the postings of the terms they touch
+        indexed.appendToFile("C\\notes.txt", " peer");
+        indexed.writeToFile("C\\logs\\a.log", "all good");
+        assertEquals(Arrays.asList("C\\logs\\b.log", "C\\notes.txt"), indexed.search("C", "peer"));
+        assertTrue(indexed.search("C", "retrying").isEmpty());
+
+        FileSystemBatch batch = new FileSystemBatch();
+        batch.create(EntityType.TEXT_FILE, "c.log", "C\\logs");
+        batch.writeToFile("C\\logs\\c.log", "peer gone");
+        indexed.apply(batch);
+        indexed.delete("C\\logs\\b.log");
+        assertEquals(Arrays.asList("C\\logs\\c.log"), indexed.search("C\\logs", "peer"));
+
+        indexed.move("C\\logs", "D");
+        assertEquals(Arrays.asList("C\\notes.txt"), indexed.search("C", "peer"));
+        assertEquals(Arrays.asList("D\\logs\\c.log"), indexed.search("D", "peer"));
+        indexed.delete("D\\logs");
+        assertTrue(indexed.search("D", "peer OR good").isEmpty());
+
+        assertThrows(InvalidOperationException.class, () -> indexed.search("C", "peer OR"));
+        assertThrows(InvalidOperationException.class, () -> worker.search("C", "peer"));
+    }
+
+    @Test
+    void copy_intoIndexedDriveStaysLazyUntilSearched() {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setFullTextIndex(true);
+        FileSystemWorker indexed = new FileSystemWorker(config);
+        indexed.create(EntityType.DRIVE, "C", null);
+        indexed.create(EntityType.DRIVE, "D", null);
+        indexed.create(EntityType.FOLDER, "src", "C");
+        indexed.create(EntityType.FOLDER, "deep", "C\\src");
+        indexed.create(EntityType.TEXT_FILE, "a.log", "C\\src\\deep");
+        indexed.writeToFile("C\\src\\deep\\a.log", "peer reset");
+        assertTrue(indexed.find("D", "*.log").isEmpty());
+        assertTrue(indexed.search("D", "peer").isEmpty());
+
+        indexed.copy("C\\src", "D");
+        FileSystemEntity copy = (FileSystemEntity) FSUtils.findEntity("D\\src", indexed.getDrives());
+        assertFalse(copy.isMaterialized());
+        assertEquals(Arrays.asList("D\\src"), indexed.find("D", "src"));
+
+        // Searches list the pending levels first, which puts them in the indexes as they go
+        assertEquals(Arrays.asList("D\\src\\deep\\a.log"), indexed.find("D", "*.log"));
+        assertTrue(copy.isMaterialized());
+        indexed.copy("C\\src", "D\\src\\deep");
+        assertEquals(Arrays.asList("D\\src\\deep\\a.log", "D\\src\\deep\\src\\deep\\a.log"),
+                indexed.search("D\\src", "\"peer reset\""));
+        assertEquals(Arrays.asList("D\\src\\deep\\a.log", "D\\src\\deep\\src\\deep\\a.log"),
+                indexed.find("D", "a.log"));
+
+        // A copy deleted before it was ever listed leaves nothing behind in either index
+        indexed.copy("C\\src", "C\\src\\deep");
+        indexed.delete("C\\src\\deep\\src");
+        assertEquals(Arrays.asList("C\\src\\deep\\a.log"), indexed.find("C", "*.log"));
+        assertEquals(Arrays.asList("C\\src\\deep\\a.log"), indexed.search("C", "peer"));
+    }
+
+    @Test
+    void search_followsAppendsThatSplitWordsAndCharacters() {
+        FileSystemConfig config = new FileSystemConfig();
+        config.setFullTextIndex(true);
+        FileSystemWorker indexed = new FileSystemWorker(config);
+        indexed.create(EntityType.DRIVE, "C", null);
+        indexed.create(EntityType.TEXT_FILE, "a.log", "C");
+        indexed.appendToFile("C\\a.log", "peer conn");
+        assertEquals(Arrays.asList("C\\a.log"), indexed.search("C", "conn"));
+
+        // Each append continues the word the content ended in
+        indexed.appendToFile("C\\a.log", "ection re");
+        indexed.appendToFile("C\\a.log", "set by caf");
+        byte[] accent = "\u00e9".getBytes(StandardCharsets.UTF_8);
+        indexed.appendToFile("C\\a.log", new byte[] { accent[0] });
+        indexed.appendToFile("C\\a.log", new byte[] { accent[1], ' ', 'o', 'k' });
+        assertTrue(indexed.search("C", "conn OR re OR caf").isEmpty());
+        assertEquals(Arrays.asList("C\\a.log"), indexed.search("C", "\"peer connection reset by caf\u00e9 ok\""));
+
+        indexed.appendToFile("C\\a.log", " peer");
+        indexed.truncateFile("C\\a.log", "peer conn".length());
+        indexed.appendToFile("C\\a.log", "ect");
+        assertEquals(Arrays.asList("C\\a.log"), indexed.search("C", "\"peer connect\""));
+        assertTrue(indexed.search("C", "ok OR connection").isEmpty());
+    }
+
+    @Test
+    void copy_duplicatesSubtreeIndependently(@TempDir Path dir) {
+        FileSystemWorker journaled = journaled(dir);
+        journaled.create(EntityType.DRIVE, "C", null);
+        journaled.create(EntityType.DRIVE, "D", null);
+        journaled.create(EntityType.FOLDER, "tpl", "C");
+        journaled.create(EntityType.ZIP_FILE, "z", "C\\tpl");
+        journaled.create(EntityType.TEXT_FILE, "a.txt", "C\\tpl");
+        journaled.create(EntityType.TEXT_FILE, "b.txt", "C\\tpl\\z");
+        journaled.writeToFile("C\\tpl\\a.txt", "alpha");
+        journaled.writeToFile("C\\tpl\\z\\b.txt", "beta beta beta");
+
+        journaled.copy("C\\tpl", "D");
+        journaled.copy("C\\tpl", "C\\tpl");
+        assertEquals("alpha", contentOf(journaled, "D\\tpl\\a.txt"));
+        assertEquals("beta beta beta", contentOf(journaled, "C\\tpl\\tpl\\z\\b.txt"));
+        TextFile copied = (TextFile) FSUtils.findEntity("D\\tpl\\z\\b.txt", journaled.getDrives());
+        assertTrue(copied.getStoredContent() instanceof CompressedContent);
+        assertEquals(19, journaled.getUsage("D").getBytes());
+        assertEquals(38, journaled.getUsage("C\\tpl").getBytes());
+        assertEquals(7, journaled.getUsage("C\\tpl").getEntities());
+        assertEquals(FSUtils.findEntity("C\\tpl\\a.txt", journaled.getDrives()).getLastModified(),
+                FSUtils.findEntity("D\\tpl\\a.txt", journaled.getDrives()).getLastModified());
+
+        journaled.writeToFile("D\\tpl\\a.txt", "changed");
+        assertEquals("alpha", contentOf(journaled, "C\\tpl\\a.txt"));
+        assertThrows(NameConflictException.class, () -> journaled.copy("C\\tpl", "D"));
+        journaled.setQuota("D", 30);
+        journaled.create(EntityType.FOLDER, "other", "D");
+        assertThrows(QuotaExceededException.class, () -> journaled.copy("C\\tpl", "D\\other"));
+        assertEquals(0, journaled.getUsage("D\\other").getEntities());
+        journaled.close();
+
+        FileSystemWorker recovered = journaled(dir);
+        assertEquals("changed", contentOf(recovered, "D\\tpl\\a.txt"));
+        assertEquals("beta beta beta", contentOf(recovered, "C\\tpl\\tpl\\z\\b.txt"));
+        recovered.close();
+    }
+
+    @Test
+    void copy_sharesUntilEitherSideChanges() {
+        worker.create(EntityType.DRIVE, "C", null);
+        worker.create(EntityType.DRIVE, "D", null);
+        worker.create(EntityType.FOLDER, "tpl", "C");
+        worker.create(EntityType.FOLDER, "a", "C\\tpl");
+        worker.create(EntityType.FOLDER, "b", "C\\tpl\\a");
+        worker.create(EntityType.FOLDER, "side", "C\\tpl");
+        worker.create(EntityType.TEXT_FILE, "f.txt", "C\\tpl\\a\\b");
+        worker.create(EntityType.TEXT_FILE, "g.txt", "C\\tpl\\side");
+        worker.writeToFile("C\\tpl\\a\\b\\f.txt", "original");
+        worker.writeToFile("C\\tpl\\side\\g.txt", "shared");
+
+        worker.copy("C\\tpl", "D");
+        FileSystemEntity copy = (FileSystemEntity) worker.getDrives().get("D").getChild("tpl");
+        assertFalse(copy.isMaterialized());
+        assertEquals(worker.getUsage("C\\tpl").toString(), worker.getUsage("D\\tpl").toString());
+
+        // Writing the source first hands the old state down the touched path of the copy only
+        worker.writeToFile("C\\tpl\\a\\b\\f.txt", "changed");
+        assertTrue(copy.isMaterialized());
+        assertFalse(((FileSystemEntity) copy.getChild("side")).isMaterialized());
+        assertEquals("original", contentOf(worker, "D\\tpl\\a\\b\\f.txt"));
+        assertSame(((TextFile) FSUtils.findEntity("C\\tpl\\side\\g.txt", worker.getDrives())).getStoredContent(),
+                ((TextFile) FSUtils.findEntity("D\\tpl\\side\\g.txt", worker.getDrives())).getStoredContent());
+
+        worker.writeToFile("D\\tpl\\side\\g.txt", "mine");
+        worker.rename("D\\tpl\\a", "renamed");
+        worker.create(EntityType.TEXT_FILE, "new.txt", "C\\tpl\\side");
+        assertEquals("shared", contentOf(worker, "C\\tpl\\side\\g.txt"));
+        assertThrows(EntityNotFoundException.class, () -> worker.getFileSize("D\\tpl\\side\\new.txt"));
+        assertEquals("changed", contentOf(worker, "C\\tpl\\a\\b\\f.txt"));
+
+        worker.copy("C\\tpl", "D\\tpl");
+        worker.delete("C\\tpl");
+        assertEquals("changed", contentOf(worker, "D\\tpl\\tpl\\a\\b\\f.txt"));
+        assertEquals("shared", contentOf(worker, "D\\tpl\\tpl\\side\\g.txt"));
+        assertEquals("original", contentOf(worker, "D\\tpl\\renamed\\b\\f.txt"));
+        assertEquals(5, worker.getTreeStats("D\\tpl").getTextFiles());
+    }
+
+    @Test
+    void directory_growsFromEmptyThroughSmallAndWideChildren() {
+        worker.create(EntityType.DRIVE, "W", null);
+        worker.create(EntityType.FOLDER, "dir", "W");
+        FileSystemEntity dir = (FileSystemEntity) worker.getDrives().get("W").getChild("dir");
+        assertTrue(dir.getChildren().isEmpty());
+
+        for (int i = 0; i < 20; i++) {
+            worker.create(EntityType.TEXT_FILE, "f" + i + ".txt", "W\\dir");
+            assertEquals(i + 1, dir.getChildren().size());
+        }
+        assertThrows(NameConflictException.class, () -> worker.create(EntityType.TEXT_FILE, "f3.txt", "W\\dir"));
+        worker.rename("W\\dir\\f3.txt", "renamed.txt");
+        assertEquals(20, worker.find("W", "*.txt").size());
+        // The worker interns names, so equal names across the tree share one string
+        worker.create(EntityType.TEXT_FILE, new String("f4.txt"), "W");
+        assertSame(worker.getDrives().get("W").getChild("f4.txt").getName(), dir.getChild(new String("f4.txt")).getName());
+
+        for (int i = 0; i < 20; i++) {
+            worker.delete(i == 3 ? "W\\dir\\renamed.txt" : "W\\dir\\f" + i + ".txt");
+        }
+        assertTrue(dir.getChildren().isEmpty());
+        assertThrows(EntityNotFoundException.class, () -> dir.getChild("f0.txt"));
+        assertEquals(0, worker.getUsage("W\\dir").getEntities());
+        assertFalse(worker.getUsage("W").getNewestModified().isBefore(dir.getLastModified()));
+    }
+
+    @Test
+    void directory_listsChildrenInInsertionOrderAcrossRepresentations() {
+        worker.create(EntityType.DRIVE, "W", null);
+        worker.create(EntityType.FOLDER, "dir", "W");
+        FileSystemEntity dir = (FileSystemEntity) worker.getDrives().get("W").getChild("dir");
+        List<String> expected = new ArrayList<>();
+        // Names that hash out of order, so a hash table listing would show
+        for (int i = 11; i >= 0; i--) {
+            worker.create(EntityType.TEXT_FILE, "n" + i * 7 + ".txt", "W\\dir");
+            expected.add("n" + i * 7 + ".txt");
+            assertEquals(expected, new ArrayList<>(dir.getChildren().keySet()));
+        }
+
+        // A rename lists the child last, as adding it under the new name does
+        worker.rename("W\\dir\\n35.txt", "renamed.txt");
+        expected.remove("n35.txt");
+        expected.add("renamed.txt");
+        assertEquals(expected, new ArrayList<>(dir.getChildren().keySet()));
+
+        // Shrinking back to the flat array keeps the order, and so does growing again
+        while (expected.size() > 3) {
+            worker.delete("W\\dir\\" + expected.remove(1));
+            assertEquals(expected, new ArrayList<>(dir.getChildren().keySet()));
+        }
+        for (int i = 0; i < 10; i++) {
+            worker.create(EntityType.FOLDER, "d" + i, "W\\dir");
+            expected.add("d" + i);
+        }
+        assertEquals(expected, new ArrayList<>(dir.getChildren().keySet()));
+    }
+
+    @Test
+    void diff_prunesEqualSubtreesAndFollowsIncrementalHashes(@TempDir Path dir) throws Exception {
+        worker.create(EntityType.DRIVE, "A", null);
+        worker.create(EntityType.DRIVE, "B", null);
+        worker.create(EntityType.FOLDER, "src", "A");
+        worker.create(EntityType.FOLDER, "lib", "A\\src");
+        worker.create(EntityType.FOLDER, "deep", "A\\src");
+        worker.create(EntityType.FOLDER, "wide", "A\\src");
+        worker.create(EntityType.TEXT_FILE, "x.txt", "A\\src");
+        worker.create(EntityType.TEXT_FILE, "y.txt", "A\\src");
+        worker.create(EntityType.TEXT_FILE, "z.txt", "A\\src\\lib");
+        worker.create(EntityType.TEXT_FILE, "d.txt", "A\\src\\deep");
+        worker.writeToFile("A\\src\\x.txt", "one");
+        worker.writeToFile("A\\src\\y.txt", "two");
+        worker.writeToFile("A\\src\\lib\\z.txt", "three");
+        for (int i = 0; i < 12; i++) {
+            worker.create(EntityType.TEXT_FILE, "f" + i + ".txt", "A\\src\\wide");
+            worker.writeToFile("A\\src\\wide\\f" + i + ".txt", "file " + i);
+        }
+
+        worker.copy("A\\src", "B");
+        assertTrue(worker.diff("A\\src", "B\\src").isEmpty());
+
+        worker.appendToFile("B\\src\\x.txt", "+more");
+        worker.rename("B\\src\\lib\\z.txt", "zz.txt");
+        worker.delete("B\\src\\y.txt");
+        worker.create(EntityType.FOLDER, "extra", "B\\src");
+        worker.writeToFile("B\\src\\wide\\f5.txt", "changed");
+        worker.writeToFile("B\\src\\wide\\f6.txt", 0, "F".getBytes(StandardCharsets.UTF_8));
+        assertEquals("[ADDED extra, REMOVED lib\\z.txt, ADDED lib\\zz.txt, MODIFIED wide\\f5.txt, "
+                + "MODIFIED wide\\f6.txt, MODIFIED x.txt, REMOVED y.txt]",
+                worker.diff("A\\src", "B\\src").toString());
+        // Equal hashes stop the diff above the untouched subtree, so the lazy copy there is never listed
+        FileSystemEntity deep = (FileSystemEntity) FSUtils.findEntity("B\\src\\deep", worker.getDrives());
+        assertFalse(deep.isMaterialized());
+
+        // Undone in a different order, the hashes kept up along the way meet the source's again
+        worker.writeToFile("B\\src\\wide\\f6.txt", 0, "f".getBytes(StandardCharsets.UTF_8));
+        worker.delete("B\\src\\extra");
+        worker.create(EntityType.TEXT_FILE, "y.txt", "B\\src");
+        worker.appendToFile("B\\src\\y.txt", "two");
+        worker.rename("B\\src\\lib\\zz.txt", "z.txt");
+        worker.writeToFile("B\\src\\wide\\f5.txt", "file 5");
+        worker.appendToFile("B\\src\\x.txt", "+even more");
+        worker.truncateFile("B\\src\\x.txt", 3);
+        assertTrue(worker.diff("A\\src", "B\\src").isEmpty());
+        assertEquals(((FileSystemEntity) FSUtils.findEntity("A\\src", worker.getDrives())).getMerkleHash(),
+                ((FileSystemEntity) FSUtils.findEntity("B\\src", worker.getDrives())).getMerkleHash());
+
+        // The image carries the hashes, so the loaded tree compares without reading any content
+        Path image = dir.resolve("a.img");
+        worker.saveImage(image);
+        FileSystemWorker other = new FileSystemWorker();
+        other.loadImage(image);
+        assertEquals(worker.getDrives().get("A").getMerkleHash(),
+                other.getDrives().get("A").getMerkleHash());
+        assertTrue(worker.diff("A\\src", other, "A\\src").isEmpty());
+        other.appendToFile("A\\src\\lib\\z.txt", "!");
+        assertEquals("[MODIFIED lib\\z.txt]", worker.diff("A\\src", other, "A\\src").toString());
+        assertEquals("[REMOVED , ADDED ]", worker.diff("A\\src\\x.txt", "A\\src\\lib").toString());
+    }
 }